@@ -0,0 +1,90 @@
+package com.example.cameraxopengl;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares reading marker corners element by element (two get() calls per corner, each returning a
+ * new double[]) with one bulk get() per marker into a reused float[].
+ */
+@RunWith(AndroidJUnit4.class)
+public class CornerExtractionBenchmark {
+    private static final String TAG = "CornerExtraction";
+    private static final int MARKERS = 4;
+    private static final int ITERATIONS = 20000;
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        assertTrue(OpenCVLoader.initDebug());
+    }
+
+    @Test
+    public void bulkReadIsEquivalentAndFaster() {
+        List<Mat> corners = createCorners();
+        float[] perElement = new float[MARKERS * 8];
+        float[] bulk = new float[MARKERS * 8];
+        float[] scratch = new float[8];
+
+        readPerElement(corners, perElement);
+        MarkerContainer.readCorners(corners, bulk, scratch);
+        assertArrayEquals(perElement, bulk, 0f);
+
+        // Warm up both paths before timing them
+        for (int i = 0; i < ITERATIONS / 10; ++i) {
+            readPerElement(corners, perElement);
+            MarkerContainer.readCorners(corners, bulk, scratch);
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; ++i) {
+            readPerElement(corners, perElement);
+        }
+        long perElementNs = (SystemClock.elapsedRealtimeNanos() - start) / ITERATIONS;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; ++i) {
+            MarkerContainer.readCorners(corners, bulk, scratch);
+        }
+        long bulkNs = (SystemClock.elapsedRealtimeNanos() - start) / ITERATIONS;
+
+        Log.i(TAG, MARKERS + " markers: per-element " + perElementNs + " ns, bulk " + bulkNs + " ns");
+        assertTrue(bulkNs < perElementNs);
+    }
+
+    // The way MarkerContainer used to read the corners
+    private static void readPerElement(List<Mat> corners, float[] dst) {
+        for (int i = 0; i < corners.size(); ++i) {
+            Mat marker = corners.get(i);
+            for (int j = 0; j < 4; ++j) {
+                dst[8 * i + 2 * j] = (float) marker.get(0, j)[0];
+                dst[8 * i + 2 * j + 1] = (float) marker.get(0, j)[1];
+            }
+        }
+    }
+
+    // Corner Mats laid out like the ones returned by detectMarkers (1x4, CV_32FC2)
+    private static List<Mat> createCorners() {
+        List<Mat> corners = new ArrayList<>();
+        for (int i = 0; i < MARKERS; ++i) {
+            Mat marker = new Mat(1, 4, CvType.CV_32FC2);
+            marker.put(0, 0, new float[]{
+                    100f * i, 100f, 100f * i + 50f, 100f, 100f * i + 50f, 150f, 100f * i, 150f});
+            corners.add(marker);
+        }
+        return corners;
+    }
+}
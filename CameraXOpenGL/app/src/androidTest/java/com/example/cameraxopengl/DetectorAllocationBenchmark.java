@@ -0,0 +1,113 @@
+package com.example.cameraxopengl;
+
+import android.os.Debug;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.aruco.DetectorParameters;
+import org.opencv.aruco.Dictionary;
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.opencv.aruco.Aruco.CORNER_REFINE_SUBPIX;
+import static org.opencv.aruco.Aruco.DICT_6X6_50;
+import static org.opencv.aruco.Aruco.detectMarkers;
+import static org.opencv.aruco.Aruco.getPredefinedDictionary;
+
+/**
+ * Counts the Java allocations per detectMarkers call when the corner list, ids, dictionary and
+ * detector parameters are created for every frame (as GLRenderer used to) and when they are reused.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DetectorAllocationBenchmark {
+    private static final String TAG = "DetectorAllocation";
+    private static final int FRAMES = 100;
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        assertTrue(OpenCVLoader.initDebug());
+    }
+
+    @Test
+    public void allocationsPerDetectMarkersCall() {
+        Mat image = MatScopeBenchmark.createFrame();
+
+        // One round each first so that class loading is not counted
+        detectFresh(image);
+        Reused reused = new Reused();
+        detectReused(image, reused);
+
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            for (int i = 0; i < FRAMES; ++i) {
+                detectFresh(image);
+            }
+            int freshCount = Debug.getThreadAllocCount();
+            int freshSize = Debug.getThreadAllocSize();
+
+            Debug.resetThreadAllocCount();
+            for (int i = 0; i < FRAMES; ++i) {
+                detectReused(image, reused);
+            }
+            int reusedCount = Debug.getThreadAllocCount();
+            int reusedSize = Debug.getThreadAllocSize();
+
+            Log.i(TAG, "Per detectMarkers call: before " + freshCount / FRAMES + " objects, "
+                    + freshSize / FRAMES + " bytes; after " + reusedCount / FRAMES + " objects, "
+                    + reusedSize / FRAMES + " bytes");
+            assertTrue(reusedCount <= freshCount);
+        }
+        finally {
+            Debug.stopAllocCounting();
+            reused.release();
+            image.release();
+        }
+    }
+
+    private void detectFresh(Mat image) {
+        try (MatScope scope = new MatScope()) {
+            List<Mat> corners = new ArrayList<>();
+            Mat ids = scope.mat();
+            DetectorParameters params = DetectorParameters.create();
+            params.set_cornerRefinementMethod(CORNER_REFINE_SUBPIX);
+
+            detectMarkers(image, getPredefinedDictionary(DICT_6X6_50), corners, ids, params);
+            scope.trackAll(corners);
+            assertEquals(2, corners.size());
+        }
+    }
+
+    private void detectReused(Mat image, Reused reused) {
+        try (MatScope scope = new MatScope()) {
+            reused.corners.clear();
+            detectMarkers(image, reused.dictionary, reused.corners, reused.ids, reused.params);
+            scope.trackAll(reused.corners);
+            assertEquals(2, reused.corners.size());
+        }
+    }
+
+    // The per-frame state that GLRenderer now keeps between frames
+    private static class Reused {
+        final List<Mat> corners = new ArrayList<>();
+        final Mat ids = new Mat();
+        final DetectorParameters params = DetectorParameters.create();
+        final Dictionary dictionary = getPredefinedDictionary(DICT_6X6_50);
+
+        Reused() {
+            params.set_cornerRefinementMethod(CORNER_REFINE_SUBPIX);
+        }
+
+        void release() {
+            ids.release();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.example.cameraxopengl;
+
+import android.graphics.PixelFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.util.Log;
+import android.view.Surface;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the recording pipeline on a pbuffer context instead of the GLSurfaceView, with an
+ * ImageReader in place of the video encoder, and checks that the frames arrive with what was drawn
+ * and that the drawing thread is not slowed down by the recorder.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FrameRecorderTest {
+    private static final String TAG = "FrameRecorderTest";
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 64;
+    private static final int FRAMES = 300;
+
+    private EGLDisplay display;
+    private EGLContext context;
+    private EGLSurface surface;
+
+    // Keeps the last frame that reached the surface
+    private static class ImageOutput implements FrameRecorder.Output {
+        private final CountDownLatch released = new CountDownLatch(1);
+        private ImageReader reader;
+        private int frames = 0;
+        private int lastRed = -1;
+
+        @Override
+        public Surface prepare(int width, int height) {
+            reader = ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, 2);
+            return reader.getSurface();
+        }
+
+        @Override
+        public void drain(boolean endOfStream) {
+            // The frame is queued to the reader asynchronously, wait a little for the last one
+            long deadline = System.nanoTime() + (endOfStream ? TimeUnit.SECONDS.toNanos(1) : 0);
+            do {
+                Image image = reader.acquireLatestImage();
+                if (image != null) {
+                    ByteBuffer pixels = image.getPlanes()[0].getBuffer();
+                    lastRed = pixels.get(0) & 0xFF;
+                    frames++;
+                    image.close();
+                    return;
+                }
+            } while (System.nanoTime() < deadline);
+        }
+
+        @Override
+        public void release() {
+            reader.close();
+            released.countDown();
+        }
+    }
+
+    @Before
+    public void createContext() {
+        display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        assertTrue(EGL14.eglInitialize(display, version, 0, version, 1));
+        int[] attributes = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_ALPHA_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGLExt.EGL_OPENGL_ES3_BIT_KHR,
+                EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] count = new int[1];
+        assertTrue(EGL14.eglChooseConfig(display, attributes, 0, configs, 0, 1, count, 0));
+        context = EGL14.eglCreateContext(display, configs[0], EGL14.EGL_NO_CONTEXT,
+                new int[] {EGL14.EGL_CONTEXT_CLIENT_VERSION, 3, EGL14.EGL_NONE}, 0);
+        surface = EGL14.eglCreatePbufferSurface(display, configs[0],
+                new int[] {EGL14.EGL_WIDTH, WIDTH, EGL14.EGL_HEIGHT, HEIGHT, EGL14.EGL_NONE}, 0);
+        assertTrue(EGL14.eglMakeCurrent(display, surface, surface, context));
+    }
+
+    @After
+    public void destroyContext() {
+        EGL14.eglMakeCurrent(display, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+        EGL14.eglDestroySurface(display, surface);
+        EGL14.eglDestroyContext(display, context);
+        EGL14.eglReleaseThread();
+    }
+
+    @Test
+    public void recordsWhatIsDrawn() throws InterruptedException {
+        Shader shader = new Shader();
+        ImageOutput output = new ImageOutput();
+        FrameRecorder recorder = new FrameRecorder(output, WIDTH, HEIGHT);
+        recorder.start();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < FRAMES; i++) {
+            int slot = recorder.beginFrame(WIDTH, HEIGHT);
+            GLES20.glClearColor(1f, 0f, 0f, 1f);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            if (slot >= 0) {
+                recorder.endFrame(slot, System.nanoTime(), shader);
+            }
+            EGL14.eglSwapBuffers(display, surface);
+        }
+        long drawNanos = System.nanoTime() - start;
+        recorder.stop();
+
+        assertTrue(output.released.await(5, TimeUnit.SECONDS));
+        assertEquals(FRAMES, recorder.recordedFrames() + recorder.droppedFrames());
+        assertTrue(output.frames > 0);
+        assertEquals(255, output.lastRed);
+        Log.i(TAG, recorder.recordedFrames() + " frames recorded, " + recorder.droppedFrames()
+                + " dropped, " + drawNanos / FRAMES / 1000 + " us per drawn frame");
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.cameraxopengl;
+
+import android.os.SystemClock;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.aruco.Aruco;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the asynchronous detection path the renderer uses with the asynchronous_detection extra:
+ * a MarkerDetector on the detection stage that hands its markers to the pose stage, on a drawn
+ * frame with two markers and on an empty one.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MarkerDetectorTest {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int MARKER_PX = 120;
+    // The centers are this far apart, so the markers are 2.5 marker lengths apart
+    private static final int SPACING_PX = 300;
+    private static final float MARKER_LENGTH = 50;
+    private static final long TIMEOUT_MS = 5000;
+
+    private AppExecutors executors;
+    private MarkerContainer container;
+    private FrameSequence frames;
+    private CameraModel model;
+    private MarkerPoses.Pool poses;
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        assertTrue(OpenCVLoader.initDebug());
+    }
+
+    @Before
+    public void setUp() {
+        executors = new AppExecutors(AppExecutors.Policy.STAGED);
+        container = new MarkerContainer();
+        frames = new FrameSequence();
+        model = CameraModel.defaults(IntrinsicsStore.device(), WIDTH, HEIGHT);
+        poses = new MarkerPoses.Pool(DetectorSettings.createParameters(), DetectorSettings.createDictionary());
+    }
+
+    @After
+    public void tearDown() {
+        executors.shutdown();
+        model.release();
+    }
+
+    @Test
+    public void twoMarkersAreMeasuredOnThePoseStage() throws InterruptedException {
+        Mat frame = blankFrame();
+        drawMarker(frame, 0, WIDTH / 2 - SPACING_PX / 2);
+        drawMarker(frame, 1, WIDTH / 2 + SPACING_PX / 2);
+
+        detect(frame, 1000);
+        awaitCompleted(AppExecutors.Stage.POSE);
+
+        MarkerContainer.Snapshot markers = container.acquire();
+        try {
+            assertEquals(2, markers.getNumMarkers());
+            assertEquals(1000, markers.getTimestamp());
+            assertEquals(MARKER_LENGTH * SPACING_PX / MARKER_PX, markers.getDistance(), 3);
+        }
+        finally {
+            markers.release();
+        }
+        assertEquals(1, executors.stats(AppExecutors.Stage.DETECTION).completed);
+    }
+
+    @Test
+    public void frameWithoutMarkersNeverReachesThePoseStage() throws InterruptedException {
+        detect(blankFrame(), 2000);
+        awaitCompleted(AppExecutors.Stage.DETECTION);
+
+        MarkerContainer.Snapshot markers = container.acquire();
+        try {
+            assertTrue(markers.isEmpty());
+            assertEquals(2000, markers.getTimestamp());
+        }
+        finally {
+            markers.release();
+        }
+        assertEquals(0, executors.stats(AppExecutors.Stage.POSE).submitted);
+    }
+
+    // The detector owns the frame and releases it
+    private void detect(Mat frame, long timestamp) {
+        long deadline = System.nanoTime() + TIMEOUT_MS * 1_000_000L;
+        executors.executor(AppExecutors.Stage.DETECTION).execute(new MarkerDetector(frame, container,
+                MARKER_LENGTH, model, poses, executors.executor(AppExecutors.Stage.POSE), frames, timestamp, deadline));
+    }
+
+    private void awaitCompleted(AppExecutors.Stage stage) throws InterruptedException {
+        long end = SystemClock.elapsedRealtime() + TIMEOUT_MS;
+        while (executors.stats(stage).completed < 1) {
+            assertTrue(stage + " did not finish", SystemClock.elapsedRealtime() < end);
+            Thread.sleep(10);
+        }
+    }
+
+    private static Mat blankFrame() {
+        return new Mat(HEIGHT, WIDTH, CvType.CV_8UC1, new Scalar(255));
+    }
+
+    // A marker centered at x, halfway down the frame
+    private static void drawMarker(Mat frame, int id, int x) {
+        Mat marker = new Mat();
+        Aruco.drawMarker(DetectorSettings.createDictionary(), id, MARKER_PX, marker);
+        Mat region = frame.submat(new Rect(x - MARKER_PX / 2, (HEIGHT - MARKER_PX) / 2, MARKER_PX, MARKER_PX));
+        marker.copyTo(region);
+        region.release();
+        marker.release();
+    }
+}
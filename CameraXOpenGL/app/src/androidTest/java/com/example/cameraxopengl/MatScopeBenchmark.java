@@ -0,0 +1,109 @@
+package com.example.cameraxopengl;
+
+import android.os.Debug;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.opencv.aruco.Aruco.DICT_6X6_50;
+import static org.opencv.aruco.Aruco.detectMarkers;
+import static org.opencv.aruco.Aruco.drawMarker;
+import static org.opencv.aruco.Aruco.estimatePoseSingleMarkers;
+import static org.opencv.aruco.Aruco.getPredefinedDictionary;
+
+/**
+ * Compares the native heap high-water mark per frame when the temporary Mats of a frame are left to
+ * the garbage collector and when they are released by a MatScope.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MatScopeBenchmark {
+    private static final String TAG = "MatScopeBenchmark";
+    private static final int FRAMES = 200;
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        assertTrue(OpenCVLoader.initDebug());
+    }
+
+    @Test
+    public void nativeHighWaterMarkPerFrame() {
+        Mat image = createFrame();
+        Mat cameraMatrix = Mat.eye(3, 3, CvType.CV_32F);
+        Mat distortion = Mat.zeros(1, 5, CvType.CV_32F);
+
+        long unscoped = runFrames(image, cameraMatrix, distortion, false);
+        long scoped = runFrames(image, cameraMatrix, distortion, true);
+
+        Log.i(TAG, "Native heap high-water mark over " + FRAMES + " frames: without scope "
+                + unscoped + " bytes, with scope " + scoped + " bytes");
+        assertTrue(scoped <= unscoped);
+    }
+
+    // Returns how far the native heap grew above its level before the first frame
+    private long runFrames(Mat image, Mat cameraMatrix, Mat distortion, boolean useScope) {
+        System.gc();
+        System.runFinalization();
+        long baseline = Debug.getNativeHeapAllocatedSize();
+        long highWaterMark = 0;
+
+        for (int i = 0; i < FRAMES; ++i) {
+            if (useScope) {
+                try (MatScope scope = new MatScope()) {
+                    processFrame(scope, image, cameraMatrix, distortion);
+                }
+            }
+            else {
+                processFrame(null, image, cameraMatrix, distortion);
+            }
+            highWaterMark = Math.max(highWaterMark, Debug.getNativeHeapAllocatedSize() - baseline);
+        }
+        return highWaterMark;
+    }
+
+    // The same kind of temporaries as GLRenderer creates for each frame
+    private void processFrame(MatScope scope, Mat image, Mat cameraMatrix, Mat distortion) {
+        List<Mat> corners = new ArrayList<>();
+        Mat ids = track(scope, new Mat());
+        Mat copy = track(scope, image.clone());
+
+        detectMarkers(copy, getPredefinedDictionary(DICT_6X6_50), corners, ids);
+        if (scope != null) {
+            scope.trackAll(corners);
+        }
+
+        Mat rvecs = track(scope, new Mat());
+        Mat tvecs = track(scope, new Mat());
+        estimatePoseSingleMarkers(corners, 50, cameraMatrix, distortion, rvecs, tvecs);
+    }
+
+    private static <T extends Mat> T track(MatScope scope, T mat) {
+        return scope != null ? scope.track(mat) : mat;
+    }
+
+    // A white 720x1280 frame with two markers from the dictionary used by the app
+    static Mat createFrame() {
+        Mat image = new Mat(1280, 720, CvType.CV_8UC1, new Scalar(255));
+        Mat marker = new Mat();
+
+        drawMarker(getPredefinedDictionary(DICT_6X6_50), 0, 200, marker);
+        marker.copyTo(image.submat(new Rect(100, 400, 200, 200)));
+        drawMarker(getPredefinedDictionary(DICT_6X6_50), 1, 200, marker);
+        marker.copyTo(image.submat(new Rect(420, 700, 200, 200)));
+
+        marker.release();
+        return image;
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.cameraxopengl;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the time per frame of the Java and the OpenCV projection backends for growing point
+ * counts, and checks that they agree.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PointProjectorBenchmark {
+    private static final String TAG = "PointProjectorBenchmark";
+    private static final int FRAMES = 2000;
+    private static final int[] POINT_COUNTS = {2, 8, 32, 128, 512};
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        assertTrue(OpenCVLoader.initDebug());
+    }
+
+    @Test
+    public void javaAgainstOpenCV() {
+        CameraModel model = CameraModel.defaults(IntrinsicsStore.device(), 720, 1280);
+        double[] rvec = {0.3, 0.2, -0.1};
+        double[] tvec = {10, 5, 250};
+        PointProjector java = new PointProjector(PointProjector.Backend.JAVA);
+        PointProjector opencv = new PointProjector(PointProjector.Backend.OPENCV);
+
+        for (int count : POINT_COUNTS) {
+            double[] points = new double[3 * count];
+            for (int i = 0; i < count; i++) {
+                points[3 * i] = 100 * Math.cos(i);
+                points[3 * i + 1] = 100 * Math.sin(i);
+            }
+            double[] fromJava = new double[2 * count];
+            double[] fromOpenCV = new double[2 * count];
+
+            long javaNanos = run(java, model, rvec, tvec, points, count, fromJava);
+            long opencvNanos = run(opencv, model, rvec, tvec, points, count, fromOpenCV);
+            for (int i = 0; i < 2 * count; i++) {
+                assertEquals(fromOpenCV[i], fromJava[i], 0.01);
+            }
+
+            Log.i(TAG, count + " points: Java " + javaNanos / FRAMES + " ns, OpenCV "
+                    + opencvNanos / FRAMES + " ns per frame");
+        }
+        opencv.release();
+    }
+
+    private static long run(PointProjector projector, CameraModel model, double[] rvec, double[] tvec,
+                            double[] points, int count, double[] dst) {
+        long start = System.nanoTime();
+        for (int i = 0; i < FRAMES; i++) {
+            projector.project(model, rvec, tvec, points, count, dst);
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,355 @@
+package com.example.cameraxopengl;
+
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+// AppExecutors is the execution model of the app. Work is split into stages, each with its own
+// Android thread priority:
+//
+//     ANALYSIS    the CameraX analyzer, one frame at a time
+//     DETECTION   marker detection off the analysis thread
+//     POSE        pose and measurement of detected markers
+//     IO          journal and other file work
+//     BACKGROUND  calibration solves and full resolution stills
+//
+// The policy decides which threads run the frame stages (ANALYSIS, DETECTION, POSE):
+//
+//     SINGLE         all three on one thread
+//     STAGED         one thread per stage, a frame moves through them like a pipeline
+//     WORK_STEALING  ANALYSIS on its own thread, DETECTION and POSE on a work-stealing pool with a
+//                    thread per core but one
+//
+// IO and BACKGROUND always have one thread each. DETECTION and POSE keep at most a few tasks
+// waiting: when a new one comes, the oldest waiting task is dropped, since only the newest frame
+// matters. A dropped task that holds resources (Discardable) is told so it can release them.
+// ANALYSIS tasks are never dropped, CameraX already only delivers the latest frame and expects every
+// image to be closed.
+//
+// The priority is set by each task on whichever thread runs it, so stages that share a thread still
+// run at their own priority. alignWithRenderThread() places the frame stages one step below the GL
+// thread, so that the preview wins when the CPU is contended. Every stage counts its submitted,
+// completed and dropped tasks and its queue depth.
+
+class AppExecutors {
+    enum Policy {
+        SINGLE,
+        STAGED,
+        WORK_STEALING;
+
+        // The policy of the given name in any case, or the fallback if there is none by that name
+        static Policy parse(String name, Policy fallback) {
+            if (name == null) {
+                return fallback;
+            }
+            for (Policy policy : values()) {
+                if (policy.name().equalsIgnoreCase(name.trim())) {
+                    return policy;
+                }
+            }
+            return fallback;
+        }
+    }
+
+    enum Stage {
+        ANALYSIS("Analysis", 0, Process.THREAD_PRIORITY_DISPLAY + Process.THREAD_PRIORITY_LESS_FAVORABLE),
+        DETECTION("Detection", 1, Process.THREAD_PRIORITY_DISPLAY + Process.THREAD_PRIORITY_LESS_FAVORABLE),
+        POSE("Pose", 2, Process.THREAD_PRIORITY_DISPLAY + Process.THREAD_PRIORITY_LESS_FAVORABLE),
+        IO("IO", 0, Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_MORE_FAVORABLE),
+        BACKGROUND("Background", 0, Process.THREAD_PRIORITY_BACKGROUND);
+
+        final String threadName;
+        // Waiting tasks before the oldest is dropped, 0 for no limit
+        final int capacity;
+        final int defaultPriority;
+
+        Stage(String threadName, int capacity, int defaultPriority) {
+            this.threadName = threadName;
+            this.capacity = capacity;
+            this.defaultPriority = defaultPriority;
+        }
+
+        boolean isFrameStage() {
+            return this == ANALYSIS || this == DETECTION || this == POSE;
+        }
+    }
+
+    // A task that holds resources, which it has to release if it is dropped without running
+    interface Discardable {
+        void discard();
+    }
+
+    // Sets the priority of the calling thread, Process.setThreadPriority on Android
+    interface Priorities {
+        void set(int priority);
+    }
+
+    // Counters of one stage at one point in time
+    static class Stats {
+        final Stage stage;
+        // Tasks waiting to run
+        final int depth;
+        final int maxDepth;
+        final long submitted;
+        final long completed;
+        final long dropped;
+
+        Stats(Stage stage, int depth, int maxDepth, long submitted, long completed, long dropped) {
+            this.stage = stage;
+            this.depth = depth;
+            this.maxDepth = maxDepth;
+            this.submitted = submitted;
+            this.completed = completed;
+            this.dropped = dropped;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s: depth %d (max %d), %d submitted, %d completed, %d dropped",
+                    stage.threadName, depth, maxDepth, submitted, completed, dropped);
+        }
+    }
+
+    private static final int WAITING = 0;
+    private static final int RUNNING = 1;
+    private static final int DROPPED = 2;
+
+    private final Policy policy;
+    private final Priorities priorities;
+    private final AtomicIntegerArray stagePriorities = new AtomicIntegerArray(Stage.values().length);
+    // The priority each thread last set for itself
+    private final ThreadLocal<int[]> appliedPriority = ThreadLocal.withInitial(() -> new int[] {Integer.MIN_VALUE});
+    private final Map<Stage, StageExecutor> stages = new EnumMap<>(Stage.class);
+    private final List<ExecutorService> lanes = new ArrayList<>();
+
+    AppExecutors(Policy policy) {
+        this(policy, Process::setThreadPriority);
+    }
+
+    AppExecutors(Policy policy, Priorities priorities) {
+        this.policy = policy;
+        this.priorities = priorities;
+        for (Stage stage : Stage.values()) {
+            stagePriorities.set(stage.ordinal(), stage.defaultPriority);
+        }
+
+        switch (policy) {
+            case SINGLE: {
+                ExecutorService frames = singleThread(Stage.ANALYSIS, "Frames");
+                stages.put(Stage.ANALYSIS, new StageExecutor(Stage.ANALYSIS, frames));
+                stages.put(Stage.DETECTION, new StageExecutor(Stage.DETECTION, frames));
+                stages.put(Stage.POSE, new StageExecutor(Stage.POSE, frames));
+                break;
+            }
+            case STAGED:
+                for (Stage stage : new Stage[] {Stage.ANALYSIS, Stage.DETECTION, Stage.POSE}) {
+                    stages.put(stage, new StageExecutor(stage, singleThread(stage, stage.threadName)));
+                }
+                break;
+            case WORK_STEALING: {
+                stages.put(Stage.ANALYSIS, new StageExecutor(Stage.ANALYSIS, singleThread(Stage.ANALYSIS, Stage.ANALYSIS.threadName)));
+                int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+                ForkJoinPool pool = new ForkJoinPool(parallelism, new WorkerFactory(Stage.DETECTION), null, true);
+                lanes.add(pool);
+                stages.put(Stage.DETECTION, new StageExecutor(Stage.DETECTION, pool));
+                stages.put(Stage.POSE, new StageExecutor(Stage.POSE, pool));
+                break;
+            }
+        }
+        stages.put(Stage.IO, new StageExecutor(Stage.IO, singleThread(Stage.IO, Stage.IO.threadName)));
+        stages.put(Stage.BACKGROUND, new StageExecutor(Stage.BACKGROUND, singleThread(Stage.BACKGROUND, Stage.BACKGROUND.threadName)));
+    }
+
+    Policy policy() {
+        return policy;
+    }
+
+    Executor executor(Stage stage) {
+        return stages.get(stage);
+    }
+
+    int priority(Stage stage) {
+        return stagePriorities.get(stage.ordinal());
+    }
+
+    // Run the frame stages one step less favorable than the GL thread, whose priority is given.
+    // Takes effect with the next task of each stage
+    void alignWithRenderThread(int renderPriority) {
+        int priority = Math.min(Math.max(renderPriority + Process.THREAD_PRIORITY_LESS_FAVORABLE,
+                Process.THREAD_PRIORITY_URGENT_DISPLAY), Process.THREAD_PRIORITY_LOWEST);
+        for (Stage stage : Stage.values()) {
+            if (stage.isFrameStage()) {
+                stagePriorities.set(stage.ordinal(), priority);
+            }
+        }
+    }
+
+    Stats stats(Stage stage) {
+        return stages.get(stage).stats();
+    }
+
+    // Tasks already submitted still run, new ones are rejected
+    void shutdown() {
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(policy.toString());
+        for (Stage stage : Stage.values()) {
+            sb.append("\n  ").append(stats(stage));
+        }
+        return sb.toString();
+    }
+
+    private ExecutorService singleThread(Stage stage, String name) {
+        ThreadPoolExecutor lane = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(() -> {
+                        applyPriority(stage);
+                        runnable.run();
+                    }, name);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        lanes.add(lane);
+        return lane;
+    }
+
+    private void applyPriority(Stage stage) {
+        int priority = stagePriorities.get(stage.ordinal());
+        int[] applied = appliedPriority.get();
+        if (applied[0] != priority) {
+            priorities.set(priority);
+            applied[0] = priority;
+        }
+    }
+
+    // Counts the tasks of one stage and drops the oldest waiting one when there are too many
+    private final class StageExecutor implements Executor {
+        private final Stage stage;
+        private final Executor lane;
+        private final ConcurrentLinkedQueue<Task> waiting = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger depth = new AtomicInteger();
+        private final AtomicInteger maxDepth = new AtomicInteger();
+        private final AtomicLong submitted = new AtomicLong();
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+
+        StageExecutor(Stage stage, Executor lane) {
+            this.stage = stage;
+            this.lane = lane;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            Task task = new Task(this, command);
+            submitted.incrementAndGet();
+            int current = depth.incrementAndGet();
+            maxDepth.accumulateAndGet(current, Math::max);
+            if (stage.capacity > 0) {
+                waiting.add(task);
+                while (waiting.size() > stage.capacity) {
+                    Task oldest = waiting.poll();
+                    if (oldest != null) {
+                        oldest.drop();
+                    }
+                }
+            }
+            try {
+                lane.execute(task);
+            }
+            catch (RejectedExecutionException e) {
+                task.drop();
+                throw e;
+            }
+        }
+
+        Stats stats() {
+            return new Stats(stage, depth.get(), maxDepth.get(), submitted.get(), completed.get(), dropped.get());
+        }
+    }
+
+    private final class Task implements Runnable {
+        private final StageExecutor owner;
+        private final Runnable command;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        Task(StageExecutor owner, Runnable command) {
+            this.owner = owner;
+            this.command = command;
+        }
+
+        @Override
+        public void run() {
+            if (!state.compareAndSet(WAITING, RUNNING)) {
+                return;
+            }
+            owner.depth.decrementAndGet();
+            if (owner.stage.capacity > 0) {
+                owner.waiting.remove(this);
+            }
+            applyPriority(owner.stage);
+            try {
+                command.run();
+            }
+            finally {
+                owner.completed.incrementAndGet();
+            }
+        }
+
+        void drop() {
+            if (!state.compareAndSet(WAITING, DROPPED)) {
+                return;
+            }
+            owner.depth.decrementAndGet();
+            owner.dropped.incrementAndGet();
+            if (command instanceof Discardable) {
+                ((Discardable) command).discard();
+            }
+        }
+    }
+
+    // Named workers of the work-stealing pool
+    private final class WorkerFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+        private final Stage stage;
+        private final AtomicInteger count = new AtomicInteger();
+
+        WorkerFactory(Stage stage) {
+            this.stage = stage;
+        }
+
+        @Override
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+                @Override
+                protected void onStart() {
+                    super.onStart();
+                    applyPriority(stage);
+                }
+            };
+            thread.setName("Worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package com.example.cameraxopengl;
+
+import android.util.Log;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+// CalibrationStore keeps one binary file per camera and stream size with everything a CameraModel
+// needs, so that no camera-model work is redone at startup:
+//
+//     offset  size
+//     0       4      magic "KLCB"
+//     4       4      format version
+//     8       4      byte order mark, 0x01020304 written in the byte order of the file
+//     12      8      CRC32 of all bytes from offset 20 to the end
+//     20      8      width, height
+//     28      80     fx, fy, cx, cy, k1, k2, p1, p2, k3, rms (double)
+//     108     4      number of calibration views
+//     112     8      lookup table columns and rows (0 without distortion)
+//     120     24     type, rows and cols of undistortion map 1 and 2
+//     144     4 + n  camera id (UTF-8)
+//     ...            lookup table x, lookup table y (float), map 1, map 2, each 16-byte aligned
+//
+// Files are written in the native byte order. When loading, the file is memory mapped and the
+// undistortion maps are wrapped in Mats directly on top of the mapping, without copying. Such maps
+// are read-only. A file with the wrong magic, version, byte order, size or checksum is ignored,
+// and the caller falls back to the ratio-based defaults.
+
+class CalibrationStore {
+    private static final String TAG = "CalibrationStore";
+    static final int MAGIC = 0x4B4C4342;
+    static final int VERSION = 1;
+    private static final int BYTE_ORDER_MARK = 0x01020304;
+    private static final int CHECKSUM_OFFSET = 12;
+    private static final int CHECKSUMMED_FROM = 20;
+    private static final int ALIGNMENT = 16;
+
+    private final File directory;
+    private final IntrinsicsStore legacy;
+
+    // Everything in one calibration file. The map buffers hold the raw Mat data
+    static class Contents {
+        final String cameraId;
+        final CameraIntrinsics intrinsics;
+        final float[] lutX;
+        final float[] lutY;
+        final int map1Type, map1Rows, map1Cols;
+        final ByteBuffer map1;
+        final int map2Type, map2Rows, map2Cols;
+        final ByteBuffer map2;
+
+        Contents(String cameraId, CameraIntrinsics intrinsics, float[] lutX, float[] lutY,
+                 int map1Type, int map1Rows, int map1Cols, ByteBuffer map1,
+                 int map2Type, int map2Rows, int map2Cols, ByteBuffer map2) {
+            this.cameraId = cameraId;
+            this.intrinsics = intrinsics;
+            this.lutX = lutX;
+            this.lutY = lutY;
+            this.map1Type = map1Type;
+            this.map1Rows = map1Rows;
+            this.map1Cols = map1Cols;
+            this.map1 = map1;
+            this.map2Type = map2Type;
+            this.map2Rows = map2Rows;
+            this.map2Cols = map2Cols;
+            this.map2 = map2;
+        }
+    }
+
+    // legacy is consulted for intrinsics saved before this store existed and may be null
+    CalibrationStore(File directory, IntrinsicsStore legacy) {
+        this.directory = directory;
+        this.legacy = legacy;
+    }
+
+    static String key(String device, String cameraId, int width, int height) {
+        return CameraModel.key(device + "_" + cameraId, width, height);
+    }
+
+    File file(String cameraId, int width, int height) {
+        return new File(directory, key(IntrinsicsStore.device(), cameraId, width, height) + ".bin");
+    }
+
+    // The stored model for this camera and stream size, or null if there is none or it is invalid
+    CameraModel load(String cameraId, int width, int height) {
+        File file = file(cameraId, width, height);
+        if (file.exists()) {
+            try {
+                Contents contents = read(file);
+                if (contents.intrinsics.width == width && contents.intrinsics.height == height
+                        && contents.cameraId.equals(cameraId)) {
+                    return toModel(contents);
+                }
+                Log.w(TAG, "Ignoring " + file + ", it belongs to another camera or stream size");
+            }
+            catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Ignoring " + file, e);
+            }
+        }
+
+        // Intrinsics from before the binary store, converted once
+        CameraIntrinsics intrinsics = legacy != null ? legacy.load(width, height) : null;
+        if (intrinsics == null) {
+            return null;
+        }
+        CameraModel model = new CameraModel(IntrinsicsStore.device(), intrinsics);
+        save(cameraId, model);
+        return model;
+    }
+
+    // Store a model including its undistortion maps, which are computed if necessary
+    void save(String cameraId, CameraModel model) {
+        Mat[] maps = model.getUndistortMaps();
+        Contents contents = new Contents(cameraId, model.getIntrinsics(), model.getLutX(), model.getLutY(),
+                maps[0].type(), maps[0].rows(), maps[0].cols(), matData(maps[0]),
+                maps[1].type(), maps[1].rows(), maps[1].cols(), matData(maps[1]));
+        try {
+            write(file(cameraId, model.width, model.height), contents);
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Could not store the calibration", e);
+        }
+    }
+
+    // Wrap the mapped maps in Mats. The model keeps the mapping alive
+    private static CameraModel toModel(Contents contents) {
+        Mat map1 = new Mat(contents.map1Rows, contents.map1Cols, contents.map1Type, contents.map1);
+        Mat map2 = new Mat(contents.map2Rows, contents.map2Cols, contents.map2Type, contents.map2);
+        return new CameraModel(IntrinsicsStore.device(), contents.intrinsics, contents.lutX, contents.lutY,
+                map1, map2, contents);
+    }
+
+    private static ByteBuffer matData(Mat mat) {
+        int size = (int) (mat.total() * mat.elemSize());
+        ByteBuffer data = ByteBuffer.allocate(size);
+        // The maps are 16-bit, read them as shorts to get the byte order right
+        short[] values = new short[size / 2];
+        Mat continuous = mat.isContinuous() ? mat : mat.clone();
+        continuous.get(0, 0, values);
+        if (continuous != mat) {
+            continuous.release();
+        }
+        data.order(ByteOrder.nativeOrder()).asShortBuffer().put(values);
+        return data;
+    }
+
+    // File format
+
+    static void write(File file, Contents contents) throws IOException {
+        byte[] cameraId = contents.cameraId.getBytes(StandardCharsets.UTF_8);
+        int lutLength = contents.lutX != null ? contents.lutX.length : 0;
+        int lutXOffset = align(144 + 4 + cameraId.length);
+        int lutYOffset = align(lutXOffset + 4 * lutLength);
+        int map1Offset = align(lutYOffset + 4 * lutLength);
+        int map2Offset = align(map1Offset + contents.map1.remaining());
+        int size = map2Offset + contents.map2.remaining();
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        CameraIntrinsics intrinsics = contents.intrinsics;
+        double[] distortion = intrinsics.getDistortion();
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(BYTE_ORDER_MARK).putLong(0)
+              .putInt(intrinsics.width).putInt(intrinsics.height)
+              .putDouble(intrinsics.fx).putDouble(intrinsics.fy).putDouble(intrinsics.cx).putDouble(intrinsics.cy);
+        for (double d : distortion) {
+            buffer.putDouble(d);
+        }
+        buffer.putDouble(intrinsics.rms).putInt(intrinsics.views);
+        if (lutLength > 0) {
+            buffer.putInt(CameraModel.lutColumns(intrinsics.width)).putInt(CameraModel.lutRows(intrinsics.height));
+        }
+        else {
+            buffer.putInt(0).putInt(0);
+        }
+        buffer.putInt(contents.map1Type).putInt(contents.map1Rows).putInt(contents.map1Cols)
+              .putInt(contents.map2Type).putInt(contents.map2Rows).putInt(contents.map2Cols)
+              .putInt(cameraId.length).put(cameraId);
+
+        if (lutLength > 0) {
+            ((ByteBuffer) buffer.position(lutXOffset)).asFloatBuffer().put(contents.lutX);
+            ((ByteBuffer) buffer.position(lutYOffset)).asFloatBuffer().put(contents.lutY);
+        }
+        buffer.position(map1Offset);
+        buffer.put(contents.map1.duplicate());
+        buffer.position(map2Offset);
+        buffer.put(contents.map2.duplicate());
+
+        buffer.putLong(CHECKSUM_OFFSET, checksum(buffer, size));
+        buffer.position(0);
+
+        // Write to a temporary file first so that a crash never leaves a half written calibration
+        File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        File temporary = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile output = new RandomAccessFile(temporary, "rw")) {
+            output.setLength(0);
+            FileChannel channel = output.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    static Contents read(File file) throws IOException {
+        MappedByteBuffer buffer;
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            // The mapping stays valid after the channel is closed
+            buffer = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+        }
+        buffer.order(ByteOrder.nativeOrder());
+        int size = buffer.capacity();
+        if (size < 148 || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a calibration file");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported calibration file version " + buffer.getInt(4));
+        }
+        if (buffer.getInt(8) != BYTE_ORDER_MARK) {
+            throw new IOException("Calibration file has a different byte order");
+        }
+        if (buffer.getLong(CHECKSUM_OFFSET) != checksum(buffer, size)) {
+            throw new IOException("Calibration file checksum mismatch");
+        }
+
+        buffer.position(20);
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        double fx = buffer.getDouble();
+        double fy = buffer.getDouble();
+        double cx = buffer.getDouble();
+        double cy = buffer.getDouble();
+        double[] distortion = new double[5];
+        for (int i = 0; i < distortion.length; ++i) {
+            distortion[i] = buffer.getDouble();
+        }
+        double rms = buffer.getDouble();
+        int views = buffer.getInt();
+        int lutLength = buffer.getInt() * buffer.getInt();
+        int map1Type = buffer.getInt(), map1Rows = buffer.getInt(), map1Cols = buffer.getInt();
+        int map2Type = buffer.getInt(), map2Rows = buffer.getInt(), map2Cols = buffer.getInt();
+        int cameraIdLength = buffer.getInt();
+        if (cameraIdLength < 0 || cameraIdLength > size - buffer.position()) {
+            throw new IOException("Corrupt calibration file");
+        }
+        byte[] cameraId = new byte[cameraIdLength];
+        buffer.get(cameraId);
+
+        int lutXOffset = align(buffer.position());
+        int lutYOffset = align(lutXOffset + 4 * lutLength);
+        int map1Offset = align(lutYOffset + 4 * lutLength);
+        int map1Size = map1Rows * map1Cols * CvType.ELEM_SIZE(map1Type);
+        int map2Offset = align(map1Offset + map1Size);
+        int map2Size = map2Rows * map2Cols * CvType.ELEM_SIZE(map2Type);
+        if (map2Offset + map2Size != size) {
+            throw new IOException("Calibration file has the wrong size");
+        }
+
+        float[] lutX = null;
+        float[] lutY = null;
+        if (lutLength > 0) {
+            lutX = new float[lutLength];
+            lutY = new float[lutLength];
+            ((ByteBuffer) buffer.position(lutXOffset)).asFloatBuffer().get(lutX);
+            ((ByteBuffer) buffer.position(lutYOffset)).asFloatBuffer().get(lutY);
+        }
+
+        return new Contents(new String(cameraId, StandardCharsets.UTF_8),
+                new CameraIntrinsics(width, height, fx, fy, cx, cy, distortion, rms, views), lutX, lutY,
+                map1Type, map1Rows, map1Cols, slice(buffer, map1Offset, map1Size),
+                map2Type, map2Rows, map2Cols, slice(buffer, map2Offset, map2Size));
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int size) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        duplicate.limit(offset + size);
+        return duplicate.slice().order(ByteOrder.nativeOrder());
+    }
+
+    private static long checksum(ByteBuffer buffer, int size) {
+        ByteBuffer checked = buffer.duplicate();
+        checked.position(CHECKSUMMED_FROM);
+        checked.limit(size);
+        CRC32 crc = new CRC32();
+        crc.update(checked);
+        return crc.getValue();
+    }
+
+    private static int align(int offset) {
+        return (offset + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+}
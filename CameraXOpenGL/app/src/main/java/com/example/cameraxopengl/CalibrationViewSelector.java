@@ -0,0 +1,85 @@
+package com.example.cameraxopengl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// CalibrationViewSelector decides which board views are worth adding to a calibration. A view is
+// described by the tilt of the board (its normal in camera coordinates), where the board is in the
+// image and how large it appears. A calibration from many views of the board held the same way
+// constrains the focal length and the distortion poorly, so a new view is only accepted if it
+// differs enough from every accepted view in at least one of these.
+
+class CalibrationViewSelector {
+    static final double MIN_TILT_DIFFERENCE = Math.toRadians(12);
+    static final double MIN_CENTER_OFFSET = 0.15;
+    static final double MIN_SCALE_RATIO = 1.25;
+
+    // One view of the board
+    static class View {
+        // Unit normal of the board plane in camera coordinates
+        final double nx, ny, nz;
+        // Center of the detected corners as a fraction of the image width and height
+        final double u, v;
+        // Diagonal of the bounding box of the corners as a fraction of the image diagonal
+        final double scale;
+
+        View(double nx, double ny, double nz, double u, double v, double scale) {
+            double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+            this.nx = nx / length;
+            this.ny = ny / length;
+            this.nz = nz / length;
+            this.u = u;
+            this.v = v;
+            this.scale = scale;
+        }
+
+        // The board normal is the third column of the rotation matrix of the rotation vector
+        // (rx, ry, rz), see the Rodrigues formula
+        static View fromPose(double rx, double ry, double rz, double u, double v, double scale) {
+            double theta = Math.sqrt(rx * rx + ry * ry + rz * rz);
+            if (theta < 1e-12) {
+                return new View(0, 0, 1, u, v, scale);
+            }
+            double kx = rx / theta;
+            double ky = ry / theta;
+            double kz = rz / theta;
+            double c = Math.cos(theta);
+            double s = Math.sin(theta);
+            return new View(ky * s + (1 - c) * kx * kz,
+                            -kx * s + (1 - c) * ky * kz,
+                            c + (1 - c) * kz * kz,
+                            u, v, scale);
+        }
+
+        double tiltDifference(View other) {
+            double dot = nx * other.nx + ny * other.ny + nz * other.nz;
+            return Math.acos(Math.max(-1, Math.min(1, dot)));
+        }
+    }
+
+    private final List<View> accepted = new ArrayList<>();
+
+    boolean isNovel(View view) {
+        for (View other : accepted) {
+            boolean sameTilt = view.tiltDifference(other) < MIN_TILT_DIFFERENCE;
+            boolean samePlace = Math.hypot(view.u - other.u, view.v - other.v) < MIN_CENTER_OFFSET;
+            boolean sameSize = Math.max(view.scale, other.scale) < MIN_SCALE_RATIO * Math.min(view.scale, other.scale);
+            if (sameTilt && samePlace && sameSize) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void accept(View view) {
+        accepted.add(view);
+    }
+
+    int size() {
+        return accepted.size();
+    }
+
+    void clear() {
+        accepted.clear();
+    }
+}
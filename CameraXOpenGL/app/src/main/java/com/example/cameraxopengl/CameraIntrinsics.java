@@ -0,0 +1,115 @@
+package com.example.cameraxopengl;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.Arrays;
+
+// CameraIntrinsics holds the focal lengths, principal point and distortion coefficients of the
+// camera for one image resolution. Without a calibration the values are derived from the image size
+// with fixed ratios (defaults()), which is what the app used before calibration existed.
+
+class CameraIntrinsics {
+    // Relative difference of the aspect ratios up to which scaledTo() takes two sizes as the same
+    // field of view
+    static final double MAX_ASPECT_DIFFERENCE = 0.01;
+
+    final int width;
+    final int height;
+    final double fx;
+    final double fy;
+    final double cx;
+    final double cy;
+    // k1, k2, p1, p2, k3
+    private final double[] distortion;
+    // RMS reprojection error of the calibration in pixels, 0 for the defaults
+    final double rms;
+    // Number of views the calibration was computed from, 0 for the defaults
+    final int views;
+
+    CameraIntrinsics(int width, int height, double fx, double fy, double cx, double cy,
+                     double[] distortion, double rms, int views) {
+        if (distortion.length != 5) {
+            throw new IllegalArgumentException("Expected 5 distortion coefficients, got " + distortion.length);
+        }
+        this.width = width;
+        this.height = height;
+        this.fx = fx;
+        this.fy = fy;
+        this.cx = cx;
+        this.cy = cy;
+        this.distortion = distortion.clone();
+        this.rms = rms;
+        this.views = views;
+    }
+
+    // The ratios of the uncalibrated app, no distortion
+    static CameraIntrinsics defaults(int width, int height) {
+        return new CameraIntrinsics(width, height,
+                width * 0.67352064836, height * 1.19671093141,
+                width * 0.49904564092, height * 0.49937073486,
+                new double[5], 0, 0);
+    }
+
+    // Read the result of calibrateCameraCharuco
+    static CameraIntrinsics fromMats(int width, int height, Mat cameraMatrix, Mat distCoeffs, double rms, int views) {
+        double[] k = new double[9];
+        Mat k64 = new Mat();
+        cameraMatrix.convertTo(k64, CvType.CV_64F);
+        k64.get(0, 0, k);
+        k64.release();
+
+        double[] d = new double[5];
+        Mat d64 = new Mat();
+        distCoeffs.convertTo(d64, CvType.CV_64F);
+        d64.get(0, 0, d);
+        d64.release();
+
+        return new CameraIntrinsics(width, height, k[0], k[4], k[2], k[5], d, rms, views);
+    }
+
+    // The same camera at another resolution of the same field of view, e.g. the full resolution
+    // stills of the sensor crop that the analysis frames are scaled from. Null if the aspect ratio
+    // differs by more than MAX_ASPECT_DIFFERENCE, then the field of view is cropped differently and
+    // the intrinsics do not carry over
+    CameraIntrinsics scaledTo(int width, int height) {
+        double sx = (double) width / this.width;
+        double sy = (double) height / this.height;
+        if (Math.abs(sx - sy) > MAX_ASPECT_DIFFERENCE * Math.max(sx, sy)) {
+            return null;
+        }
+        // Pixel centers map to pixel centers
+        return new CameraIntrinsics(width, height, fx * sx, fy * sy,
+                (cx + 0.5) * sx - 0.5, (cy + 0.5) * sy - 0.5,
+                distortion, rms * Math.max(sx, sy), views);
+    }
+
+    boolean isCalibrated() {
+        return views > 0;
+    }
+
+    double[] getDistortion() {
+        return distortion.clone();
+    }
+
+    // 3x3 CV_32F camera matrix
+    Mat toCameraMatrix() {
+        Mat mat = new Mat(3, 3, CvType.CV_32F);
+        mat.put(0, 0, new float[] {(float) fx, 0, (float) cx, 0, (float) fy, (float) cy, 0, 0, 1});
+        return mat;
+    }
+
+    // 1x5 CV_32F distortion coefficients
+    Mat toDistortionMat() {
+        Mat mat = new Mat(1, 5, CvType.CV_32F);
+        mat.put(0, 0, new float[] {(float) distortion[0], (float) distortion[1], (float) distortion[2],
+                (float) distortion[3], (float) distortion[4]});
+        return mat;
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height + " fx=" + fx + " fy=" + fy + " cx=" + cx + " cy=" + cy
+                + " dist=" + Arrays.toString(distortion) + " rms=" + rms + " views=" + views;
+    }
+}
@@ -0,0 +1,314 @@
+package com.example.cameraxopengl;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.Size;
+
+import static org.opencv.calib3d.Calib3d.initUndistortRectifyMap;
+import static org.opencv.imgproc.Imgproc.INTER_LINEAR;
+import static org.opencv.imgproc.Imgproc.remap;
+
+// CameraModel is the one description of the camera used for a given device and image resolution.
+// It is built once from CameraIntrinsics and owns everything derived from them:
+//
+//  - the camera matrix and distortion coefficients as Mats, created on first use and shared by all
+//    callers, so pose estimation and projection never build their own
+//  - the undistortion maps from initUndistortRectifyMap, for remapping whole images
+//  - a pure-Java point model with the same distortion as OpenCV (k1, k2, p1, p2, k3). Distorting a
+//    point is closed form. Undistorting is done with a lookup table of undistorted coordinates,
+//    sampled every LUT_STEP pixels over the image, bilinear interpolation and one correction step,
+//    instead of iterating for every point.
+//
+// The values never change. A new calibration means a new CameraModel. The Mats are owned by the
+// model, callers must not release them. A task that uses the model on another thread, and may
+// still run after the owner has switched to a new model, retain()s it and release()s it when done.
+// The Mats are released with the last release().
+
+class CameraModel {
+    static final int LUT_STEP = 8;
+    // Iterations of the fixed point undistortion used to fill the lookup table and for points
+    // outside of the image
+    private static final int UNDISTORT_ITERATIONS = 20;
+
+    final String device;
+    final int width;
+    final int height;
+    final double fx, fy, cx, cy;
+    final double k1, k2, p1, p2, k3;
+    private final CameraIntrinsics intrinsics;
+    private final boolean hasDistortion;
+
+    // Undistorted normalized coordinates at the pixels (i * LUT_STEP, j * LUT_STEP)
+    private final int lutColumns;
+    private final int lutRows;
+    private final float[] lutX;
+    private final float[] lutY;
+
+    // Keeps memory mapped undistortion maps alive, see CalibrationStore
+    private final Object mapStorage;
+
+    // Created on first use, unless loaded from a CalibrationStore
+    private Mat cameraMatrix;
+    private Mat distortionMat;
+    private MatOfDouble distortionCoefficients;
+    private Mat undistortMap1;
+    private Mat undistortMap2;
+    // The owner and every retain(), guarded by this
+    private int users = 1;
+
+    CameraModel(String device, CameraIntrinsics intrinsics) {
+        this(device, intrinsics, null, null, null, null, null);
+    }
+
+    // A model with a precomputed lookup table and undistortion maps, e.g. loaded from a file.
+    // lutX and lutY are null for a model without distortion. The maps may be null, then they are
+    // computed on first use. mapStorage is kept referenced for as long as the model exists, for
+    // maps whose data is owned by e.g. a MappedByteBuffer
+    CameraModel(String device, CameraIntrinsics intrinsics, float[] lutX, float[] lutY,
+                Mat undistortMap1, Mat undistortMap2, Object mapStorage) {
+        this.device = device;
+        this.intrinsics = intrinsics;
+        width = intrinsics.width;
+        height = intrinsics.height;
+        fx = intrinsics.fx;
+        fy = intrinsics.fy;
+        cx = intrinsics.cx;
+        cy = intrinsics.cy;
+        double[] d = intrinsics.getDistortion();
+        k1 = d[0];
+        k2 = d[1];
+        p1 = d[2];
+        p2 = d[3];
+        k3 = d[4];
+        hasDistortion = k1 != 0 || k2 != 0 || p1 != 0 || p2 != 0 || k3 != 0;
+        this.undistortMap1 = undistortMap1;
+        this.undistortMap2 = undistortMap2;
+        this.mapStorage = mapStorage;
+
+        if (hasDistortion && lutX != null) {
+            lutColumns = lutColumns(width);
+            lutRows = lutRows(height);
+            if (lutX.length != lutColumns * lutRows || lutY.length != lutX.length) {
+                throw new IllegalArgumentException("Lookup table of " + lutX.length + " entries for " + width + "x" + height);
+            }
+            this.lutX = lutX;
+            this.lutY = lutY;
+        }
+        else if (hasDistortion) {
+            lutColumns = lutColumns(width);
+            lutRows = lutRows(height);
+            this.lutX = new float[lutColumns * lutRows];
+            this.lutY = new float[lutColumns * lutRows];
+            double[] point = new double[2];
+            for (int j = 0; j < lutRows; ++j) {
+                for (int i = 0; i < lutColumns; ++i) {
+                    undistortIteratively(i * LUT_STEP, j * LUT_STEP, point);
+                    this.lutX[j * lutColumns + i] = (float) point[0];
+                    this.lutY[j * lutColumns + i] = (float) point[1];
+                }
+            }
+        }
+        else {
+            lutColumns = 0;
+            lutRows = 0;
+            this.lutX = null;
+            this.lutY = null;
+        }
+    }
+
+    static int lutColumns(int width) {
+        return (width + LUT_STEP - 1) / LUT_STEP + 1;
+    }
+
+    static int lutRows(int height) {
+        return (height + LUT_STEP - 1) / LUT_STEP + 1;
+    }
+
+    static CameraModel defaults(String device, int width, int height) {
+        return new CameraModel(device, CameraIntrinsics.defaults(width, height));
+    }
+
+    CameraIntrinsics getIntrinsics() {
+        return intrinsics;
+    }
+
+    // The lookup table, null without distortion. Not copied, must not be modified
+    float[] getLutX() {
+        return lutX;
+    }
+
+    float[] getLutY() {
+        return lutY;
+    }
+
+    // Device and resolution this model describes
+    String key() {
+        return key(device, width, height);
+    }
+
+    static String key(String device, int width, int height) {
+        return device.replace(' ', '_') + "_" + width + "x" + height;
+    }
+
+    // Pure-Java point model
+
+    // Project a point in camera coordinates to distorted pixel coordinates. Returns false (and
+    // leaves dst untouched) for points on or behind the camera plane
+    boolean project(double x, double y, double z, double[] dst) {
+        if (z <= 0) {
+            return false;
+        }
+        distort(x / z, y / z, dst);
+        return true;
+    }
+
+    // Normalized undistorted coordinates (a ray with z = 1) to distorted pixel coordinates
+    void distort(double x, double y, double[] dst) {
+        double xd = x;
+        double yd = y;
+        if (hasDistortion) {
+            double r2 = x * x + y * y;
+            double radial = 1 + r2 * (k1 + r2 * (k2 + r2 * k3));
+            xd = x * radial + 2 * p1 * x * y + p2 * (r2 + 2 * x * x);
+            yd = y * radial + p1 * (r2 + 2 * y * y) + 2 * p2 * x * y;
+        }
+        dst[0] = fx * xd + cx;
+        dst[1] = fy * yd + cy;
+    }
+
+    // Distorted pixel coordinates to normalized undistorted coordinates (a ray with z = 1)
+    void undistort(double u, double v, double[] dst) {
+        if (!hasDistortion) {
+            dst[0] = (u - cx) / fx;
+            dst[1] = (v - cy) / fy;
+            return;
+        }
+
+        double gx = u / LUT_STEP;
+        double gy = v / LUT_STEP;
+        int i = (int) Math.floor(gx);
+        int j = (int) Math.floor(gy);
+        if (i < 0 || j < 0 || i >= lutColumns - 1 || j >= lutRows - 1) {
+            undistortIteratively(u, v, dst);
+            return;
+        }
+
+        // Bilinear interpolation in the table
+        double ax = gx - i;
+        double ay = gy - j;
+        int index = j * lutColumns + i;
+        double x = (1 - ay) * ((1 - ax) * lutX[index] + ax * lutX[index + 1])
+                 + ay * ((1 - ax) * lutX[index + lutColumns] + ax * lutX[index + lutColumns + 1]);
+        double y = (1 - ay) * ((1 - ax) * lutY[index] + ax * lutY[index + 1])
+                 + ay * ((1 - ax) * lutY[index + lutColumns] + ax * lutY[index + lutColumns + 1]);
+
+        // One fixed point step removes most of the interpolation error
+        double xd = (u - cx) / fx;
+        double yd = (v - cy) / fy;
+        undistortStep(xd, yd, x, y, dst);
+    }
+
+    // Distorted pixel coordinates to undistorted pixel coordinates
+    void undistortPixel(double u, double v, double[] dst) {
+        undistort(u, v, dst);
+        dst[0] = fx * dst[0] + cx;
+        dst[1] = fy * dst[1] + cy;
+    }
+
+    // The same iteration as cv::undistortPoints
+    private void undistortIteratively(double u, double v, double[] dst) {
+        double xd = (u - cx) / fx;
+        double yd = (v - cy) / fy;
+        double x = xd;
+        double y = yd;
+        for (int i = 0; i < UNDISTORT_ITERATIONS; ++i) {
+            undistortStep(xd, yd, x, y, dst);
+            x = dst[0];
+            y = dst[1];
+        }
+    }
+
+    private void undistortStep(double xd, double yd, double x, double y, double[] dst) {
+        double r2 = x * x + y * y;
+        double inverseRadial = 1 / (1 + r2 * (k1 + r2 * (k2 + r2 * k3)));
+        double deltaX = 2 * p1 * x * y + p2 * (r2 + 2 * x * x);
+        double deltaY = p1 * (r2 + 2 * y * y) + 2 * p2 * x * y;
+        dst[0] = (xd - deltaX) * inverseRadial;
+        dst[1] = (yd - deltaY) * inverseRadial;
+    }
+
+    // OpenCV representations, created once
+
+    // 3x3 CV_32F
+    synchronized Mat getCameraMatrix() {
+        if (cameraMatrix == null) {
+            cameraMatrix = intrinsics.toCameraMatrix();
+        }
+        return cameraMatrix;
+    }
+
+    // 1x5 CV_32F, for pose estimation
+    synchronized Mat getDistortionMat() {
+        if (distortionMat == null) {
+            distortionMat = intrinsics.toDistortionMat();
+        }
+        return distortionMat;
+    }
+
+    // 5x1 CV_64F, for projectPoints
+    synchronized MatOfDouble getDistortionCoefficients() {
+        if (distortionCoefficients == null) {
+            distortionCoefficients = new MatOfDouble(k1, k2, p1, p2, k3);
+        }
+        return distortionCoefficients;
+    }
+
+    // The two maps of initUndistortRectifyMap (CV_16SC2 and CV_16UC1) with the camera matrix as the
+    // new camera matrix, i.e. the undistorted image has the same intrinsics without distortion
+    synchronized Mat[] getUndistortMaps() {
+        if (undistortMap1 == null) {
+            undistortMap1 = new Mat();
+            undistortMap2 = new Mat();
+            Mat identity = Mat.eye(3, 3, CvType.CV_64F);
+            initUndistortRectifyMap(getCameraMatrix(), getDistortionMat(), identity, getCameraMatrix(),
+                    new Size(width, height), CvType.CV_16SC2, undistortMap1, undistortMap2);
+            identity.release();
+        }
+        return new Mat[] {undistortMap1, undistortMap2};
+    }
+
+    void undistortImage(Mat src, Mat dst) {
+        Mat[] maps = getUndistortMaps();
+        remap(src, dst, maps[0], maps[1], INTER_LINEAR);
+    }
+
+    // Keep the Mats alive for one more user, who has to call release() when done
+    synchronized CameraModel retain() {
+        users++;
+        return this;
+    }
+
+    // Give up one use. The Mats are released once nobody uses the model any more
+    synchronized void release() {
+        if (users > 0 && --users > 0) {
+            return;
+        }
+        Mat[] mats = {cameraMatrix, distortionMat, distortionCoefficients, undistortMap1, undistortMap2};
+        for (Mat mat : mats) {
+            if (mat != null) {
+                mat.release();
+            }
+        }
+        cameraMatrix = null;
+        distortionMat = null;
+        distortionCoefficients = null;
+        undistortMap1 = null;
+        undistortMap2 = null;
+    }
+
+    @Override
+    public String toString() {
+        return key() + " " + intrinsics;
+    }
+}
@@ -0,0 +1,311 @@
+package com.example.cameraxopengl;
+
+import android.util.Log;
+
+import org.opencv.aruco.CharucoBoard;
+import org.opencv.aruco.DetectorParameters;
+import org.opencv.aruco.Dictionary;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.opencv.aruco.Aruco.DICT_6X6_50;
+import static org.opencv.aruco.Aruco.calibrateCameraCharuco;
+import static org.opencv.aruco.Aruco.detectMarkers;
+import static org.opencv.aruco.Aruco.estimatePoseCharucoBoard;
+import static org.opencv.aruco.Aruco.getPredefinedDictionary;
+import static org.opencv.aruco.Aruco.interpolateCornersCharuco;
+import static org.opencv.calib3d.Calib3d.CALIB_USE_INTRINSIC_GUESS;
+import static org.opencv.imgproc.Imgproc.COLOR_RGB2GRAY;
+import static org.opencv.imgproc.Imgproc.COLOR_RGBA2GRAY;
+import static org.opencv.imgproc.Imgproc.cvtColor;
+
+// CharucoCalibrator calibrates the camera from views of a ChArUco board (5x7 squares with markers
+// from DICT_6X6_50, the dictionary the app already uses). Camera frames are passed to addFrame() on
+// the analysis thread. The chessboard corners are interpolated with interpolateCornersCharuco, and
+// a view is kept only if the board is seen at a new tilt, place or size (CalibrationViewSelector).
+// Once enough views are collected, calibrateCameraCharuco is run on a background thread every time
+// new views have been added, starting from the previous result, so the estimate improves while
+// the user keeps moving the camera and the preview is never blocked.
+
+class CharucoCalibrator {
+    private static final String TAG = "CharucoCalibrator";
+    static final int SQUARES_X = 5;
+    static final int SQUARES_Y = 7;
+    // Only the ratio matters for the intrinsics
+    private static final float SQUARE_LENGTH = 0.04f;
+    private static final float MARKER_LENGTH = 0.03f;
+    private static final int MIN_CORNERS = 12;
+    static final int MIN_VIEWS = 6;
+    static final int TARGET_VIEWS = 20;
+
+    interface Listener {
+        // Called on the analysis thread
+        void onViewAccepted(int views);
+        // Called on the calibration thread
+        void onCalibrated(CameraIntrinsics intrinsics);
+    }
+
+    private final Dictionary dictionary = getPredefinedDictionary(DICT_6X6_50);
+    private final CharucoBoard board = CharucoBoard.create(SQUARES_X, SQUARES_Y, SQUARE_LENGTH, MARKER_LENGTH, dictionary);
+    private final DetectorParameters parameters = DetectorParameters.create();
+    private final CalibrationViewSelector selector = new CalibrationViewSelector();
+    private final Listener listener;
+
+    // Accepted views, guarded by this
+    private final List<Mat> charucoCorners = new ArrayList<>();
+    private final List<Mat> charucoIds = new ArrayList<>();
+    private final float[] cornerBuffer = new float[2 * (SQUARES_X - 1) * (SQUARES_Y - 1)];
+    private int width;
+    private int height;
+
+    private final Executor solver;
+    // Set once the last calibration has been started or the calibration was cancelled
+    private volatile boolean stopped = false;
+    private final AtomicBoolean solving = new AtomicBoolean(false);
+    private volatile CameraIntrinsics latest;
+    // Model of the latest intrinsics, for estimating the pose of the board in new views
+    private CameraModel latestModel;
+    private int viewsAtLastSolve = 0;
+
+    // The initial guess is used for the board poses that select views until the first calibration.
+    // The calibrations run on solver
+    CharucoCalibrator(CameraIntrinsics initialGuess, Listener listener, Executor solver) {
+        this.latest = initialGuess;
+        this.listener = listener;
+        this.solver = solver;
+        this.width = initialGuess.width;
+        this.height = initialGuess.height;
+    }
+
+    // Look for the board in a frame. Returns true if the frame was kept as a calibration view. The
+    // analyzer may still pass a frame after finish() or cancel(), which is ignored
+    synchronized boolean addFrame(Mat frame) {
+        if (stopped) {
+            return false;
+        }
+        if (frame.width() != width || frame.height() != height) {
+            if (!charucoCorners.isEmpty()) {
+                // Views of different resolutions can not be mixed
+                return false;
+            }
+            width = frame.width();
+            height = frame.height();
+            latest = CameraIntrinsics.defaults(width, height);
+        }
+
+        try (MatScope scope = new MatScope()) {
+            Mat gray = frame;
+            if (frame.channels() > 1) {
+                gray = scope.mat();
+                cvtColor(frame, gray, frame.channels() == 4 ? COLOR_RGBA2GRAY : COLOR_RGB2GRAY);
+            }
+
+            List<Mat> markerCorners = new ArrayList<>();
+            Mat markerIds = scope.mat();
+            detectMarkers(gray, dictionary, markerCorners, markerIds, parameters);
+            scope.trackAll(markerCorners);
+            if (markerCorners.size() < 4) {
+                return false;
+            }
+
+            Mat corners = scope.mat();
+            Mat ids = scope.mat();
+            int count = interpolateCornersCharuco(markerCorners, markerIds, gray, board, corners, ids);
+            if (count < MIN_CORNERS) {
+                return false;
+            }
+
+            CalibrationViewSelector.View view = describe(scope, corners, ids, count);
+            if (view == null || !selector.isNovel(view)) {
+                return false;
+            }
+
+            selector.accept(view);
+            charucoCorners.add(scope.detach(corners));
+            charucoIds.add(scope.detach(ids));
+        }
+
+        listener.onViewAccepted(charucoCorners.size());
+        if (charucoCorners.size() >= MIN_VIEWS) {
+            solveInBackground();
+        }
+        return true;
+    }
+
+    synchronized int getViewCount() {
+        return charucoCorners.size();
+    }
+
+    // The latest calibration, or the initial guess if none has finished yet
+    CameraIntrinsics getLatest() {
+        return latest;
+    }
+
+    // Run a last calibration with all views and stop calibrating in the background. Completes with the
+    // result, or exceptionally if there were too few views
+    synchronized CompletableFuture<CameraIntrinsics> finish() {
+        CompletableFuture<CameraIntrinsics> result = new CompletableFuture<>();
+        stopped = true;
+        if (charucoCorners.size() < MIN_VIEWS) {
+            result.completeExceptionally(new IllegalStateException(
+                    "Need at least " + MIN_VIEWS + " views, got " + charucoCorners.size()));
+            release();
+            return result;
+        }
+
+        final List<Mat> corners = copy(charucoCorners);
+        final List<Mat> ids = copy(charucoIds);
+        release();
+        solver.execute(() -> {
+            try {
+                result.complete(solve(corners, ids));
+            }
+            catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    // Drop all views and skip the calibrations that have not started yet
+    synchronized void cancel() {
+        release();
+        stopped = true;
+    }
+
+    // Pose, position and size of the board in one view
+    private CalibrationViewSelector.View describe(MatScope scope, Mat corners, Mat ids, int count) {
+        Mat rvec = scope.mat();
+        Mat tvec = scope.mat();
+        CameraIntrinsics guess = latest;
+        if (latestModel == null || latestModel.getIntrinsics() != guess) {
+            if (latestModel != null) { latestModel.release(); }
+            latestModel = new CameraModel(IntrinsicsStore.device(), guess);
+        }
+        if (!estimatePoseCharucoBoard(corners, ids, board, latestModel.getCameraMatrix(),
+                latestModel.getDistortionMat(), rvec, tvec)) {
+            return null;
+        }
+        double[] r = new double[3];
+        Mat r64 = scope.mat();
+        rvec.convertTo(r64, CvType.CV_64F);
+        r64.get(0, 0, r);
+
+        // corners is a count x 1 CV_32FC2 Mat
+        corners.get(0, 0, cornerBuffer);
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        double sumX = 0, sumY = 0;
+        for (int i = 0; i < count; ++i) {
+            double x = cornerBuffer[2 * i];
+            double y = cornerBuffer[2 * i + 1];
+            minX = Math.min(minX, x);
+            maxX = Math.max(maxX, x);
+            minY = Math.min(minY, y);
+            maxY = Math.max(maxY, y);
+            sumX += x;
+            sumY += y;
+        }
+        double scale = Math.hypot(maxX - minX, maxY - minY) / Math.hypot(width, height);
+        return CalibrationViewSelector.View.fromPose(r[0], r[1], r[2],
+                sumX / count / width, sumY / count / height, scale);
+    }
+
+    // Start a calibration with the current views unless one is already running. The views added
+    // while it runs are included in the next one
+    private void solveInBackground() {
+        if (stopped || charucoCorners.size() == viewsAtLastSolve || !solving.compareAndSet(false, true)) {
+            return;
+        }
+        viewsAtLastSolve = charucoCorners.size();
+        final List<Mat> corners = copy(charucoCorners);
+        final List<Mat> ids = copy(charucoIds);
+        try {
+            solver.execute(() -> {
+                try {
+                    if (stopped) {
+                        // Cancelled or finished while waiting, the last calibration has all views
+                        releaseAll(corners);
+                        releaseAll(ids);
+                        return;
+                    }
+                    listener.onCalibrated(solve(corners, ids));
+                }
+                catch (RuntimeException e) {
+                    Log.w(TAG, "Calibration failed", e);
+                }
+                finally {
+                    solving.set(false);
+                }
+            });
+        }
+        catch (RuntimeException e) {
+            // The executor has been shut down
+            solving.set(false);
+            releaseAll(corners);
+            releaseAll(ids);
+        }
+    }
+
+    // Runs on the calibration thread. Takes ownership of the Mats in the lists
+    private CameraIntrinsics solve(List<Mat> corners, List<Mat> ids) {
+        try (MatScope scope = new MatScope()) {
+            scope.trackAll(corners);
+            scope.trackAll(ids);
+
+            // The defaults are far from square pixels at most resolutions, so they are no starting
+            // point for the solver. Until there is a calibration OpenCV makes its own guess
+            CameraIntrinsics guess = latest;
+            int flags = guess.isCalibrated() ? CALIB_USE_INTRINSIC_GUESS : 0;
+            Mat cameraMatrix = scope.mat();
+            scope.track(guess.toCameraMatrix()).convertTo(cameraMatrix, CvType.CV_64F);
+            Mat distortion = scope.mat();
+            scope.track(guess.toDistortionMat()).convertTo(distortion, CvType.CV_64F);
+            List<Mat> rvecs = new ArrayList<>();
+            List<Mat> tvecs = new ArrayList<>();
+
+            long start = System.currentTimeMillis();
+            double rms = calibrateCameraCharuco(corners, ids, board, new Size(width, height),
+                    cameraMatrix, distortion, rvecs, tvecs, flags);
+            scope.trackAll(rvecs);
+            scope.trackAll(tvecs);
+
+            CameraIntrinsics result = CameraIntrinsics.fromMats(width, height, cameraMatrix, distortion, rms, corners.size());
+            Log.d(TAG, "Calibrated in " + (System.currentTimeMillis() - start) + " ms: " + result);
+            latest = result;
+            return result;
+        }
+    }
+
+    private static List<Mat> copy(List<Mat> mats) {
+        List<Mat> copies = new ArrayList<>(mats.size());
+        for (Mat mat : mats) {
+            copies.add(mat.clone());
+        }
+        return copies;
+    }
+
+    private static void releaseAll(List<Mat> mats) {
+        for (Mat mat : mats) {
+            mat.release();
+        }
+        mats.clear();
+    }
+
+    private void release() {
+        releaseAll(charucoCorners);
+        releaseAll(charucoIds);
+        selector.clear();
+        if (latestModel != null) {
+            latestModel.release();
+            latestModel = null;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.example.cameraxopengl;
+
+import org.opencv.aruco.DetectorParameters;
+import org.opencv.aruco.Dictionary;
+
+import static org.opencv.aruco.Aruco.CORNER_REFINE_SUBPIX;
+import static org.opencv.aruco.Aruco.DICT_6X6_50;
+import static org.opencv.aruco.Aruco.getPredefinedDictionary;
+
+// DetectorSettings creates the ArUco detector parameters and dictionary that all marker detection
+// uses, on the phone and in the headless runner, so that both find the same corners. Only depends
+// on OpenCV. Needs OpenCV to be loaded.
+
+class DetectorSettings {
+    private DetectorSettings() {
+    }
+
+    static DetectorParameters createParameters() {
+        DetectorParameters parameters = DetectorParameters.create();
+        parameters.set_cornerRefinementMethod(CORNER_REFINE_SUBPIX);
+        return parameters;
+    }
+
+    static Dictionary createDictionary() {
+        return getPredefinedDictionary(DICT_6X6_50);
+    }
+}
@@ -0,0 +1,186 @@
+package com.example.cameraxopengl;
+
+import org.opencv.aruco.DetectorParameters;
+import org.opencv.aruco.Dictionary;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+
+import static org.opencv.aruco.Aruco.DICT_6X6_50;
+import static org.opencv.aruco.Aruco.drawMarker;
+import static org.opencv.aruco.Aruco.getPredefinedDictionary;
+
+// DetectorWarmup runs the detect -> pose -> measure pipeline of GLRenderer on generated frames with
+// DICT_6X6_50 markers before the first camera frame arrives. It goes through the same classes as
+// the renderer: MarkerPoses, PointProjector for a measured path and MeasurementEstimator for the
+// marker distance. The first calls into the native
+// detector, the JNI bindings and the Java code on the way are much slower than later ones, so
+// without a warm-up the first second of the preview stutters. Frames are run until the latency has
+// settled (the last few frames are within a small spread of each other) or a frame or time limit is
+// hit. The detector parameters, dictionary and camera model are the ones the renderer uses, so the
+// warm-up has to finish before the analyzer is set.
+
+class DetectorWarmup {
+    static final int WINDOW = 5;
+    static final double MAX_SPREAD = 0.15;
+    private static final int MAX_FRAMES = 40;
+    private static final long MAX_DURATION_NS = 1_500_000_000L;
+
+    private final CameraModel cameraModel;
+    private final float markerLength;
+    private final int width;
+    private final int height;
+    private final MarkerPoses poses;
+    private final PointProjector projector = new PointProjector(PointProjector.Backend.AUTO);
+    private final MeasurementEstimator estimator = new MeasurementEstimator(MAX_FRAMES, 0.5, 0.002);
+    // A path of three points on the first marker, projected in every frame
+    private final MeasurementPath path = new MeasurementPath();
+    private final double[] rvec = new double[3];
+    private final double[] tvec = new double[3];
+    private final double[] tvecs = new double[6];
+    private final double[] projected = new double[6];
+    // Receives the results of the warm-up frames instead of the one that is rendered
+    private final MarkerContainer markerContainer = new MarkerContainer();
+
+    // Result of a warm-up
+    static class Result {
+        final int frames;
+        final long firstFrameNanos;
+        final long steadyStateNanos;
+        final boolean steady;
+
+        Result(int frames, long firstFrameNanos, long steadyStateNanos, boolean steady) {
+            this.frames = frames;
+            this.firstFrameNanos = firstFrameNanos;
+            this.steadyStateNanos = steadyStateNanos;
+            this.steady = steady;
+        }
+
+        @Override
+        public String toString() {
+            return (steady ? "steady state " : "no steady state, last ") + steadyStateNanos / 1000 / 1000.0
+                    + " ms after " + frames + " frames (first frame " + firstFrameNanos / 1000 / 1000.0 + " ms)";
+        }
+    }
+
+    // The model is only used until run() returns
+    DetectorWarmup(DetectorParameters parameters, Dictionary dictionary, CameraModel cameraModel, float markerLength) {
+        this.poses = new MarkerPoses(parameters, dictionary);
+        this.cameraModel = cameraModel;
+        this.markerLength = markerLength;
+        this.width = cameraModel.width;
+        this.height = cameraModel.height;
+        path.add(0, 0, 0);
+        path.add(markerLength, 0, 0);
+        path.add(markerLength, markerLength, 0);
+    }
+
+    // Run frames until steady state, the frame or time limit, or until stop returns true
+    Result run(BooleanSupplier stop) {
+        Mat[] frames = {
+                createFrame(width, height, 0.10, 0.30, 0.28),
+                createFrame(width, height, 0.20, 0.25, 0.22),
+                createFrame(width, height, 0.05, 0.40, 0.33)
+        };
+        long[] latencies = new long[MAX_FRAMES];
+        long start = System.nanoTime();
+        int count = 0;
+
+        try {
+            while (count < MAX_FRAMES && System.nanoTime() - start < MAX_DURATION_NS && !stop.getAsBoolean()) {
+                long frameStart = System.nanoTime();
+                processFrame(frames[count % frames.length]);
+                latencies[count++] = System.nanoTime() - frameStart;
+
+                if (isSteady(latencies, count)) {
+                    return new Result(count, latencies[0], median(latencies, count), true);
+                }
+            }
+        }
+        finally {
+            for (Mat frame : frames) {
+                frame.release();
+            }
+            poses.release();
+            projector.release();
+        }
+        return new Result(count, count > 0 ? latencies[0] : 0, count > 0 ? latencies[count - 1] : 0, false);
+    }
+
+    // The same steps as GLRenderer.markerDetectionSynchronized with a measured path
+    private void processFrame(Mat frame) {
+        int count = poses.detect(frame);
+        if (count <= 0) {
+            return;
+        }
+        poses.estimatePoses(markerLength, cameraModel);
+
+        MarkerContainer.Snapshot draft = markerContainer.edit();
+        draft.setMarkerCorners(poses.getCorners(), frame.width(), frame.height());
+
+        poses.readRvec(0, rvec);
+        poses.readTvec(0, tvec);
+        projector.project(cameraModel, rvec, tvec, path.coordinates(), path.size(), projected);
+        draft.setImagePoints(projected, path.size());
+
+        if (count == 2) {
+            poses.readTvecs(tvecs);
+            estimator.add(MarkerPoses.distance(tvecs, 0, 1));
+            draft.setDistance(estimator.estimate());
+        }
+        else {
+            draft.setDistance(path.pathLength());
+        }
+        markerContainer.publish(draft);
+    }
+
+    // True if the last WINDOW latencies are within MAX_SPREAD of their median
+    static boolean isSteady(long[] latencies, int count) {
+        if (count < WINDOW) {
+            return false;
+        }
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = count - WINDOW; i < count; ++i) {
+            min = Math.min(min, latencies[i]);
+            max = Math.max(max, latencies[i]);
+        }
+        return max - min <= MAX_SPREAD * median(latencies, count);
+    }
+
+    // Median of the last WINDOW (or fewer) latencies
+    static long median(long[] latencies, int count) {
+        int n = Math.min(WINDOW, count);
+        long[] window = Arrays.copyOfRange(latencies, count - n, count);
+        Arrays.sort(window);
+        return window[n / 2];
+    }
+
+    // A white frame with two markers from the dictionary used by the app. The markers are placed
+    // relative to the frame size: x is the left edge of the first marker, y its top edge and size
+    // the side of both markers, all as fractions of the width
+    static Mat createFrame(int width, int height, double x, double y, double size) {
+        Mat image = new Mat(height, width, CvType.CV_8UC1, new Scalar(255));
+        Mat marker = new Mat();
+        Dictionary dictionary = getPredefinedDictionary(DICT_6X6_50);
+        int side = (int) (size * width);
+        int left = (int) (x * width);
+        int top = (int) (y * height);
+
+        Mat first = image.submat(new Rect(left, top, side, side));
+        Mat second = image.submat(new Rect(width - left - side, top + side + side / 2, side, side));
+        drawMarker(dictionary, 0, side, marker);
+        marker.copyTo(first);
+        drawMarker(dictionary, 1, side, marker);
+        marker.copyTo(second);
+
+        first.release();
+        second.release();
+        marker.release();
+        return image;
+    }
+}
@@ -0,0 +1,212 @@
+package com.example.cameraxopengl;
+
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+
+// FrameRecorder records what the renderer draws, camera image and overlays, without reading any
+// pixels back. While recording, the GL thread renders each frame into one of SLOTS offscreen
+// textures instead of the screen, draws that texture to the screen and hands it over to the
+// recorder thread with a fence. The recorder thread has its own EGL context, shared with the one of
+// the GL thread so that it sees the textures, and a window surface on the input Surface of the
+// Output. It waits for the fence on the GPU, draws the texture into the surface with the frame's
+// timestamp and lets the Output take care of the encoded data. The GL thread never waits for the
+// recorder, see RecordingSlots, so the preview frame rate is the same as without recording.
+//
+// The Output is a VideoEncoder in the app. Anything that provides a Surface works, e.g. the Surface
+// of an ImageReader in tests.
+
+class FrameRecorder {
+    private static final String TAG = "FrameRecorder";
+    static final int SLOTS = 3;
+
+    // Where the recorded frames go
+    interface Output {
+        // Create the input surface for frames of this size. Called on the recorder thread
+        Surface prepare(int width, int height) throws IOException;
+
+        // A frame has been drawn into the surface, collect what is ready. endOfStream is true after
+        // the last frame
+        void drain(boolean endOfStream);
+
+        void release();
+    }
+
+    private final Output output;
+    private final int width;
+    private final int height;
+    private final RecordingSlots slots = new RecordingSlots(SLOTS);
+    private final int[] textures = new int[SLOTS];
+    private final int[] framebuffers = new int[SLOTS];
+    private Thread thread;
+    private int viewportWidth;
+    private int viewportHeight;
+
+    // Frames of width x height pixels, the size of the view
+    FrameRecorder(Output output, int width, int height) {
+        this.output = output;
+        this.width = width;
+        this.height = height;
+    }
+
+    // Create the offscreen textures and start the recorder thread with a context shared with the
+    // current one. Called on the GL thread
+    void start() {
+        GLES20.glGenTextures(SLOTS, textures, 0);
+        GLES20.glGenFramebuffers(SLOTS, framebuffers, 0);
+        for (int i = 0; i < SLOTS; i++) {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[i]);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffers[i]);
+            GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                    GLES20.GL_TEXTURE_2D, textures[i], 0);
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+
+        final EGLContext shared = EGL14.eglGetCurrentContext();
+        thread = new Thread(() -> run(shared), "FrameRecorder");
+        thread.start();
+    }
+
+    // Redirect the drawing of the next frame into a free slot. Returns the slot, or -1 if the frame
+    // is not recorded and should be drawn to the screen as usual. Called on the GL thread
+    int beginFrame(int viewportWidth, int viewportHeight) {
+        int slot = slots.acquire();
+        if (slot < 0) {
+            return -1;
+        }
+        this.viewportWidth = viewportWidth;
+        this.viewportHeight = viewportHeight;
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffers[slot]);
+        GLES20.glViewport(0, 0, width, height);
+        return slot;
+    }
+
+    // The frame has been drawn into slot. Hands it to the recorder and draws it to the screen with
+    // shader. Called on the GL thread
+    void endFrame(int slot, long timestampNanos, Shader shader) {
+        long fence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        // The other context only sees the fence once it has been flushed
+        GLES20.glFlush();
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glViewport(0, 0, viewportWidth, viewportHeight);
+        slots.submit(slot, timestampNanos, fence);
+        shader.drawFramebuffer(textures[slot]);
+    }
+
+    // Drawing the frame into slot failed. Gives the slot back and goes back to drawing to the
+    // screen. Called on the GL thread
+    void cancelFrame(int slot) {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glViewport(0, 0, viewportWidth, viewportHeight);
+        slots.cancel(slot);
+    }
+
+    // Stop accepting frames. The recorder thread encodes the frames that are ready, finishes the
+    // output and releases the textures. Called on the GL thread
+    void stop() {
+        slots.stop();
+        GLES20.glDeleteFramebuffers(SLOTS, framebuffers, 0);
+    }
+
+    // Frames recorded and frames left out since the recorder was busy
+    long recordedFrames() {
+        return slots.submitted();
+    }
+
+    long droppedFrames() {
+        return slots.dropped();
+    }
+
+    private void run(EGLContext shared) {
+        EGLDisplay display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        EGLContext context = EGL14.EGL_NO_CONTEXT;
+        EGLSurface surface = EGL14.EGL_NO_SURFACE;
+        try {
+            Surface input = output.prepare(width, height);
+
+            int[] version = new int[2];
+            EGL14.eglInitialize(display, version, 0, version, 1);
+            EGLConfig config = chooseConfig(display);
+            int[] contextAttributes = {EGL14.EGL_CONTEXT_CLIENT_VERSION, 3, EGL14.EGL_NONE};
+            context = EGL14.eglCreateContext(display, config, shared, contextAttributes, 0);
+            surface = EGL14.eglCreateWindowSurface(display, config, input, new int[] {EGL14.EGL_NONE}, 0);
+            if (context == EGL14.EGL_NO_CONTEXT || surface == EGL14.EGL_NO_SURFACE
+                    || !EGL14.eglMakeCurrent(display, surface, surface, context)) {
+                throw new IOException("Could not set up EGL for recording, error " + EGL14.eglGetError());
+            }
+
+            Shader shader = new Shader();
+            GLES20.glViewport(0, 0, width, height);
+            int slot;
+            while ((slot = slots.take()) >= 0) {
+                // Wait on the GPU until the frame has been rendered, the thread goes on
+                long fence = slots.handle(slot);
+                GLES30.glWaitSync(fence, 0, GLES30.GL_TIMEOUT_IGNORED);
+                GLES30.glDeleteSync(fence);
+
+                shader.drawFramebuffer(textures[slot]);
+                EGLExt.eglPresentationTimeANDROID(display, surface, slots.timestamp(slot));
+                EGL14.eglSwapBuffers(display, surface);
+                slots.release(slot);
+                output.drain(false);
+            }
+            output.drain(true);
+            Log.i(TAG, "Recorded " + slots.submitted() + " frames, dropped " + slots.dropped());
+        }
+        catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Recording failed", e);
+            slots.stop();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            if (context != EGL14.EGL_NO_CONTEXT) {
+                // The textures belong to both contexts, delete them while one is current
+                GLES20.glDeleteTextures(SLOTS, textures, 0);
+                EGL14.eglMakeCurrent(display, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+                EGL14.eglDestroyContext(display, context);
+            }
+            if (surface != EGL14.EGL_NO_SURFACE) {
+                EGL14.eglDestroySurface(display, surface);
+            }
+            EGL14.eglReleaseThread();
+            output.release();
+        }
+    }
+
+    // An RGB config for OpenGL ES 3 that can feed a video encoder
+    private static EGLConfig chooseConfig(EGLDisplay display) throws IOException {
+        int[] attributes = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_ALPHA_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGLExt.EGL_OPENGL_ES3_BIT_KHR,
+                EGLExt.EGL_RECORDABLE_ANDROID, 1,
+                EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] count = new int[1];
+        if (!EGL14.eglChooseConfig(display, attributes, 0, configs, 0, 1, count, 0) || count[0] == 0) {
+            throw new IOException("No recordable EGL config");
+        }
+        return configs[0];
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.cameraxopengl;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+// FrameSequence numbers the frames that are sent to detection and decides which results may still
+// be shown. Each detection task gets the next number and a deadline. Between its stages (detect,
+// pose, measure) the task asks whether it should go on: not if the deadline has passed, or if a
+// newer frame has already been published, since its result could never be shown. A task that
+// goes on to the end publishes through publish(), which checks the number and writes the result
+// under one lock, so a slow task can never overwrite the result of a newer frame.
+
+class FrameSequence {
+    private final AtomicLong next = new AtomicLong();
+    // Number of the newest published frame. Written under the lock, read without it by the checks
+    private volatile long published = -1;
+    private final AtomicLong publishedCount = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+
+    // Number for the next frame, increasing from 0
+    long next() {
+        return next.getAndIncrement();
+    }
+
+    long published() {
+        return published;
+    }
+
+    // True if the task of frame sequence should stop before its next stage. Counts the task as
+    // cancelled
+    boolean shouldCancel(long sequence, long deadlineNanos, long nowNanos) {
+        if (nowNanos - deadlineNanos > 0 || sequence <= published) {
+            cancelled.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    // Run write, which stores the result of frame sequence, unless a newer frame has been
+    // published. Returns false if the result was discarded
+    synchronized boolean publish(long sequence, Runnable write) {
+        if (sequence <= published) {
+            discarded.incrementAndGet();
+            return false;
+        }
+        write.run();
+        published = sequence;
+        publishedCount.incrementAndGet();
+        return true;
+    }
+
+    // Results stored, results that came too late and tasks stopped before the end
+    long publishedCount() {
+        return publishedCount.get();
+    }
+
+    long discarded() {
+        return discarded.get();
+    }
+
+    long cancelled() {
+        return cancelled.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%d frames: %d published, %d discarded, %d cancelled",
+                next.get(), publishedCount.get(), discarded.get(), cancelled.get());
+    }
+}
@@ -2,50 +2,49 @@ package com.example.cameraxopengl;
 
 import android.graphics.Bitmap;
 import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.opengl.GLUtils;
+import android.os.Process;
 import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+import android.widget.TextView;
 
 import androidx.annotation.NonNull;
 import androidx.camera.core.ImageAnalysis;
+import androidx.camera.core.ImageCapture;
+import androidx.camera.core.ImageCaptureException;
 import androidx.camera.core.ImageProxy;
+import androidx.camera.core.Preview;
+import androidx.camera.core.SurfaceRequest;
 
 import org.jetbrains.annotations.NotNull;
 import org.opencv.android.Utils;
 import org.opencv.aruco.DetectorParameters;
+import org.opencv.aruco.Dictionary;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfDouble;
-import org.opencv.core.MatOfPoint2f;
-import org.opencv.core.MatOfPoint3f;
 import org.opencv.core.Point;
-import org.opencv.core.Point3;
 import org.opencv.core.Scalar;
 import org.opencv.imgproc.Imgproc;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
-import static org.opencv.aruco.Aruco.CORNER_REFINE_SUBPIX;
-import static org.opencv.aruco.Aruco.DICT_6X6_50;
-import static org.opencv.aruco.Aruco.detectMarkers;
 import static org.opencv.aruco.Aruco.drawAxis;
-import static org.opencv.aruco.Aruco.estimatePoseSingleMarkers;
-import static org.opencv.aruco.Aruco.getPredefinedDictionary;
-import static org.opencv.calib3d.Calib3d.Rodrigues;
-import static org.opencv.calib3d.Calib3d.projectPoints;
 import static org.opencv.core.Core.ROTATE_90_CLOCKWISE;
 import static org.opencv.core.Core.gemm;
-import static org.opencv.core.Core.invert;
 import static org.opencv.core.Core.rotate;
 import static org.opencv.core.Core.transpose;
 import static org.opencv.imgproc.Imgproc.COLOR_BGRA2BGR;
@@ -58,96 +57,285 @@ import static org.opencv.imgproc.Imgproc.putText;
 // GLSurfaceView. It also provides an ImageAnalysis.Analyzer to perform image analysis on each
 // frame. A texture is generated and the rendering is performed  in an OpenGL shader which is called
 // on each frame.
+// In direct preview mode the camera preview is instead streamed by a CameraX Preview use case into a
+// SurfaceTexture backed by an external OES texture, and the analyzer is only used for detection.
+
+class GLRenderer implements GLSurfaceView.Renderer, ImageAnalysis.Analyzer, Preview.SurfaceProvider {
+    // A detection that takes longer than this would be drawn visibly behind the markers
+    private static final long MAX_OVERLAY_LAG_NS = 100_000_000L;
+    // In direct preview mode the overlays of the detection closest in time to the displayed preview
+    // frame are drawn, if it is at most this many frames away
+    private static final int MAX_OVERLAY_FRAMES = 2;
+    // Size of a drawn measure point, in analysis image pixels
+    private static final int POINT_RADIUS_PX = 10;
+    // How close to a measure point (in analysis image pixels) a touch has to be to pick it up
+    private static final double TOUCH_RADIUS_PX = 48;
 
-class GLRenderer implements GLSurfaceView.Renderer, ImageAnalysis.Analyzer {
     private GLSurfaceView glSurfaceView;
     private int[] textures = {0};
+    private int imageWidth;
+    private int imageHeight;
     private float markerLength;
     private Shader shader;
     private MarkerContainer markerContainer = new MarkerContainer();
-    private ExecutorService executor;
+    private AppExecutors executors;
+    // Numbers the asynchronous detections, so that a late one never overwrites a newer frame
+    private final FrameSequence detectionSequence = new FrameSequence();
     private Bitmap imageBitmap;
     private Mat imageMat;
-    private Mat cameraMatrix;
-    private Mat distortionCoefficients;
+    private CameraModel cameraModel;
 
     // Plane things
     private boolean userPoint = false;
     private boolean marker_in_frame = false;
-    private Mat tracked_vector_MC;
-    private Mat imagePoints;
-    private int rowCounter = 0;
-    private double userX = 0;
-    private double userY = 0;
-    private Mat rotMatrix;
-    private Mat translation_vector;
+
+    // Measure points in marker coordinates. Written by touch events and the analysis thread,
+    // guarded by itself. The analysis thread projects a copy so that touches are not blocked
+    private final MeasurementPath measurement = new MeasurementPath();
+    private final MeasurementPath measurementSnapshot = new MeasurementPath();
+    // The measure points are projected into this by the analyzer and published with the markers of
+    // the frame, so that the render thread never sees the points of two frames at once
+    private double[] projectedBuffer = new double[16];
+    // Smooths the distance between two markers, which is measured anew in every frame
+    private static final int ESTIMATOR_WINDOW = 30;
+    private final MeasurementEstimator markerDistance = new MeasurementEstimator(ESTIMATOR_WINDOW, 0.5, 0.002);
+    private long markerPair = -1;
+    // What has been written to the journal, so that a measurement is recorded once and not for
+    // every frame it is shown in
+    private boolean markersRecorded = false;
+    private int recordedPathSize = 0;
+    private double recordedPathLength = 0;
+    private final double[] secondTranslationBuffer = new double[3];
+    private final int[] idBuffer = new int[2];
+    private volatile String markerDistanceText = "";
+    // Detect on the detection and pose stages instead of the analysis thread. The overlay then lags
+    // the preview, and the distance is the latest one rather than an estimate, there are no
+    // measure points or path on that path
+    private volatile boolean asynchronousDetection = false;
+    // Frames that show the same scene as the last processed one reuse its results
+    private static final int SCENE_STATS_INTERVAL = 300;
+    private final SceneChangeDetector sceneDetector = new SceneChangeDetector();
+    private volatile boolean redetect = true;
+    private final PointProjector projector = new PointProjector(PointProjector.Backend.AUTO);
+    private final ImagePoints renderImagePoints = new ImagePoints();
+    private final ImagePoints analysisImagePoints = new ImagePoints();
+    // Index of the point that is being dragged, or -1. Its position in the analysis image is drawn
+    // directly, so that it follows the finger at display rate
+    private volatile int dragIndex = -1;
+    private volatile float dragU;
+    private volatile float dragV;
+    private final MarkerPlaneRaycaster raycaster = new MarkerPlaneRaycaster();
+    private final double[] touchBuffer = new double[3];
+    private final double[] centerBuffer = new double[3];
+    private final double[] rvecBuffer = new double[3];
+    private int viewWidth;
+    private int viewHeight;
+
+    // Reusable buffers for bulk reads out of Mats. The analyzer and the render thread have their own
+    private final double[] translationBuffer = new double[3];
+
+    // Detector state that is reused for every frame instead of being recreated
+    private DetectorParameters detectorParameters;
+    private Dictionary dictionary;
+    private MarkerPoses markerPoses;
+    // For the asynchronous detectors, with the same parameters and dictionary
+    private MarkerPoses.Pool detectionPoses;
 
     Scalar measureColor = new Scalar(255, 102, 0, 1);
     Scalar white = new Scalar(255, 255, 255);
     Scalar white_tp = new Scalar(255, 255, 255, 0.5);
 
-    // Constructor that sets up the
+    // Direct preview things
+    private boolean directPreview;
+    private SurfaceTexture surfaceTexture;
+    private int[] externalTextures = {0};
+    private float[] textureMatrix = new float[16];
+    private long previewTimestamp = 0;
+    // Smoothed time between two preview frames, for matching overlays to them
+    private long previewFrameNanos = 33_000_000L;
+    private TextView distanceLabel;
+
+    // Recording of the rendered frames, only touched on the GL thread
+    private FrameRecorder recorder;
+
+    // Calibration
+    // The app always uses CameraSelector.DEFAULT_BACK_CAMERA
+    private static final String CAMERA_ID = "back";
+    private CalibrationStore calibrationStore;
+    // Every measurement is appended to the journal, may be null
+    private volatile SessionJournal journal;
+    // Timestamp of the camera frame that is being analyzed
+    private long analysisTimestamp;
+    private volatile CameraModel pendingCameraModel;
+    private volatile CharucoCalibrator calibrator;
+
+    // Precise measurement in full resolution stills, on the background stage so that neither the
+    // preview nor the analysis waits for it. The result is merged into the marker distance by the
+    // analysis
+    private PreciseMeasurement preciseMeasurement;
+    private CameraModel stillCameraModel;
+    // The analysis intrinsics stillCameraModel was scaled from, null if it was calibrated itself
+    private CameraIntrinsics stillModelSource;
+    private final AtomicReference<PreciseMeasurement.Result> pendingPrecise = new AtomicReference<>();
+
+    // Startup
+    private final CompletableFuture<Void> shadersCompiled = new CompletableFuture<>();
+    private StartupTimeline startupTimeline;
+
+    // Constructor that sets up the renderer for analysis frames of the given size. The analysis
+    // frames are also rendered as the camera preview.
     GLRenderer(GLSurfaceView view, int cameraPreviewWidth, int cameraPreviewHeight) {
-        glSurfaceView = view;
-
-        // Create an empty bitmap to place in the glSurfaceView until the first frame is rendered
-        imageBitmap = Bitmap.createBitmap(cameraPreviewWidth, cameraPreviewHeight, Bitmap.Config.ARGB_8888);
+        this(view, cameraPreviewWidth, cameraPreviewHeight, false);
+    }
 
-        // Set up the executor to handle Marker Detection in the background
-        int poolsize = 1;
-        int queuesize = 1;
-        executor = new ThreadPoolExecutor(poolsize, poolsize,
-                0L, TimeUnit.MILLISECONDS,
-                new LinkedBlockingQueue<>(queuesize),
-                new ThreadPoolExecutor.DiscardOldestPolicy());
+    // If directPreview is set, the camera preview is rendered from the SurfaceTexture given to the
+    // Preview use case and the analysis frames (of the given size) are only used for detection
+    GLRenderer(GLSurfaceView view, int analysisWidth, int analysisHeight, boolean directPreview) {
+        glSurfaceView = view;
+        imageWidth = analysisWidth;
+        imageHeight = analysisHeight;
+        this.directPreview = directPreview;
+
+        if (directPreview) {
+            // The SurfaceTexture is created detached and is attached to the GL context once it
+            // exists. Each new camera frame triggers a render.
+            surfaceTexture = new SurfaceTexture(false);
+            surfaceTexture.setOnFrameAvailableListener(texture -> glSurfaceView.requestRender());
+        }
+        else {
+            // Create an empty bitmap to place in the glSurfaceView until the first frame is rendered
+            imageBitmap = Bitmap.createBitmap(analysisWidth, analysisHeight, Bitmap.Config.ARGB_8888);
+        }
     }
 
     @Override
     public void onSurfaceCreated(GL10 gl, EGLConfig config) {
         GLES20.glClearColor(0f, 0f, 0f, 1f);
 
+        // The frame stages run just below the GL thread
+        if (executors != null) {
+            executors.alignWithRenderThread(Process.getThreadPriority(Process.myTid()));
+        }
+
         // Generate a texture to put the image frame in
         generateTexture();
 
+        // Attach the SurfaceTexture of the Preview use case to an external texture
+        if (directPreview) {
+            generateExternalTexture();
+        }
+
         // Instantiate shader
         generateShader();
-
-        // Generate the camera matrix
-        generateIntrinsicsAndDistortion();
+        shadersCompiled.complete(null);
     }
 
     @Override
     public void onSurfaceChanged(GL10 gl, int width, int height) {
         GLES20.glViewport(0, 0, width, height);
+        viewWidth = width;
+        viewHeight = height;
     }
 
     @Override
     public void onDrawFrame(GL10 gl) {
-        // Prepare the OpenGL context
-        renderTexture();
+        // While recording, the frame is drawn into a texture of the recorder, which is then drawn
+        // to the screen. When the recorder is behind, the frame only goes to the screen
+        FrameRecorder current = recorder;
+        int slot = current != null ? current.beginFrame(viewWidth, viewHeight) : -1;
+        if (directPreview) {
+            latchPreview();
+        }
+        // One snapshot of the markers for the whole frame, detection may publish a new one meanwhile.
+        // In direct preview mode it is the one of the displayed camera frame, if it is still kept
+        MarkerContainer.Snapshot markers = directPreview
+                ? markerContainer.acquire(previewTimestamp) : markerContainer.acquire();
+        boolean drawn = false;
+        try {
+            drawScene(markers);
+            drawn = true;
+        }
+        finally {
+            markers.release();
+            // A slot that stays taken would never be recorded or reused
+            if (slot >= 0 && !drawn) {
+                current.cancelFrame(slot);
+            }
+        }
+        if (slot >= 0) {
+            current.endFrame(slot, directPreview ? previewTimestamp : System.nanoTime(), shader);
+        }
+    }
+
+    // Latch the most recent camera frame into the external texture
+    private void latchPreview() {
+        surfaceTexture.updateTexImage();
+        surfaceTexture.getTransformMatrix(textureMatrix);
+        long timestamp = surfaceTexture.getTimestamp();
+        // The surface is drawn once before the camera has delivered anything
+        if (timestamp != 0) {
+            markStartup(StartupTimeline.Milestone.FIRST_FRAME);
+        }
+        long interval = timestamp - previewTimestamp;
+        if (previewTimestamp != 0 && interval > 0 && interval < 1_000_000_000L) {
+            previewFrameNanos += (interval - previewFrameNanos) / 8;
+        }
+        previewTimestamp = timestamp;
+    }
+
+    // Draw the camera frame and the overlays into the bound framebuffer
+    private void drawScene(MarkerContainer.Snapshot markers) {
+        if (directPreview) {
+            shader.drawExternal(externalTextures[0], textureMatrix);
+
+            // The crosshair and measure points are drawn into the analysis frames otherwise
+            drawCrosshair();
+
+            // Skip overlays when the detection of the frame on screen is not there (yet), and the
+            // closest one is too far off to match
+            if (Math.abs(previewTimestamp - markers.getTimestamp()) > MAX_OVERLAY_FRAMES * previewFrameNanos) {
+                return;
+            }
+        }
+        else {
+            // Prepare the OpenGL context
+            renderTexture();
 
-        // Run the shader to render the camera preview
-        shader.draw(textures[0]);
+            // Run the shader to render the camera preview
+            shader.draw(textures[0]);
+        }
 
         // Draw markers (if found) on top of the preview
-        if (markerContainer.isNotEmpty()) {
-            shader.drawMarkerGL(markerContainer.getMarkerCorners());
+        if (markers.isNotEmpty()) {
+            shader.drawMarkerGL(markers.getMarkerCorners(), markers.getNumMarkers());
 
             // If two markers are found
-            if (markerContainer.getNumMarkers() >= 2) {
-                shader.drawLine(markerContainer.getMarkerMidpoint(0), markerContainer.getMarkerMidpoint(1), markerContainer.getDepths());
+            if (markers.getNumMarkers() >= 2) {
+                shader.drawLine(markers.getMarkerMidpoint(0), markers.getMarkerMidpoint(1), markers.getDepths());
             }
 
 
-            if (rowCounter == 2) {
-                // Pixel values converted to uv coordinates
-                float[] startPoint = {  (float) (imagePoints.get(0,0)[0] * 2.0 / imageMat.width() - 1),
-                                        (float) - (imagePoints.get(0,1)[0] * 2.0 / imageMat.height() - 1)};
-                float[] endPoint = {(float) (imagePoints.get(1,0)[0] * 2.0 / imageMat.width() - 1 ),
-                                    (float) - (imagePoints.get(1,1)[0] * 2.0 / imageMat.height() - 1)};
-                float[] pointDepth = {300f, 300f};
+            // One line per segment of the measured path, and a thin line closing the polygon
+            ImagePoints points = loadImagePoints(markers, renderImagePoints);
+            float[] pointDepth = {300f, 300f};
+            for (int i = 0; i + 1 < points.count; i++) {
+                if (points.isVisible(i) && points.isVisible(i + 1)) {
+                    shader.drawLine(toGL(points, i), toGL(points, i + 1), pointDepth);
+                }
+            }
+            if (points.count >= 3 && points.isVisible(points.count - 1) && points.isVisible(0)) {
+                shader.drawThinLine(toGL(points, points.count - 1), toGL(points, 0));
+            }
 
-                shader.drawLine(startPoint, endPoint, pointDepth);
+            // The points themselves, so that a single point shows as well
+            if (directPreview) {
+                float rx = 2f * POINT_RADIUS_PX / imageWidth;
+                float ry = 2f * POINT_RADIUS_PX / imageHeight;
+                for (int i = 0; i < points.count; i++) {
+                    if (points.isVisible(i)) {
+                        shader.drawPoint(toGL(points, i), rx, ry);
+                    }
+                }
             }
 
         }
@@ -156,13 +344,49 @@ class GLRenderer implements GLSurfaceView.Renderer, ImageAnalysis.Analyzer {
     @Override
     public void analyze(@NonNull ImageProxy proxy) {
         long analyzeTime = System.currentTimeMillis();
+        long analyzeStart = System.nanoTime();
+        long frameTimestamp = proxy.getImageInfo().getTimestamp();
+        analysisTimestamp = frameTimestamp;
+        markStartup(StartupTimeline.Milestone.FIRST_FRAME);
+        applyPendingIntrinsics();
+
+        // Nothing has moved since the last processed frame, so the markers and the pose found in
+        // it are still valid
+        boolean unchanged = isStaticFrame(proxy);
+
+        if (directPreview) {
+            if (unchanged) {
+                proxy.close();
+                markerContainer.updateTimestamp(frameTimestamp);
+                finishFrame(analyzeStart, true);
+                return;
+            }
+
+            // Only the luminance is needed for detection, the preview is rendered by the Preview use case
+            setGrayImageMatFromProxy(proxy);
+            proxy.close();
+            calibrate();
+
+            detectMarkers(frameTimestamp);
+            markStartup(StartupTimeline.Milestone.FIRST_DETECTION);
+            updateDistanceLabel();
+            finishFrame(analyzeStart, false);
+            return;
+        }
+
         // imageMat gets assigned
         setImageMatFromProxy(proxy);
         proxy.close();
 
-        // USE EITHER ASYNCHRONOUS OR SYNCHRONOUS MARKER DETECTION
-//        markerDetectionAsynchronous();
-        markerDetectionSynchronized();
+        if (!unchanged) {
+            calibrate();
+            detectMarkers(frameTimestamp);
+            markStartup(StartupTimeline.Milestone.FIRST_DETECTION);
+        }
+        else {
+            markerContainer.updateTimestamp(frameTimestamp);
+        }
+        updateDistanceLabel();
 
         // Draw marker distance
         if (imageMat != null) {
@@ -180,14 +404,25 @@ class GLRenderer implements GLSurfaceView.Renderer, ImageAnalysis.Analyzer {
 
             //drawAxis(imageMat, cameraMatrix, distortionCoefficients, rvecs, tvecs, markerLength);
             // Bilden, koordinaten, radie, färg
-            for (int i = 0; i < rowCounter; i++) {
-                circle(imageMat, new Point(imagePoints.get(i, 0)[0], imagePoints.get(i, 1)[0]), 10, measureColor, -1);
+            MarkerContainer.Snapshot markers = markerContainer.acquire();
+            ImagePoints points = loadImagePoints(markers, analysisImagePoints);
+            markers.release();
+            double[] xy = points.xy;
+            for (int i = 0; i < points.count; i++) {
+                if (!points.isVisible(i)) {
+                    continue;
+                }
+                circle(imageMat, new Point(xy[2 * i], xy[2 * i + 1]), 10, measureColor, -1);
             }
 
-            if (rowCounter == 2) {
-                double _x = (imagePoints.get(0, 0)[0] + imagePoints.get(1, 0)[0]) / 2 - 50;
-                double _y = (imagePoints.get(0, 1)[0] + imagePoints.get(1, 1)[0]) /2 - 20;
-                putText(imageMat, (int) markerContainer.getDistance() + " mm", new Point(_x, _y),
+            // The length of each segment at its middle
+            for (int i = 0; i + 1 < points.count && i + 1 < measurementSnapshot.size(); i++) {
+                if (!points.isVisible(i) || !points.isVisible(i + 1)) {
+                    continue;
+                }
+                double _x = (xy[2 * i] + xy[2 * i + 2]) / 2 - 50;
+                double _y = (xy[2 * i + 1] + xy[2 * i + 3]) /2 - 20;
+                putText(imageMat, (int) measurementSnapshot.segmentLength(i) + " mm", new Point(_x, _y),
                        2, 1, white, 2, 2);
             }
 
@@ -197,43 +432,98 @@ class GLRenderer implements GLSurfaceView.Renderer, ImageAnalysis.Analyzer {
         }
 
         glSurfaceView.requestRender();
+        finishFrame(analyzeStart, unchanged);
         //Log.d("Analysis time", "" + (int) (System.currentTimeMillis() - analyzeTime) + "ms");
     }
 
+    // Compare the luminance of the frame with the last processed frame. Frames are always
+    // processed while a point is being placed or a calibration is running
+    private boolean isStaticFrame(ImageProxy proxy) {
+        if (redetect || userPoint || calibrator != null) {
+            redetect = false;
+            sceneDetector.invalidate();
+        }
+        ImageProxy.PlaneProxy luma = proxy.getPlanes()[0];
+        return sceneDetector.isUnchanged(luma.getBuffer(), proxy.getWidth(), proxy.getHeight(), luma.getRowStride());
+    }
+
+    private void finishFrame(long analyzeStart, boolean skipped) {
+        long nanos = System.nanoTime() - analyzeStart;
+        if (skipped) {
+            sceneDetector.recordSkipped(nanos);
+        }
+        else {
+            sceneDetector.recordProcessed(nanos);
+        }
+        if (sceneDetector.frames() % SCENE_STATS_INTERVAL == 0) {
+            Log.i("SceneChange", sceneDetector.toString());
+            Log.i("Executors", executors.toString());
+            Log.i("Detections", detectionSequence.toString());
+        }
+    }
+
+    private void detectMarkers(long frameTimestamp) {
+        if (asynchronousDetection) {
+            markerDetectionAsynchronous(frameTimestamp);
+        }
+        else {
+            markerDetectionSynchronized();
+        }
+    }
+
     // Asynchronously detect ArUco markers by executing an instance of MarkerDetector in the background
     // Camera preview is rendered regardless if marker coordinates are found.
     // If markers are found, they will be rendered the next time onDrawFrame() is called
-    private void markerDetectionAsynchronous() {
-        // The executor needs to work on a copy of the bitmap to prevent it from being recycled
-        executor.execute(new MarkerDetector(imageMat.clone(), markerContainer, markerLength));
+    private void markerDetectionAsynchronous(long frameTimestamp) {
+        // The executor needs to work on a copy of the bitmap to prevent it from being recycled. Only
+        // the newest frame waits, older ones are dropped and release their copy. A detection that
+        // takes longer than MAX_OVERLAY_LAG_NS stops, its overlay would not be drawn anyway
+        if (detectorParameters == null) {
+            prepareDetector();
+        }
+        long deadline = System.nanoTime() + MAX_OVERLAY_LAG_NS;
+        executors.executor(AppExecutors.Stage.DETECTION).execute(new MarkerDetector(imageMat.clone(),
+                markerContainer, markerLength, cameraModel, detectionPoses,
+                executors.executor(AppExecutors.Stage.POSE), detectionSequence, frameTimestamp, deadline));
+
+        // The label shows the distance of the last detection that got through
+        MarkerContainer.Snapshot markers = markerContainer.acquire();
+        markerDistanceText = markers.getNumMarkers() == 2 ? Math.round(markers.getDistance()) + " mm" : "";
+        markers.release();
     }
 
     // Detect markers on the same thread
     // Camera preview is not rendered until we know the marker coordinates
     private void markerDetectionSynchronized() {
+        // The markers of this frame are published all at once when the detection is done. The
+        // Mats of the detection are kept in markerPoses and reused for the next frame. A distance a
+        // drag publishes in the meantime is kept when the draft is published
+        MarkerContainer.Snapshot draft = markerContainer.edit();
+        markerDetectionSynchronized(draft);
+        draft.setTimestamp(analysisTimestamp);
+        markerContainer.publish(draft);
+    }
 
-        // Create an arraylist of Mats to store the corners of the markers
-        ArrayList<Mat> listOfCorners = new ArrayList<>();
-
-        // Create a Mat to store all the ids of the markers
-        Mat ids = new Mat();
-
-        DetectorParameters params = DetectorParameters.create();
-        params.set_cornerRefinementMethod(CORNER_REFINE_SUBPIX);
+    private void markerDetectionSynchronized(MarkerContainer.Snapshot draft) {
+        if (detectorParameters == null) {
+            prepareDetector();
+        }
 
-        // Detect the markers in the image and store their corners and ids in the corresponding variables
-        detectMarkers(imageMat, getPredefinedDictionary(DICT_6X6_50), listOfCorners, ids, params);
+        // Detect the markers in the image, the corners of the previous frame are released
+        int count = markerPoses.detect(imageMat);
 
         // If there are no markers, do nothing
-        if (listOfCorners.size() <= 0) {
-            markerContainer.makeEmpty();
+        if (count <= 0) {
+            draft.makeEmpty();
             marker_in_frame = false;
+            raycaster.clearPose();
+            markerDistanceText = "";
             return;
         }
         marker_in_frame = true;
 
         // Sets the marker corners in (u,v)-coordinates
-        markerContainer.setMarkerCorners(listOfCorners, imageMat.width(), imageMat.height());
+        draft.setMarkerCorners(markerPoses.getCorners(), imageMat.width(), imageMat.height());
 
         // TODO: BOKMÄRKE !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!
         /* Sammanfattning:
@@ -241,152 +531,198 @@ class GLRenderer implements GLSurfaceView.Renderer, ImageAnalysis.Analyzer {
             - Uppdelning, kod är flyttad till funktioner
         */
 
-        // Create empty matrices for the rotation vector and the translation vector
-        Mat rvecs = new Mat();
-        Mat tvecs = new Mat();
-
-        // Estimate pose and get rvecs and tvecs
-        estimatePoseSingleMarkers(listOfCorners, markerLength, cameraMatrix, distortionCoefficients, rvecs, tvecs);
-
-        translation_vector = tvecs;
+        // Estimate the pose of every marker
+        markerPoses.estimatePoses(markerLength, cameraModel);
 
         //drawAxis(imageMat, cameraMatrix, distortionCoefficients, rvecs, tvecs, markerLength/2);
         // TODO: Undersök hur vi korrigerar z-axeln rätt
 
+        // Touches are cast against the plane of the first marker
+        markerPoses.readRvec(0, rvecBuffer);
+        markerPoses.readTvec(0, translationBuffer);
+        raycaster.setPose(cameraModel, rvecBuffer, translationBuffer);
+
         // Placerar ut en punkt i mitten på skärmen för just denna frame
         if (userPoint) {
-            createPoint(rvecs, tvecs);
+            createPoint();
+        }
+
+        // Copy the points so that touch events are not blocked while projecting
+        synchronized (measurement) {
+            measurementSnapshot.copyFrom(measurement);
         }
+
         // Om användaren har placerat ut en punkt
-        if (rowCounter > 0) {
-            toPixelCoordinates(tracked_vector_MC, rvecs, tvecs, cameraMatrix);
-            // Skicka List<vec3> till toPixelCoordinates()
+        if (measurementSnapshot.size() > 0) {
+            toPixelCoordinates(measurementSnapshot, rvecBuffer, translationBuffer, cameraModel, draft);
+        }
+        else {
+            draft.clearImagePoints();
         }
 
-        // If exactly two markers are detected, measure the distance between them
-        if (rowCounter == 2) {
-            // Calculate the distance between marker 1 and marker 2
-            double distance = Math.sqrt( Math.pow(tracked_vector_MC.get(0, 0)[0] - tracked_vector_MC.get(1, 0)[0], 2) +
-                                         Math.pow(tracked_vector_MC.get(0, 1)[0] - tracked_vector_MC.get(1, 1)[0], 2) +
-                                         Math.pow(tracked_vector_MC.get(0, 2)[0] - tracked_vector_MC.get(1, 2)[0], 2)
-                                );
+        // Once there is a segment, the distance is the length of the whole path
+        if (measurementSnapshot.size() >= 2) {
+            draft.setDistance(measurementSnapshot.pathLength());
+            recordPath();
+        }
+        // Otherwise measure between two markers
+        else if (count == 2) {
+            sampleMarkerDistance(draft);
+        }
+        else {
+            draft.clearDistance();
+            draft.clearDepths();
+            markerDistanceText = "";
+        }
 
 
-            markerContainer.setDistance(distance);
+    }
 
+    // Funktion som hittar koordinaten för en punkt
+    // Feed the distance between the two detected markers to the estimator, which starts over when
+    // another pair of markers is seen. Once it has converged the label stays put
+    private void sampleMarkerDistance(MarkerContainer.Snapshot draft) {
+        markerPoses.readIds(idBuffer);
+        long pair = PreciseMeasurement.pair(idBuffer[0], idBuffer[1]);
+        if (pair != markerPair) {
+            markerDistance.reset();
+            markerPair = pair;
+            markersRecorded = false;
         }
 
-        else {
-            markerContainer.clearDistance();
-            markerContainer.clearDepths();
+        // A still of other markers is dropped
+        PreciseMeasurement.Result precise = pendingPrecise.getAndSet(null);
+        if (precise != null && precise.pair() == pair) {
+            markerDistance.addPrecise(precise.distance, precise.halfWidth);
+            // A still improves the measurement, which is recorded again
+            markersRecorded = false;
         }
 
+        markerPoses.readTvec(1, secondTranslationBuffer);
+        double dx = translationBuffer[0] - secondTranslationBuffer[0];
+        double dy = translationBuffer[1] - secondTranslationBuffer[1];
+        double dz = translationBuffer[2] - secondTranslationBuffer[2];
+        markerDistance.add(Math.sqrt(dx * dx + dy * dy + dz * dz));
 
+        draft.setDistance(markerDistance.estimate());
+        draft.setDepths((float) translationBuffer[2], (float) secondTranslationBuffer[2]);
+        markerDistanceText = markerDistance.describe();
+
+        // The distance between a pair of markers is done once the estimate has converged
+        if (!markersRecorded && markerDistance.isConverged()) {
+            markersRecorded = true;
+            record(SessionJournal.KIND_MARKERS, markerDistance.estimate(), markerDistance.halfWidth(), true);
+        }
     }
 
-    // Funktion som hittar koordinaten för en punkt
-    private void createPoint(Mat rvecs, Mat tvecs) {
-        if (rowCounter == 2) {
-            // Reset the row counter
-            rowCounter = 0;
+    // A path is recorded when a point has been placed, moved or removed, once it is no longer being
+    // dragged
+    private void recordPath() {
+        if (dragIndex >= 0) {
+            return;
         }
-        else {
-            // Get the intersection point of the camera line and the marker plane
-            double z_intersect = getIntersect(rvecs, tvecs);
-
-            rotMatrix = new Mat(3, 3, CvType.CV_64F);
-            Rodrigues(rvecs, rotMatrix);
-
-            // Skapar en matris som beskriver både rotation och translation enl. kameran
-            Mat resultMatrix = new Mat(4, 4, CvType.CV_64F);
-            double[] resultArray_r1 = {rotMatrix.get(0, 0)[0], rotMatrix.get(0, 1)[0], rotMatrix.get(0, 2)[0], tvecs.get(0, 0)[0]};
-            double[] resultArray_r2 = {rotMatrix.get(1, 0)[0], rotMatrix.get(1, 1)[0], rotMatrix.get(1, 2)[0], tvecs.get(0, 0)[1]};
-            double[] resultArray_r3 = {rotMatrix.get(2, 0)[0], rotMatrix.get(2, 1)[0], rotMatrix.get(2, 2)[0], tvecs.get(0, 0)[2]};
-            double[] resultArray_r4 = {0, 0, 0, 1};
-
-            resultMatrix.put(0, 0, resultArray_r1);
-            resultMatrix.put(1, 0, resultArray_r2);
-            resultMatrix.put(2, 0, resultArray_r3);
-            resultMatrix.put(3, 0, resultArray_r4); // TODO: behöver sista raden vara med?
-
-            // Vi inverterar matrisen så vi kan gå från kamera --> markör
-            invert(resultMatrix, resultMatrix); // 4 x 4
-
-            // Vektorn från markörens mitt till skärpunkten i världskoordinater/kamerans koordinater (WC)
-            Mat tracked_vector_WC = new Mat(4, 1, CvType.CV_64F);
-            tracked_vector_WC.put(0, 0, userX);//- tvec.get(0,0)[0]);
-            tracked_vector_WC.put(1, 0, userY);//- tvec.get(0,0)[1]);
-            tracked_vector_WC.put(2, 0, z_intersect);// - tvecs.get(0,0)[2]); // TODO: Tänk efter om detta är rimligt egentligen!
-            tracked_vector_WC.put(3, 0, 1);
-
-            // Applicera inversmatrisen på track-vektorn så vi får den i markörens koordinatsystem (MC)
-            Log.d("ABC123", "När det går bra frå vi att A = " + resultMatrix.type() + " och tvWC = " + tracked_vector_WC.type());
-            gemm(resultMatrix, tracked_vector_WC, 1, tracked_vector_WC, 0, tracked_vector_WC);
-
-            if (rowCounter == 0) {
-                tracked_vector_MC = new Mat(2, 3, CvType.CV_64F);
-            }
+        int size = measurementSnapshot.size();
+        double length = measurementSnapshot.pathLength();
+        if (size == recordedPathSize && length == recordedPathLength) {
+            return;
+        }
+        recordedPathSize = size;
+        recordedPathLength = length;
+        record(SessionJournal.KIND_PATH, length, Double.NaN, false);
+    }
 
-            tracked_vector_MC.put(rowCounter, 0, tracked_vector_WC.get(0, 0)[0]);
-            tracked_vector_MC.put(rowCounter, 1, tracked_vector_WC.get(1, 0)[0]);
-            //tracked_vector_MC.put(rowCounter, 2, tracked_vector_WC.get(2, 0)[0]);
-            tracked_vector_MC.put(rowCounter, 2, 0);
+    // Append a measurement to the journal, with the pose of the first marker in this frame
+    private void record(int kind, double distance, double halfWidth, boolean converged) {
+        SessionJournal target = journal;
+        if (target == null) {
+            return;
+        }
+        markerPoses.readIds(idBuffer);
+        int second = markerPoses.count() >= 2 ? idBuffer[1] : -1;
+        target.append(analysisTimestamp, kind, idBuffer[0], second, rvecBuffer, translationBuffer,
+                kind == SessionJournal.KIND_PATH ? measurementSnapshot : null, distance, halfWidth, converged);
+    }
 
-            rowCounter++;
+    // Adds a point where the crosshair in the middle of the image meets the marker plane
+    private void createPoint() {
+        if (raycaster.cast(imageWidth / 2.0, imageHeight / 2.0, centerBuffer)) {
+            synchronized (measurement) {
+                measurement.add(centerBuffer[0], centerBuffer[1], centerBuffer[2]);
+            }
         }
         userPoint = false;
     }
 
     // Funktion för att rita ut punkter
-    private void toPixelCoordinates(Mat vector, Mat rvec, Mat tvec, Mat cameraMatrix) {
-        // Sätt rows = vector.size()
-        imagePoints = new Mat(2,2, CvType.CV_64F);
-
-        // Kolla vector.size()
-        // TODO: kolla om punkten hamnar bakom kameran
-        // OpenGL cullar bort rasterpunkterna som är utanför frustumet
-        // Ta bort punkten om den hamnar bakom kameran => felmeddelande
+    // All points of the path are projected in one batch, points behind the camera get NaN
+    private void toPixelCoordinates(MeasurementPath path, double[] rvec, double[] tvec, CameraModel model,
+                                    MarkerContainer.Snapshot draft) {
+        int count = path.size();
+
         // TODO: Undersök om vi kan använda ett bräde/flera markörer istället för endast en
         // Jämför med ARCore-baserad applikation, en markör, en 2x2, en jättestor
         // TODO: (Om tid finns) undersök markörer i två plan
 
-        for(int i = 0; i < rowCounter; i++) {
-            // gör till v3?
-            Point3 p = new Point3(vector.get(i,0)[0], vector.get(i,1)[0], vector.get(i,2)[0]);
-            MatOfPoint3f tracked_point = new MatOfPoint3f(p);
+        if (projectedBuffer.length < 2 * count) {
+            projectedBuffer = new double[Math.max(2 * count, 2 * projectedBuffer.length)];
+        }
+        projector.project(model, rvec, tvec, path.coordinates(), count, projectedBuffer);
+        draft.setImagePoints(projectedBuffer, count);
+    }
 
-            MatOfPoint2f points2D = new MatOfPoint2f();
-            //MatOfDouble test_distortion = new MatOfDouble(0,0,0,0,0 );
-            MatOfDouble test_distortion = new MatOfDouble(0.3363400302339669, -1.095918772105208, 0.001395881531710981, -0.00113269394288377, 1.487878827052818 );
-            projectPoints(tracked_point, rvec, tvec, cameraMatrix, test_distortion, points2D);
+    // The projected points as seen by one thread, with a dragged point where the finger is
+    private static class ImagePoints {
+        double[] xy = new double[16];
+        int count;
 
-            //Log.d("3D-point:", "" + tracked_point.dump());
-            //Log.d("2D-point: ", "" + points2D.dump());
+        // False for points behind the camera
+        boolean isVisible(int i) {
+            return !Double.isNaN(xy[2 * i]);
+        }
+    }
 
+    private ImagePoints loadImagePoints(MarkerContainer.Snapshot markers, ImagePoints dst) {
+        double[] source = markers.getImagePoints();
+        int count = markers.getImagePointCount();
+        int dragged = dragIndex;
+        int total = Math.max(count, dragged + 1);
+        if (dst.xy.length < 2 * total) {
+            dst.xy = new double[Math.max(2 * total, 2 * dst.xy.length)];
+        }
+        System.arraycopy(source, 0, dst.xy, 0, 2 * count);
+        if (dragged >= 0) {
+            dst.xy[2 * dragged] = dragU;
+            dst.xy[2 * dragged + 1] = dragV;
+        }
+        dst.count = total;
+        return dst;
+    }
 
-            imagePoints.put(i, 0, points2D.get(0,0)[0]);
-            imagePoints.put(i, 1, points2D.get(0,0)[1]);
-        };
-        //Log.d("", "*************************************************");
+    // Pixel values converted to uv coordinates
+    private float[] toGL(ImagePoints points, int i) {
+        return new float[]{ (float) (points.xy[2 * i] * 2.0 / imageWidth - 1),
+                            (float) - (points.xy[2 * i + 1] * 2.0 / imageHeight - 1)};
     }
 
     private void generateIntrinsicsAndDistortion() {
-        // Get the camera parameters
-        float cx = imageBitmap.getWidth() * 0.49904564092f;
-        float cy = imageBitmap.getHeight() * 0.49937073486f;
-        float fx = imageBitmap.getWidth() * 0.67352064836f;
-        float fy = imageBitmap.getHeight() * 1.19671093141f;
-
-        // Construct the camera matrix using fx, fy, cx, cy
-        float[] intrinsics = {fx, 0, cx, 0, fy, cy, 0, 0, 1};
-        cameraMatrix = new Mat(3, 3, CvType.CV_32F);
-        cameraMatrix.put(0, 0, intrinsics);
+        // Use the stored calibration of this camera and resolution if there is a valid one,
+        // otherwise derive the camera parameters from the image size
+        CameraModel stored = calibrationStore != null ? calibrationStore.load(CAMERA_ID, imageWidth, imageHeight) : null;
+        cameraModel = stored != null ? stored : CameraModel.defaults(IntrinsicsStore.device(), imageWidth, imageHeight);
+    }
 
-        // Assign distortion coefficients (currently empty)
-        //float[] distortion = {0.3363400302339669f, -1.095918772105208f, 0.001395881531710981f, -0.00113269394288377f, 1.487878827052818f};
-        float[] distortion = {0,0,0,0,0};
-        distortionCoefficients = new Mat(1, 5, CvType.CV_32F);
-        distortionCoefficients.put(0, 0, distortion);
+    // Switch to a new camera model, e.g. from a calibration, at the start of the next frame. An
+    // asynchronous MarkerDetector that still uses the old model has retained it, so its Mats are
+    // only released once that is done
+    private void applyPendingIntrinsics() {
+        CameraModel pending = pendingCameraModel;
+        if (pending != null && cameraModel != null) {
+            pendingCameraModel = null;
+            cameraModel.release();
+            cameraModel = pending;
+            redetect = true;
+            Log.d("Calibration", "Using camera model " + cameraModel);
+        }
     }
 
     // Hanna började något konstigt experiment här..
@@ -422,138 +758,6 @@ class GLRenderer implements GLSurfaceView.Renderer, ImageAnalysis.Analyzer {
     }
 
     // Funktion som hittar en markörs plan
-    private double getIntersect(Mat rvecs, Mat tvecs) {
-
-        List<Mat> camera_points = new ArrayList<>();
-        Mat rot_mat = new Mat(3,3,CvType.CV_64F);
-        Rodrigues(rvecs, rot_mat);
-        rot_mat = rot_mat.t();
-        double half_side = markerLength/2;
-
-        ///////////////////////////////////////////////////////////////////////////////////////////////////////////
-        //Mat cornersWC = getCornerCoordinates();
-        //////////////////////////////////////////////////////////////////////////////////////////////////////////
-
-        // E is the halfway point of one side
-        double Ex = rot_mat.get(0,0)[0] * half_side;
-        double Ey = rot_mat.get(0,1)[0] * half_side;
-        double Ez = rot_mat.get(0,2)[0] * half_side;
-
-        // F is the halfway point of the perpendicular side
-        double Fx = rot_mat.get(1,0)[0] * half_side;
-        double Fy = rot_mat.get(1,1)[0] * half_side;
-        double Fz = rot_mat.get(1,2)[0] * half_side;
-
-        // First corner (corner 0 = övre vänstra)
-        double corner_x = -Ex + Fx + tvecs.get(0,0)[0];
-        double corner_y = -Ey + Fy + tvecs.get(0,0)[1];
-        double corner_z = -Ez + Fz + tvecs.get(0,0)[2];
-
-        // Add to matrix
-        double[] corner_coord = {corner_x, corner_y, corner_z};
-        Mat camera_points_coords_0 = new Mat(1,3,CvType.CV_64F);
-        camera_points_coords_0.put(0, 0, corner_coord);
-        camera_points.add(camera_points_coords_0);
-
-        // Second corner (corner 1 = övre högra)
-        corner_x = Ex + Fx + tvecs.get(0,0)[0];
-        corner_y = Ey + Fy + tvecs.get(0,0)[1];
-        corner_z = Ez + Fz + tvecs.get(0,0)[2];
-
-        corner_coord[0] = corner_x; corner_coord[1] = corner_y; corner_coord[2] = corner_z;
-        Mat camera_points_coords_1 = new Mat(1,3,CvType.CV_64F);
-        camera_points_coords_1.put(0, 0, corner_coord);
-        camera_points.add(camera_points_coords_1);
-
-        // Third corner (corner 2 = nedre högra)
-        corner_x = Ex - Fx + tvecs.get(0,0)[0];
-        corner_y = Ey - Fy + tvecs.get(0,0)[1];
-        corner_z = Ez - Fz + tvecs.get(0,0)[2];
-
-        corner_coord[0] = corner_x; corner_coord[1] = corner_y; corner_coord[2] = corner_z;
-        Mat camera_points_coords_2 = new Mat(1,3,CvType.CV_64F);
-        camera_points_coords_2.put(0, 0, corner_coord);
-        camera_points.add(camera_points_coords_2);
-
-        // Fourth corner (corner 3 = nedre vänstra)
-        corner_x = -Ex - Fx + tvecs.get(0,0)[0];
-        corner_y = -Ey - Fy + tvecs.get(0,0)[1];
-        corner_z = -Ez - Fz + tvecs.get(0,0)[2];
-
-        corner_coord[0] = corner_x; corner_coord[1] = corner_y; corner_coord[2] = corner_z;
-        Mat camera_points_coords_3 = new Mat(1,3,CvType.CV_64F);
-        camera_points_coords_3.put(0, 0, corner_coord);
-        camera_points.add(camera_points_coords_3);
-
-
-        /****************************
-         *    FÖR ATT HITTA PLAN    *
-         ****************************/
-
-        // Få ut koordinaterna till hörn 1 (övre högra)
-        vec3 corner1 = new vec3();
-        double[] x_1 = {0};
-        double[] y_1 = {0};
-        double[] z_1 = {0};
-        camera_points_coords_1.get(0,0, x_1);
-        camera_points_coords_1.get(0,1, y_1);
-        camera_points_coords_1.get(0,2, z_1);
-
-        // Få ut koordinaterna till hörn 2 (nedre högra)
-        double[] x_2 = {0};
-        double[] y_2 = {0};
-        double[] z_2 = {0};
-        camera_points_coords_2.get(0,0, x_2);
-        camera_points_coords_2.get(0,1, y_2);
-        camera_points_coords_2.get(0,2, z_2);
-
-        // Få ut koordinaterna till hörn 3
-        double[] x_3 = {0};
-        double[] y_3 = {0};
-        double[] z_3 = {0};
-        camera_points_coords_3.get(0,0, x_3);
-        camera_points_coords_3.get(0,1, y_3);
-        camera_points_coords_3.get(0,2, z_3);
-
-        // Gör vektorer som är 1->2 samt 2->3
-        Mat vector_1_2 = new Mat(1, 3, CvType.CV_64F);
-        Mat vector_2_3 = new Mat(1, 3, CvType.CV_64F);
-
-        // Beräkna och sätt in värdena
-        vector_1_2.put(0, 0, x_2[0] - x_1[0]);
-        vector_1_2.put(0, 1, y_2[0] - y_1[0]);
-        vector_1_2.put(0, 2, z_2[0] - z_1[0]);
-
-        vector_2_3.put(0, 0, x_3[0] - x_2[0]);
-        vector_2_3.put(0, 1, y_3[0] - y_2[0]);
-        vector_2_3.put(0, 2, z_3[0] - z_2[0]);
-
-        // Skapa normalen till planet
-        Mat normal = vector_1_2.cross(vector_2_3);
-
-        // Hitta längden på normalen så vi kan normalisera den
-        double normal_factor = 1/Math.sqrt( (Math.pow(normal.get(0, 0)[0], 2)) +
-                (Math.pow(normal.get(0, 1)[0], 2)) +
-                (Math.pow(normal.get(0, 2)[0], 2)) );
-
-        // Normalisera normalen
-        normal.put(0, 0, normal_factor * normal.get(0,0)[0]);
-        normal.put(0, 1, normal_factor * normal.get(0,1)[0]);
-        normal.put(0, 2, normal_factor * normal.get(0,2)[0]);
-
-        // Planets ekvation på normalform = Ax + By + Cz + D = 0 => D = - (Ax + By + Cz)
-        double plane_D = - (normal.get(0,0)[0]*x_1[0] + normal.get(0,1)[0]*y_1[0] + normal.get(0,2)[0]*z_1[0]);
-
-        // Skapar en stråle som går från kameran ut i världen: (0, 0, -t)
-        // TODO: Behöver denna vara i markörkoordinater? Gör om intersection för det nya kanske ...
-        // Ax + By + Cz + D = 0, med x = y = 0 => Cz + D = 0 => -t = -D/C => t = D/C
-        // Intersection sker i punkten (0,0,-D/C)
-        // TODO: Behöver denna översättas?
-        double z_intersect = - plane_D / normal.get(0,2)[0];
-
-        return z_intersect;
-    }
-
     private void setImageMatFromProxy(@NotNull ImageProxy proxy) {
 //        long timer = System.currentTimeMillis();
 
@@ -569,6 +773,8 @@ class GLRenderer implements GLSurfaceView.Renderer, ImageAnalysis.Analyzer {
         // Use OpenCV image processor to convert from YUV to RGB
         Mat rgbaMat = new Mat();
         Imgproc.cvtColorTwoPlane(yMat, uvMat, rgbaMat, Imgproc.COLOR_YUV2RGBA_NV21);
+        yMat.release();
+        uvMat.release();
 
         // TODO is this necessary??
         // Remove the alpha channel
@@ -583,6 +789,21 @@ class GLRenderer implements GLSurfaceView.Renderer, ImageAnalysis.Analyzer {
 //        Log.d("Bitmap conversion time", "" + (int)(System.currentTimeMillis() - timer) + "ms");
     }
 
+    // Wrap the luminance plane of the frame in a Mat and rotate it into imageMat
+    private void setGrayImageMatFromProxy(@NotNull ImageProxy proxy) {
+        assert(proxy.getFormat() == ImageFormat.YUV_420_888);
+        ByteBuffer yPlane = proxy.getPlanes()[0].getBuffer();
+        Mat yMat = new Mat(proxy.getHeight(), proxy.getWidth(), CvType.CV_8UC1, yPlane);
+
+        // Rotate Mat 90 degrees. This also copies the data out of the frame buffer
+        Mat grayMat = new Mat();
+        rotate(yMat, grayMat, ROTATE_90_CLOCKWISE);
+        yMat.release();
+
+        if(imageMat != null){ imageMat.release(); }
+        imageMat = grayMat;
+    }
+
     private void setImageBitmapFromMat(){
         // Convert Mat to Bitmap
         Utils.matToBitmap(imageMat, imageBitmap);
@@ -603,6 +824,66 @@ class GLRenderer implements GLSurfaceView.Renderer, ImageAnalysis.Analyzer {
         GLES20.glGenTextures(1, textures, 0);
     }
 
+    private void generateExternalTexture() {
+        GLES20.glGenTextures(1, externalTextures, 0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, externalTextures[0]);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+
+        // A recreated GL context still has the SurfaceTexture attached to the old one
+        try {
+            surfaceTexture.detachFromGLContext();
+        }
+        catch (RuntimeException e) {
+            // Not attached yet
+        }
+        surfaceTexture.attachToGLContext(externalTextures[0]);
+    }
+
+    // Draw the crosshair in the middle of the screen with OpenGL
+    private void drawCrosshair() {
+        int ch_size = 15;
+        float dx = 2f * ch_size / imageWidth;
+        float dy = 2f * ch_size / imageHeight;
+
+        shader.drawThinLine(new float[]{-dx, 0f}, new float[]{dx, 0f});
+        shader.drawThinLine(new float[]{0f, -dy}, new float[]{0f, dy});
+    }
+
+    // Show the measured distance in the distance label (used in direct preview mode where nothing
+    // is drawn into the analysis frames)
+    private void updateDistanceLabel() {
+        if (distanceLabel == null) {
+            return;
+        }
+
+        String text;
+        synchronized (measurement) {
+            text = measurement.describe();
+        }
+        if (text.isEmpty()) {
+            text = markerDistanceText;
+        }
+        final String label = text;
+        distanceLabel.post(() -> distanceLabel.setText(label));
+    }
+
+    // Provide the SurfaceTexture as the output surface of the Preview use case
+    @Override
+    public void onSurfaceRequested(@NonNull SurfaceRequest request) {
+        Size resolution = request.getResolution();
+        surfaceTexture.setDefaultBufferSize(resolution.getWidth(), resolution.getHeight());
+
+        Surface surface = new Surface(surfaceTexture);
+        request.provideSurface(surface, Runnable::run, result -> surface.release());
+    }
+
+    void setDistanceLabel(TextView label) {
+        distanceLabel = label;
+    }
+
     private void renderTexture() {
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
 
@@ -622,77 +903,344 @@ class GLRenderer implements GLSurfaceView.Renderer, ImageAnalysis.Analyzer {
         GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, imageBitmap, 0);
     }
 
-    void setMarkerSize(float v){
-        markerLength = v;
+    // Create the detector state and the camera matrix. Needs OpenCV to be loaded, which is not the
+    // case yet when the renderer is constructed, so the startup calls this from a background thread
+    // before the first frame is analyzed
+    void prepareDetector() {
+        detectorParameters = DetectorSettings.createParameters();
+        dictionary = DetectorSettings.createDictionary();
+        markerPoses = new MarkerPoses(detectorParameters, dictionary);
+        detectionPoses = new MarkerPoses.Pool(detectorParameters, dictionary);
+
+        // Generate the camera matrix
+        generateIntrinsicsAndDistortion();
     }
 
-    void placePoint() {
-        userPoint = true;
+    // Run the detection pipeline on generated frames until its latency has settled. Has to be called
+    // after prepareDetector() and before the analyzer is set
+    DetectorWarmup.Result warmUp(BooleanSupplier stop) {
+        // A calibration may replace the model meanwhile
+        CameraModel model = cameraModel.retain();
+        try {
+            return new DetectorWarmup(detectorParameters, dictionary, model, markerLength).run(stop);
+        }
+        finally {
+            model.release();
+        }
     }
 
-    void placePoint(int x_px, int y_px) {
-        userPoint = true;
+    // Record what is drawn on the screen to an MP4 file, until stopRecording()
+    void startRecording(File file) {
+        glSurfaceView.queueEvent(() -> {
+            if (recorder != null || viewWidth == 0) {
+                return;
+            }
+            recorder = new FrameRecorder(new VideoEncoder(file),
+                    VideoEncoder.alignedSize(viewWidth), VideoEncoder.alignedSize(viewHeight));
+            recorder.start();
+        });
+    }
+
+    // The frames that have been drawn are still encoded, after which the file is complete
+    void stopRecording() {
+        glSurfaceView.queueEvent(() -> {
+            if (recorder != null) {
+                Log.d("Recording", recorder.recordedFrames() + " frames recorded, " + recorder.droppedFrames() + " dropped");
+                recorder.stop();
+                recorder = null;
+            }
+        });
+    }
+
+    // Take a full resolution still next to the running preview and measure the two markers in it.
+    // The result is merged into the live distance at the next analysis frame that sees the same
+    // markers. Completes exceptionally if there are not exactly two markers in the still
+    CompletableFuture<PreciseMeasurement.Result> measurePrecisely(ImageCapture capture) {
+        CompletableFuture<PreciseMeasurement.Result> result = new CompletableFuture<>();
+        capture.takePicture(executors.executor(AppExecutors.Stage.BACKGROUND), new ImageCapture.OnImageCapturedCallback() {
+            @Override
+            public void onCaptureSuccess(@NonNull ImageProxy image) {
+                try {
+                    result.complete(measureStill(image));
+                }
+                catch (IOException | RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void onError(@NonNull ImageCaptureException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    // Runs on the background stage
+    private PreciseMeasurement.Result measureStill(ImageProxy image) throws IOException {
+        long start = System.nanoTime();
+        byte[] jpeg;
+        int rotation;
+        try {
+            ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+            jpeg = new byte[buffer.remaining()];
+            buffer.get(jpeg);
+            rotation = image.getImageInfo().getRotationDegrees();
+        }
+        finally {
+            image.close();
+        }
+
+        if (preciseMeasurement == null) {
+            preciseMeasurement = new PreciseMeasurement(this::stillCameraModel);
+        }
+        Mat gray = PreciseMeasurement.decode(jpeg, rotation);
+        PreciseMeasurement.Result result;
+        try {
+            result = preciseMeasurement.measure(gray, markerLength);
+        }
+        finally {
+            gray.release();
+        }
+        if (result == null) {
+            throw new IllegalStateException("Exactly two markers have to be in the still");
+        }
+
+        Log.d("PreciseMeasurement", String.format(Locale.ROOT, "%dx%d still: %.2f \u00B1 %.2f mm, reprojection %.2f px, %d ms",
+                result.width, result.height, result.distance, result.halfWidth, result.reprojectionError,
+                (System.nanoTime() - start) / 1_000_000));
+        pendingPrecise.set(result);
+        // Process the next frame even if the scene has not changed
+        redetect = true;
+        return result;
+    }
+
+    // The stored calibration for the still resolution, or else the calibration of the analysis
+    // frames scaled to it. A still is bound with the aspect ratio of the analysis, so both see the
+    // same field of view. The uncalibrated defaults would bias the still, which is merged as the
+    // most certain sample, so without a calibration the still is refused. Runs on the background
+    // stage
+    private CameraModel stillCameraModel(int width, int height) {
+        CameraIntrinsics analysis = cameraModel != null ? cameraModel.getIntrinsics() : null;
+        boolean current = stillCameraModel != null && stillCameraModel.getIntrinsics().width == width
+                && stillCameraModel.getIntrinsics().height == height
+                && (stillModelSource == null || stillModelSource == analysis);
+        if (!current) {
+            if (stillCameraModel != null) {
+                stillCameraModel.release();
+                stillCameraModel = null;
+            }
+            CameraModel stored = calibrationStore != null ? calibrationStore.load(CAMERA_ID, width, height) : null;
+            if (stored != null) {
+                stillCameraModel = stored;
+                stillModelSource = null;
+            }
+            else {
+                CameraIntrinsics scaled = analysis != null && analysis.isCalibrated() ? analysis.scaledTo(width, height) : null;
+                if (scaled == null) {
+                    throw new IllegalStateException("No calibration for " + width + "x" + height
+                            + " stills, calibrate the camera first");
+                }
+                stillCameraModel = new CameraModel(IntrinsicsStore.device(), scaled);
+                stillModelSource = analysis;
+            }
+        }
+        return stillCameraModel;
     }
 
+    // The threads for detection, stills and calibration. Has to be set before the camera starts
+    void setExecutors(AppExecutors executors) {
+        this.executors = executors;
+    }
+
+    void setAsynchronousDetection(boolean on) {
+        asynchronousDetection = on;
+    }
 
-    void pxToWC(int _x, int _y) {
-        /*
-        
-        if(!marker_in_frame) return;
-        if(rowCounter < 1 || rowCounter > 2) return;
-        Log.d("CONV", "ENTERED pxToWC");
+    void setJournal(SessionJournal journal) {
+        this.journal = journal;
+    }
 
-        // Convert pixel coordinates to camera coordinates
-        // rotMatrix = 3 x 3
-        // cameraMatrix = 3 x 3
-        // [u,v] = 3 x 1
-        // t = 3 x 1
+    void setCalibrationStore(CalibrationStore store) {
+        calibrationStore = store;
+    }
+
+    // Start collecting ChArUco board views from the analysis frames
+    void startCalibration(CharucoCalibrator.Listener listener) {
+        CharucoCalibrator previous = calibrator;
+        if (previous != null) {
+            previous.cancel();
+        }
+        CameraIntrinsics guess = cameraModel != null ? cameraModel.getIntrinsics() : CameraIntrinsics.defaults(imageWidth, imageHeight);
+        calibrator = new CharucoCalibrator(guess, listener, executors.executor(AppExecutors.Stage.BACKGROUND));
+    }
 
+    // Stop collecting views and run a final calibration. The result is stored for this camera and
+    // resolution, together with its undistortion maps, and used from the next frame on
+    CompletableFuture<CameraIntrinsics> stopCalibration() {
+        CharucoCalibrator current = calibrator;
+        calibrator = null;
+        if (current == null) {
+            CompletableFuture<CameraIntrinsics> none = new CompletableFuture<>();
+            none.completeExceptionally(new IllegalStateException("Not calibrating"));
+            return none;
+        }
+        return current.finish().thenApply(result -> {
+            CameraModel model = new CameraModel(IntrinsicsStore.device(), result);
+            if (calibrationStore != null) {
+                calibrationStore.save(CAMERA_ID, model);
+            }
+            pendingCameraModel = model;
+            return result;
+        });
+    }
 
-        Mat R_M = new Mat(3, 3, CvType.CV_64F);
-        Mat RM_uv = new Mat(3, 1, CvType.CV_64F);
-        Mat translation_vector_t = new Mat(3, 1, CvType.CV_64F);
-        Mat R_t = new Mat(3, 1, CvType.CV_64F);
-        Mat result = new Mat(3, 1, CvType.CV_64F);
+    boolean isCalibrating() {
+        return calibrator != null;
+    }
 
-        Mat uv = new Mat(3,1, CvType.CV_64F);
-        uv.put(0,0, new double[]{_x, _y, 1});
+    // Feed the current frame to the calibration, if one is running
+    private void calibrate() {
+        CharucoCalibrator current = calibrator;
+        if (current != null) {
+            current.addFrame(imageMat);
+        }
+    }
 
-        Mat inv_rotMatrix = new Mat(3, 3, CvType.CV_64F);
-        invert(rotMatrix, inv_rotMatrix);
+    // Completes on the GL thread once the shaders have been compiled
+    CompletableFuture<Void> shadersCompiled() {
+        return shadersCompiled;
+    }
 
-        Mat inv_cameraMatrix = new Mat(3, 3, CvType.CV_64F);
-        invert(cameraMatrix, inv_cameraMatrix);
+    void setStartupTimeline(StartupTimeline timeline) {
+        startupTimeline = timeline;
+    }
 
-        if (inv_cameraMatrix.type() != inv_rotMatrix.type()) {
-            //Log.d("ABC123", "INCOMPATIBLE");
-            //Log.d("ABC123", "cM = " + inv_cameraMatrix.type() + " and rM = " + inv_rotMatrix.type());
-            //Log.d("ABC123", "cM = " + inv_cameraMatrix.dump());
-            //Log.d("ABC123", "rM = " + inv_rotMatrix.dump());
-            inv_cameraMatrix.convertTo(inv_cameraMatrix, inv_rotMatrix.type());
+    private void markStartup(StartupTimeline.Milestone milestone) {
+        if (startupTimeline != null) {
+            startupTimeline.mark(milestone);
         }
+    }
+
+    void setMarkerSize(float v){
+        markerLength = v;
+        redetect = true;
+    }
 
-        // R^{-1} * M^{-1}
-        gemm(inv_rotMatrix, inv_cameraMatrix, 1, new Mat(), 0, R_M);
-        //R^{-1} * M^{-1} * uv
-        gemm(R_M, uv, 1, new Mat(), 0, RM_uv);
+    void placePoint() {
+        userPoint = true;
+    }
 
-        // R^{-1} * t
-        if (translation_vector.type() != inv_rotMatrix.type()) {
-            Log.d("ABC123", "tvec innan = " + translation_vector.dump());
-            translation_vector_t.put(0,0, translation_vector.get(0,0));
-            translation_vector_t.put(1,0, translation_vector.get(0,1));
-            translation_vector_t.put(2,0, translation_vector.get(0,2));
-            Log.d("ABC123", "tvec efter = " + translation_vector_t.dump());
-            //translation_vector.convertTo(translation_vector, inv_rotMatrix.type());
+    // Touch-to-measure. A touch close to a measure point picks it up, anywhere else it adds a new
+    // point where the touched pixel meets the marker plane. The point follows the finger while it
+    // is dragged and stays where the finger is lifted. Touches are in view coordinates, the view
+    // shows the whole analysis image
+    void startDrag(float x, float y) {
+        if (!castTouch(x, y)) {
+            return;
+        }
+        synchronized (measurement) {
+            int index = nearestImagePoint(dragU, dragV);
+            if (index >= 0 && index < measurement.size()) {
+                measurement.set(index, touchBuffer[0], touchBuffer[1], touchBuffer[2]);
+            }
+            else {
+                measurement.add(touchBuffer[0], touchBuffer[1], touchBuffer[2]);
+                index = measurement.size() - 1;
+            }
+            dragIndex = index;
         }
-        gemm(inv_rotMatrix, translation_vector_t, 1, new Mat(), 0, R_t);
+        onDragged();
+    }
 
-        userX = _x;
-        userY = _y;
+    void drag(float x, float y) {
+        synchronized (measurement) {
+            int index = dragIndex;
+            if (index < 0 || !castTouch(x, y)) {
+                return;
+            }
+            measurement.set(index, touchBuffer[0], touchBuffer[1], touchBuffer[2]);
+        }
+        onDragged();
+    }
 
-        */
+    void endDrag(float x, float y) {
+        synchronized (measurement) {
+            int index = dragIndex;
+            if (index < 0) {
+                return;
+            }
+            if (castTouch(x, y)) {
+                measurement.set(index, touchBuffer[0], touchBuffer[1], touchBuffer[2]);
+            }
+            dragIndex = -1;
+        }
+        onDragged();
+    }
 
+    void removeLastPoint() {
+        synchronized (measurement) {
+            if (dragIndex < 0) {
+                measurement.removeLast();
+            }
+        }
+        onDragged();
     }
 
+    void clearPoints() {
+        synchronized (measurement) {
+            if (dragIndex < 0) {
+                measurement.clear();
+            }
+        }
+        onDragged();
+    }
+
+    private boolean castTouch(float x, float y) {
+        if (viewWidth == 0 || viewHeight == 0) {
+            return false;
+        }
+        float u = x * imageWidth / viewWidth;
+        float v = y * imageHeight / viewHeight;
+        if (!raycaster.cast(u, v, touchBuffer)) {
+            return false;
+        }
+        dragU = u;
+        dragV = v;
+        return true;
+    }
+
+    // Index of the projected point within TOUCH_RADIUS_PX of (u, v), or -1
+    private int nearestImagePoint(double u, double v) {
+        MarkerContainer.Snapshot markers = markerContainer.acquire();
+        try {
+            double[] xy = markers.getImagePoints();
+            int count = markers.getImagePointCount();
+            int nearest = -1;
+            double best = TOUCH_RADIUS_PX * TOUCH_RADIUS_PX;
+            for (int i = 0; i < count; i++) {
+                double du = xy[2 * i] - u;
+                double dv = xy[2 * i + 1] - v;
+                if (du * du + dv * dv <= best) {
+                    best = du * du + dv * dv;
+                    nearest = i;
+                }
+            }
+            return nearest;
+        }
+        finally {
+            markers.release();
+        }
+    }
+
+    // Show the new measurement right away instead of at the next analysis frame. The next frame
+    // is processed even if the scene has not changed, so that the points are projected anew
+    private void onDragged() {
+        synchronized (measurement) {
+            markerContainer.updateDistance(measurement.pathLength());
+        }
+        redetect = true;
+        updateDistanceLabel();
+        glSurfaceView.requestRender();
+    }
 }
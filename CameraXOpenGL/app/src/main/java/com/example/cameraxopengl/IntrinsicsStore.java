@@ -0,0 +1,74 @@
+package com.example.cameraxopengl;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+// IntrinsicsStore keeps calibrated camera intrinsics in SharedPreferences, one entry per device
+// model and image resolution, since the analysis resolution decides the focal lengths in pixels.
+// Calibrations are now kept by CalibrationStore, which reads this store only to convert entries
+// saved before it existed.
+
+class IntrinsicsStore {
+    private static final String PREFERENCES = "camera_intrinsics";
+    private final SharedPreferences preferences;
+
+    IntrinsicsStore(Context context) {
+        preferences = context.getApplicationContext().getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    static String device() {
+        return Build.MANUFACTURER + "_" + Build.MODEL;
+    }
+
+    // The stored intrinsics for this device and resolution, or the default ratios if there are none
+    CameraIntrinsics loadOrDefaults(int width, int height) {
+        CameraIntrinsics stored = load(width, height);
+        return stored != null ? stored : CameraIntrinsics.defaults(width, height);
+    }
+
+    CameraIntrinsics load(int width, int height) {
+        return decode(width, height, preferences.getString(CameraModel.key(device(), width, height), null));
+    }
+
+    void save(CameraIntrinsics intrinsics) {
+        preferences.edit()
+                .putString(CameraModel.key(device(), intrinsics.width, intrinsics.height), encode(intrinsics))
+                .apply();
+    }
+
+    // "fx fy cx cy k1 k2 p1 p2 k3 rms views"
+    static String encode(CameraIntrinsics intrinsics) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(intrinsics.fx).append(' ').append(intrinsics.fy).append(' ')
+          .append(intrinsics.cx).append(' ').append(intrinsics.cy);
+        for (double d : intrinsics.getDistortion()) {
+            sb.append(' ').append(d);
+        }
+        sb.append(' ').append(intrinsics.rms).append(' ').append(intrinsics.views);
+        return sb.toString();
+    }
+
+    // Returns null for a missing or malformed entry
+    static CameraIntrinsics decode(int width, int height, String value) {
+        if (value == null) {
+            return null;
+        }
+        String[] parts = value.trim().split(" ");
+        if (parts.length != 11) {
+            return null;
+        }
+        try {
+            double[] v = new double[10];
+            for (int i = 0; i < v.length; ++i) {
+                v[i] = Double.parseDouble(parts[i]);
+            }
+            double[] distortion = {v[4], v[5], v[6], v[7], v[8]};
+            return new CameraIntrinsics(width, height, v[0], v[1], v[2], v[3], distortion, v[9],
+                    Integer.parseInt(parts[10]));
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
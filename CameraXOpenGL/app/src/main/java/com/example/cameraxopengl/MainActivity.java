@@ -1,8 +1,6 @@
 package com.example.cameraxopengl;
 
-import android.Manifest;
 import android.content.ContentProviderClient;
-import android.content.pm.PackageManager;
 import android.opengl.GLSurfaceView;
 import android.os.Bundle;
 import android.text.Editable;
@@ -17,20 +15,16 @@ import android.widget.LinearLayout;
 import android.widget.NumberPicker;
 import android.widget.TextView;
 
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
-import androidx.camera.core.CameraSelector;
+import androidx.camera.core.AspectRatio;
 import androidx.camera.core.ImageAnalysis;
-import androidx.camera.lifecycle.ProcessCameraProvider;
-import androidx.core.app.ActivityCompat;
-import androidx.core.content.ContextCompat;
+import androidx.camera.core.ImageCapture;
+import androidx.camera.core.Preview;
 import androidx.core.view.MotionEventCompat;
 
-import com.google.common.util.concurrent.ListenableFuture;
-
-import org.opencv.android.OpenCVLoader;
-
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
+import java.io.File;
+import java.io.IOException;
 
 // This class creates a CameraX session and a glSurfaceView container to put the camera preview in.
 // It also creates a GLRenderer object which provides a custom GLSurfaceView.Renderer for the
@@ -42,19 +36,58 @@ public class MainActivity extends AppCompatActivity implements NumberPicker.OnVa
     //private int cameraPreviewHeight = 1280;
     private int cameraPreviewWidth = 1080;
     private int cameraPreviewHeight = 1920;
+    // In direct preview mode the preview is streamed straight into an OpenGL texture and the
+    // analysis frames, which are only used for detection, can have a lower resolution
+    private boolean directPreview = true;
+    private int analysisWidth = 720;
+    private int analysisHeight = 1280;
     boolean userPoint = false;
+    private StartupTimeline startupTimeline;
+    private StartupOrchestrator startup;
+    private SessionJournal journal;
+    // Which threads run the analysis, detection and pose stages. Can be set with the intent extra,
+    // e.g. adb shell am start -n ... --es execution_policy work_stealing
+    static final String EXTRA_EXECUTION_POLICY = "execution_policy";
+    private static final AppExecutors.Policy DEFAULT_EXECUTION_POLICY = AppExecutors.Policy.STAGED;
+    // Detect markers in the background instead of on the analysis thread, --ez asynchronous_detection true
+    static final String EXTRA_ASYNCHRONOUS_DETECTION = "asynchronous_detection";
+    private AppExecutors executors;
+    private Button recordButton;
+    private boolean recording = false;
+    private ImageCapture imageCapture;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        startupTimeline = new StartupTimeline();
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        executors = new AppExecutors(AppExecutors.Policy.parse(
+                getIntent().getStringExtra(EXTRA_EXECUTION_POLICY), DEFAULT_EXECUTION_POLICY));
 
         // "glSurfaceView" is the layout container for the camera preview
         GLSurfaceView glSurfaceView = findViewById(R.id.glsurfaceview);
 
         // "renderer" is an instance of the custom class GLRenderer which implements a
         // GLSurfaceView.Renderer and an ImageAnalysis.Analyzer
-        renderer = new GLRenderer(glSurfaceView, cameraPreviewWidth, cameraPreviewHeight);
+        if (directPreview) {
+            renderer = new GLRenderer(glSurfaceView, analysisWidth, analysisHeight, true);
+            renderer.setDistanceLabel(findViewById(R.id.distanceLabel));
+        }
+        else {
+            renderer = new GLRenderer(glSurfaceView, cameraPreviewWidth, cameraPreviewHeight);
+        }
+        renderer.setStartupTimeline(startupTimeline);
+        renderer.setExecutors(executors);
+        renderer.setAsynchronousDetection(getIntent().getBooleanExtra(EXTRA_ASYNCHRONOUS_DETECTION, false));
+        renderer.setCalibrationStore(new CalibrationStore(new File(getFilesDir(), "calibration"), new IntrinsicsStore(this)));
+        try {
+            journal = SessionJournal.open(new File(getFilesDir(), "journal"), SessionJournal.CHUNK_RECORDS,
+                    executors.executor(AppExecutors.Stage.IO));
+            renderer.setJournal(journal);
+        }
+        catch (IOException e) {
+            Log.w("SessionJournal", "Measuring without a journal", e);
+        }
         glSurfaceView.setPreserveEGLContextOnPause(true);
         glSurfaceView.setEGLContextClientVersion(3);
 
@@ -76,14 +109,18 @@ public class MainActivity extends AppCompatActivity implements NumberPicker.OnVa
         glSurfaceView.setOnTouchListener(new View.OnTouchListener() {
             @Override
             public boolean onTouch(View v, MotionEvent event) {
-                if (MotionEventCompat.getActionMasked(event) == event.ACTION_UP) {
-                    int point_x = (int) event.getX();
-                    int point_y = (int) event.getY();
-                    Log.d("MotionEvent", "[ " + point_x + ", " + point_y + " ]");
-                    renderer.pxToWC(point_x, point_y);
-                    return true;
+                switch (MotionEventCompat.getActionMasked(event)) {
+                    case MotionEvent.ACTION_DOWN:
+                        renderer.startDrag(event.getX(), event.getY());
+                        break;
+                    case MotionEvent.ACTION_MOVE:
+                        renderer.drag(event.getX(), event.getY());
+                        break;
+                    case MotionEvent.ACTION_UP:
+                        Log.d("MotionEvent", "[ " + event.getX() + ", " + event.getY() + " ]");
+                        renderer.endDrag(event.getX(), event.getY());
+                        break;
                 }
-
                 return true;
             }
         });
@@ -97,6 +134,20 @@ public class MainActivity extends AppCompatActivity implements NumberPicker.OnVa
             }
         });
 
+        // Remove the latest measure point, or all of them with a long press
+        final Button deleteButton = findViewById(R.id.deleteButton);
+        deleteButton.setOnClickListener(new View.OnClickListener() {
+            public void onClick(View v) {
+                renderer.removeLastPoint();
+            }
+        });
+        deleteButton.setOnLongClickListener(new View.OnLongClickListener() {
+            public boolean onLongClick(View v) {
+                renderer.clearPoints();
+                return true;
+            }
+        });
+
         final Button showInputButton = findViewById(R.id.infoButton);
         final LinearLayout markerSizeBox = findViewById(R.id.markerSizeBox);
 
@@ -113,66 +164,191 @@ public class MainActivity extends AppCompatActivity implements NumberPicker.OnVa
             }
         });
 
-        checkCameraPermission();
-        loadOpenCV();
+        // Calibrate the camera with a ChArUco board. Views are collected until the button is pressed
+        // again or enough views have been found
+        final Button calibrateButton = findViewById(R.id.calibrateButton);
+        calibrateButton.setOnClickListener(new View.OnClickListener() {
+            public void onClick(View v) {
+                if (renderer.isCalibrating()) {
+                    stopCalibration(calibrateButton);
+                }
+                else {
+                    startCalibration(calibrateButton);
+                }
+            }
+        });
 
-        // Start the camera and bind its lifecycle to the glSurfaceView object. The camera is alive
-        // as long as the glSurfaceView object is alive
-        glSurfaceView.post(this::startCamera);
-    }
+        // Record the preview with the overlays to a video in the app's external files directory
+        recordButton = findViewById(R.id.recordButton);
+        recordButton.setOnClickListener(new View.OnClickListener() {
+            public void onClick(View v) {
+                if (recording) {
+                    stopRecording();
+                }
+                else {
+                    File file = new File(getExternalFilesDir(null), "recording-" + System.currentTimeMillis() + ".mp4");
+                    renderer.startRecording(file);
+                    recording = true;
+                    recordButton.setText("Stop");
+                    Log.d("Recording", "Recording to " + file);
+                }
+            }
+        });
 
-    private void checkCameraPermission() {
-        if (ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA)
-                != PackageManager.PERMISSION_GRANTED) {
-            // Permission is not granted
-            ActivityCompat.requestPermissions(this, new String[] {Manifest.permission.CAMERA}, 100);
-            while(ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA)
-                    != PackageManager.PERMISSION_GRANTED){
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+        // Measure the two markers again in a full resolution still, the preview keeps running
+        final Button preciseButton = findViewById(R.id.preciseButton);
+        preciseButton.setOnClickListener(new View.OnClickListener() {
+            public void onClick(View v) {
+                if (imageCapture == null) {
+                    return;
                 }
+                preciseButton.setEnabled(false);
+                preciseButton.setText("Measuring...");
+                renderer.measurePrecisely(imageCapture).whenComplete((result, e) -> runOnUiThread(() -> {
+                    preciseButton.setEnabled(true);
+                    if (e != null) {
+                        Log.w("PreciseMeasurement", "Precise measurement failed", e);
+                        preciseButton.setText("Precise");
+                    }
+                    else {
+                        preciseButton.setText(String.format("%.1f \u00B1 %.1f mm", result.distance, result.halfWidth));
+                    }
+                }));
+            }
+        });
+
+        // Load OpenCV, ask for the camera permission and start the camera concurrently. Nothing
+        // in onCreate waits for them
+        startCamera();
+    }
+
+    // Each time the app is in the foreground is one session of the journal
+    @Override
+    protected void onResume() {
+        super.onResume();
+        if (journal != null) {
+            try {
+                journal.beginSession();
+            }
+            catch (IOException e) {
+                Log.w("SessionJournal", "Could not begin a session", e);
             }
         }
     }
 
-    private void loadOpenCV() {
-        while(!OpenCVLoader.initDebug()){
+    @Override
+    protected void onPause() {
+        if (recording) {
+            stopRecording();
+        }
+        if (journal != null) {
             try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+                journal.endSession();
+            }
+            catch (IOException e) {
+                Log.w("SessionJournal", "Could not end the session", e);
             }
         }
-        Log.d("OpenCVManager", "OpenCV loaded successfully.");
+        super.onPause();
     }
 
-    private void startCamera() {
-        ListenableFuture<ProcessCameraProvider> cameraProviderFuture = ProcessCameraProvider.getInstance(this);
+    @Override
+    protected void onDestroy() {
+        if (journal != null) {
+            renderer.setJournal(null);
+            try {
+                journal.close();
+            }
+            catch (IOException e) {
+                Log.w("SessionJournal", "Could not close the journal", e);
+            }
+        }
+        // The camera has been unbound by now, so no more frames come in
+        executors.shutdown();
+        super.onDestroy();
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        startup.onRequestPermissionsResult(requestCode, grantResults);
+    }
+
+    private void stopRecording() {
+        renderer.stopRecording();
+        recording = false;
+        recordButton.setText("Record");
+    }
+
+    private void startCalibration(final Button calibrateButton) {
+        calibrateButton.setText("Views 0/" + CharucoCalibrator.TARGET_VIEWS);
+        renderer.startCalibration(new CharucoCalibrator.Listener() {
+            @Override
+            public void onViewAccepted(int views) {
+                runOnUiThread(() -> {
+                    calibrateButton.setText("Views " + views + "/" + CharucoCalibrator.TARGET_VIEWS);
+                    if (views >= CharucoCalibrator.TARGET_VIEWS && renderer.isCalibrating()) {
+                        stopCalibration(calibrateButton);
+                    }
+                });
+            }
+
+            @Override
+            public void onCalibrated(CameraIntrinsics intrinsics) {
+                Log.d("Calibration", "Intermediate result " + intrinsics);
+            }
+        });
+    }
 
+    private void stopCalibration(final Button calibrateButton) {
+        calibrateButton.setText("Solving...");
+        renderer.stopCalibration().whenComplete((intrinsics, e) -> runOnUiThread(() -> {
+            if (e != null) {
+                Log.w("Calibration", "Calibration failed", e);
+                calibrateButton.setText("Calibrate");
+            }
+            else {
+                calibrateButton.setText(String.format("RMS %.2f px", intrinsics.rms));
+            }
+        }));
+    }
+
+    private void startCamera() {
         // Create an imageAnalysis Use Case for the camera session.
         ImageAnalysis imageAnalysis = new ImageAnalysis.Builder()
                 //If new camera frames are delivered faster than the analysis is done, skip frames
                 // in between and only perform analysis on the most recent frame.
                 .setBackpressureStrategy(ImageAnalysis.STRATEGY_KEEP_ONLY_LATEST)
                 //.setTargetResolution(new Size(720, 1280))
+                .setTargetResolution(directPreview ? new Size(analysisWidth, analysisHeight)
+                                                   : new Size(cameraPreviewWidth, cameraPreviewHeight))
+                .build();
+
+        // Create a preview Use Case which streams the camera frames into the SurfaceTexture
+        // provided by "renderer"
+        Preview preview = new Preview.Builder()
                 .setTargetResolution(new Size(cameraPreviewWidth, cameraPreviewHeight))
                 .build();
-        // Run analysis on a new executor thread. The object "renderer" is an instance of the custom
-        // class GLRenderer which implements an image analyzer function
-        imageAnalysis.setAnalyzer(Executors.newSingleThreadExecutor(), renderer);
+        preview.setSurfaceProvider(renderer);
 
-        cameraProviderFuture.addListener(() -> {
-            try {
-                // The lifecycle of the camera is tied to the lifecycle of the object calling "startCamera()"
-                // which in this case is the container for the preview "glSurfaceView"
-                cameraProviderFuture.get().bindToLifecycle(this, CameraSelector.DEFAULT_BACK_CAMERA, imageAnalysis);
-            }
-            catch (ExecutionException | InterruptedException e) {
-                e.printStackTrace();
-            }
-        }, ContextCompat.getMainExecutor(this));
+        // Full resolution stills for the precise measurement, taken next to the preview. They have
+        // the 16:9 aspect ratio of the analysis frames, so that the calibration of the analysis
+        // carries over to them
+        imageCapture = new ImageCapture.Builder()
+                .setCaptureMode(ImageCapture.CAPTURE_MODE_MINIMIZE_LATENCY)
+                .setTargetAspectRatio(AspectRatio.RATIO_16_9)
+                .build();
+
+        // The lifecycle of the camera is tied to the lifecycle of the activity. Analysis runs on a
+        // new executor thread once OpenCV is loaded. The object "renderer" is an instance of the
+        // custom class GLRenderer which implements an image analyzer function
+        startup = new StartupOrchestrator(this, renderer, startupTimeline);
+        if (directPreview) {
+            startup.start(imageAnalysis, executors.executor(AppExecutors.Stage.ANALYSIS), preview, imageAnalysis, imageCapture);
+        }
+        else {
+            startup.start(imageAnalysis, executors.executor(AppExecutors.Stage.ANALYSIS), imageAnalysis, imageCapture);
+        }
     }
 
     @Override
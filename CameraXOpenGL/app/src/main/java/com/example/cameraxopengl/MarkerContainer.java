@@ -2,96 +2,447 @@ package com.example.cameraxopengl;
 
 import org.opencv.core.Mat;
 
+import java.util.ArrayDeque;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// MarkerContainer holds the markers of the latest processed frame, which the detection threads
+// write and the render thread reads. The markers are kept as an immutable Snapshot behind a single
+// volatile reference, so a reader always sees the corners, distance, depths, projected measure
+// points and timestamp of one and the same frame.
+//
+// A writer gets a draft with edit() (a copy of the current snapshot), changes it and publishes it
+// with publish(), which gives it the next version. A draft remembers the version it was copied
+// from and which fields it changed. If another writer published in between, e.g. updateDistance()
+// during a detection, the draft is rebased on the newer snapshot when it is published: the fields
+// it did not change are taken from that one, and a distance or timestamp set with an update since
+// the draft was made is kept over the one in the draft. A reader takes the current snapshot with
+// acquire() and gives it back with release() when done. Snapshots are reference counted, and once
+// a snapshot is replaced and no reader holds it, its arrays go back to a small pool to be used by
+// the next draft. Publishing does therefore not allocate once the pool is warm, unless more markers
+// than ever before are seen.
+//
+// The last few published snapshots are kept, so that the render thread can draw the markers of
+// the camera frame it shows (acquire(timestamp)) rather than just the newest ones.
 
 class MarkerContainer {
-    private float[][] markerCorners2D;
-    private double distance = 0;
-    private int numMarkers = 0;
-    private float[] depths = new float[2];
+    // Published snapshots that are kept for acquire(timestamp), the current one included
+    private static final int HISTORY = 4;
+    // Snapshots kept for reuse: the history, one held by the render thread and a draft or two
+    private static final int POOL_SIZE = HISTORY + 3;
 
-    float[][] getMarkerCorners(){
-        return markerCorners2D;
-    }
+    // The fields of a snapshot, for the changes of a draft
+    private static final int CORNERS = 1;
+    private static final int DISTANCE = 1 << 1;
+    private static final int DEPTHS = 1 << 2;
+    private static final int IMAGE_POINTS = 1 << 3;
+    private static final int TIMESTAMP = 1 << 4;
+    private static final int ALL = CORNERS | DISTANCE | DEPTHS | IMAGE_POINTS | TIMESTAMP;
+
+    // The markers of one frame. Only a draft can be changed, a published snapshot is immutable
+    static final class Snapshot {
+        private final MarkerContainer owner;
+        // Held by the container while current, by the history and by each reader
+        private final AtomicInteger refs = new AtomicInteger();
+        private boolean published = false;
+        private long version = 0;
+        // The version a draft was copied from, and the fields it has changed since
+        private long baseVersion = 0;
+        private int changes = 0;
+        private long timestamp = 0;
+        private int numMarkers = 0;
+        // The corners of each marker in GL coordinates, 8 floats per row. Rows past numMarkers are
+        // left over from earlier frames
+        private float[][] markerCorners2D = new float[0][];
+        private double distance = 0;
+        private final float[] depths = new float[2];
+        // The measure points projected into the image, u and v per point, NaN for points behind
+        // the camera
+        private double[] imagePoints = new double[16];
+        private int imagePointCount = 0;
+
+        // Buffers for reading the corners out of the corner Mats
+        private float[] cornerBuffer = new float[16];
+        private final float[] cornerScratch = new float[8];
+
+        private Snapshot(MarkerContainer owner) {
+            this.owner = owner;
+        }
+
+        // Increments the count unless the snapshot has already been recycled
+        private boolean retain() {
+            int count;
+            do {
+                count = refs.get();
+                if (count <= 0) {
+                    return false;
+                }
+            } while (!refs.compareAndSet(count, count + 1));
+            return true;
+        }
+
+        // Give back a snapshot from acquire()
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                owner.recycle(this);
+            }
+        }
+
+        private void checkDraft() {
+            if (published) {
+                throw new IllegalStateException("A published snapshot can not be changed");
+            }
+        }
+
+        // Copy the given fields of another snapshot
+        private void copyFrom(Snapshot other, int fields) {
+            if ((fields & TIMESTAMP) != 0) {
+                timestamp = other.timestamp;
+            }
+            if ((fields & DISTANCE) != 0) {
+                distance = other.distance;
+            }
+            if ((fields & DEPTHS) != 0) {
+                depths[0] = other.depths[0];
+                depths[1] = other.depths[1];
+            }
+            if ((fields & CORNERS) != 0) {
+                ensureRows(other.numMarkers);
+                for (int i = 0; i < other.numMarkers; ++i) {
+                    System.arraycopy(other.markerCorners2D[i], 0, markerCorners2D[i], 0, 8);
+                }
+                numMarkers = other.numMarkers;
+            }
+            if ((fields & IMAGE_POINTS) != 0) {
+                copyImagePoints(other.imagePoints, other.imagePointCount);
+            }
+        }
+
+        // The array is only grown when more points than ever before are projected
+        private void copyImagePoints(double[] xy, int count) {
+            if (imagePoints.length < 2 * count) {
+                imagePoints = new double[Math.max(2 * count, 2 * imagePoints.length)];
+            }
+            System.arraycopy(xy, 0, imagePoints, 0, 2 * count);
+            imagePointCount = count;
+        }
+
+        // Rows are only allocated when more markers than ever before are seen
+        private void ensureRows(int count) {
+            if (markerCorners2D.length < count) {
+                float[][] rows = new float[count][];
+                System.arraycopy(markerCorners2D, 0, rows, 0, markerCorners2D.length);
+                for (int i = markerCorners2D.length; i < count; ++i) {
+                    rows[i] = new float[8];
+                }
+                markerCorners2D = rows;
+            }
+        }
+
+        long getVersion() {
+            return version;
+        }
+
+        // Timestamp (ns) of the camera frame the markers were detected in
+        long getTimestamp() {
+            return timestamp;
+        }
+
+        int getNumMarkers() {
+            return numMarkers;
+        }
+
+        boolean isNotEmpty() {
+            return numMarkers > 0;
+        }
+
+        boolean isEmpty() {
+            return numMarkers <= 0;
+        }
+
+        // Only the first getNumMarkers() rows belong to this snapshot. Must not be changed
+        float[][] getMarkerCorners() {
+            return markerCorners2D;
+        }
+
+        double getDistance() {
+            return distance;
+        }
+
+        // Must not be changed
+        float[] getDepths() {
+            return depths;
+        }
+
+        int getImagePointCount() {
+            return imagePointCount;
+        }
+
+        // Only the first 2 * getImagePointCount() values belong to this snapshot. Must not be changed
+        double[] getImagePoints() {
+            return imagePoints;
+        }
 
-    void setMarkerCorners(List<Mat> listOfCorners, int screenWidth, int screenHeight) {
-        // Each marker has 4 corners with 2 coordinates each -> 8 floats per corner
-        numMarkers = listOfCorners.size();
-        markerCorners2D = new float[numMarkers][8];
+        float[] getMarkerMidpoint(int markerIndex) {
+            if (markerIndex < 0 || markerIndex >= numMarkers) {
+                throw new IndexOutOfBoundsException("Marker " + markerIndex + " of " + numMarkers);
+            }
+            float[] corners = markerCorners2D[markerIndex];
+            return new float[] {(corners[0] + corners[4]) / 2, (corners[1] + corners[5]) / 2};
+        }
 
-        for (int i = 0; i < numMarkers; ++i) {
-            // i is the index of the marker
-            Mat marker = listOfCorners.get(i);
+        float[] getLineCenter() {
+            float[] first = getMarkerMidpoint(0);
+            float[] second = getMarkerMidpoint(1);
+            return new float[] {(first[0] + second[0]) / 2, (first[1] + second[1]) / 2};
+        }
 
-            // Put corners in clockwise order. Note that the Y-axis is flipped
-            for (int j = 0; j < 4; ++j) {
-                markerCorners2D[i][2 * j] = (float) (marker.get(0, j)[0] * 2.0 / screenWidth - 1);
-                markerCorners2D[i][2 * j + 1] = (float) -(marker.get(0, j)[1] * 2.0 / screenHeight - 1);
+        void setMarkerCorners(List<Mat> listOfCorners, int screenWidth, int screenHeight) {
+            checkDraft();
+            // Each marker has 4 corners with 2 coordinates each -> 8 floats per marker
+            int count = listOfCorners.size();
+            if (cornerBuffer.length < count * 8) {
+                cornerBuffer = new float[count * 8];
             }
+            readCorners(listOfCorners, cornerBuffer, cornerScratch);
+            setMarkerCorners(cornerBuffer, count, screenWidth, screenHeight);
+        }
+
+        // The same from pixel coordinates, 8 floats per marker
+        void setMarkerCorners(float[] pixels, int count, int screenWidth, int screenHeight) {
+            checkDraft();
+            ensureRows(count);
+            for (int i = 0; i < count; ++i) {
+                // Put corners in clockwise order. Note that the Y-axis is flipped
+                for (int j = 0; j < 4; ++j) {
+                    markerCorners2D[i][2 * j] = pixels[8 * i + 2 * j] * 2f / screenWidth - 1;
+                    markerCorners2D[i][2 * j + 1] = -(pixels[8 * i + 2 * j + 1] * 2f / screenHeight - 1);
+                }
+            }
+            numMarkers = count;
+            changes |= CORNERS;
+        }
+
+        // Without markers there is no pose to project the measure points with
+        void makeEmpty() {
+            checkDraft();
+            numMarkers = 0;
+            imagePointCount = 0;
+            changes |= CORNERS | IMAGE_POINTS;
+            clearDistance();
+            clearDepths();
+        }
+
+        // Copy count projected points (u, v each) from xy
+        void setImagePoints(double[] xy, int count) {
+            checkDraft();
+            copyImagePoints(xy, count);
+            changes |= IMAGE_POINTS;
+        }
+
+        void clearImagePoints() {
+            checkDraft();
+            imagePointCount = 0;
+            changes |= IMAGE_POINTS;
+        }
+
+        void setDistance(double d) {
+            checkDraft();
+            distance = d;
+            changes |= DISTANCE;
+        }
+
+        void clearDistance() {
+            setDistance(0);
+        }
+
+        void setDepths(float v1, float v2) {
+            checkDraft();
+            depths[0] = v1;
+            depths[1] = v2;
+            changes |= DEPTHS;
+        }
+
+        void clearDepths() {
+            setDepths(0, 0);
+        }
+
+        void setTimestamp(long t) {
+            checkDraft();
+            timestamp = t;
+            changes |= TIMESTAMP;
         }
     }
 
-    int getNumMarkers(){
-        return numMarkers;
+    // Guarded by itself
+    private final ArrayDeque<Snapshot> pool = new ArrayDeque<>(POOL_SIZE);
+    private final AtomicInteger allocated = new AtomicInteger();
+    private volatile Snapshot current;
+    // Guarded by this
+    private long version = 0;
+    // The snapshot of version v is in slot v % HISTORY. Guarded by this
+    private final Snapshot[] history = new Snapshot[HISTORY];
+    // The versions published by the last updateDistance() and updateTimestamp(). Guarded by this
+    private long distanceUpdated = 0;
+    private long timestampUpdated = 0;
+    // Drafts that were rebased on a newer snapshot when published. Guarded by this
+    private long rebased = 0;
+
+    MarkerContainer() {
+        Snapshot empty = obtain();
+        empty.published = true;
+        empty.refs.set(2);
+        history[0] = empty;
+        current = empty;
     }
 
-    boolean isNotEmpty(){
-        return numMarkers > 0;
+    // Copy the pixel coordinates of the corners of all markers (1x4 CV_32FC2 Mats from
+    // detectMarkers) into dst, 8 floats per marker. Each Mat is read with a single bulk get() into
+    // scratch, so this makes one native call per marker and does not allocate.
+    static int readCorners(List<Mat> listOfCorners, float[] dst, float[] scratch) {
+        int count = listOfCorners.size();
+        for (int i = 0; i < count; ++i) {
+            listOfCorners.get(i).get(0, 0, scratch);
+            System.arraycopy(scratch, 0, dst, 8 * i, 8);
+        }
+        return count;
     }
 
-    boolean isEmpty() {
-        return numMarkers <= 0;
+    // The current snapshot, which stays valid until it is released. Never null
+    Snapshot acquire() {
+        while (true) {
+            Snapshot snapshot = current;
+            // Fails only if the snapshot was replaced and recycled in between, then take the new one
+            if (snapshot.retain()) {
+                return snapshot;
+            }
+        }
     }
 
-    void makeEmpty(){
-        numMarkers = 0;
-        markerCorners2D = null;
-        clearDistance();
-        clearDepths();
+    // The kept snapshot whose frame is closest in time to the given timestamp (ns), the newer one
+    // of two equally close. Released like the one from acquire()
+    synchronized Snapshot acquire(long timestamp) {
+        Snapshot best = current;
+        for (Snapshot snapshot : history) {
+            if (snapshot == null) {
+                continue;
+            }
+            long distance = Math.abs(snapshot.timestamp - timestamp);
+            long bestDistance = Math.abs(best.timestamp - timestamp);
+            if (distance < bestDistance || (distance == bestDistance && snapshot.version > best.version)) {
+                best = snapshot;
+            }
+        }
+        // The history holds a reference to each of them, so this can not fail
+        best.retain();
+        return best;
     }
 
-    void setDistance(double d){
-        distance = d;
+    long version() {
+        return current.version;
     }
 
-    double getDistance() {
-        return distance;
+    // A draft that starts as a copy of the current snapshot. Is either published or discarded
+    Snapshot edit() {
+        Snapshot draft = obtain();
+        Snapshot base = acquire();
+        draft.copyFrom(base, ALL);
+        draft.baseVersion = base.version;
+        draft.changes = 0;
+        base.release();
+        return draft;
     }
 
-    void clearDistance(){
-        distance = 0;
+    // Make the draft the current snapshot, rebased on it if the draft was copied from an older one.
+    // Readers that hold the previous one keep it until they release it
+    void publish(Snapshot draft) {
+        draft.checkDraft();
+        Snapshot previous;
+        Snapshot evicted;
+        synchronized (this) {
+            if (draft.baseVersion != version) {
+                rebase(draft);
+            }
+            draft.version = ++version;
+            draft.published = true;
+            draft.refs.set(2);
+            int slot = (int) (draft.version % HISTORY);
+            evicted = history[slot];
+            history[slot] = draft;
+            previous = current;
+            current = draft;
+        }
+        previous.release();
+        if (evicted != null) {
+            evicted.release();
+        }
     }
 
-    void setDepths(float v1, float v2) {
-        depths[0] = v1;
-        depths[1] = v2;
+    // Take what the draft has not changed from the current snapshot, and keep the updates made
+    // after the draft was copied. A draft without markers has no distance, whatever the update
+    private void rebase(Snapshot draft) {
+        int kept = draft.changes;
+        if (distanceUpdated > draft.baseVersion && draft.isNotEmpty()) {
+            kept &= ~DISTANCE;
+        }
+        if (timestampUpdated > draft.baseVersion) {
+            kept &= ~TIMESTAMP;
+        }
+        draft.copyFrom(current, ALL & ~kept);
+        rebased++;
     }
 
-    void clearDepths() {
-        depths[0] = 0;
-        depths[1] = 0;
+    // Give back a draft that is not going to be published
+    void discard(Snapshot draft) {
+        draft.checkDraft();
+        recycle(draft);
     }
 
-    float[] getDepths() {
-        return depths;
+    // Publish a copy of the current snapshot with another distance or timestamp. The copy is made
+    // under the lock, so that two of these can not undo each other, and a draft that was copied
+    // before does not undo it either
+    synchronized void updateDistance(double d) {
+        Snapshot draft = edit();
+        draft.setDistance(d);
+        publish(draft);
+        distanceUpdated = version;
     }
 
-    float[] getMarkerMidpoint(int markerIndex){
-        assert(markerIndex < numMarkers);
-        float x0 = markerCorners2D[markerIndex][0];
-        float y0 = markerCorners2D[markerIndex][1];
-        float x1 = markerCorners2D[markerIndex][4];
-        float y1 = markerCorners2D[markerIndex][5];
+    synchronized void updateTimestamp(long t) {
+        Snapshot draft = edit();
+        draft.setTimestamp(t);
+        publish(draft);
+        timestampUpdated = version;
+    }
 
-        return new float[]{ (x0+x1)/2, (y0+y1)/2 };
+    // Drafts rebased so far because another writer published while they were made
+    synchronized long rebased() {
+        return rebased;
     }
 
-    float[] getLineCenter(){
-        assert(numMarkers >= 2);
+    // Snapshots created so far, stops growing once the pool is warm
+    int allocated() {
+        return allocated.get();
+    }
 
-        float x = (getMarkerMidpoint(0)[0] + getMarkerMidpoint(1)[0]) / 2;
-        float y = (getMarkerMidpoint(0)[1] + getMarkerMidpoint(1)[1]) / 2;
+    private Snapshot obtain() {
+        Snapshot snapshot;
+        synchronized (pool) {
+            snapshot = pool.poll();
+        }
+        if (snapshot == null) {
+            allocated.incrementAndGet();
+            return new Snapshot(this);
+        }
+        snapshot.published = false;
+        return snapshot;
+    }
 
-        return new float[] {x, y};
+    private void recycle(Snapshot snapshot) {
+        synchronized (pool) {
+            if (pool.size() < POOL_SIZE) {
+                pool.push(snapshot);
+            }
+        }
     }
 }
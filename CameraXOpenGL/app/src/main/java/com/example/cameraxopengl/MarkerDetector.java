@@ -1,101 +1,177 @@
 package com.example.cameraxopengl;
 
-import android.graphics.Bitmap;
-import android.widget.Toast;
-
-import org.opencv.android.Utils;
-import org.opencv.aruco.DetectorParameters;
-import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 
-import java.util.ArrayList;
-import java.util.List;
-
-import static org.opencv.aruco.Aruco.DICT_6X6_50;
-import static org.opencv.aruco.Aruco.detectMarkers;
-import static org.opencv.aruco.Aruco.estimatePoseSingleMarkers;
-import static org.opencv.aruco.Aruco.getPredefinedDictionary;
-import static org.opencv.imgproc.Imgproc.COLOR_BGRA2BGR;
-import static org.opencv.imgproc.Imgproc.cvtColor;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
-// MarkerDetector handles ArUco marker detection. It takes a MarkerContainer and a Bitmap as input.
-// If it finds markers, their corners are stored in the MarkerContainer.
+// MarkerDetector handles ArUco marker detection. It takes a MarkerContainer and a frame as input.
+// If it finds markers, their corners are published to the MarkerContainer. The detection and the
+// pose are done by MarkerPoses, like everywhere else.
 // MarkerDetector implements the Runnable interface which allows it to be run asynchronously on
-// a new thread or submitted as a task to be performed using ExecutorService.
+// a new thread or submitted as a task to be performed using ExecutorService. If it is dropped
+// before it runs, the frame copy is released.
+//
+// The work is split in two tasks. The detector itself finds the corners and is run on the
+// detection stage. If there are markers it hands them to a PoseTask on the pose stage, which
+// estimates the poses and measures, so the next frame can be detected in the meantime. The
+// MarkerPoses come from a pool shared by all detectors, so their Mats, detector parameters and
+// dictionary are reused. They and the camera model go with the task and are given back by
+// whichever stage is last.
+//
+// Each detector works on one numbered frame of a FrameSequence. It stops between its stages
+// (detect, pose, measure) once its deadline has passed or a newer frame has been published, and
+// its result is only stored if no newer frame has been published in the meantime.
+
+class MarkerDetector implements Runnable, AppExecutors.Discardable {
+    // The translations of two markers, read by whichever thread runs the pose stage
+    private static final ThreadLocal<double[]> TRANSLATIONS = ThreadLocal.withInitial(() -> new double[6]);
 
-class MarkerDetector implements Runnable {
     private Mat imageMat;
     private MarkerContainer markerContainer;
     private float markerLength;
-    private float cx;
-    private float cy;
-    private float fx;
-    private float fy;
-
-    MarkerDetector(Mat _mat, MarkerContainer _container, float _length){
+    private CameraModel cameraModel;
+    private final MarkerPoses.Pool posesPool;
+    private final Executor poseStage;
+    private final FrameSequence frames;
+    private final long sequence;
+    private final long timestamp;
+    private final long deadlineNanos;
+
+    MarkerDetector(Mat _mat, MarkerContainer _container, float _length, CameraModel _cameraModel,
+                   MarkerPoses.Pool posesPool, Executor poseStage, FrameSequence frames, long timestamp,
+                   long deadlineNanos){
         // Receives a reference to a copy of a preview frame
         imageMat = _mat;
         markerContainer = _container;
         markerLength = _length;
+        // The renderer may switch to a new model before this runs
+        cameraModel = _cameraModel.retain();
+        this.posesPool = posesPool;
+        this.poseStage = poseStage;
+        this.frames = frames;
+        this.sequence = frames.next();
+        this.timestamp = timestamp;
+        this.deadlineNanos = deadlineNanos;
+    }
 
-        //Calculate fx, fy, cx, and cy based on image resolution
-        cx = imageMat.width() * 0.49904564092f;
-        cy = imageMat.height() * 0.49937073486f;
-        fx = imageMat.width() * 0.67352064836f;
-        fy = imageMat.height() * 1.19671093141f;
+    long getSequence() {
+        return sequence;
+    }
+
+    @Override
+    public void discard() {
+        imageMat.release();
+        cameraModel.release();
     }
 
     @Override
     public void run() {
-        List<Mat> listOfCorners = new ArrayList<>();  // Create a list of Mats to store the corners of the markers
-        Mat ids = new Mat();                    // Create a Mat to store all the ids of the markers
+        // The image copy is released when the detection is done, the poses are given back and the
+        // model released once the pose task is done with them
+        MarkerPoses poses = posesPool.obtain();
+        boolean handedOff = false;
+        try (MatScope scope = new MatScope()) {
+            scope.track(imageMat);
+            if (!frames.shouldCancel(sequence, deadlineNanos, System.nanoTime())) {
+                handedOff = detect(poses);
+            }
+        }
+        finally {
+            if (!handedOff) {
+                posesPool.recycle(poses);
+                cameraModel.release();
+            }
+        }
+    }
 
-        // Detect the markers in the image and store their corners and ids in the corresponding variables
-        detectMarkers(imageMat, getPredefinedDictionary(DICT_6X6_50), listOfCorners, ids);
+    // True if the poses were handed to a PoseTask
+    private boolean detect(MarkerPoses poses) {
+        int count = poses.detect(imageMat);
 
         // If there are no markers, do nothing
-        if (listOfCorners.size() <= 0) {
-            markerContainer.makeEmpty();
-            return;
+        if (count <= 0) {
+            MarkerContainer.Snapshot draft = markerContainer.edit();
+            draft.makeEmpty();
+            draft.setTimestamp(timestamp);
+            publish(draft);
+            return false;
+        }
+        if (frames.shouldCancel(sequence, deadlineNanos, System.nanoTime())) {
+            return false;
         }
 
-        markerContainer.setMarkerCorners(listOfCorners, imageMat.width(), imageMat.height());
-
-        // Construct the camera matrix using fx, fy, cx, cy
-        float[] intrinsics = {fx, 0, cx, 0, fy, cy, 0, 0, 1};
-        Mat cameraMatrix = new Mat(3,3, CvType.CV_32F);
-        cameraMatrix.put(0, 0, intrinsics);
-
-        // Assign distortion coefficients (currently empty)
-        float[] distortion = {0, 0, 0, 0, 0};
-        Mat distortionCoefficients = new Mat(1,5, CvType.CV_32F);
-        distortionCoefficients.put(0, 0, distortion);
-
-        // Create empty matrices for the rotation vector and the translation vector
-        Mat rvecs = new Mat();
-        Mat tvecs = new Mat();
+        try {
+            poseStage.execute(new PoseTask(poses, imageMat.width(), imageMat.height()));
+        }
+        catch (RejectedExecutionException e) {
+            // Shutting down, the task has been discarded and has given back the poses
+        }
+        return true;
+    }
 
-        // Estimate pose and get rvecs and tvecs
-        estimatePoseSingleMarkers(listOfCorners, markerLength, cameraMatrix, distortionCoefficients, rvecs, tvecs);
+    // Everything is shown at once, or not at all if a newer frame got there first
+    private void publish(MarkerContainer.Snapshot draft) {
+        if (!frames.publish(sequence, () -> markerContainer.publish(draft))) {
+            markerContainer.discard(draft);
+        }
+    }
 
-        // If exactly two markers are detected, measure the distance between them
-        if(listOfCorners.size() == 2){
-            double[] marker1Coords = tvecs.get(0,0);
-            double[] marker2Coords = tvecs.get(1,0);
+    // Estimates the poses of the markers that were found and measures the distance between them
+    private final class PoseTask implements Runnable, AppExecutors.Discardable {
+        private final MarkerPoses poses;
+        private final int width;
+        private final int height;
 
-            // Calculate the distance between marker 1 and marker 2
-            double distance = Math.sqrt(
-                    (marker1Coords[0]-marker2Coords[0])*(marker1Coords[0]-marker2Coords[0]) +
-                            (marker1Coords[1]-marker2Coords[1])*(marker1Coords[1]-marker2Coords[1]) +
-                            (marker1Coords[2]-marker2Coords[2])*(marker1Coords[2]-marker2Coords[2]));
+        PoseTask(MarkerPoses poses, int width, int height) {
+            this.poses = poses;
+            this.width = width;
+            this.height = height;
+        }
 
-            markerContainer.setDistance(distance);
-            markerContainer.setDepths((float) marker1Coords[2], (float) marker2Coords[2]);
+        @Override
+        public void discard() {
+            posesPool.recycle(poses);
+            cameraModel.release();
         }
-        else{
-            markerContainer.clearDistance();
-            markerContainer.clearDepths();
+
+        @Override
+        public void run() {
+            try {
+                if (!frames.shouldCancel(sequence, deadlineNanos, System.nanoTime())) {
+                    measure();
+                }
+            }
+            finally {
+                discard();
+            }
         }
 
+        private void measure() {
+            // The camera matrix and distortion coefficients are shared with the renderer
+            poses.estimatePoses(markerLength, cameraModel);
+            if (frames.shouldCancel(sequence, deadlineNanos, System.nanoTime())) {
+                return;
+            }
+
+            // If exactly two markers are detected, measure the distance between them
+            double distance = 0;
+            float firstDepth = 0;
+            float secondDepth = 0;
+            if (poses.count() == 2) {
+                double[] tvecs = TRANSLATIONS.get();
+                poses.readTvecs(tvecs);
+                distance = MarkerPoses.distance(tvecs, 0, 1);
+                firstDepth = (float) tvecs[2];
+                secondDepth = (float) tvecs[5];
+            }
+
+            MarkerContainer.Snapshot draft = markerContainer.edit();
+            draft.setMarkerCorners(poses.getCorners(), width, height);
+            draft.setDistance(distance);
+            draft.setDepths(firstDepth, secondDepth);
+            draft.setTimestamp(timestamp);
+            publish(draft);
+        }
     }
 }
@@ -0,0 +1,93 @@
+package com.example.cameraxopengl;
+
+// MarkerPlaneRaycaster maps a pixel to the point on the marker plane that is seen in that pixel.
+// The pixel is turned into a viewing ray through the camera model (including the distortion), the
+// ray is intersected with the plane z = 0 of the marker, and the intersection is returned in
+// marker coordinates. The analysis thread updates the marker pose for every frame, while casts may
+// come from any thread (e.g. touch events). Nothing is allocated, so a point can be cast for every
+// touch move event.
+
+class MarkerPlaneRaycaster {
+    // Rays closer than this to parallel with the plane (cosine of the angle to the normal) miss it
+    private static final double MIN_COS_ANGLE = 1e-6;
+
+    // Pose of the marker in camera coordinates: rotation matrix (row major) and translation
+    private final double[] rotation = new double[9];
+    private final double[] translation = new double[3];
+    private CameraModel cameraModel;
+    private boolean hasPose = false;
+    private final double[] ray = new double[2];
+
+    // Set the pose from the rotation vector and translation of estimatePoseSingleMarkers
+    synchronized void setPose(CameraModel model, double[] rvec, double[] tvec) {
+        cameraModel = model;
+        rodrigues(rvec[0], rvec[1], rvec[2], rotation);
+        translation[0] = tvec[0];
+        translation[1] = tvec[1];
+        translation[2] = tvec[2];
+        hasPose = true;
+    }
+
+    synchronized void clearPose() {
+        hasPose = false;
+    }
+
+    synchronized boolean hasPose() {
+        return hasPose;
+    }
+
+    // Cast a ray through the pixel (u, v) of the analysis image. On a hit the point is written to
+    // dst as (x, y, 0) in marker coordinates and true is returned. Misses are pixels whose ray is
+    // parallel to the plane or meets it behind the camera, and casts without a marker pose
+    synchronized boolean cast(double u, double v, double[] dst) {
+        if (!hasPose) {
+            return false;
+        }
+        cameraModel.undistort(u, v, ray);
+        return intersect(rotation, translation, ray[0], ray[1], dst);
+    }
+
+    // Intersect the ray (dx, dy, 1) from the camera center with the plane z = 0 of a marker with
+    // the pose (r, t). The plane normal is the third column of r
+    static boolean intersect(double[] r, double[] t, double dx, double dy, double[] dst) {
+        double nx = r[2], ny = r[5], nz = r[8];
+        double normalDotRay = nx * dx + ny * dy + nz;
+        double rayLength = Math.sqrt(dx * dx + dy * dy + 1);
+        if (Math.abs(normalDotRay) < MIN_COS_ANGLE * rayLength) {
+            return false;
+        }
+
+        // The camera center plus s times the ray is on the plane
+        double s = (nx * t[0] + ny * t[1] + nz * t[2]) / normalDotRay;
+        if (s <= 0) {
+            return false;
+        }
+
+        // Into marker coordinates: R^T (p - t)
+        double px = s * dx - t[0];
+        double py = s * dy - t[1];
+        double pz = s - t[2];
+        dst[0] = r[0] * px + r[3] * py + r[6] * pz;
+        dst[1] = r[1] * px + r[4] * py + r[7] * pz;
+        dst[2] = 0;
+        return true;
+    }
+
+    // Rotation vector to row major rotation matrix, as cv::Rodrigues
+    static void rodrigues(double rx, double ry, double rz, double[] r) {
+        double theta = Math.sqrt(rx * rx + ry * ry + rz * rz);
+        if (theta < 1e-12) {
+            r[0] = 1; r[1] = 0; r[2] = 0;
+            r[3] = 0; r[4] = 1; r[5] = 0;
+            r[6] = 0; r[7] = 0; r[8] = 1;
+            return;
+        }
+        double kx = rx / theta, ky = ry / theta, kz = rz / theta;
+        double c = Math.cos(theta);
+        double s = Math.sin(theta);
+        double c1 = 1 - c;
+        r[0] = c + c1 * kx * kx;      r[1] = c1 * kx * ky - s * kz; r[2] = c1 * kx * kz + s * ky;
+        r[3] = c1 * ky * kx + s * kz; r[4] = c + c1 * ky * ky;      r[5] = c1 * ky * kz - s * kx;
+        r[6] = c1 * kz * kx - s * ky; r[7] = c1 * kz * ky + s * kx; r[8] = c + c1 * kz * kz;
+    }
+}
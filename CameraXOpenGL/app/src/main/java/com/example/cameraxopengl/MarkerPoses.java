@@ -0,0 +1,141 @@
+package com.example.cameraxopengl;
+
+import org.opencv.aruco.DetectorParameters;
+import org.opencv.aruco.Dictionary;
+import org.opencv.core.Mat;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.opencv.aruco.Aruco.detectMarkers;
+import static org.opencv.aruco.Aruco.estimatePoseSingleMarkers;
+
+// MarkerPoses holds the detect and pose steps that every marker measurement shares: detectMarkers
+// with the DetectorSettings, then estimatePoseSingleMarkers with a CameraModel. The renderer, the
+// MarkerDetector tasks and the headless runner all measure through it, so they find the same
+// markers at the same poses. The corner, id and pose Mats are reused from frame to frame, so an
+// instance is used by one thread at a time. Threads that take turns, like the detection and pose
+// stages, share instances through a Pool. Only depends on OpenCV.
+
+class MarkerPoses {
+    private final DetectorParameters parameters;
+    private final Dictionary dictionary;
+    // One 1x4 CV_32FC2 Mat per marker, owned by this and released on the next detect()
+    private final List<Mat> corners = new ArrayList<>();
+    private final Mat ids = new Mat();
+    private final Mat rvecs = new Mat();
+    private final Mat tvecs = new Mat();
+
+    MarkerPoses() {
+        this(DetectorSettings.createParameters(), DetectorSettings.createDictionary());
+    }
+
+    MarkerPoses(DetectorParameters parameters, Dictionary dictionary) {
+        this.parameters = parameters;
+        this.dictionary = dictionary;
+    }
+
+    // Find the markers in an 8-bit image and return how many there are. The poses of the previous
+    // frame are no longer valid
+    int detect(Mat gray) {
+        releaseCorners();
+        detectMarkers(gray, dictionary, corners, ids, parameters);
+        return corners.size();
+    }
+
+    // The pose of each marker found by detect(), with the marker side in the unit of the result
+    void estimatePoses(float markerLength, CameraModel model) {
+        estimatePoseSingleMarkers(corners, markerLength, model.getCameraMatrix(), model.getDistortionMat(), rvecs, tvecs);
+    }
+
+    int count() {
+        return corners.size();
+    }
+
+    // Must not be changed or released
+    List<Mat> getCorners() {
+        return corners;
+    }
+
+    // The ids of the first dst.length markers
+    void readIds(int[] dst) {
+        ids.get(0, 0, dst);
+    }
+
+    // The rotation and translation of each marker, 3 doubles per marker
+    void readRvecs(double[] dst) {
+        rvecs.get(0, 0, dst);
+    }
+
+    void readTvecs(double[] dst) {
+        tvecs.get(0, 0, dst);
+    }
+
+    // The rotation or translation of one marker
+    void readRvec(int marker, double[] dst) {
+        rvecs.get(marker, 0, dst);
+    }
+
+    void readTvec(int marker, double[] dst) {
+        tvecs.get(marker, 0, dst);
+    }
+
+    void release() {
+        releaseCorners();
+        ids.release();
+        rvecs.release();
+        tvecs.release();
+    }
+
+    private void releaseCorners() {
+        for (Mat corner : corners) {
+            corner.release();
+        }
+        corners.clear();
+    }
+
+    // Instances that share one set of detector parameters and dictionary. Each one is handed out to
+    // one thread at a time and given back when done, so that its Mats are reused for a later frame
+    static final class Pool {
+        // Enough for a frame in each stage and one waiting for each
+        private static final int SIZE = 4;
+
+        private final DetectorParameters parameters;
+        private final Dictionary dictionary;
+        // Guarded by itself
+        private final ArrayDeque<MarkerPoses> idle = new ArrayDeque<>(SIZE);
+
+        Pool(DetectorParameters parameters, Dictionary dictionary) {
+            this.parameters = parameters;
+            this.dictionary = dictionary;
+        }
+
+        MarkerPoses obtain() {
+            MarkerPoses poses;
+            synchronized (idle) {
+                poses = idle.poll();
+            }
+            return poses != null ? poses : new MarkerPoses(parameters, dictionary);
+        }
+
+        // Give back an instance from obtain(). Released if the pool is full
+        void recycle(MarkerPoses poses) {
+            synchronized (idle) {
+                if (idle.size() < SIZE) {
+                    idle.push(poses);
+                    return;
+                }
+            }
+            poses.release();
+        }
+    }
+
+    // Distance between the translations of markers i and j, 3 doubles per marker
+    static double distance(double[] tvecs, int i, int j) {
+        double dx = tvecs[3 * i] - tvecs[3 * j];
+        double dy = tvecs[3 * i + 1] - tvecs[3 * j + 1];
+        double dz = tvecs[3 * i + 2] - tvecs[3 * j + 2];
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.cameraxopengl;
+
+import android.util.Log;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+// MatScope is an arena for temporary OpenCV Mats. Mats created during e.g. the processing of one
+// frame are registered with track() and all of them are released when the scope is closed, instead
+// of whenever the garbage collector gets around to running Mat.finalize(). It is meant to be used
+// with try-with-resources:
+//
+//     try (MatScope scope = new MatScope()) {
+//         Mat rvecs = scope.track(new Mat());
+//         ...
+//     }
+//
+// A Mat that has to outlive the scope is taken out of it with detach(), which hands it over to the
+// caller. In debug mode every tracked Mat remembers where it was tracked, and the scope reports the
+// Mats that leak out of it when it closes: tracked Mats that still hold data after being released,
+// and Mats that were added to a list given to trackAll() afterwards (e.g. by another detectMarkers()
+// call) and so were never tracked. A scope stays in the mode it was opened in, so that setDebug()
+// does not affect the scopes that are open.
+
+class MatScope implements AutoCloseable {
+    private static final String TAG = "MatScope";
+    private static volatile boolean debugEnabled = false;
+
+    private final List<Mat> mats = new ArrayList<>();
+    // Only filled in debug mode: where each Mat was tracked, the lists given to trackAll() and
+    // where, and the Mats that were handed over with detach()
+    private final List<Throwable> sites = new ArrayList<>();
+    private final List<List<? extends Mat>> lists = new ArrayList<>();
+    private final List<Throwable> listSites = new ArrayList<>();
+    private final Set<Mat> detached = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final boolean debug;
+    private boolean closed = false;
+
+    MatScope() {
+        debug = debugEnabled;
+    }
+
+    static void setDebug(boolean enabled) {
+        debugEnabled = enabled;
+    }
+
+    static boolean isDebug() {
+        return debugEnabled;
+    }
+
+    // Register a Mat (or any MatOf* subclass) to be released when the scope closes
+    <T extends Mat> T track(T mat) {
+        if (closed) {
+            throw new IllegalStateException("MatScope is already closed");
+        }
+        mats.add(mat);
+        if (debug) {
+            sites.add(new Throwable("Mat allocated here"));
+        }
+        return mat;
+    }
+
+    // Register all Mats in a list, e.g. the corners returned by detectMarkers()
+    <T extends Mat> List<T> trackAll(List<T> list) {
+        for (T mat : list) {
+            track(mat);
+        }
+        if (debug) {
+            lists.add(list);
+            listSites.add(new Throwable("List of Mats tracked here"));
+        }
+        return list;
+    }
+
+    Mat mat() {
+        return track(new Mat());
+    }
+
+    Mat mat(int rows, int cols, int type) {
+        return track(new Mat(rows, cols, type));
+    }
+
+    // Take a Mat out of the scope so that it survives close(). The caller becomes responsible for
+    // releasing it
+    <T extends Mat> T detach(T mat) {
+        for (int i = mats.size() - 1; i >= 0; --i) {
+            if (mats.get(i) == mat) {
+                mats.remove(i);
+                if (debug) {
+                    sites.remove(i);
+                    detached.add(mat);
+                }
+                break;
+            }
+        }
+        return mat;
+    }
+
+    int size() {
+        return mats.size();
+    }
+
+    // Release all tracked Mats
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        for (Mat mat : mats) {
+            mat.release();
+        }
+        if (debug) {
+            report();
+        }
+        mats.clear();
+        sites.clear();
+        lists.clear();
+        listSites.clear();
+        detached.clear();
+    }
+
+    // Detached Mats belong to the caller and are not reported
+    private void report() {
+        Set<Mat> released = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < mats.size(); ++i) {
+            Mat mat = mats.get(i);
+            released.add(mat);
+            if (!mat.empty()) {
+                Log.w(TAG, "Mat still holds data after the scope released it", sites.get(i));
+            }
+        }
+        for (int i = 0; i < lists.size(); ++i) {
+            for (Mat mat : lists.get(i)) {
+                if (!released.contains(mat) && !detached.contains(mat) && !mat.empty()) {
+                    Log.w(TAG, "Mat was added to a tracked list later and never released", listSites.get(i));
+                }
+            }
+        }
+    }
+}
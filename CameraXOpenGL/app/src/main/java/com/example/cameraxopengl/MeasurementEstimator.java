@@ -0,0 +1,262 @@
+package com.example.cameraxopengl;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+// MeasurementEstimator turns a noisy value that is measured once per frame into a stable estimate.
+// The latest accepted samples are kept in a fixed-size ring buffer together with a sorted copy of
+// the same samples, which gives the sliding median and the median absolute deviation (MAD). A new
+// sample that is further than OUTLIER_SIGMAS robust standard deviations (1.4826 * MAD) from the
+// median is rejected, unless half a window of samples in a row is rejected, which means that the
+// measured value itself has changed and the estimator starts over. The mean and variance of the
+// window are kept with Welford's algorithm, adding and removing one sample at a time.
+//
+// The estimate is the window mean with a 95 % confidence interval. Consecutive frames are not
+// independent, so the interval is optimistic, but it still shrinks with the noise. The estimate is
+// converged when the interval is within the tolerance. From then on the estimate is frozen and new
+// samples only cost a comparison against it, until the value moves away for half a window.
+//
+// A single sample that is much more precise than the per-frame ones, e.g. from a full resolution
+// still, can be merged in with its own confidence interval. It is weighed against the window mean
+// by inverse variance until the estimator starts over.
+// Nothing is allocated after construction. Not thread safe.
+
+class MeasurementEstimator {
+    // Two sided 95 % quantile of the normal distribution
+    private static final double Z_95 = 1.959964;
+    // Scales the MAD to a standard deviation for normally distributed samples
+    private static final double MAD_TO_SIGMA = 1.4826;
+    private static final double OUTLIER_SIGMAS = 3.5;
+    // Samples needed before outliers are rejected and before the estimate may converge
+    private static final int MIN_SAMPLES_FOR_REJECTION = 8;
+    private static final int MIN_SAMPLES_FOR_CONVERGENCE = 10;
+
+    private final double absoluteTolerance;
+    private final double relativeTolerance;
+
+    // Accepted samples in arrival order, the oldest at head
+    private final double[] ring;
+    // The same samples in ascending order
+    private final double[] sorted;
+    private final double[] scratch;
+    private int head = 0;
+    private int count = 0;
+
+    // Welford state over the window
+    private double mean = 0;
+    private double m2 = 0;
+
+    private int consecutiveRejected = 0;
+    private long rejected = 0;
+    // Robust standard deviation of the window when the estimate converged, 0 before that
+    private double frozenSigma = 0;
+
+    // The precise sample and the half width of its 95 % interval, NaN if there is none
+    private double preciseValue = Double.NaN;
+    private double preciseHalfWidth = Double.NaN;
+
+    // The estimate converges when its confidence interval is within absoluteTolerance, or within
+    // relativeTolerance of the estimate. Deviations within absoluteTolerance are never outliers
+    MeasurementEstimator(int window, double absoluteTolerance, double relativeTolerance) {
+        if (window < MIN_SAMPLES_FOR_CONVERGENCE) {
+            throw new IllegalArgumentException("Window of " + window + " samples is too small");
+        }
+        ring = new double[window];
+        sorted = new double[window];
+        scratch = new double[window];
+        this.absoluteTolerance = absoluteTolerance;
+        this.relativeTolerance = relativeTolerance;
+    }
+
+    // Add a sample, returns false if it was rejected as an outlier or the estimate is frozen
+    boolean add(double x) {
+        if (Double.isNaN(x) || Double.isInfinite(x)) {
+            return false;
+        }
+
+        if (frozenSigma > 0) {
+            if (Math.abs(x - mean) <= OUTLIER_SIGMAS * frozenSigma) {
+                consecutiveRejected = 0;
+                return false;
+            }
+            rejected++;
+            if (++consecutiveRejected < ring.length / 2) {
+                return false;
+            }
+            reset();
+        }
+        else if (count >= MIN_SAMPLES_FOR_REJECTION) {
+            double sigma = Math.max(MAD_TO_SIGMA * mad(), absoluteTolerance);
+            if (Math.abs(x - median()) > OUTLIER_SIGMAS * sigma) {
+                rejected++;
+                if (++consecutiveRejected < ring.length / 2) {
+                    return false;
+                }
+                // Not outliers any more, the value has moved
+                reset();
+            }
+        }
+        consecutiveRejected = 0;
+
+        if (count == ring.length) {
+            remove(ring[head]);
+            ring[head] = x;
+            head = (head + 1) % ring.length;
+        }
+        else {
+            ring[(head + count) % ring.length] = x;
+        }
+        insert(x);
+
+        if (isConverged()) {
+            frozenSigma = Math.max(MAD_TO_SIGMA * mad(), absoluteTolerance);
+        }
+        return true;
+    }
+
+    void reset() {
+        head = 0;
+        count = 0;
+        mean = 0;
+        m2 = 0;
+        consecutiveRejected = 0;
+        frozenSigma = 0;
+        preciseValue = Double.NaN;
+        preciseHalfWidth = Double.NaN;
+    }
+
+    // Merge a precise sample into the estimate, replacing an earlier one. Returns false if the
+    // sample is not usable
+    boolean addPrecise(double x, double halfWidth) {
+        if (Double.isNaN(x) || Double.isInfinite(x) || !(halfWidth > 0) || Double.isInfinite(halfWidth)) {
+            return false;
+        }
+        preciseValue = x;
+        preciseHalfWidth = halfWidth;
+        return true;
+    }
+
+    boolean hasPrecise() {
+        return !Double.isNaN(preciseValue);
+    }
+
+    // Number of accepted samples in the window
+    int count() {
+        return count;
+    }
+
+    // Number of rejected samples since construction
+    long rejected() {
+        return rejected;
+    }
+
+    double mean() {
+        return mean;
+    }
+
+    // Sample variance of the window
+    double variance() {
+        return count > 1 ? Math.max(m2, 0) / (count - 1) : 0;
+    }
+
+    double median() {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        int mid = count / 2;
+        return (count & 1) == 1 ? sorted[mid] : (sorted[mid - 1] + sorted[mid]) / 2;
+    }
+
+    // Median absolute deviation from the median
+    double mad() {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        double median = median();
+        for (int i = 0; i < count; i++) {
+            scratch[i] = Math.abs(sorted[i] - median);
+        }
+        Arrays.sort(scratch, 0, count);
+        int mid = count / 2;
+        return (count & 1) == 1 ? scratch[mid] : (scratch[mid - 1] + scratch[mid]) / 2;
+    }
+
+    // The stable value
+    double estimate() {
+        if (!hasPrecise()) {
+            return count > 0 ? mean : Double.NaN;
+        }
+        double window = windowHalfWidth();
+        if (window == 0) {
+            return mean;
+        }
+        // Inverse variance weights, the half widths are proportional to the standard deviations
+        double windowWeight = 1 / (window * window);
+        double preciseWeight = 1 / (preciseHalfWidth * preciseHalfWidth);
+        return (windowWeight * mean + preciseWeight * preciseValue) / (windowWeight + preciseWeight);
+    }
+
+    // Half width of the 95 % confidence interval of the estimate
+    double halfWidth() {
+        double window = windowHalfWidth();
+        if (!hasPrecise()) {
+            return window;
+        }
+        return 1 / Math.sqrt(1 / (window * window) + 1 / (preciseHalfWidth * preciseHalfWidth));
+    }
+
+    // True once the estimate is precise enough, it is then frozen
+    boolean isConverged() {
+        return count >= MIN_SAMPLES_FOR_CONVERGENCE
+                && halfWidth() <= Math.max(absoluteTolerance, relativeTolerance * Math.abs(estimate()));
+    }
+
+    // Half width of the interval of the window mean alone
+    // The estimate with its 95 % confidence interval, and a check mark once it has converged
+    String describe() {
+        if (count() == 0) {
+            return "";
+        }
+        if (count() == 1) {
+            return Math.round(estimate()) + " mm";
+        }
+        String text = String.format(Locale.ROOT, "%d \u00B1 %.1f mm", Math.round(estimate()), halfWidth());
+        return isConverged() ? text + " \u2713" : text;
+    }
+
+    private double windowHalfWidth() {
+        return count > 1 ? Z_95 * Math.sqrt(variance() / count) : Double.POSITIVE_INFINITY;
+    }
+
+    private void insert(double x) {
+        // Welford
+        count++;
+        double delta = x - mean;
+        mean += delta / count;
+        m2 += delta * (x - mean);
+
+        int i = count - 1;
+        while (i > 0 && sorted[i - 1] > x) {
+            sorted[i] = sorted[i - 1];
+            i--;
+        }
+        sorted[i] = x;
+    }
+
+    private void remove(double x) {
+        if (count == 1) {
+            count = 0;
+            mean = 0;
+            m2 = 0;
+            return;
+        }
+        // Welford backwards
+        double delta = x - mean;
+        mean -= delta / (count - 1);
+        m2 -= delta * (x - mean);
+
+        int i = Arrays.binarySearch(sorted, 0, count, x);
+        System.arraycopy(sorted, i + 1, sorted, i, count - i - 1);
+        count--;
+    }
+}
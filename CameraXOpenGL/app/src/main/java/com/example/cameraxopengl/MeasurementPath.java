@@ -0,0 +1,208 @@
+package com.example.cameraxopengl;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+// MeasurementPath holds the measure points of the user in marker coordinates, as a polyline that
+// can also be read as a closed polygon. The points are kept in a growable primitive array
+// (x, y, z per point) and the segment lengths, the path length and the shoelace terms of the
+// polygon area are updated incrementally when a point is added, moved or removed, so that a point
+// that is dragged costs a constant amount of work per move event however long the path is.
+// The area is measured in the marker plane (x, y), which is where all cast points lie.
+// Not thread safe, GLRenderer guards it.
+
+class MeasurementPath {
+    private static final int INITIAL_CAPACITY = 8;
+
+    private double[] coordinates = new double[3 * INITIAL_CAPACITY];
+    // segments[i] is the length between point i and i + 1
+    private double[] segments = new double[INITIAL_CAPACITY];
+    // cross[i] is x_i * y_(i+1) - x_(i+1) * y_i, the shoelace term of segment i
+    private double[] cross = new double[INITIAL_CAPACITY];
+    private int size = 0;
+    private double pathLength = 0;
+    private double crossSum = 0;
+
+    int size() {
+        return size;
+    }
+
+    void add(double x, double y, double z) {
+        ensureCapacity(size + 1);
+        coordinates[3 * size] = x;
+        coordinates[3 * size + 1] = y;
+        coordinates[3 * size + 2] = z;
+        size++;
+        if (size >= 2) {
+            // The slot may still hold a removed segment, which is no longer part of the sums
+            segments[size - 2] = 0;
+            cross[size - 2] = 0;
+            updateSegment(size - 2);
+        }
+    }
+
+    // Move point i, only the two segments that meet in it change
+    void set(int i, double x, double y, double z) {
+        checkIndex(i);
+        coordinates[3 * i] = x;
+        coordinates[3 * i + 1] = y;
+        coordinates[3 * i + 2] = z;
+        updateSegment(i - 1);
+        updateSegment(i);
+    }
+
+    void removeLast() {
+        if (size == 0) {
+            return;
+        }
+        if (size >= 2) {
+            pathLength -= segments[size - 2];
+            crossSum -= cross[size - 2];
+        }
+        size--;
+        if (size <= 1) {
+            // Nothing left to sum, drop the rounding errors of the incremental updates
+            pathLength = 0;
+            crossSum = 0;
+        }
+    }
+
+    void clear() {
+        size = 0;
+        pathLength = 0;
+        crossSum = 0;
+    }
+
+    double getX(int i) {
+        checkIndex(i);
+        return coordinates[3 * i];
+    }
+
+    double getY(int i) {
+        checkIndex(i);
+        return coordinates[3 * i + 1];
+    }
+
+    double getZ(int i) {
+        checkIndex(i);
+        return coordinates[3 * i + 2];
+    }
+
+    // Length of the segment from point i to point i + 1
+    double segmentLength(int i) {
+        if (i < 0 || i >= size - 1) {
+            throw new IndexOutOfBoundsException("Segment " + i + " of " + Math.max(size - 1, 0));
+        }
+        return segments[i];
+    }
+
+    // Sum of the segment lengths of the open polyline
+    double pathLength() {
+        return pathLength;
+    }
+
+    // Length of the segment from the last point back to the first
+    double closingLength() {
+        if (size < 3) {
+            return 0;
+        }
+        return distance(size - 1, 0);
+    }
+
+    // Perimeter of the closed polygon
+    double perimeter() {
+        return size < 3 ? 0 : pathLength + closingLength();
+    }
+
+    // Area of the closed polygon in the marker plane. Self intersecting polygons give the net area
+    double area() {
+        if (size < 3) {
+            return 0;
+        }
+        double closing = coordinates[3 * (size - 1)] * coordinates[1] - coordinates[0] * coordinates[3 * (size - 1) + 1];
+        return Math.abs(crossSum + closing) / 2;
+    }
+
+    // Copy the points of another path into this one, reusing the arrays when they are large enough
+    // Path length, and area and perimeter once the points enclose a polygon
+    String describe() {
+        if (size < 2) {
+            return "";
+        }
+        String text = (int) pathLength() + " mm";
+        if (size >= 3) {
+            text += String.format(Locale.ROOT, ", area %.1f cm\u00B2, perimeter %d mm", area() / 100, (int) perimeter());
+        }
+        return text;
+    }
+
+    void copyFrom(MeasurementPath other) {
+        ensureCapacity(other.size);
+        System.arraycopy(other.coordinates, 0, coordinates, 0, 3 * other.size);
+        if (other.size > 1) {
+            System.arraycopy(other.segments, 0, segments, 0, other.size - 1);
+            System.arraycopy(other.cross, 0, cross, 0, other.size - 1);
+        }
+        size = other.size;
+        pathLength = other.pathLength;
+        crossSum = other.crossSum;
+    }
+
+    // The coordinates as (x, y, z) per point. Only the first 3 * size() values are valid, and the
+    // array may be replaced when the path grows
+    double[] coordinates() {
+        return coordinates;
+    }
+
+    // Index of the point closest to (x, y) in the marker plane within maxDistance, or -1
+    int nearest(double x, double y, double maxDistance) {
+        int nearest = -1;
+        double best = maxDistance * maxDistance;
+        for (int i = 0; i < size; i++) {
+            double dx = coordinates[3 * i] - x;
+            double dy = coordinates[3 * i + 1] - y;
+            double d = dx * dx + dy * dy;
+            if (d <= best) {
+                best = d;
+                nearest = i;
+            }
+        }
+        return nearest;
+    }
+
+    // Recompute segment i (point i to i + 1) and apply the difference to the sums
+    private void updateSegment(int i) {
+        if (i < 0 || i >= size - 1) {
+            return;
+        }
+        double length = distance(i, i + 1);
+        double term = coordinates[3 * i] * coordinates[3 * (i + 1) + 1] - coordinates[3 * (i + 1)] * coordinates[3 * i + 1];
+        pathLength += length - segments[i];
+        crossSum += term - cross[i];
+        segments[i] = length;
+        cross[i] = term;
+    }
+
+    private double distance(int a, int b) {
+        double dx = coordinates[3 * a] - coordinates[3 * b];
+        double dy = coordinates[3 * a + 1] - coordinates[3 * b + 1];
+        double dz = coordinates[3 * a + 2] - coordinates[3 * b + 2];
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    private void ensureCapacity(int points) {
+        if (points <= segments.length) {
+            return;
+        }
+        int capacity = Math.max(points, 2 * segments.length);
+        coordinates = Arrays.copyOf(coordinates, 3 * capacity);
+        segments = Arrays.copyOf(segments, capacity);
+        cross = Arrays.copyOf(cross, capacity);
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Point " + i + " of " + size);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.cameraxopengl;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+
+import java.util.Arrays;
+
+import static org.opencv.calib3d.Calib3d.projectPoints;
+
+// PointProjector projects points in marker coordinates into the image, all of them in one batch.
+// The points are first moved into camera coordinates in Java, and points on or behind the camera
+// plane are skipped (their pixel coordinates are NaN) instead of being mirrored into the image.
+// The remaining points are projected either with Calib3d.projectPoints, through Mats that are kept
+// between frames and only reallocated when the number of points changes, or in pure Java with the
+// camera model, which is cheaper than the JNI calls for the handful of points a user places.
+// One instance belongs to one thread.
+
+class PointProjector {
+    enum Backend {
+        // Java up to JAVA_MAX_POINTS points, OpenCV above
+        AUTO,
+        JAVA,
+        OPENCV
+    }
+
+    // Above this many points a single projectPoints call is cheaper than the Java loop
+    static final int JAVA_MAX_POINTS = 32;
+    // Points closer to the camera plane than this (mm) are treated as behind the camera
+    private static final double MIN_DEPTH = 1e-3;
+
+    private final Backend backend;
+    private final double[] rotation = new double[9];
+    private final double[] pixel = new double[2];
+
+    // Buffers of the OpenCV backend
+    private float[] objectBuffer = new float[0];
+    private float[] imageBuffer = new float[0];
+    private int[] visibleIndices = new int[0];
+    private MatOfPoint3f objectPoints;
+    private MatOfPoint2f projectedPoints;
+    private Mat rvecMat;
+    private Mat tvecMat;
+
+    PointProjector(Backend backend) {
+        this.backend = backend;
+    }
+
+    // Project count points (x, y, z per point in marker coordinates) of a marker with the pose
+    // (rvec, tvec) into dst as (u, v) per point. Points behind the camera get NaN. Returns the
+    // number of points in front of the camera
+    int project(CameraModel model, double[] rvec, double[] tvec, double[] points, int count, double[] dst) {
+        MarkerPlaneRaycaster.rodrigues(rvec[0], rvec[1], rvec[2], rotation);
+
+        if (useJava(count)) {
+            return projectJava(model, tvec, points, count, dst);
+        }
+        return projectOpenCV(model, rvec, tvec, points, count, dst);
+    }
+
+    boolean useJava(int count) {
+        return backend == Backend.JAVA || (backend == Backend.AUTO && count <= JAVA_MAX_POINTS);
+    }
+
+    private int projectJava(CameraModel model, double[] t, double[] points, int count, double[] dst) {
+        double[] r = rotation;
+        int visible = 0;
+        for (int i = 0; i < count; i++) {
+            double x = points[3 * i], y = points[3 * i + 1], z = points[3 * i + 2];
+            double cz = r[6] * x + r[7] * y + r[8] * z + t[2];
+            if (cz < MIN_DEPTH) {
+                dst[2 * i] = Double.NaN;
+                dst[2 * i + 1] = Double.NaN;
+                continue;
+            }
+            double cx = r[0] * x + r[1] * y + r[2] * z + t[0];
+            double cy = r[3] * x + r[4] * y + r[5] * z + t[1];
+            model.project(cx, cy, cz, pixel);
+            dst[2 * i] = pixel[0];
+            dst[2 * i + 1] = pixel[1];
+            visible++;
+        }
+        return visible;
+    }
+
+    private int projectOpenCV(CameraModel model, double[] rvec, double[] tvec, double[] points, int count, double[] dst) {
+        ensureCapacity(count);
+
+        // Only the points in front of the camera are handed to OpenCV
+        double[] r = rotation;
+        int visible = 0;
+        for (int i = 0; i < count; i++) {
+            double x = points[3 * i], y = points[3 * i + 1], z = points[3 * i + 2];
+            dst[2 * i] = Double.NaN;
+            dst[2 * i + 1] = Double.NaN;
+            if (r[6] * x + r[7] * y + r[8] * z + tvec[2] < MIN_DEPTH) {
+                continue;
+            }
+            objectBuffer[3 * visible] = (float) x;
+            objectBuffer[3 * visible + 1] = (float) y;
+            objectBuffer[3 * visible + 2] = (float) z;
+            visibleIndices[visible] = i;
+            visible++;
+        }
+        if (visible == 0) {
+            return 0;
+        }
+
+        if (objectPoints == null) {
+            objectPoints = new MatOfPoint3f();
+            projectedPoints = new MatOfPoint2f();
+            rvecMat = new Mat(3, 1, CvType.CV_64F);
+            tvecMat = new Mat(3, 1, CvType.CV_64F);
+        }
+        // create() keeps the native buffers while the number of points stays the same
+        if (objectPoints.rows() != visible) {
+            objectPoints.alloc(visible);
+        }
+        // put() and get() stop at the end of the Mat, the buffers may be longer
+        objectPoints.put(0, 0, objectBuffer);
+        rvecMat.put(0, 0, rvec);
+        tvecMat.put(0, 0, tvec);
+
+        projectPoints(objectPoints, rvecMat, tvecMat, model.getCameraMatrix(), model.getDistortionCoefficients(), projectedPoints);
+        projectedPoints.get(0, 0, imageBuffer);
+
+        for (int k = 0; k < visible; k++) {
+            int i = visibleIndices[k];
+            dst[2 * i] = imageBuffer[2 * k];
+            dst[2 * i + 1] = imageBuffer[2 * k + 1];
+        }
+        return visible;
+    }
+
+    private void ensureCapacity(int count) {
+        if (visibleIndices.length >= count) {
+            return;
+        }
+        int capacity = Math.max(count, 2 * visibleIndices.length);
+        objectBuffer = Arrays.copyOf(objectBuffer, 3 * capacity);
+        imageBuffer = Arrays.copyOf(imageBuffer, 2 * capacity);
+        visibleIndices = Arrays.copyOf(visibleIndices, capacity);
+    }
+
+    void release() {
+        if (objectPoints != null) {
+            objectPoints.release();
+            projectedPoints.release();
+            rvecMat.release();
+            tvecMat.release();
+            objectPoints = null;
+        }
+    }
+}
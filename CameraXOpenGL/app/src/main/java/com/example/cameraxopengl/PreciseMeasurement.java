@@ -0,0 +1,213 @@
+package com.example.cameraxopengl;
+
+import org.opencv.aruco.DetectorParameters;
+import org.opencv.aruco.Dictionary;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.Size;
+import org.opencv.core.TermCriteria;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.opencv.aruco.Aruco.detectMarkers;
+import static org.opencv.aruco.Aruco.estimatePoseSingleMarkers;
+import static org.opencv.core.Core.ROTATE_180;
+import static org.opencv.core.Core.ROTATE_90_CLOCKWISE;
+import static org.opencv.core.Core.ROTATE_90_COUNTERCLOCKWISE;
+import static org.opencv.core.Core.rotate;
+import static org.opencv.imgcodecs.Imgcodecs.IMREAD_GRAYSCALE;
+import static org.opencv.imgcodecs.Imgcodecs.IMREAD_IGNORE_ORIENTATION;
+import static org.opencv.imgcodecs.Imgcodecs.imdecode;
+import static org.opencv.imgproc.Imgproc.INTER_AREA;
+import static org.opencv.imgproc.Imgproc.cornerSubPix;
+import static org.opencv.imgproc.Imgproc.resize;
+
+// PreciseMeasurement measures the distance between two markers in a full resolution still instead
+// of an analysis frame. Detecting in the full image would take seconds, so the markers are detected
+// in a copy reduced to about DETECTION_WIDTH, and the corners are scaled back and refined with
+// cornerSubPix in the full image before the pose is solved.
+//
+// The result comes with the half width of a 95 % interval, so that it can be merged with the live
+// estimate (MeasurementEstimator.addPrecise). It is derived from how well the solved poses
+// reproject the refined corners: a corner error of s pixels moves a marker of length L at depth z
+// by about z * z * s / (f * L) along the optical axis, which dominates the error of the distance.
+// One instance belongs to one thread.
+
+class PreciseMeasurement {
+    interface CameraModels {
+        CameraModel get(int width, int height);
+    }
+
+    // The distance between two markers in one still
+    static class Result {
+        final int firstId;
+        final int secondId;
+        final double distance;
+        final double halfWidth;
+        // RMS distance (pixels) between the refined corners and the reprojected marker corners
+        final double reprojectionError;
+        final int width;
+        final int height;
+
+        Result(int firstId, int secondId, double distance, double halfWidth, double reprojectionError,
+               int width, int height) {
+            this.firstId = firstId;
+            this.secondId = secondId;
+            this.distance = distance;
+            this.halfWidth = halfWidth;
+            this.reprojectionError = reprojectionError;
+            this.width = width;
+            this.height = height;
+        }
+
+        long pair() {
+            return PreciseMeasurement.pair(firstId, secondId);
+        }
+    }
+
+    // Markers are detected in an image about this wide, like the analysis frames
+    static final int DETECTION_WIDTH = 1080;
+    // Two sided 95 % quantile of the normal distribution
+    private static final double Z_95 = 1.959964;
+    // cornerSubPix is not more precise than this, however well the corners reproject
+    private static final double MIN_CORNER_ERROR_PX = 0.05;
+    private static final TermCriteria REFINE_CRITERIA = new TermCriteria(TermCriteria.EPS + TermCriteria.COUNT, 30, 0.01);
+
+    private final DetectorParameters parameters = DetectorSettings.createParameters();
+    private final Dictionary dictionary = DetectorSettings.createDictionary();
+    private final PointProjector projector = new PointProjector(PointProjector.Backend.JAVA);
+    private final CameraModels models;
+    private final float[] corner = new float[8];
+    private final double[] rvec = new double[3];
+    private final double[] tvec = new double[6];
+    private final double[] objectPoints = new double[12];
+    private final double[] projected = new double[8];
+
+    PreciseMeasurement(CameraModels models) {
+        this.models = models;
+    }
+
+    // Same key for a pair of markers as the live measurement uses
+    static long pair(int first, int second) {
+        return Math.min(first, second) * 1000L + Math.max(first, second);
+    }
+
+    // Decode a JPEG still to grayscale and rotate it upright by rotationDegrees, like the analysis
+    // frames are
+    static Mat decode(byte[] jpeg, int rotationDegrees) throws IOException {
+        MatOfByte buffer = new MatOfByte(jpeg);
+        Mat gray = imdecode(buffer, IMREAD_GRAYSCALE | IMREAD_IGNORE_ORIENTATION);
+        buffer.release();
+        if (gray.empty()) {
+            gray.release();
+            throw new IOException("Could not decode the still");
+        }
+        int rotation;
+        switch (rotationDegrees) {
+            case 90:
+                rotation = ROTATE_90_CLOCKWISE;
+                break;
+            case 180:
+                rotation = ROTATE_180;
+                break;
+            case 270:
+                rotation = ROTATE_90_COUNTERCLOCKWISE;
+                break;
+            default:
+                return gray;
+        }
+        Mat upright = new Mat();
+        rotate(gray, upright, rotation);
+        gray.release();
+        return upright;
+    }
+
+    // Measure between the markers in a grayscale still. Returns null unless exactly two markers
+    // are found, like the live measurement
+    Result measure(Mat gray, float markerLength) {
+        try (MatScope scope = new MatScope()) {
+            return measure(scope, gray, markerLength);
+        }
+    }
+
+    private Result measure(MatScope scope, Mat gray, float markerLength) {
+        double scale = Math.max(1.0, (double) gray.width() / DETECTION_WIDTH);
+        Mat reduced = gray;
+        if (scale > 1) {
+            reduced = scope.mat();
+            resize(gray, reduced, new Size(), 1 / scale, 1 / scale, INTER_AREA);
+        }
+
+        List<Mat> corners = new ArrayList<>();
+        Mat ids = scope.mat();
+        detectMarkers(reduced, dictionary, corners, ids, parameters);
+        scope.trackAll(corners);
+        if (corners.size() != 2) {
+            return null;
+        }
+
+        // Back to full resolution, pixel centers map to pixel centers. A corner found in the
+        // reduced image is within about scale pixels of the true one
+        int window = Math.max(5, (int) Math.ceil(2 * scale));
+        for (Mat c : corners) {
+            c.get(0, 0, corner);
+            for (int i = 0; i < corner.length; i++) {
+                corner[i] = (float) ((corner[i] + 0.5) * scale - 0.5);
+            }
+            c.put(0, 0, corner);
+            cornerSubPix(gray, c, new Size(window, window), new Size(-1, -1), REFINE_CRITERIA);
+        }
+
+        CameraModel model = models.get(gray.width(), gray.height());
+        Mat rvecs = scope.mat();
+        Mat tvecs = scope.mat();
+        estimatePoseSingleMarkers(corners, markerLength, model.getCameraMatrix(), model.getDistortionMat(), rvecs, tvecs);
+        tvecs.get(0, 0, tvec);
+
+        double error = reprojectionError(model, corners, rvecs, tvecs, markerLength);
+        if (Double.isNaN(error)) {
+            // A pose behind the camera
+            return null;
+        }
+        error = Math.max(error, MIN_CORNER_ERROR_PX);
+        double f = model.getIntrinsics().fx;
+        double firstDepth = tvec[2] * tvec[2] * error / (f * markerLength);
+        double secondDepth = tvec[5] * tvec[5] * error / (f * markerLength);
+        double halfWidth = Z_95 * Math.sqrt(firstDepth * firstDepth + secondDepth * secondDepth);
+
+        double dx = tvec[0] - tvec[3];
+        double dy = tvec[1] - tvec[4];
+        double dz = tvec[2] - tvec[5];
+        int[] markerIds = new int[2];
+        ids.get(0, 0, markerIds);
+        return new Result(markerIds[0], markerIds[1], Math.sqrt(dx * dx + dy * dy + dz * dz), halfWidth,
+                error, gray.width(), gray.height());
+    }
+
+    // RMS distance between the corners and the corners of the solved poses, in pixels
+    private double reprojectionError(CameraModel model, List<Mat> corners, Mat rvecs, Mat tvecs, float markerLength) {
+        // The corner order of estimatePoseSingleMarkers
+        float half = markerLength / 2;
+        double[] o = objectPoints;
+        o[0] = -half; o[1] = half;
+        o[3] = half;  o[4] = half;
+        o[6] = half;  o[7] = -half;
+        o[9] = -half; o[10] = -half;
+
+        double sum = 0;
+        double[] t = new double[3];
+        for (int m = 0; m < corners.size(); m++) {
+            rvecs.get(m, 0, rvec);
+            tvecs.get(m, 0, t);
+            projector.project(model, rvec, t, objectPoints, 4, projected);
+            corners.get(m).get(0, 0, corner);
+            for (int i = 0; i < 8; i++) {
+                double d = projected[i] - corner[i];
+                sum += d * d;
+            }
+        }
+        return Math.sqrt(sum / (4 * corners.size()));
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.cameraxopengl;
+
+// RecordingSlots hands rendered frames from the GL thread to the recorder thread. Each slot is one
+// offscreen texture that a frame is rendered into and goes FREE -> RENDERING (GL thread) -> READY
+// -> ENCODING (recorder thread) -> FREE. The GL thread never waits: when every slot is taken, since
+// the encoder has fallen behind, the frame is only shown and not recorded, and counted as dropped.
+// The recorder takes the ready frames oldest first, so they are encoded in order. Besides the
+// timestamp, a ready slot carries a handle (the GL fence of the frame) for the recorder to wait on.
+
+class RecordingSlots {
+    private static final int FREE = 0;
+    private static final int RENDERING = 1;
+    private static final int READY = 2;
+    private static final int ENCODING = 3;
+
+    private final int[] states;
+    private final long[] timestamps;
+    private final long[] handles;
+    // Order in which the slots became ready, to take the oldest first
+    private final long[] sequence;
+    private long nextSequence = 0;
+    private boolean stopped = false;
+    private long submitted = 0;
+    private long dropped = 0;
+
+    RecordingSlots(int count) {
+        states = new int[count];
+        timestamps = new long[count];
+        handles = new long[count];
+        sequence = new long[count];
+    }
+
+    int count() {
+        return states.length;
+    }
+
+    // A free slot to render the next frame into, or -1 if there is none or the recording has stopped
+    synchronized int acquire() {
+        if (stopped) {
+            return -1;
+        }
+        for (int i = 0; i < states.length; i++) {
+            if (states[i] == FREE) {
+                states[i] = RENDERING;
+                return i;
+            }
+        }
+        dropped++;
+        return -1;
+    }
+
+    // The frame in slot has been rendered
+    synchronized void submit(int slot, long timestampNanos, long handle) {
+        check(slot, RENDERING);
+        timestamps[slot] = timestampNanos;
+        handles[slot] = handle;
+        sequence[slot] = nextSequence++;
+        states[slot] = READY;
+        submitted++;
+        notifyAll();
+    }
+
+    // Give back a slot that was acquired but not rendered
+    synchronized void cancel(int slot) {
+        check(slot, RENDERING);
+        states[slot] = FREE;
+    }
+
+    // The oldest ready slot, waiting for one. Returns -1 once stopped and no ready slot is left
+    synchronized int take() throws InterruptedException {
+        while (true) {
+            int oldest = -1;
+            for (int i = 0; i < states.length; i++) {
+                if (states[i] == READY && (oldest < 0 || sequence[i] < sequence[oldest])) {
+                    oldest = i;
+                }
+            }
+            if (oldest >= 0) {
+                states[oldest] = ENCODING;
+                return oldest;
+            }
+            if (stopped) {
+                return -1;
+            }
+            wait();
+        }
+    }
+
+    // The frame in slot has been encoded
+    synchronized void release(int slot) {
+        check(slot, ENCODING);
+        states[slot] = FREE;
+    }
+
+    synchronized long timestamp(int slot) {
+        return timestamps[slot];
+    }
+
+    synchronized long handle(int slot) {
+        return handles[slot];
+    }
+
+    // No new frames are accepted. The ready ones are still taken
+    synchronized void stop() {
+        stopped = true;
+        notifyAll();
+    }
+
+    synchronized long submitted() {
+        return submitted;
+    }
+
+    synchronized long dropped() {
+        return dropped;
+    }
+
+    private void check(int slot, int state) {
+        if (states[slot] != state) {
+            throw new IllegalStateException("Slot " + slot + " is in state " + states[slot] + ", expected " + state);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.cameraxopengl;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+// SceneChangeDetector tells whether a camera frame shows the same scene as the last frame that was
+// fully processed, so that detection and pose estimation can be skipped and their results reused
+// while the phone is held still or stands on a tripod. Each frame is reduced to a small thumbnail
+// of block averages, sampled straight from the luminance plane before any conversion. The scene is
+// unchanged when the thumbnail differs from the one of the last processed frame by less than
+// MEAN_THRESHOLD on average and by less than CELL_THRESHOLD in every block, the latter so that a
+// finger or a marker moving in a small part of the image still counts as a change. The reference
+// is only replaced by processed frames, so slow drift adds up until it triggers, and every
+// MAX_SKIPPED frames one is processed regardless.
+//
+// The detector also keeps the statistics: the fraction of frames skipped, and the time saved,
+// estimated as the skipped frames times the difference between the average time of a processed
+// frame and of a skipped one. Energy is saved in proportion to that CPU time. Nothing is allocated
+// per frame. Used by the analysis thread only.
+
+class SceneChangeDetector {
+    static final int GRID_WIDTH = 16;
+    static final int GRID_HEIGHT = 12;
+    // Every SAMPLE_STEP:th pixel in both directions goes into the block averages
+    private static final int SAMPLE_STEP = 4;
+    // Luminance differences (0 - 255) that count as a changed scene
+    static final double MEAN_THRESHOLD = 1.5;
+    static final int CELL_THRESHOLD = 10;
+    static final int MAX_SKIPPED = 30;
+    // Weight of a new duration in the running averages
+    private static final double AVERAGE_WEIGHT = 0.05;
+
+    private final int[] sums = new int[GRID_WIDTH * GRID_HEIGHT];
+    private final int[] samples = new int[GRID_WIDTH * GRID_HEIGHT];
+    private final int[] thumbnail = new int[GRID_WIDTH * GRID_HEIGHT];
+    private final int[] reference = new int[GRID_WIDTH * GRID_HEIGHT];
+    private boolean hasReference = false;
+    private int skippedInRow = 0;
+
+    private long frames = 0;
+    private long skipped = 0;
+    private double processedNanos = 0;
+    private double skippedNanos = 0;
+
+    // Check a frame given as a luminance plane. Returns true if it shows the same scene as the
+    // last processed frame, otherwise the frame becomes the new reference
+    boolean isUnchanged(ByteBuffer luma, int width, int height, int rowStride) {
+        frames++;
+        makeThumbnail(luma, width, height, rowStride);
+
+        if (hasReference && skippedInRow < MAX_SKIPPED && isSimilar()) {
+            skippedInRow++;
+            skipped++;
+            return true;
+        }
+        System.arraycopy(thumbnail, 0, reference, 0, thumbnail.length);
+        hasReference = true;
+        skippedInRow = 0;
+        return false;
+    }
+
+    // Process the next frame whatever it shows, e.g. since the camera model or the marker size
+    // has changed and the previous results are no longer valid
+    void invalidate() {
+        hasReference = false;
+    }
+
+    // Durations of the analysis of a processed and a skipped frame
+    void recordProcessed(long nanos) {
+        processedNanos = average(processedNanos, nanos);
+    }
+
+    void recordSkipped(long nanos) {
+        skippedNanos = average(skippedNanos, nanos);
+    }
+
+    long frames() {
+        return frames;
+    }
+
+    long skipped() {
+        return skipped;
+    }
+
+    double skipFraction() {
+        return frames > 0 ? (double) skipped / frames : 0;
+    }
+
+    // Estimated analysis time saved by the skipped frames
+    long savedNanos() {
+        return (long) (skipped * Math.max(processedNanos - skippedNanos, 0));
+    }
+
+    // Fraction of the analysis time that the skipping saves
+    double savedFraction() {
+        double withoutSkipping = frames * processedNanos;
+        return withoutSkipping > 0 ? savedNanos() / withoutSkipping : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "skipped %d of %d frames (%.0f %%), saved %d ms of analysis time (%.0f %%)",
+                skipped, frames, 100 * skipFraction(), savedNanos() / 1_000_000, 100 * savedFraction());
+    }
+
+    private void makeThumbnail(ByteBuffer luma, int width, int height, int rowStride) {
+        for (int i = 0; i < sums.length; i++) {
+            sums[i] = 0;
+            samples[i] = 0;
+        }
+        for (int y = SAMPLE_STEP / 2; y < height; y += SAMPLE_STEP) {
+            int row = (y * GRID_HEIGHT / height) * GRID_WIDTH;
+            int offset = y * rowStride;
+            for (int x = SAMPLE_STEP / 2; x < width; x += SAMPLE_STEP) {
+                int cell = row + x * GRID_WIDTH / width;
+                sums[cell] += luma.get(offset + x) & 0xFF;
+                samples[cell]++;
+            }
+        }
+        for (int i = 0; i < sums.length; i++) {
+            thumbnail[i] = samples[i] > 0 ? sums[i] / samples[i] : 0;
+        }
+    }
+
+    private boolean isSimilar() {
+        int total = 0;
+        for (int i = 0; i < thumbnail.length; i++) {
+            int difference = Math.abs(thumbnail[i] - reference[i]);
+            if (difference >= CELL_THRESHOLD) {
+                return false;
+            }
+            total += difference;
+        }
+        return (double) total / thumbnail.length < MEAN_THRESHOLD;
+    }
+
+    private static double average(double average, long nanos) {
+        return average == 0 ? nanos : average + AVERAGE_WEIGHT * (nanos - average);
+    }
+}
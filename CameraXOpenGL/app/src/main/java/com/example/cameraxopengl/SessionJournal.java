@@ -0,0 +1,536 @@
+package com.example.cameraxopengl;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// SessionJournal keeps every measurement of every session, so that they are not lost when the
+// markers leave the frame and the renderer forgets them. A measurement is recorded once, when it is
+// done, not for every frame it is shown in. A session runs from when the app comes to the
+// foreground until it leaves it. Three files in one directory:
+//
+// records.bin, a header followed by fixed-size records:
+//
+//     offset  size
+//     0       4      magic "KLSJ"
+//     4       4      format version
+//     8       4      byte order mark, 0x01020304 written in the byte order of the file
+//     12      4      record size
+//     16      8      number of records
+//     ...            records from offset HEADER_BYTES
+//
+// and a record of RECORD_BYTES:
+//
+//     0       8      timestamp of the camera frame (ns)
+//     8       4      session number
+//     12      4      kind, KIND_MARKERS or KIND_PATH
+//     16      8      ids of the two markers, -1 if there is none
+//     24      24     rvec, tvec of the first marker (float)
+//     48      4      number of points of the path
+//     52      48     the first MAX_POINTS points x, y, z in marker coordinates (float)
+//     100     8      distance (double)
+//     108     4      half width of the 95 % interval of the distance, NaN if unknown (float)
+//     112     4      flags, FLAG_CONVERGED
+//     116     8      offset of all points in points.bin for a longer path, else -1
+//     124     4      unused
+//
+// points.bin, the points x, y, z (float) of the paths with more than MAX_POINTS points, one path
+// after the other. A path is written before its record, so a counted record always has its points.
+//
+// sessions.bin, the index, SESSION_BYTES per session in start order: start time (ms since the
+// epoch), number of the first record, number of records or -1 while the session is open, end time.
+// A session is found by number directly or by time with a binary search, and its records are then
+// read by number, so random access does not depend on the size of the journal.
+//
+// The records are written straight into the file, which is memory mapped in chunks of
+// CHUNK_RECORDS records. Appending a record is a few stores into the mapping, with nothing
+// allocated and no system call. The next chunk is mapped and touched on a background thread when
+// the current one is half full, so the analyzer seldom waits for the file to grow. If it is not
+// ready in time, e.g. right after a session was begun, the analyzer maps it itself. A record that
+// can not be written is dropped and counted. The record count in the header is updated after
+// the record, so a record is never counted before it is complete. It is updated under the same lock
+// that starts and ends sessions, and only if the session the record was written for is still open,
+// so every record lies within the range of its own session in the index. Files are written in the
+// native byte order. append() is called by one thread (the analyzer), the sessions are started and
+// ended by another.
+
+class SessionJournal {
+    private static final String TAG = "SessionJournal";
+    static final int MAGIC = 0x4B4C534A;
+    static final int VERSION = 2;
+    private static final int BYTE_ORDER_MARK = 0x01020304;
+    static final int HEADER_BYTES = 64;
+    static final int RECORD_BYTES = 128;
+    static final int SESSION_BYTES = 32;
+    static final int MAX_POINTS = 4;
+    static final int CHUNK_RECORDS = 8192;
+    private static final int COUNT_OFFSET = 16;
+
+    static final int KIND_MARKERS = 0;
+    static final int KIND_PATH = 1;
+    static final int FLAG_CONVERGED = 1;
+
+    // One record, filled by read()
+    static class Record {
+        long timestamp;
+        int session;
+        int kind;
+        int markerA;
+        int markerB;
+        final float[] rvec = new float[3];
+        final float[] tvec = new float[3];
+        int pointCount;
+        // x, y, z of the first pointCount points, grown by read() for a longer path
+        float[] points = new float[3 * MAX_POINTS];
+        double distance;
+        float halfWidth;
+        int flags;
+
+        boolean isConverged() {
+            return (flags & FLAG_CONVERGED) != 0;
+        }
+    }
+
+    // One entry of the index
+    static class Session {
+        final int number;
+        final long startMillis;
+        final long firstRecord;
+        final long recordCount;
+        final long endMillis;
+
+        Session(int number, long startMillis, long firstRecord, long recordCount, long endMillis) {
+            this.number = number;
+            this.startMillis = startMillis;
+            this.firstRecord = firstRecord;
+            this.recordCount = recordCount;
+            this.endMillis = endMillis;
+        }
+    }
+
+    private final int chunkRecords;
+    private final Executor mapper;
+    private final RandomAccessFile recordFile;
+    private final FileChannel records;
+    private final RandomAccessFile sessions;
+    private final RandomAccessFile pointFile;
+    private final FileChannel points;
+    private final MappedByteBuffer header;
+
+    // Written by the analyzer only
+    private MappedByteBuffer chunk;
+    private long chunkIndex = -1;
+    private volatile long count;
+    private final AtomicLong dropped = new AtomicLong();
+    // End of points.bin and the buffer the points of a long path are written from
+    private long pointsEnd;
+    private ByteBuffer pointBuffer = ByteBuffer.allocateDirect(12 * 16).order(ByteOrder.nativeOrder());
+    // The chunk after the current one, mapped in the background
+    private volatile MappedByteBuffer nextChunk;
+    private volatile long nextChunkIndex = -1;
+    // Guarded by this. close() waits for a running mapping
+    private boolean mapping = false;
+    private boolean closed = false;
+
+    // The open session or -1
+    private volatile int session = -1;
+    private int sessionCount;
+
+    // Read side, guarded by readLock
+    private final Object readLock = new Object();
+    private MappedByteBuffer readChunk;
+    private long readChunkIndex = -1;
+
+    private SessionJournal(File directory, int chunkRecords, Executor mapper) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        this.chunkRecords = chunkRecords;
+        this.mapper = mapper;
+
+        recordFile = new RandomAccessFile(new File(directory, "records.bin"), "rw");
+        records = recordFile.getChannel();
+        boolean created = recordFile.length() < HEADER_BYTES;
+        header = records.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        header.order(ByteOrder.nativeOrder());
+        if (created) {
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+            header.putInt(8, BYTE_ORDER_MARK);
+            header.putInt(12, RECORD_BYTES);
+            header.putLong(COUNT_OFFSET, 0);
+        }
+        else if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION
+                || header.getInt(8) != BYTE_ORDER_MARK || header.getInt(12) != RECORD_BYTES) {
+            close(recordFile);
+            throw new IOException("Not a session journal of version " + VERSION);
+        }
+        count = header.getLong(COUNT_OFFSET);
+
+        pointFile = new RandomAccessFile(new File(directory, "points.bin"), "rw");
+        points = pointFile.getChannel();
+        pointsEnd = pointFile.length();
+
+        sessions = new RandomAccessFile(new File(directory, "sessions.bin"), "rw");
+        sessionCount = (int) (sessions.length() / SESSION_BYTES);
+        sessions.setLength((long) sessionCount * SESSION_BYTES);
+        // A session that was not ended, since the app was killed, ends with its last record. Its
+        // end time is not known, the start time is used
+        if (sessionCount > 0) {
+            Session last = session(sessionCount - 1);
+            if (last.recordCount < 0) {
+                writeSession(new Session(last.number, last.startMillis, last.firstRecord,
+                        count - last.firstRecord, last.startMillis));
+            }
+        }
+    }
+
+    static SessionJournal open(File directory) throws IOException {
+        ExecutorService mapper = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "SessionJournal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        return new SessionJournal(directory, CHUNK_RECORDS, mapper);
+    }
+
+    // Chunks of chunkRecords records, mapped by mapper, e.g. the IO stage of AppExecutors
+    static SessionJournal open(File directory, int chunkRecords, Executor mapper) throws IOException {
+        return new SessionJournal(directory, chunkRecords, mapper);
+    }
+
+    // Start a new session, ending the open one. Returns its number
+    synchronized int beginSession() throws IOException {
+        endSession();
+        long now = System.currentTimeMillis();
+        int number = sessionCount;
+        writeSession(new Session(number, now, count, -1, 0));
+        sessionCount++;
+        session = number;
+        ensureMapped(count);
+        return number;
+    }
+
+    synchronized void endSession() throws IOException {
+        int number = session;
+        if (number < 0) {
+            return;
+        }
+        session = -1;
+        Session open = session(number);
+        writeSession(new Session(number, open.startMillis, open.firstRecord, count - open.firstRecord,
+                System.currentTimeMillis()));
+    }
+
+    // Add a measurement to the open session. Does nothing if there is none. Called by the analyzer.
+    // path may be null, rvec and tvec are those of the first marker and may be null
+    void append(long timestamp, int kind, int markerA, int markerB, double[] rvec, double[] tvec,
+                MeasurementPath path, double distance, double halfWidth, boolean converged) {
+        int number = session;
+        if (number < 0) {
+            return;
+        }
+        long index = count;
+        long chunkOf = index / chunkRecords;
+        if (chunkOf != chunkIndex && !switchChunk(chunkOf)) {
+            dropped.incrementAndGet();
+            return;
+        }
+        int pointCount = path != null ? path.size() : 0;
+        long pointsOffset = -1;
+        if (pointCount > MAX_POINTS) {
+            pointsOffset = writePoints(path);
+            if (pointsOffset < 0) {
+                dropped.incrementAndGet();
+                return;
+            }
+        }
+
+        ByteBuffer b = chunk;
+        int o = (int) (index % chunkRecords) * RECORD_BYTES;
+        b.putLong(o, timestamp);
+        b.putInt(o + 8, number);
+        b.putInt(o + 12, kind);
+        b.putInt(o + 16, markerA);
+        b.putInt(o + 20, markerB);
+        for (int i = 0; i < 3; i++) {
+            b.putFloat(o + 24 + 4 * i, rvec != null ? (float) rvec[i] : Float.NaN);
+            b.putFloat(o + 36 + 4 * i, tvec != null ? (float) tvec[i] : Float.NaN);
+        }
+        b.putInt(o + 48, pointCount);
+        for (int i = 0; i < MAX_POINTS; i++) {
+            boolean stored = i < pointCount;
+            b.putFloat(o + 52 + 12 * i, stored ? (float) path.getX(i) : 0);
+            b.putFloat(o + 56 + 12 * i, stored ? (float) path.getY(i) : 0);
+            b.putFloat(o + 60 + 12 * i, stored ? (float) path.getZ(i) : 0);
+        }
+        b.putDouble(o + 100, distance);
+        b.putFloat(o + 108, (float) halfWidth);
+        b.putInt(o + 112, converged ? FLAG_CONVERGED : 0);
+        b.putLong(o + 116, pointsOffset);
+
+        // The session may have ended while the record was written, it then belongs to none
+        synchronized (this) {
+            if (session != number) {
+                dropped.incrementAndGet();
+                return;
+            }
+            count = index + 1;
+            header.putLong(COUNT_OFFSET, count);
+        }
+
+        // Get the next chunk ready once this one is half full
+        if (index % chunkRecords == chunkRecords / 2) {
+            ensureMapped(index + chunkRecords);
+        }
+    }
+
+    private boolean switchChunk(long index) {
+        if (nextChunkIndex == index) {
+            chunk = nextChunk;
+            chunkIndex = index;
+            return true;
+        }
+        // Not ready yet, e.g. right after a session was begun
+        try {
+            chunk = mapChunk(index, FileChannel.MapMode.READ_WRITE);
+            chunkIndex = index;
+            return true;
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Could not map chunk " + index, e);
+            return false;
+        }
+    }
+
+    // Append all points of the path to points.bin, returns where they start or -1
+    private long writePoints(MeasurementPath path) {
+        int bytes = 12 * path.size();
+        if (pointBuffer.capacity() < bytes) {
+            pointBuffer = ByteBuffer.allocateDirect(2 * bytes).order(ByteOrder.nativeOrder());
+        }
+        ByteBuffer b = pointBuffer;
+        b.clear();
+        for (int i = 0; i < path.size(); i++) {
+            b.putFloat((float) path.getX(i));
+            b.putFloat((float) path.getY(i));
+            b.putFloat((float) path.getZ(i));
+        }
+        b.flip();
+        long offset = pointsEnd;
+        try {
+            long position = offset;
+            while (b.hasRemaining()) {
+                position += points.write(b, position);
+            }
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Could not write the points of a path", e);
+            return -1;
+        }
+        pointsEnd = offset + bytes;
+        return offset;
+    }
+
+    // Map the chunk of the given record in the background, unless it already is
+    private void ensureMapped(long record) {
+        final long index = record / chunkRecords;
+        synchronized (this) {
+            if (closed || index == chunkIndex || index == nextChunkIndex || mapping) {
+                return;
+            }
+            mapping = true;
+        }
+        try {
+            mapper.execute(() -> mapInBackground(index));
+        }
+        catch (RejectedExecutionException e) {
+            // The executor has been shut down, the analyzer maps the chunk when it gets there
+            mappingDone();
+        }
+    }
+
+    private void mapInBackground(long index) {
+        try {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+            }
+            MappedByteBuffer mapped = mapChunk(index, FileChannel.MapMode.READ_WRITE);
+            // Touch every page so that the analyzer does not take the page faults
+            for (int i = 0; i < mapped.capacity(); i += 4096) {
+                mapped.put(i, mapped.get(i));
+            }
+            nextChunk = mapped;
+            nextChunkIndex = index;
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Could not map chunk " + index, e);
+        }
+        finally {
+            mappingDone();
+        }
+    }
+
+    private synchronized void mappingDone() {
+        mapping = false;
+        notifyAll();
+    }
+
+    private MappedByteBuffer mapChunk(long index, FileChannel.MapMode mode) throws IOException {
+        long offset = HEADER_BYTES + index * chunkRecords * RECORD_BYTES;
+        MappedByteBuffer mapped = records.map(mode, offset, (long) chunkRecords * RECORD_BYTES);
+        mapped.order(ByteOrder.nativeOrder());
+        return mapped;
+    }
+
+    // Number of records in all sessions
+    long size() {
+        return count;
+    }
+
+    // Records that could not be written to the files, or that were done after their session ended
+    long dropped() {
+        return dropped.get();
+    }
+
+    synchronized int sessionCount() {
+        return sessionCount;
+    }
+
+    // Read a record by number
+    void read(long index, Record dst) throws IOException {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Record " + index + " of " + count);
+        }
+        synchronized (readLock) {
+            long chunkOf = index / chunkRecords;
+            if (chunkOf != readChunkIndex) {
+                readChunk = mapChunk(chunkOf, FileChannel.MapMode.READ_ONLY);
+                readChunkIndex = chunkOf;
+            }
+            ByteBuffer b = readChunk;
+            int o = (int) (index % chunkRecords) * RECORD_BYTES;
+            dst.timestamp = b.getLong(o);
+            dst.session = b.getInt(o + 8);
+            dst.kind = b.getInt(o + 12);
+            dst.markerA = b.getInt(o + 16);
+            dst.markerB = b.getInt(o + 20);
+            for (int i = 0; i < 3; i++) {
+                dst.rvec[i] = b.getFloat(o + 24 + 4 * i);
+                dst.tvec[i] = b.getFloat(o + 36 + 4 * i);
+            }
+            dst.pointCount = b.getInt(o + 48);
+            for (int i = 0; i < 3 * MAX_POINTS; i++) {
+                dst.points[i] = b.getFloat(o + 52 + 4 * i);
+            }
+            dst.distance = b.getDouble(o + 100);
+            dst.halfWidth = b.getFloat(o + 108);
+            dst.flags = b.getInt(o + 112);
+            long pointsOffset = b.getLong(o + 116);
+            if (dst.pointCount > MAX_POINTS && pointsOffset >= 0) {
+                readPoints(pointsOffset, dst);
+            }
+        }
+    }
+
+    private void readPoints(long offset, Record dst) throws IOException {
+        if (dst.points.length < 3 * dst.pointCount) {
+            dst.points = new float[3 * dst.pointCount];
+        }
+        ByteBuffer b = ByteBuffer.allocate(12 * dst.pointCount).order(ByteOrder.nativeOrder());
+        long position = offset;
+        while (b.hasRemaining()) {
+            int n = points.read(b, position);
+            if (n < 0) {
+                throw new IOException("The points of a record are missing");
+            }
+            position += n;
+        }
+        b.flip();
+        b.asFloatBuffer().get(dst.points, 0, 3 * dst.pointCount);
+    }
+
+    // A session by number. The open session has recordCount -1
+    synchronized Session session(int number) throws IOException {
+        if (number < 0 || number >= sessionCount) {
+            throw new IndexOutOfBoundsException("Session " + number + " of " + sessionCount);
+        }
+        sessions.seek((long) number * SESSION_BYTES);
+        return new Session(number, sessions.readLong(), sessions.readLong(), sessions.readLong(), sessions.readLong());
+    }
+
+    // The last session that started at or before millis, or -1
+    synchronized int findSession(long millis) throws IOException {
+        int low = 0;
+        int high = sessionCount - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            sessions.seek((long) mid * SESSION_BYTES);
+            if (sessions.readLong() <= millis) {
+                found = mid;
+                low = mid + 1;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    private void writeSession(Session s) throws IOException {
+        sessions.seek((long) s.number * SESSION_BYTES);
+        sessions.writeLong(s.startMillis);
+        sessions.writeLong(s.firstRecord);
+        sessions.writeLong(s.recordCount);
+        sessions.writeLong(s.endMillis);
+    }
+
+    // Ends the open session. Waits for a chunk that is being mapped, so that the files are not
+    // closed under it
+    synchronized void close() throws IOException {
+        endSession();
+        closed = true;
+        boolean interrupted = false;
+        while (mapping) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (mapper instanceof ExecutorService) {
+            ((ExecutorService) mapper).shutdown();
+        }
+        header.force();
+        sessions.close();
+        pointFile.close();
+        recordFile.close();
+    }
+
+    private static void close(RandomAccessFile file) {
+        try {
+            file.close();
+        }
+        catch (IOException e) {
+            // Already failing
+        }
+    }
+}
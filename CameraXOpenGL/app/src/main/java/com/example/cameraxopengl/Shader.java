@@ -1,5 +1,6 @@
 package com.example.cameraxopengl;
 
+import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 
 import org.jetbrains.annotations.NotNull;
@@ -15,12 +16,21 @@ class Shader {
     // These are 2D-coordinates
     private final float[] screenVertices = {-1f, -1f, 1f, -1f, -1f, 1f, 1f, 1f};
     private final float[] textureVertices = {0f, 1f, 1f, 1f, 0f, 0f, 1f, 0f};
+    // The camera buffer from a SurfaceTexture is in sensor orientation, so these texture
+    // coordinates rotate it 90 degrees clockwise (the same rotation that is applied to the
+    // analysis frames)
+    private final float[] externalTextureVertices = {1f, 0f, 1f, 1f, 0f, 0f, 0f, 1f};
+    // Textures rendered to through a framebuffer have their origin in the lower left corner
+    private final float[] framebufferTextureVertices = {0f, 0f, 1f, 0f, 0f, 1f, 1f, 1f};
 
     private FloatBuffer screenVerticesBuffer;
     private FloatBuffer textureBuffer;
+    private FloatBuffer externalTextureBuffer;
+    private FloatBuffer framebufferTextureBuffer;
 
     private int program = 0;
     private int programGeometry = 1;
+    private int programExternal = 2;
 
     // Constructor creates shaders from the code and initializes vertex and texture buffers
     Shader() {
@@ -41,6 +51,18 @@ class Shader {
         textureBuffer = buff.asFloatBuffer();
         textureBuffer.put(textureVertices);
         textureBuffer.position(0);
+
+        buff = ByteBuffer.allocateDirect(externalTextureVertices.length * 4);
+        buff.order(ByteOrder.nativeOrder());
+        externalTextureBuffer = buff.asFloatBuffer();
+        externalTextureBuffer.put(externalTextureVertices);
+        externalTextureBuffer.position(0);
+
+        buff = ByteBuffer.allocateDirect(framebufferTextureVertices.length * 4);
+        buff.order(ByteOrder.nativeOrder());
+        framebufferTextureBuffer = buff.asFloatBuffer();
+        framebufferTextureBuffer.put(framebufferTextureVertices);
+        framebufferTextureBuffer.position(0);
     }
 
     // Initialize shaders with the content in the shader string variables
@@ -96,6 +118,37 @@ class Shader {
 
         GLES20.glLinkProgram(programGeometry);
 
+        // Create shader program for rendering the camera preview directly from an external
+        // (SurfaceTexture) texture. uTexMatrix is the transform matrix of the SurfaceTexture
+        int vertexShaderExternal = GLES20.glCreateShader(GLES20.GL_VERTEX_SHADER);
+        String vertexShaderExternalCode = "uniform mat4 uTexMatrix;" +
+                "attribute vec4 aPosition;" +
+                "attribute vec4 aTexPosition;" +
+                "varying vec2 vTexPosition;" +
+                "void main() {" +
+                "  gl_Position = aPosition;" +
+                "  vTexPosition = (uTexMatrix * aTexPosition).xy;" +
+                "}";
+        GLES20.glShaderSource(vertexShaderExternal, vertexShaderExternalCode);
+        GLES20.glCompileShader(vertexShaderExternal);
+
+        int fragmentShaderExternal = GLES20.glCreateShader(GLES20.GL_FRAGMENT_SHADER);
+        String fragmentShaderExternalCode = "#extension GL_OES_EGL_image_external : require\n" +
+                "precision mediump float;" +
+                "uniform samplerExternalOES uTexture;" +
+                "varying vec2 vTexPosition;" +
+                "void main() {" +
+                "  gl_FragColor = texture2D(uTexture, vTexPosition);" +
+                "}";
+        GLES20.glShaderSource(fragmentShaderExternal, fragmentShaderExternalCode);
+        GLES20.glCompileShader(fragmentShaderExternal);
+
+        programExternal = GLES20.glCreateProgram();
+        GLES20.glAttachShader(programExternal, vertexShaderExternal);
+        GLES20.glAttachShader(programExternal, fragmentShaderExternal);
+
+        GLES20.glLinkProgram(programExternal);
+
         GLES20.glLineWidth(3f);
         GLES20.glDisable(GLES20.GL_BLEND);
         GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
@@ -103,13 +156,22 @@ class Shader {
 
     // Draw preview onto texture unit "texture"
     void draw(int texture) {
+        drawTexture(texture, textureBuffer);
+    }
+
+    // Draw a texture that a frame has been rendered into, e.g. for recording, upright
+    void drawFramebuffer(int texture) {
+        drawTexture(texture, framebufferTextureBuffer);
+    }
+
+    private void drawTexture(int texture, FloatBuffer coordinates) {
         GLES20.glUseProgram(program);
 
         int positionHandle = GLES20.glGetAttribLocation(program, "aPosition");
         int textureHandle = GLES20.glGetUniformLocation(program, "uTexture");
         int texturePositionHandle = GLES20.glGetAttribLocation(program, "aTexPosition");
 
-        GLES20.glVertexAttribPointer(texturePositionHandle, 2, GLES20.GL_FLOAT, false, 0, textureBuffer);
+        GLES20.glVertexAttribPointer(texturePositionHandle, 2, GLES20.GL_FLOAT, false, 0, coordinates);
         GLES20.glEnableVertexAttribArray(texturePositionHandle);
 
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
@@ -123,12 +185,38 @@ class Shader {
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
     }
 
+    // Draw the camera preview from the external texture "texture" which is fed by a SurfaceTexture
+    void drawExternal(int texture, float[] textureMatrix) {
+        GLES20.glUseProgram(programExternal);
+
+        int positionHandle = GLES20.glGetAttribLocation(programExternal, "aPosition");
+        int textureHandle = GLES20.glGetUniformLocation(programExternal, "uTexture");
+        int textureMatrixHandle = GLES20.glGetUniformLocation(programExternal, "uTexMatrix");
+        int texturePositionHandle = GLES20.glGetAttribLocation(programExternal, "aTexPosition");
+
+        GLES20.glVertexAttribPointer(texturePositionHandle, 2, GLES20.GL_FLOAT, false, 0, externalTextureBuffer);
+        GLES20.glEnableVertexAttribArray(texturePositionHandle);
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, texture);
+        GLES20.glUniform1i(textureHandle, 0);
+        GLES20.glUniformMatrix4fv(textureMatrixHandle, 1, false, textureMatrix, 0);
+
+        GLES20.glVertexAttribPointer(positionHandle, 2, GLES20.GL_FLOAT, false, 0, screenVerticesBuffer);
+        GLES20.glEnableVertexAttribArray(positionHandle);
+
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    }
+
     // Draw geometry without running glClear (draw on top of whatever is on-screen)
-    void drawMarkerGL(float[][] markerVertices){
+    // Only the first count rows are drawn
+    void drawMarkerGL(float[][] markerVertices, int count){
         GLES20.glUseProgram(programGeometry);
 
         // Draw lines around the markers
-        for (float[] markerVertex : markerVertices) {
+        for (int i = 0; i < count; i++) {
+            float[] markerVertex = markerVertices[i];
             ByteBuffer buff = ByteBuffer.allocateDirect(markerVertex.length * Float.BYTES);
             buff.order(ByteOrder.nativeOrder());
             FloatBuffer markerVerticesBuffer = buff.asFloatBuffer();
@@ -167,6 +255,30 @@ class Shader {
         GLES20.glDrawArrays(GLES20.GL_LINE_LOOP, 0, 2);
     }
 
+    // Draw a filled square around a point, rx and ry are half its size in GL coordinates
+    void drawPoint(@NotNull float[] center, float rx, float ry){
+        GLES20.glUseProgram(programGeometry);
+
+        float[] vertexArrayPoint = {
+                center[0] - rx, center[1] - ry,
+                center[0] + rx, center[1] - ry,
+                center[0] - rx, center[1] + ry,
+                center[0] + rx, center[1] + ry,
+        };
+
+        ByteBuffer buff = ByteBuffer.allocateDirect(vertexArrayPoint.length * Float.BYTES);
+        buff.order(ByteOrder.nativeOrder());
+        FloatBuffer pointVerticesBuffer = buff.asFloatBuffer();
+        pointVerticesBuffer.put(vertexArrayPoint);
+        pointVerticesBuffer.position(0);
+
+        int positionHandle = GLES20.glGetAttribLocation(programGeometry, "aPosition");
+        GLES20.glEnableVertexAttribArray(positionHandle);
+        GLES20.glVertexAttribPointer(positionHandle, 2, GLES20.GL_FLOAT, false, 0, pointVerticesBuffer);
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    }
+
     // Draw a line from the two measure points using triangles
     void drawLine(float[] _start, float[] _end, @NotNull float[] depth){
         //  Generate rectangle from line
@@ -0,0 +1,174 @@
+package com.example.cameraxopengl;
+
+import android.Manifest;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.camera.core.Camera;
+import androidx.camera.core.CameraSelector;
+import androidx.camera.core.ImageAnalysis;
+import androidx.camera.core.UseCase;
+import androidx.camera.lifecycle.ProcessCameraProvider;
+import androidx.core.app.ActivityCompat;
+import androidx.core.content.ContextCompat;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.opencv.android.OpenCVLoader;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.example.cameraxopengl.StartupTimeline.Milestone.CAMERA_OPEN;
+import static com.example.cameraxopengl.StartupTimeline.Milestone.DETECTOR_READY;
+import static com.example.cameraxopengl.StartupTimeline.Milestone.FIRST_DETECTION;
+import static com.example.cameraxopengl.StartupTimeline.Milestone.FIRST_FRAME;
+import static com.example.cameraxopengl.StartupTimeline.Milestone.LIBRARY_LOADED;
+import static com.example.cameraxopengl.StartupTimeline.Milestone.PERMISSION_GRANTED;
+import static com.example.cameraxopengl.StartupTimeline.Milestone.SHADERS_COMPILED;
+import static com.example.cameraxopengl.StartupTimeline.Milestone.WARMED_UP;
+
+// StartupOrchestrator runs the startup steps of MainActivity concurrently instead of one after the
+// other on the main thread:
+//
+//     load OpenCV ──> create detector, warm up ────┐
+//     camera permission ──┐                        ├──> set analyzer ──> first detection
+//     camera provider ────┴──> bind use cases ─────┘
+//     compile shaders (GL thread)
+//
+// The native library and the detector are created on a background thread, the permission dialog
+// completes a future from onRequestPermissionsResult, and the camera is bound as soon as the
+// permission and the camera provider are available. The analyzer is only set when the detector is
+// ready and warmed up on generated frames, so no frame is analyzed before OpenCV has been loaded
+// and the first frames are not slowed down by a cold detector. Each step marks its milestone in the
+// StartupTimeline, which is logged once the first detection has run.
+
+class StartupOrchestrator {
+    private static final String TAG = "Startup";
+    static final int PERMISSION_REQUEST_CODE = 100;
+    private static final int LIBRARY_LOAD_ATTEMPTS = 3;
+
+    private final AppCompatActivity activity;
+    private final GLRenderer renderer;
+    private final StartupTimeline timeline;
+    private final ExecutorService background = Executors.newSingleThreadExecutor(r -> new Thread(r, "Startup"));
+    private final CompletableFuture<Void> permissionGranted = new CompletableFuture<>();
+
+    private CompletableFuture<Void> detectorReady;
+    private CompletableFuture<Camera> cameraOpen;
+
+    StartupOrchestrator(AppCompatActivity activity, GLRenderer renderer, StartupTimeline timeline) {
+        this.activity = activity;
+        this.renderer = renderer;
+        this.timeline = timeline;
+    }
+
+    // Start all steps. The use cases are bound to the lifecycle of the activity and imageAnalysis gets
+    // the renderer as its analyzer (on analysisExecutor) once the detector is ready
+    void start(ImageAnalysis imageAnalysis, Executor analysisExecutor, UseCase... useCases) {
+        Executor mainExecutor = ContextCompat.getMainExecutor(activity);
+
+        // Native library and detector
+        CompletableFuture<Void> libraryLoaded = CompletableFuture.runAsync(this::loadOpenCV, background);
+        detectorReady = libraryLoaded
+                .thenRunAsync(() -> {
+                    renderer.prepareDetector();
+                    timeline.mark(DETECTOR_READY);
+
+                    // Warm up while the camera opens. In direct preview mode the first preview frame
+                    // is drawn before analysis starts, and the warm-up stops there
+                    DetectorWarmup.Result warmup = renderer.warmUp(() -> timeline.isReached(FIRST_FRAME));
+                    timeline.mark(WARMED_UP);
+                    Log.i(TAG, "Detector warm-up: " + warmup);
+                }, background);
+        detectorReady.whenComplete((v, e) -> background.shutdown());
+
+        // Shaders are compiled when the GL surface is created
+        renderer.shadersCompiled().thenRun(() -> timeline.mark(SHADERS_COMPILED));
+
+        // Camera
+        requestCameraPermission();
+        CompletableFuture<ProcessCameraProvider> cameraProvider =
+                toCompletableFuture(ProcessCameraProvider.getInstance(activity));
+        cameraOpen = permissionGranted.thenCombineAsync(cameraProvider, (v, provider) -> {
+            Camera camera = provider.bindToLifecycle(activity, CameraSelector.DEFAULT_BACK_CAMERA, useCases);
+            timeline.mark(CAMERA_OPEN);
+            return camera;
+        }, mainExecutor);
+
+        // Analysis can start when the detector exists, frames only arrive once the camera is bound
+        detectorReady.thenRun(() -> imageAnalysis.setAnalyzer(analysisExecutor, renderer));
+
+        timeline.whenReached(FIRST_DETECTION).thenRun(() -> Log.i(TAG, "Startup timeline: " + timeline));
+        CompletableFuture.allOf(detectorReady, cameraOpen).exceptionally(e -> {
+            Log.e(TAG, "Startup failed", e);
+            return null;
+        });
+    }
+
+    // Called from MainActivity.onRequestPermissionsResult
+    void onRequestPermissionsResult(int requestCode, int[] grantResults) {
+        if (requestCode != PERMISSION_REQUEST_CODE) {
+            return;
+        }
+        if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+            onPermissionGranted();
+        }
+        else {
+            permissionGranted.completeExceptionally(new SecurityException("Camera permission denied"));
+        }
+    }
+
+    CompletableFuture<Void> detectorReady() {
+        return detectorReady;
+    }
+
+    CompletableFuture<Camera> cameraOpen() {
+        return cameraOpen;
+    }
+
+    private void requestCameraPermission() {
+        if (ContextCompat.checkSelfPermission(activity, Manifest.permission.CAMERA)
+                == PackageManager.PERMISSION_GRANTED) {
+            onPermissionGranted();
+        }
+        else {
+            // The answer arrives in onRequestPermissionsResult
+            ActivityCompat.requestPermissions(activity, new String[] {Manifest.permission.CAMERA}, PERMISSION_REQUEST_CODE);
+        }
+    }
+
+    private void onPermissionGranted() {
+        timeline.mark(PERMISSION_GRANTED);
+        permissionGranted.complete(null);
+    }
+
+    // Runs on the background thread
+    private void loadOpenCV() {
+        for (int attempt = 1; attempt <= LIBRARY_LOAD_ATTEMPTS; ++attempt) {
+            if (OpenCVLoader.initDebug()) {
+                timeline.mark(LIBRARY_LOADED);
+                Log.d("OpenCVManager", "OpenCV loaded successfully.");
+                return;
+            }
+            Log.w("OpenCVManager", "Loading OpenCV failed, attempt " + attempt);
+        }
+        throw new IllegalStateException("OpenCV could not be loaded");
+    }
+
+    private static <T> CompletableFuture<T> toCompletableFuture(ListenableFuture<T> listenableFuture) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        listenableFuture.addListener(() -> {
+            try {
+                future.complete(listenableFuture.get());
+            }
+            catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        }, Runnable::run);
+        return future;
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.cameraxopengl;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// StartupTimeline records when each step of the app startup was first reached, relative to the
+// moment the timeline was created (the start of MainActivity.onCreate). Every milestone is a future
+// that completes with the elapsed time the first time it is marked, so later marks are ignored and
+// other startup steps can depend on a milestone. Marking an already reached milestone only costs a
+// volatile read, so it can be done for every frame.
+
+class StartupTimeline {
+    enum Milestone {
+        LIBRARY_LOADED,
+        DETECTOR_READY,
+        WARMED_UP,
+        SHADERS_COMPILED,
+        PERMISSION_GRANTED,
+        CAMERA_OPEN,
+        FIRST_FRAME,
+        FIRST_DETECTION
+    }
+
+    private final long originNanos;
+    private final CompletableFuture<Long>[] milestones;
+
+    StartupTimeline() {
+        this(System.nanoTime());
+    }
+
+    @SuppressWarnings("unchecked")
+    StartupTimeline(long originNanos) {
+        this.originNanos = originNanos;
+        milestones = new CompletableFuture[Milestone.values().length];
+        for (int i = 0; i < milestones.length; ++i) {
+            milestones[i] = new CompletableFuture<>();
+        }
+    }
+
+    void mark(Milestone milestone) {
+        mark(milestone, System.nanoTime());
+    }
+
+    // Returns true if this was the first time the milestone was reached
+    boolean mark(Milestone milestone, long nanoTime) {
+        CompletableFuture<Long> future = milestones[milestone.ordinal()];
+        return !future.isDone() && future.complete(nanoTime - originNanos);
+    }
+
+    // Completes with the nanoseconds from the origin to the milestone
+    CompletableFuture<Long> whenReached(Milestone milestone) {
+        return milestones[milestone.ordinal()];
+    }
+
+    boolean isReached(Milestone milestone) {
+        return milestones[milestone.ordinal()].isDone();
+    }
+
+    // Milliseconds from the origin to the milestone, or -1 if it has not been reached
+    long millisTo(Milestone milestone) {
+        CompletableFuture<Long> future = milestones[milestone.ordinal()];
+        if (!future.isDone() || future.isCompletedExceptionally()) {
+            return -1;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(future.join());
+    }
+
+    // One line with all milestones, e.g. "LIBRARY_LOADED=41ms CAMERA_OPEN=310ms ...". Milestones
+    // that have not been reached are printed as "-"
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Milestone milestone : Milestone.values()) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            long millis = millisTo(milestone);
+            sb.append(milestone).append('=').append(millis < 0 ? "-" : millis + "ms");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.cameraxopengl;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// VideoEncoder is the FrameRecorder output that writes an H.264 video to an MP4 file. The frames
+// are drawn into the input surface of a hardware encoder, so they never pass through the CPU, and
+// the encoded data is moved to a MediaMuxer after every frame. All methods are called on the
+// recorder thread.
+
+class VideoEncoder implements FrameRecorder.Output {
+    private static final String TAG = "VideoEncoder";
+    private static final int FRAME_RATE = 30;
+    private static final int I_FRAME_INTERVAL = 1;
+    private static final long DRAIN_TIMEOUT_US = 10_000;
+    // How long the end of the stream is waited for, in DRAIN_TIMEOUT_US steps
+    private static final int END_OF_STREAM_TRIES = 100;
+
+    private final File file;
+    private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    private MediaCodec codec;
+    private MediaMuxer muxer;
+    private Surface input;
+    private int track = -1;
+    private boolean muxerStarted = false;
+
+    VideoEncoder(File file) {
+        this.file = file;
+    }
+
+    // The encoders want sizes that are a multiple of 16
+    static int alignedSize(int size) {
+        return Math.max(16, size & ~15);
+    }
+
+    @Override
+    public Surface prepare(int width, int height) throws IOException {
+        MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate(width, height));
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL);
+
+        codec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
+        codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        input = codec.createInputSurface();
+        codec.start();
+        muxer = new MediaMuxer(file.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        return input;
+    }
+
+    // Move all encoded data that is ready to the muxer. At the end of the stream, wait until the
+    // encoder has emitted its last buffer, but not longer than END_OF_STREAM_TRIES timeouts, so that
+    // an encoder that never ends the stream does not hang the recorder thread
+    @Override
+    public void drain(boolean endOfStream) {
+        if (endOfStream) {
+            codec.signalEndOfInputStream();
+        }
+        int tries = 0;
+        while (true) {
+            int index = codec.dequeueOutputBuffer(info, endOfStream ? DRAIN_TIMEOUT_US : 0);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!endOfStream) {
+                    return;
+                }
+                if (++tries >= END_OF_STREAM_TRIES) {
+                    Log.w(TAG, "No end of stream from the encoder, the last frames may be missing");
+                    return;
+                }
+            }
+            else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                // Comes once, before the first frame, with the codec specific data the muxer needs
+                track = muxer.addTrack(codec.getOutputFormat());
+                muxer.start();
+                muxerStarted = true;
+            }
+            else if (index >= 0) {
+                ByteBuffer data = codec.getOutputBuffer(index);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    // Already passed on with the output format
+                    info.size = 0;
+                }
+                if (info.size > 0 && muxerStarted && data != null) {
+                    data.position(info.offset);
+                    data.limit(info.offset + info.size);
+                    muxer.writeSampleData(track, data, info);
+                }
+                codec.releaseOutputBuffer(index, false);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        if (codec != null) {
+            try {
+                codec.stop();
+            }
+            catch (IllegalStateException e) {
+                Log.w(TAG, "Encoder was not running", e);
+            }
+            codec.release();
+            codec = null;
+        }
+        if (input != null) {
+            input.release();
+            input = null;
+        }
+        if (muxer != null) {
+            if (muxerStarted) {
+                muxer.stop();
+            }
+            muxer.release();
+            muxer = null;
+        }
+    }
+
+    // Roughly 4 bits per pixel and second at 30 frames/s, 8 Mbit/s for 1080p
+    private static int bitRate(int width, int height) {
+        return (int) Math.min(20_000_000L, 4L * width * height);
+    }
+}
@@ -0,0 +1,157 @@
+package com.example.cameraxopengl;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AppExecutorsTest {
+    // The priority each thread has set for itself
+    private final Map<String, Integer> priorities = new ConcurrentHashMap<>();
+    private AppExecutors executors;
+
+    private AppExecutors create(AppExecutors.Policy policy) {
+        executors = new AppExecutors(policy, priority -> priorities.put(Thread.currentThread().getName(), priority));
+        return executors;
+    }
+
+    @After
+    public void shutdown() {
+        if (executors != null) {
+            executors.shutdown();
+        }
+    }
+
+    // The name of the thread that runs a task of the stage
+    private static String threadOf(Executor executor) throws InterruptedException {
+        final String[] name = new String[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.execute(() -> {
+            name[0] = Thread.currentThread().getName();
+            done.countDown();
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        return name[0];
+    }
+
+    @Test
+    public void policiesPlaceStagesOnThreads() throws InterruptedException {
+        AppExecutors single = create(AppExecutors.Policy.SINGLE);
+        String frames = threadOf(single.executor(AppExecutors.Stage.ANALYSIS));
+        assertEquals(frames, threadOf(single.executor(AppExecutors.Stage.DETECTION)));
+        assertEquals(frames, threadOf(single.executor(AppExecutors.Stage.POSE)));
+        assertEquals("IO", threadOf(single.executor(AppExecutors.Stage.IO)));
+        single.shutdown();
+
+        AppExecutors staged = create(AppExecutors.Policy.STAGED);
+        assertEquals("Analysis", threadOf(staged.executor(AppExecutors.Stage.ANALYSIS)));
+        assertEquals("Detection", threadOf(staged.executor(AppExecutors.Stage.DETECTION)));
+        assertEquals("Pose", threadOf(staged.executor(AppExecutors.Stage.POSE)));
+        assertEquals("Background", threadOf(staged.executor(AppExecutors.Stage.BACKGROUND)));
+        staged.shutdown();
+
+        AppExecutors stealing = create(AppExecutors.Policy.WORK_STEALING);
+        assertEquals("Analysis", threadOf(stealing.executor(AppExecutors.Stage.ANALYSIS)));
+        assertTrue(threadOf(stealing.executor(AppExecutors.Stage.DETECTION)).startsWith("Worker-"));
+        assertTrue(threadOf(stealing.executor(AppExecutors.Stage.POSE)).startsWith("Worker-"));
+    }
+
+    @Test
+    public void stagesSharingAThreadRunAtTheirOwnPriority() throws InterruptedException {
+        AppExecutors single = create(AppExecutors.Policy.SINGLE);
+        single.alignWithRenderThread(-4);
+        String frames = threadOf(single.executor(AppExecutors.Stage.DETECTION));
+        assertEquals(-3, (int) priorities.get(frames));
+        assertEquals(-3, single.priority(AppExecutors.Stage.POSE));
+
+        // IO and background work stay where they were
+        threadOf(single.executor(AppExecutors.Stage.IO));
+        assertEquals(AppExecutors.Stage.IO.defaultPriority, (int) priorities.get("IO"));
+        assertEquals(AppExecutors.Stage.BACKGROUND.defaultPriority, single.priority(AppExecutors.Stage.BACKGROUND));
+    }
+
+    @Test
+    public void oldestWaitingFrameIsDropped() throws InterruptedException {
+        AppExecutors staged = create(AppExecutors.Policy.STAGED);
+        Executor detection = staged.executor(AppExecutors.Stage.DETECTION);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        detection.execute(() -> {
+            blocked.countDown();
+            try {
+                release.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+        // The stage keeps one waiting task, every newer frame replaces the one before
+        final AtomicInteger ran = new AtomicInteger(-1);
+        final AtomicInteger discarded = new AtomicInteger();
+        final CountDownLatch last = new CountDownLatch(1);
+        for (int i = 0; i < 5; i++) {
+            final int frame = i;
+            detection.execute(new DiscardableTask(discarded) {
+                @Override
+                public void run() {
+                    ran.set(frame);
+                    last.countDown();
+                }
+            });
+        }
+        assertEquals(1, staged.stats(AppExecutors.Stage.DETECTION).depth);
+        release.countDown();
+        assertTrue(last.await(5, TimeUnit.SECONDS));
+
+        assertEquals(4, ran.get());
+        assertEquals(4, discarded.get());
+        AppExecutors.Stats stats = staged.stats(AppExecutors.Stage.DETECTION);
+        assertEquals(6, stats.submitted);
+        assertEquals(4, stats.dropped);
+        assertEquals(0, stats.depth);
+        assertEquals(2, stats.maxDepth);
+    }
+
+    @Test
+    public void analysisTasksAreNeverDropped() throws InterruptedException {
+        AppExecutors staged = create(AppExecutors.Policy.STAGED);
+        Executor analysis = staged.executor(AppExecutors.Stage.ANALYSIS);
+        final CountDownLatch done = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++) {
+            analysis.execute(done::countDown);
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, staged.stats(AppExecutors.Stage.ANALYSIS).dropped);
+        assertEquals(20, staged.stats(AppExecutors.Stage.ANALYSIS).submitted);
+    }
+
+    @Test
+    public void policyIsParsedFromItsName() {
+        assertEquals(AppExecutors.Policy.WORK_STEALING, AppExecutors.Policy.parse("work_stealing", AppExecutors.Policy.STAGED));
+        assertEquals(AppExecutors.Policy.SINGLE, AppExecutors.Policy.parse(" SINGLE ", AppExecutors.Policy.STAGED));
+        assertEquals(AppExecutors.Policy.STAGED, AppExecutors.Policy.parse("fastest", AppExecutors.Policy.STAGED));
+        assertEquals(AppExecutors.Policy.STAGED, AppExecutors.Policy.parse(null, AppExecutors.Policy.STAGED));
+    }
+
+    private abstract static class DiscardableTask implements Runnable, AppExecutors.Discardable {
+        private final AtomicInteger discarded;
+
+        DiscardableTask(AtomicInteger discarded) {
+            this.discarded = discarded;
+        }
+
+        @Override
+        public void discard() {
+            discarded.incrementAndGet();
+        }
+    }
+}
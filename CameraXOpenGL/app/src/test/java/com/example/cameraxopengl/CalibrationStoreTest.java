@@ -0,0 +1,131 @@
+package com.example.cameraxopengl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.core.CvType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class CalibrationStoreTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("calibration", ".bin");
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    private static CalibrationStore.Contents contents() {
+        CameraIntrinsics intrinsics = new CameraIntrinsics(WIDTH, HEIGHT, 50, 51, 31.5, 23.5,
+                new double[] {0.12, -0.25, 0.0014, -0.0011, 0.08}, 0.37, 14);
+        CameraModel model = new CameraModel("test", intrinsics);
+
+        ByteBuffer map1 = ByteBuffer.allocate(WIDTH * HEIGHT * 4).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < WIDTH * HEIGHT * 2; ++i) {
+            map1.putShort((short) i);
+        }
+        map1.flip();
+        ByteBuffer map2 = ByteBuffer.allocate(WIDTH * HEIGHT * 2).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < WIDTH * HEIGHT; ++i) {
+            map2.putShort((short) (i * 7));
+        }
+        map2.flip();
+
+        return new CalibrationStore.Contents("back", intrinsics, model.getLutX(), model.getLutY(),
+                CvType.CV_16SC2, HEIGHT, WIDTH, map1, CvType.CV_16UC1, HEIGHT, WIDTH, map2);
+    }
+
+    @Test
+    public void writeAndRead() throws IOException {
+        CalibrationStore.Contents written = contents();
+        CalibrationStore.write(file, written);
+
+        CalibrationStore.Contents read = CalibrationStore.read(file);
+
+        assertEquals("back", read.cameraId);
+        assertEquals(WIDTH, read.intrinsics.width);
+        assertEquals(HEIGHT, read.intrinsics.height);
+        assertEquals(written.intrinsics.fx, read.intrinsics.fx, 0);
+        assertEquals(written.intrinsics.cy, read.intrinsics.cy, 0);
+        assertArrayEquals(written.intrinsics.getDistortion(), read.intrinsics.getDistortion(), 0);
+        assertEquals(14, read.intrinsics.views);
+        assertArrayEquals(written.lutX, read.lutX, 0);
+        assertArrayEquals(written.lutY, read.lutY, 0);
+
+        assertEquals(CvType.CV_16SC2, read.map1Type);
+        assertEquals(HEIGHT, read.map1Rows);
+        assertEquals(WIDTH, read.map1Cols);
+        assertEquals(written.map1, read.map1);
+        assertEquals(written.map2, read.map2);
+        assertTrue(read.map1.isDirect());
+    }
+
+    @Test
+    public void loadedTableGivesTheSameModel() throws IOException {
+        CalibrationStore.Contents written = contents();
+        CalibrationStore.write(file, written);
+        CalibrationStore.Contents read = CalibrationStore.read(file);
+
+        CameraModel computed = new CameraModel("test", written.intrinsics);
+        CameraModel loaded = new CameraModel("test", read.intrinsics, read.lutX, read.lutY, null, null, read);
+        double[] a = new double[2];
+        double[] b = new double[2];
+        computed.undistort(17.3, 29.9, a);
+        loaded.undistort(17.3, 29.9, b);
+        assertArrayEquals(a, b, 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptionIsDetected() throws IOException {
+        CalibrationStore.write(file, contents());
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            output.seek(output.length() - 3);
+            output.write(0x5A);
+        }
+        CalibrationStore.read(file);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncationIsDetected() throws IOException {
+        CalibrationStore.write(file, contents());
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            output.setLength(output.length() - 16);
+        }
+        CalibrationStore.read(file);
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFilesAreRejected() throws IOException {
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            output.write(new byte[256]);
+        }
+        CalibrationStore.read(file);
+    }
+
+    @Test
+    public void withoutDistortionThereIsNoTable() throws IOException {
+        CameraIntrinsics intrinsics = CameraIntrinsics.defaults(WIDTH, HEIGHT);
+        ByteBuffer map1 = ByteBuffer.allocate(WIDTH * HEIGHT * 4);
+        ByteBuffer map2 = ByteBuffer.allocate(WIDTH * HEIGHT * 2);
+        CalibrationStore.write(file, new CalibrationStore.Contents("back", intrinsics, null, null,
+                CvType.CV_16SC2, HEIGHT, WIDTH, map1, CvType.CV_16UC1, HEIGHT, WIDTH, map2));
+
+        CalibrationStore.Contents read = CalibrationStore.read(file);
+        assertNull(read.lutX);
+        assertFalse(read.intrinsics.isCalibrated());
+    }
+}
@@ -0,0 +1,37 @@
+package com.example.cameraxopengl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CalibrationViewSelectorTest {
+
+    @Test
+    public void boardFacingTheCameraHasNormalAlongZ() {
+        CalibrationViewSelector.View view = CalibrationViewSelector.View.fromPose(0, 0, 0, 0.5, 0.5, 0.4);
+        assertEquals(1, view.nz, 1e-12);
+
+        // A rotation of 30 degrees around the x axis tilts the normal by 30 degrees
+        CalibrationViewSelector.View tilted = CalibrationViewSelector.View.fromPose(Math.toRadians(30), 0, 0, 0.5, 0.5, 0.4);
+        assertEquals(Math.toRadians(30), view.tiltDifference(tilted), 1e-9);
+    }
+
+    @Test
+    public void rotationAroundTheOpticalAxisIsNoNewTilt() {
+        CalibrationViewSelector.View view = CalibrationViewSelector.View.fromPose(0, 0, 0, 0.5, 0.5, 0.4);
+        CalibrationViewSelector.View rolled = CalibrationViewSelector.View.fromPose(0, 0, Math.toRadians(45), 0.5, 0.5, 0.4);
+        assertEquals(0, view.tiltDifference(rolled), 1e-9);
+    }
+
+    @Test
+    public void similarViewsAreRejected() {
+        CalibrationViewSelector selector = new CalibrationViewSelector();
+        selector.accept(CalibrationViewSelector.View.fromPose(0, 0, 0, 0.5, 0.5, 0.4));
+
+        assertFalse(selector.isNovel(CalibrationViewSelector.View.fromPose(Math.toRadians(5), 0, 0, 0.55, 0.5, 0.42)));
+        // Different tilt, place or size
+        assertTrue(selector.isNovel(CalibrationViewSelector.View.fromPose(Math.toRadians(20), 0, 0, 0.5, 0.5, 0.4)));
+        assertTrue(selector.isNovel(CalibrationViewSelector.View.fromPose(0, 0, 0, 0.2, 0.3, 0.4)));
+        assertTrue(selector.isNovel(CalibrationViewSelector.View.fromPose(0, 0, 0, 0.5, 0.5, 0.6)));
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.cameraxopengl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CameraModelTest {
+    private static final double PIXEL_TOLERANCE = 0.01;
+
+    private static CameraModel model(double... distortion) {
+        return new CameraModel("test", new CameraIntrinsics(720, 1280, 485, 1532, 359, 639, distortion, 0.3, 12));
+    }
+
+    @Test
+    public void roundTripOverTheImage() {
+        CameraModel model = model(0.12, -0.25, 0.0014, -0.0011, 0.08);
+        double[] ray = new double[2];
+        double[] pixel = new double[2];
+        double worst = 0;
+
+        for (double v = 0.5; v < model.height; v += 7.3) {
+            for (double u = 0.5; u < model.width; u += 5.1) {
+                model.undistort(u, v, ray);
+                model.distort(ray[0], ray[1], pixel);
+                worst = Math.max(worst, Math.hypot(pixel[0] - u, pixel[1] - v));
+            }
+        }
+        assertTrue("worst round trip error " + worst + " px", worst < PIXEL_TOLERANCE);
+    }
+
+    @Test
+    public void tableMatchesIteration() {
+        CameraModel model = model(0.12, -0.25, 0.0014, -0.0011, 0.08);
+        double[] fromTable = new double[2];
+        double[] outside = new double[2];
+
+        // Just outside the image the iterative path is used, just inside the table
+        model.undistort(-0.001, 300, outside);
+        model.undistort(0.001, 300, fromTable);
+        assertEquals(outside[0], fromTable[0], 1e-5);
+        assertEquals(outside[1], fromTable[1], 1e-5);
+    }
+
+    @Test
+    public void distortThenUndistort() {
+        CameraModel model = model(0.12, -0.25, 0.0014, -0.0011, 0.08);
+        double[] pixel = new double[2];
+        double[] ray = new double[2];
+
+        for (double y = -0.35; y <= 0.35; y += 0.05) {
+            for (double x = -0.6; x <= 0.6; x += 0.05) {
+                model.distort(x, y, pixel);
+                model.undistort(pixel[0], pixel[1], ray);
+                assertEquals(x, ray[0], PIXEL_TOLERANCE / model.fx);
+                assertEquals(y, ray[1], PIXEL_TOLERANCE / model.fy);
+            }
+        }
+    }
+
+    @Test
+    public void withoutDistortionIsPinhole() {
+        CameraModel model = model(0, 0, 0, 0, 0);
+        double[] pixel = new double[2];
+
+        assertTrue(model.project(0.1, -0.2, 2, pixel));
+        assertEquals(485 * 0.05 + 359, pixel[0], 1e-9);
+        assertEquals(1532 * -0.1 + 639, pixel[1], 1e-9);
+
+        double[] ray = new double[2];
+        model.undistort(pixel[0], pixel[1], ray);
+        assertEquals(0.05, ray[0], 1e-12);
+        assertEquals(-0.1, ray[1], 1e-12);
+    }
+
+    @Test
+    public void pointsBehindTheCameraAreNotProjected() {
+        CameraModel model = model(0.12, -0.25, 0.0014, -0.0011, 0.08);
+        double[] pixel = {-1, -1};
+        assertFalse(model.project(0.1, 0.1, -1, pixel));
+        assertFalse(model.project(0.1, 0.1, 0, pixel));
+        assertEquals(-1, pixel[0], 0);
+    }
+
+    @Test
+    public void keyedByDeviceAndResolution() {
+        assertEquals("Google_Pixel_3_720x1280", CameraModel.key("Google_Pixel 3", 720, 1280));
+        assertNotEquals(CameraModel.key("x", 720, 1280), CameraModel.key("x", 1080, 1920));
+    }
+
+    @Test
+    public void intrinsicsScaleToTheSameFieldOfView() {
+        CameraIntrinsics analysis = new CameraIntrinsics(720, 1280, 485, 1532, 359.5, 639.5,
+                new double[] {0.12, -0.25, 0, 0, 0}, 0.3, 12);
+        CameraIntrinsics still = analysis.scaledTo(2160, 3840);
+        assertEquals(1455, still.fx, 1e-9);
+        assertEquals(4596, still.fy, 1e-9);
+        // The center of the image stays the center
+        assertEquals(1079.5, still.cx, 1e-9);
+        assertEquals(1919.5, still.cy, 1e-9);
+        assertEquals(0.12, still.getDistortion()[0], 0);
+        assertTrue(still.isCalibrated());
+
+        // A 4:3 still shows another part of the sensor
+        assertNull(analysis.scaledTo(3024, 4032));
+    }
+}
@@ -0,0 +1,28 @@
+package com.example.cameraxopengl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DetectorWarmupTest {
+
+    @Test
+    public void coldFramesAreNotSteady() {
+        long[] latencies = {120, 60, 30, 12, 10, 10};
+        assertFalse(DetectorWarmup.isSteady(latencies, 4));
+        assertFalse(DetectorWarmup.isSteady(latencies, 6));
+    }
+
+    @Test
+    public void settledFramesAreSteady() {
+        long[] latencies = {120, 60, 30, 10, 10, 11, 10, 11};
+        assertTrue(DetectorWarmup.isSteady(latencies, 8));
+        assertEquals(10, DetectorWarmup.median(latencies, 8));
+    }
+
+    @Test
+    public void medianOfFewerFramesThanTheWindow() {
+        long[] latencies = {30, 10, 20};
+        assertEquals(20, DetectorWarmup.median(latencies, 3));
+    }
+}
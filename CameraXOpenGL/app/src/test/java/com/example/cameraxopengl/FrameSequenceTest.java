@@ -0,0 +1,78 @@
+package com.example.cameraxopengl;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class FrameSequenceTest {
+    @Test
+    public void framesAreNumberedInOrder() {
+        FrameSequence frames = new FrameSequence();
+        assertEquals(0, frames.next());
+        assertEquals(1, frames.next());
+        assertEquals(-1, frames.published());
+    }
+
+    @Test
+    public void olderResultIsDiscarded() {
+        FrameSequence frames = new FrameSequence();
+        long first = frames.next();
+        long second = frames.next();
+        final long[] shown = {-1};
+
+        assertTrue(frames.publish(second, () -> shown[0] = second));
+        assertFalse(frames.publish(first, () -> shown[0] = first));
+        assertEquals(second, shown[0]);
+        assertEquals(second, frames.published());
+        assertEquals(1, frames.publishedCount());
+        assertEquals(1, frames.discarded());
+    }
+
+    @Test
+    public void taskIsCancelledAfterDeadlineOrNewerFrame() {
+        FrameSequence frames = new FrameSequence();
+        long first = frames.next();
+        long second = frames.next();
+
+        assertFalse(frames.shouldCancel(first, 100, 50));
+        assertTrue(frames.shouldCancel(first, 100, 101));
+
+        frames.publish(second, () -> { });
+        assertTrue(frames.shouldCancel(first, 100, 50));
+        assertFalse(frames.shouldCancel(frames.next(), 100, 50));
+        assertEquals(2, frames.cancelled());
+    }
+
+    @Test
+    public void publishedNumberOnlyGrows() throws InterruptedException {
+        final FrameSequence frames = new FrameSequence();
+        final int threads = 4;
+        final int perThread = 2000;
+        final AtomicLong shown = new AtomicLong(-1);
+        final AtomicLong wentBack = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    long sequence = frames.next();
+                    frames.publish(sequence, () -> {
+                        if (sequence < shown.get()) {
+                            wentBack.incrementAndGet();
+                        }
+                        shown.set(sequence);
+                    });
+                }
+                done.countDown();
+            }).start();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        assertEquals(0, wentBack.get());
+        assertEquals(threads * perThread, frames.publishedCount() + frames.discarded());
+        assertEquals(frames.published(), shown.get());
+    }
+}
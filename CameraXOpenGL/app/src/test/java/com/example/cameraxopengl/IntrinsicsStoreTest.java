@@ -0,0 +1,31 @@
+package com.example.cameraxopengl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class IntrinsicsStoreTest {
+
+    @Test
+    public void encodeAndDecode() {
+        CameraIntrinsics intrinsics = new CameraIntrinsics(720, 1280, 486.5, 1531.2, 359.3, 639.2,
+                new double[] {0.336, -1.096, 0.0014, -0.0011, 1.488}, 0.42, 17);
+
+        CameraIntrinsics decoded = IntrinsicsStore.decode(720, 1280, IntrinsicsStore.encode(intrinsics));
+
+        assertNotNull(decoded);
+        assertEquals(intrinsics.fx, decoded.fx, 0);
+        assertEquals(intrinsics.cy, decoded.cy, 0);
+        assertArrayEquals(intrinsics.getDistortion(), decoded.getDistortion(), 0);
+        assertEquals(intrinsics.rms, decoded.rms, 0);
+        assertEquals(17, decoded.views);
+        assertTrue(decoded.isCalibrated());
+    }
+
+    @Test
+    public void malformedEntriesAreIgnored() {
+        assertNull(IntrinsicsStore.decode(720, 1280, null));
+        assertNull(IntrinsicsStore.decode(720, 1280, "1 2 3"));
+        assertNull(IntrinsicsStore.decode(720, 1280, "a b c d e f g h i j k"));
+    }
+}
@@ -0,0 +1,261 @@
+package com.example.cameraxopengl;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class MarkerContainerTest {
+    // Two markers in a 100x100 image, 8 pixel coordinates each
+    private static final float[] TWO_MARKERS = {
+            0, 0, 50, 0, 50, 50, 0, 50,
+            50, 50, 100, 50, 100, 100, 50, 100
+    };
+
+    private static void publishTwoMarkers(MarkerContainer container, long timestamp) {
+        MarkerContainer.Snapshot draft = container.edit();
+        draft.setMarkerCorners(TWO_MARKERS, 2, 100, 100);
+        draft.setDistance(timestamp);
+        draft.setDepths(timestamp, timestamp);
+        draft.setTimestamp(timestamp);
+        container.publish(draft);
+    }
+
+    @Test
+    public void startsEmpty() {
+        MarkerContainer container = new MarkerContainer();
+        MarkerContainer.Snapshot markers = container.acquire();
+        assertTrue(markers.isEmpty());
+        assertEquals(0, markers.getVersion());
+        markers.release();
+    }
+
+    @Test
+    public void publishedSnapshotDoesNotChange() {
+        MarkerContainer container = new MarkerContainer();
+        publishTwoMarkers(container, 1);
+        MarkerContainer.Snapshot held = container.acquire();
+
+        MarkerContainer.Snapshot draft = container.edit();
+        draft.makeEmpty();
+        container.publish(draft);
+
+        assertEquals(1, held.getVersion());
+        assertEquals(2, held.getNumMarkers());
+        assertArrayEquals(new float[] {-0.5f, 0.5f}, held.getMarkerMidpoint(0), 1e-6f);
+        assertArrayEquals(new float[] {0.5f, -0.5f}, held.getMarkerMidpoint(1), 1e-6f);
+        assertArrayEquals(new float[] {0f, 0f}, held.getLineCenter(), 1e-6f);
+        held.release();
+
+        MarkerContainer.Snapshot latest = container.acquire();
+        assertEquals(2, latest.getVersion());
+        assertTrue(latest.isEmpty());
+        latest.release();
+
+        try {
+            latest.setDistance(1);
+            fail();
+        }
+        catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void midpointOfEmptySnapshotThrows() {
+        MarkerContainer container = new MarkerContainer();
+        publishTwoMarkers(container, 1);
+        MarkerContainer.Snapshot draft = container.edit();
+        draft.makeEmpty();
+        container.publish(draft);
+
+        MarkerContainer.Snapshot markers = container.acquire();
+        try {
+            markers.getMarkerMidpoint(0);
+        }
+        finally {
+            markers.release();
+        }
+    }
+
+    @Test
+    public void editKeepsWhatIsNotChanged() {
+        MarkerContainer container = new MarkerContainer();
+        publishTwoMarkers(container, 5);
+        container.updateDistance(42);
+
+        MarkerContainer.Snapshot markers = container.acquire();
+        assertEquals(42, markers.getDistance(), 0);
+        assertEquals(5, markers.getTimestamp());
+        assertEquals(2, markers.getNumMarkers());
+        markers.release();
+    }
+
+    @Test
+    public void updateDuringADetectionIsKept() {
+        MarkerContainer container = new MarkerContainer();
+        publishTwoMarkers(container, 1);
+
+        // A drag publishes the new path length while the next frame is being detected
+        MarkerContainer.Snapshot draft = container.edit();
+        draft.setMarkerCorners(new float[] {10, 10, 60, 10, 60, 60, 10, 60}, 1, 100, 100);
+        draft.setDistance(5);
+        draft.setTimestamp(2);
+        container.updateDistance(42);
+        container.publish(draft);
+
+        MarkerContainer.Snapshot markers = container.acquire();
+        assertEquals(3, markers.getVersion());
+        assertEquals(42, markers.getDistance(), 0);
+        assertEquals(1, markers.getNumMarkers());
+        assertEquals(2, markers.getTimestamp());
+        markers.release();
+        assertEquals(1, container.rebased());
+
+        // The next draft is copied from the rebased snapshot and has nothing to rebase
+        draft = container.edit();
+        draft.setDistance(7);
+        container.publish(draft);
+        markers = container.acquire();
+        assertEquals(7, markers.getDistance(), 0);
+        markers.release();
+        assertEquals(1, container.rebased());
+    }
+
+    @Test
+    public void staleDraftTakesWhatItDidNotChange() {
+        MarkerContainer container = new MarkerContainer();
+        publishTwoMarkers(container, 1);
+        MarkerContainer.Snapshot first = container.edit();
+        MarkerContainer.Snapshot second = container.edit();
+
+        first.setImagePoints(new double[] {1, 2}, 1);
+        first.setTimestamp(2);
+        container.publish(first);
+        // Changed by both, the one published last wins
+        second.setTimestamp(3);
+        second.makeEmpty();
+        container.updateDistance(42);
+        container.publish(second);
+
+        MarkerContainer.Snapshot markers = container.acquire();
+        assertEquals(3, markers.getTimestamp());
+        assertTrue(markers.isEmpty());
+        assertEquals(0, markers.getImagePointCount());
+        // Without markers the update is not kept
+        assertEquals(0, markers.getDistance(), 0);
+        markers.release();
+
+        first = container.edit();
+        second = container.edit();
+        first.setImagePoints(new double[] {1, 2, 3, 4}, 2);
+        container.publish(first);
+        second.setMarkerCorners(TWO_MARKERS, 2, 100, 100);
+        container.publish(second);
+
+        markers = container.acquire();
+        assertEquals(2, markers.getNumMarkers());
+        assertEquals(2, markers.getImagePointCount());
+        assertEquals(3, markers.getTimestamp());
+        markers.release();
+    }
+
+    @Test
+    public void projectedPointsBelongToTheirFrame() {
+        MarkerContainer container = new MarkerContainer();
+        MarkerContainer.Snapshot draft = container.edit();
+        draft.setMarkerCorners(TWO_MARKERS, 2, 100, 100);
+        draft.setImagePoints(new double[] {1, 2, 3, 4, 5, 6}, 3);
+        container.publish(draft);
+        MarkerContainer.Snapshot held = container.acquire();
+
+        // A longer path in the next frame does not touch the points of the held one
+        double[] longer = new double[40];
+        Arrays.fill(longer, 7);
+        draft = container.edit();
+        assertEquals(3, draft.getImagePointCount());
+        draft.setImagePoints(longer, 20);
+        container.publish(draft);
+
+        assertEquals(3, held.getImagePointCount());
+        assertEquals(6, held.getImagePoints()[5], 0);
+        held.release();
+
+        draft = container.edit();
+        draft.makeEmpty();
+        container.publish(draft);
+        MarkerContainer.Snapshot markers = container.acquire();
+        assertEquals(0, markers.getImagePointCount());
+        markers.release();
+    }
+
+    @Test
+    public void snapshotOfTheClosestFrameIsFound() {
+        MarkerContainer container = new MarkerContainer();
+        for (long t = 100; t <= 400; t += 100) {
+            publishTwoMarkers(container, t);
+        }
+
+        MarkerContainer.Snapshot markers = container.acquire(210);
+        assertEquals(200, markers.getTimestamp());
+        markers.release();
+        markers = container.acquire(1000);
+        assertEquals(400, markers.getTimestamp());
+        markers.release();
+
+        // Only the last few are kept
+        publishTwoMarkers(container, 500);
+        markers = container.acquire(100);
+        assertEquals(200, markers.getTimestamp());
+        markers.release();
+    }
+
+    @Test
+    public void publishingReusesSnapshots() {
+        MarkerContainer container = new MarkerContainer();
+        for (int i = 0; i < 10; i++) {
+            MarkerContainer.Snapshot markers = container.acquire();
+            publishTwoMarkers(container, i);
+            markers.release();
+        }
+        int warm = container.allocated();
+        for (int i = 0; i < 1000; i++) {
+            MarkerContainer.Snapshot markers = container.acquire();
+            publishTwoMarkers(container, i);
+            markers.release();
+        }
+        assertEquals(warm, container.allocated());
+    }
+
+    @Test
+    public void readerSeesOneFrame() throws InterruptedException {
+        final MarkerContainer container = new MarkerContainer();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong mixed = new AtomicLong();
+        Thread reader = new Thread(() -> {
+            long lastVersion = 0;
+            while (running.get()) {
+                MarkerContainer.Snapshot markers = container.acquire();
+                // Every field of a snapshot comes from the same frame, and versions only grow
+                if (markers.getDistance() != markers.getTimestamp()
+                        || markers.getDepths()[0] != markers.getTimestamp()
+                        || markers.getVersion() < lastVersion) {
+                    mixed.incrementAndGet();
+                }
+                lastVersion = markers.getVersion();
+                markers.release();
+            }
+        });
+        reader.start();
+        for (int i = 1; i <= 20000; i++) {
+            publishTwoMarkers(container, i);
+        }
+        running.set(false);
+        reader.join();
+
+        assertEquals(0, mixed.get());
+        assertEquals(20000, container.version());
+    }
+}
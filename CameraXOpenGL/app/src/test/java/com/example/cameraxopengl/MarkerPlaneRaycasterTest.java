@@ -0,0 +1,66 @@
+package com.example.cameraxopengl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MarkerPlaneRaycasterTest {
+    private static final double MM_TOLERANCE = 0.05;
+
+    private static CameraModel model() {
+        return new CameraModel("test", new CameraIntrinsics(720, 1280, 485, 1532, 359, 639,
+                new double[]{0.12, -0.25, 0.0014, -0.0011, 0.08}, 0.3, 12));
+    }
+
+    @Test
+    public void castHitsTheProjectedPoint() {
+        CameraModel model = model();
+        double[] rvec = {0.4, -0.3, 0.2};
+        double[] tvec = {15, -20, 300};
+        double[] r = new double[9];
+        MarkerPlaneRaycaster.rodrigues(rvec[0], rvec[1], rvec[2], r);
+
+        MarkerPlaneRaycaster raycaster = new MarkerPlaneRaycaster();
+        raycaster.setPose(model, rvec, tvec);
+
+        double[] pixel = new double[2];
+        double[] hit = new double[3];
+        for (double y = -60; y <= 60; y += 20) {
+            for (double x = -60; x <= 60; x += 20) {
+                // Marker point into the camera and through the lens
+                double cx = r[0] * x + r[1] * y + tvec[0];
+                double cy = r[3] * x + r[4] * y + tvec[1];
+                double cz = r[6] * x + r[7] * y + tvec[2];
+                assertTrue(model.project(cx, cy, cz, pixel));
+
+                assertTrue(raycaster.cast(pixel[0], pixel[1], hit));
+                assertEquals(x, hit[0], MM_TOLERANCE);
+                assertEquals(y, hit[1], MM_TOLERANCE);
+                assertEquals(0, hit[2], 0);
+            }
+        }
+    }
+
+    @Test
+    public void planeBehindTheCameraIsMissed() {
+        double[] identity = new double[9];
+        MarkerPlaneRaycaster.rodrigues(0, 0, 0, identity);
+        double[] hit = new double[3];
+
+        assertTrue(MarkerPlaneRaycaster.intersect(identity, new double[]{0, 0, 100}, 0.1, 0.2, hit));
+        assertEquals(10, hit[0], 1e-9);
+        assertEquals(20, hit[1], 1e-9);
+        assertFalse(MarkerPlaneRaycaster.intersect(identity, new double[]{0, 0, -100}, 0.1, 0.2, hit));
+    }
+
+    @Test
+    public void noPoseNoHit() {
+        MarkerPlaneRaycaster raycaster = new MarkerPlaneRaycaster();
+        assertFalse(raycaster.cast(360, 640, new double[3]));
+
+        raycaster.setPose(model(), new double[]{0, 0, 0}, new double[]{0, 0, 200});
+        assertTrue(raycaster.cast(360, 640, new double[3]));
+        raycaster.clearPose();
+        assertFalse(raycaster.hasPose());
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.cameraxopengl;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MeasurementEstimatorTest {
+
+    @Test
+    public void windowStatisticsMatchRecomputation() {
+        // Too tight a tolerance to converge within the window
+        MeasurementEstimator estimator = new MeasurementEstimator(15, 0.01, 0);
+        Random random = new Random(3);
+        double[] accepted = new double[40];
+        int count = 0;
+        for (int i = 0; i < 40; i++) {
+            double sample = 100 + random.nextGaussian();
+            if (estimator.add(sample)) {
+                accepted[count++] = sample;
+            }
+        }
+        assertEquals(40, count + estimator.rejected());
+
+        // Only the last 15 accepted samples are in the window
+        double[] window = Arrays.copyOfRange(accepted, count - 15, count);
+        double mean = 0;
+        for (double x : window) {
+            mean += x / 15;
+        }
+        double variance = 0;
+        for (double x : window) {
+            variance += (x - mean) * (x - mean) / 14;
+        }
+        Arrays.sort(window);
+
+        assertEquals(15, estimator.count());
+        assertEquals(mean, estimator.mean(), 1e-9);
+        assertEquals(variance, estimator.variance(), 1e-9);
+        assertEquals(window[7], estimator.median(), 0);
+    }
+
+    @Test
+    public void outliersAreRejected() {
+        MeasurementEstimator estimator = new MeasurementEstimator(20, 1, 0);
+        Random random = new Random(5);
+        for (int i = 0; i < 12; i++) {
+            estimator.add(250 + random.nextGaussian());
+        }
+        assertFalse(estimator.add(400));
+        assertEquals(1, estimator.rejected());
+        assertEquals(250, estimator.estimate(), 2);
+    }
+
+    @Test
+    public void convergesAndFreezes() {
+        MeasurementEstimator estimator = new MeasurementEstimator(30, 0.5, 0);
+        Random random = new Random(11);
+        int samples = 0;
+        while (!estimator.isConverged() && samples < 1000) {
+            estimator.add(120 + 0.5 * random.nextGaussian());
+            samples++;
+        }
+        assertTrue(estimator.isConverged());
+        assertTrue(estimator.halfWidth() <= 0.5);
+
+        double frozen = estimator.estimate();
+        assertFalse(estimator.add(120.3));
+        assertEquals(frozen, estimator.estimate(), 0);
+    }
+
+    @Test
+    public void startsOverWhenTheValueMoves() {
+        MeasurementEstimator estimator = new MeasurementEstimator(20, 0.1, 0);
+        Random random = new Random(13);
+        for (int i = 0; i < 20; i++) {
+            estimator.add(100 + 0.2 * random.nextGaussian());
+        }
+        for (int i = 0; i < 20; i++) {
+            estimator.add(150 + 0.2 * random.nextGaussian());
+        }
+        assertEquals(150, estimator.estimate(), 0.5);
+    }
+
+    @Test
+    public void labelShowsIntervalAndConvergence() {
+        MeasurementEstimator estimator = new MeasurementEstimator(10, 0.5, 0);
+        assertEquals("", estimator.describe());
+        estimator.add(100);
+        assertEquals("100 mm", estimator.describe());
+        estimator.add(101);
+        assertEquals("101 ± 1.0 mm", estimator.describe());
+        for (int i = 0; i < 8; i++) {
+            estimator.add(100.5);
+        }
+        assertTrue(estimator.describe().endsWith("✓"));
+    }
+
+    @Test
+    public void preciseSampleIsWeighedByItsInterval() {
+        MeasurementEstimator estimator = new MeasurementEstimator(30, 0.01, 0);
+        Random random = new Random(17);
+        for (int i = 0; i < 20; i++) {
+            estimator.add(100 + random.nextGaussian());
+        }
+        double window = estimator.halfWidth();
+        double mean = estimator.mean();
+
+        // As precise as the window: halfway, and the interval shrinks by sqrt(2)
+        assertTrue(estimator.addPrecise(mean + 1, window));
+        assertEquals(mean + 0.5, estimator.estimate(), 1e-9);
+        assertEquals(window / Math.sqrt(2), estimator.halfWidth(), 1e-9);
+
+        // Much more precise: close to the precise sample
+        estimator.addPrecise(mean + 1, window / 10);
+        assertEquals(mean + 1, estimator.estimate(), 0.02);
+        assertTrue(estimator.halfWidth() < window / 10);
+        assertEquals(mean, estimator.mean(), 0);
+    }
+
+    @Test
+    public void preciseSampleIsDroppedWhenStartingOver() {
+        MeasurementEstimator estimator = new MeasurementEstimator(10, 0.5, 0);
+        assertFalse(estimator.addPrecise(Double.NaN, 1));
+        assertFalse(estimator.addPrecise(100, 0));
+        assertTrue(estimator.addPrecise(100, 0.2));
+        assertEquals(100, estimator.estimate(), 0);
+        assertEquals(0.2, estimator.halfWidth(), 0);
+
+        estimator.reset();
+        assertFalse(estimator.hasPrecise());
+        assertTrue(Double.isNaN(estimator.estimate()));
+    }
+}
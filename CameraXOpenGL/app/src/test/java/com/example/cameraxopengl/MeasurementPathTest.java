@@ -0,0 +1,88 @@
+package com.example.cameraxopengl;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MeasurementPathTest {
+    private static final double TOLERANCE = 1e-9;
+
+    private static MeasurementPath square(double side) {
+        MeasurementPath path = new MeasurementPath();
+        path.add(0, 0, 0);
+        path.add(side, 0, 0);
+        path.add(side, side, 0);
+        path.add(0, side, 0);
+        return path;
+    }
+
+    @Test
+    public void squareLengthsAndArea() {
+        MeasurementPath path = square(10);
+
+        assertEquals(4, path.size());
+        assertEquals(10, path.segmentLength(1), TOLERANCE);
+        assertEquals(30, path.pathLength(), TOLERANCE);
+        assertEquals(10, path.closingLength(), TOLERANCE);
+        assertEquals(40, path.perimeter(), TOLERANCE);
+        assertEquals(100, path.area(), TOLERANCE);
+    }
+
+    @Test
+    public void movedPointUpdatesBothSegments() {
+        MeasurementPath path = square(10);
+        path.set(2, 10, 20, 0);
+
+        assertEquals(20, path.segmentLength(1), TOLERANCE);
+        assertEquals(Math.hypot(10, 10), path.segmentLength(2), TOLERANCE);
+        assertEquals(30 + Math.hypot(10, 10), path.pathLength(), TOLERANCE);
+        assertEquals(150, path.area(), TOLERANCE);
+    }
+
+    @Test
+    public void removedSlotIsReusedCleanly() {
+        MeasurementPath path = square(10);
+        path.removeLast();
+        path.removeLast();
+        path.add(10, 30, 0);
+
+        assertEquals(3, path.size());
+        assertEquals(40, path.pathLength(), TOLERANCE);
+        assertEquals(150, path.area(), TOLERANCE);
+    }
+
+    @Test
+    public void incrementalSumsMatchRecomputation() {
+        MeasurementPath path = new MeasurementPath();
+        Random random = new Random(7);
+        for (int i = 0; i < 100; i++) {
+            path.add(random.nextDouble() * 200, random.nextDouble() * 200, 0);
+        }
+        for (int i = 0; i < 1000; i++) {
+            path.set(random.nextInt(path.size()), random.nextDouble() * 200, random.nextDouble() * 200, 0);
+        }
+
+        double length = 0;
+        for (int i = 0; i + 1 < path.size(); i++) {
+            length += Math.hypot(path.getX(i + 1) - path.getX(i), path.getY(i + 1) - path.getY(i));
+        }
+        assertEquals(length, path.pathLength(), 1e-6);
+
+        MeasurementPath copy = new MeasurementPath();
+        copy.copyFrom(path);
+        assertEquals(path.area(), copy.area(), 0);
+        assertEquals(path.getY(99), copy.getY(99), 0);
+    }
+
+    @Test
+    public void describeShowsAreaOnlyForPolygons() {
+        MeasurementPath path = new MeasurementPath();
+        path.add(0, 0, 0);
+        assertEquals("", path.describe());
+        path.add(30, 40, 0);
+        assertEquals("50 mm", path.describe());
+        assertEquals("30 mm, area 1.0 cm², perimeter 40 mm", square(10).describe());
+    }
+}
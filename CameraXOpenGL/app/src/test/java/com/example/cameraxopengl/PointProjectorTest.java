@@ -0,0 +1,56 @@
+package com.example.cameraxopengl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PointProjectorTest {
+    private static CameraModel model() {
+        return new CameraModel("test", new CameraIntrinsics(720, 1280, 485, 1532, 359, 639,
+                new double[]{0.12, -0.25, 0.0014, -0.0011, 0.08}, 0.3, 12));
+    }
+
+    @Test
+    public void projectedPointsCastBackOntoThePlane() {
+        CameraModel model = model();
+        double[] rvec = {0.3, 0.2, -0.1};
+        double[] tvec = {10, 5, 250};
+        double[] points = {0, 0, 0, 40, 0, 0, 40, 30, 0, -20, 25, 0};
+        double[] pixels = new double[8];
+
+        PointProjector projector = new PointProjector(PointProjector.Backend.JAVA);
+        assertEquals(4, projector.project(model, rvec, tvec, points, 4, pixels));
+
+        MarkerPlaneRaycaster raycaster = new MarkerPlaneRaycaster();
+        raycaster.setPose(model, rvec, tvec);
+        double[] hit = new double[3];
+        for (int i = 0; i < 4; i++) {
+            assertTrue(raycaster.cast(pixels[2 * i], pixels[2 * i + 1], hit));
+            assertEquals(points[3 * i], hit[0], 0.05);
+            assertEquals(points[3 * i + 1], hit[1], 0.05);
+        }
+    }
+
+    @Test
+    public void pointsBehindTheCameraAreSkipped() {
+        // The marker is seen edge on, points far along its y axis end up behind the camera
+        double[] rvec = {Math.PI / 2 - 0.1, 0, 0};
+        double[] tvec = {0, 0, 100};
+        double[] points = {0, 0, 0, 0, -2000, 0};
+        double[] pixels = new double[4];
+
+        PointProjector projector = new PointProjector(PointProjector.Backend.JAVA);
+        assertEquals(1, projector.project(model(), rvec, tvec, points, 2, pixels));
+        assertFalse(Double.isNaN(pixels[0]));
+        assertTrue(Double.isNaN(pixels[2]));
+        assertTrue(Double.isNaN(pixels[3]));
+    }
+
+    @Test
+    public void autoUsesJavaForFewPoints() {
+        PointProjector projector = new PointProjector(PointProjector.Backend.AUTO);
+        assertTrue(projector.useJava(PointProjector.JAVA_MAX_POINTS));
+        assertFalse(projector.useJava(PointProjector.JAVA_MAX_POINTS + 1));
+        assertFalse(new PointProjector(PointProjector.Backend.OPENCV).useJava(1));
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.cameraxopengl;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RecordingSlotsTest {
+    @Test
+    public void framesAreTakenOldestFirst() throws InterruptedException {
+        RecordingSlots slots = new RecordingSlots(3);
+        int a = slots.acquire();
+        int b = slots.acquire();
+        slots.submit(b, 200, 2);
+        slots.submit(a, 300, 3);
+
+        int first = slots.take();
+        assertEquals(b, first);
+        assertEquals(200, slots.timestamp(first));
+        assertEquals(2, slots.handle(first));
+        int second = slots.take();
+        assertEquals(a, second);
+        assertEquals(300, slots.timestamp(second));
+    }
+
+    @Test
+    public void fullSlotsDropFramesWithoutWaiting() {
+        RecordingSlots slots = new RecordingSlots(2);
+        slots.submit(slots.acquire(), 1, 0);
+        slots.submit(slots.acquire(), 2, 0);
+        assertEquals(-1, slots.acquire());
+        assertEquals(-1, slots.acquire());
+        assertEquals(2, slots.submitted());
+        assertEquals(2, slots.dropped());
+    }
+
+    @Test
+    public void releasedSlotsAreReused() throws InterruptedException {
+        RecordingSlots slots = new RecordingSlots(2);
+        slots.submit(slots.acquire(), 1, 0);
+        int cancelled = slots.acquire();
+        slots.cancel(cancelled);
+        assertEquals(cancelled, slots.acquire());
+
+        slots.release(slots.take());
+        assertTrue(slots.acquire() >= 0);
+        assertEquals(0, slots.dropped());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void slotMustBeRenderedBeforeSubmit() {
+        RecordingSlots slots = new RecordingSlots(2);
+        slots.submit(0, 1, 0);
+    }
+
+    @Test
+    public void stopLetsTheReadyFramesThrough() throws InterruptedException {
+        RecordingSlots slots = new RecordingSlots(3);
+        slots.submit(slots.acquire(), 1, 0);
+        slots.submit(slots.acquire(), 2, 0);
+        slots.stop();
+        assertEquals(-1, slots.acquire());
+
+        assertTrue(slots.take() >= 0);
+        assertTrue(slots.take() >= 0);
+        assertEquals(-1, slots.take());
+    }
+
+    @Test
+    public void recorderThreadSeesEveryFrameInOrder() throws InterruptedException {
+        final RecordingSlots slots = new RecordingSlots(3);
+        final List<Long> encoded = new ArrayList<>();
+        Thread recorder = new Thread(() -> {
+            try {
+                int slot;
+                while ((slot = slots.take()) >= 0) {
+                    encoded.add(slots.timestamp(slot));
+                    slots.release(slot);
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        recorder.start();
+
+        for (long frame = 0; frame < 10000; frame++) {
+            int slot = slots.acquire();
+            if (slot >= 0) {
+                slots.submit(slot, frame, 0);
+            }
+        }
+        slots.stop();
+        recorder.join(10000);
+
+        assertFalse(recorder.isAlive());
+        assertEquals(slots.submitted(), encoded.size());
+        assertEquals(10000, slots.submitted() + slots.dropped());
+        for (int i = 1; i < encoded.size(); i++) {
+            assertTrue(encoded.get(i) > encoded.get(i - 1));
+        }
+    }
+}
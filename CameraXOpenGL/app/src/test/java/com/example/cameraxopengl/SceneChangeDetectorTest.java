@@ -0,0 +1,79 @@
+package com.example.cameraxopengl;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SceneChangeDetectorTest {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int STRIDE = 704;
+
+    // A textured frame with a little sensor noise
+    private static ByteBuffer frame(long noiseSeed, int squareX) {
+        Random noise = new Random(noiseSeed);
+        ByteBuffer buffer = ByteBuffer.allocate(STRIDE * HEIGHT);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int value = ((x / 40 + y / 40) % 2 == 0 ? 60 : 190) + noise.nextInt(7) - 3;
+                if (x >= squareX && x < squareX + 60 && y >= 200 && y < 260) {
+                    value = 0;
+                }
+                buffer.put(y * STRIDE + x, (byte) value);
+            }
+        }
+        return buffer;
+    }
+
+    @Test
+    public void noiseIsNotAChange() {
+        SceneChangeDetector detector = new SceneChangeDetector();
+        assertFalse(detector.isUnchanged(frame(1, 100), WIDTH, HEIGHT, STRIDE));
+        assertTrue(detector.isUnchanged(frame(2, 100), WIDTH, HEIGHT, STRIDE));
+        assertTrue(detector.isUnchanged(frame(3, 100), WIDTH, HEIGHT, STRIDE));
+        assertEquals(2, detector.skipped());
+    }
+
+    @Test
+    public void smallMovingObjectIsAChange() {
+        SceneChangeDetector detector = new SceneChangeDetector();
+        assertFalse(detector.isUnchanged(frame(1, 100), WIDTH, HEIGHT, STRIDE));
+        assertFalse(detector.isUnchanged(frame(2, 160), WIDTH, HEIGHT, STRIDE));
+        // The moved frame is the new reference
+        assertTrue(detector.isUnchanged(frame(3, 160), WIDTH, HEIGHT, STRIDE));
+    }
+
+    @Test
+    public void invalidatedAndLongRunsAreProcessed() {
+        SceneChangeDetector detector = new SceneChangeDetector();
+        ByteBuffer still = frame(1, 100);
+        assertFalse(detector.isUnchanged(still, WIDTH, HEIGHT, STRIDE));
+        detector.invalidate();
+        assertFalse(detector.isUnchanged(still, WIDTH, HEIGHT, STRIDE));
+
+        for (int i = 0; i < SceneChangeDetector.MAX_SKIPPED; i++) {
+            assertTrue(detector.isUnchanged(still, WIDTH, HEIGHT, STRIDE));
+        }
+        assertFalse(detector.isUnchanged(still, WIDTH, HEIGHT, STRIDE));
+    }
+
+    @Test
+    public void savingsFollowTheSkippedFrames() {
+        SceneChangeDetector detector = new SceneChangeDetector();
+        ByteBuffer still = frame(1, 100);
+        for (int i = 0; i < 4; i++) {
+            if (detector.isUnchanged(still, WIDTH, HEIGHT, STRIDE)) {
+                detector.recordSkipped(1_000_000);
+            }
+            else {
+                detector.recordProcessed(20_000_000);
+            }
+        }
+        assertEquals(0.75, detector.skipFraction(), 1e-9);
+        assertEquals(3 * 19_000_000L, detector.savedNanos());
+        assertEquals(57.0 / 80, detector.savedFraction(), 1e-9);
+    }
+}
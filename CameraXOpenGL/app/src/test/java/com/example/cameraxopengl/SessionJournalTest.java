@@ -0,0 +1,220 @@
+package com.example.cameraxopengl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SessionJournalTest {
+    // Small chunks so that the tests cross chunk boundaries
+    private static final int CHUNK = 16;
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("journal").toFile();
+    }
+
+    @After
+    public void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static SessionJournal open(File directory) throws IOException {
+        // Map the chunks on the calling thread
+        return SessionJournal.open(directory, CHUNK, Runnable::run);
+    }
+
+    private static void appendMarkers(SessionJournal journal, int i) {
+        journal.append(1000L * i, SessionJournal.KIND_MARKERS, 3, 7, new double[] {0.1, 0.2, 0.3},
+                new double[] {10, 20, 300 + i}, null, 100 + i, 0.5, i % 2 == 0);
+    }
+
+    @Test
+    public void nothingIsRecordedOutsideOfASession() throws IOException {
+        SessionJournal journal = open(directory);
+        appendMarkers(journal, 0);
+        assertEquals(0, journal.size());
+        journal.close();
+    }
+
+    @Test
+    public void recordsAcrossChunksAndSessions() throws IOException {
+        SessionJournal journal = open(directory);
+        assertEquals(0, journal.beginSession());
+        for (int i = 0; i < 3 * CHUNK + 5; i++) {
+            appendMarkers(journal, i);
+        }
+        assertEquals(1, journal.beginSession());
+        MeasurementPath path = new MeasurementPath();
+        path.add(0, 0, 0);
+        path.add(30, 40, 0);
+        journal.append(99_000, SessionJournal.KIND_PATH, 3, -1, null, null, path, path.pathLength(), Double.NaN, false);
+        journal.close();
+        assertEquals(0, journal.dropped());
+
+        SessionJournal reopened = open(directory);
+        assertEquals(3 * CHUNK + 6, reopened.size());
+        assertEquals(2, reopened.sessionCount());
+        SessionJournal.Session first = reopened.session(0);
+        assertEquals(0, first.firstRecord);
+        assertEquals(3 * CHUNK + 5, first.recordCount);
+
+        SessionJournal.Record record = new SessionJournal.Record();
+        reopened.read(2 * CHUNK + 1, record);
+        assertEquals(1000L * (2 * CHUNK + 1), record.timestamp);
+        assertEquals(0, record.session);
+        assertEquals(7, record.markerB);
+        assertEquals(300 + 2 * CHUNK + 1, record.tvec[2], 1e-3);
+        assertEquals(100 + 2 * CHUNK + 1, record.distance, 0);
+        assertFalse(record.isConverged());
+
+        SessionJournal.Session second = reopened.session(1);
+        reopened.read(second.firstRecord, record);
+        assertEquals(SessionJournal.KIND_PATH, record.kind);
+        assertEquals(1, record.session);
+        assertEquals(-1, record.markerB);
+        assertTrue(Float.isNaN(record.rvec[0]));
+        assertEquals(2, record.pointCount);
+        assertEquals(40, record.points[4], 0);
+        assertEquals(50, record.distance, 1e-9);
+        reopened.close();
+    }
+
+    @Test
+    public void longPathIsKeptWhole() throws IOException {
+        SessionJournal journal = open(directory);
+        journal.beginSession();
+        MeasurementPath path = new MeasurementPath();
+        for (int i = 0; i < 10; i++) {
+            path.add(i, 2 * i, 3 * i);
+        }
+        journal.append(1000, SessionJournal.KIND_PATH, 3, -1, null, null, path, path.pathLength(), Double.NaN, false);
+        appendMarkers(journal, 1);
+        journal.close();
+
+        SessionJournal reopened = open(directory);
+        SessionJournal.Record record = new SessionJournal.Record();
+        reopened.read(0, record);
+        assertEquals(10, record.pointCount);
+        assertEquals(9, record.points[27], 0);
+        assertEquals(27, record.points[29], 0);
+        reopened.read(1, record);
+        assertEquals(0, record.pointCount);
+        reopened.close();
+    }
+
+    @Test
+    public void nothingIsDroppedWhileTheMapperIsBusy() throws IOException, InterruptedException {
+        ExecutorService mapper = Executors.newSingleThreadExecutor();
+        CountDownLatch busy = new CountDownLatch(1);
+        // Keep the mapping thread busy with other IO, so no chunk is ready in time
+        mapper.execute(() -> {
+            try {
+                busy.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        SessionJournal journal = SessionJournal.open(directory, CHUNK, mapper);
+        journal.beginSession();
+        for (int i = 0; i < 3 * CHUNK; i++) {
+            appendMarkers(journal, i);
+        }
+        assertEquals(0, journal.dropped());
+        assertEquals(3 * CHUNK, journal.size());
+
+        // Closing waits for the queued mapping
+        busy.countDown();
+        journal.close();
+        assertTrue(mapper.awaitTermination(5, TimeUnit.SECONDS));
+
+        SessionJournal reopened = open(directory);
+        assertEquals(3 * CHUNK, reopened.session(0).recordCount);
+        SessionJournal.Record record = new SessionJournal.Record();
+        reopened.read(3 * CHUNK - 1, record);
+        assertEquals(1000L * (3 * CHUNK - 1), record.timestamp);
+        reopened.close();
+    }
+
+    @Test
+    public void recordsStayInTheirSessionWhileSessionsChange() throws IOException, InterruptedException {
+        final SessionJournal journal = open(directory);
+        journal.beginSession();
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread analyzer = new Thread(() -> {
+            for (int i = 0; done.getCount() > 0; i++) {
+                appendMarkers(journal, i);
+            }
+        });
+        analyzer.start();
+        for (int i = 0; i < 200; i++) {
+            journal.beginSession();
+        }
+        done.countDown();
+        analyzer.join();
+        journal.endSession();
+
+        SessionJournal.Record record = new SessionJournal.Record();
+        long total = 0;
+        for (int s = 0; s < journal.sessionCount(); s++) {
+            SessionJournal.Session session = journal.session(s);
+            assertEquals(total, session.firstRecord);
+            for (long r = session.firstRecord; r < session.firstRecord + session.recordCount; r++) {
+                journal.read(r, record);
+                assertEquals(s, record.session);
+            }
+            total += session.recordCount;
+        }
+        assertEquals(total, journal.size());
+        journal.close();
+    }
+
+    @Test
+    public void unfinishedSessionEndsWithItsLastRecord() throws IOException {
+        SessionJournal journal = open(directory);
+        journal.beginSession();
+        for (int i = 0; i < 5; i++) {
+            appendMarkers(journal, i);
+        }
+        // The app is killed without ending the session
+
+        SessionJournal reopened = open(directory);
+        assertEquals(5, reopened.session(0).recordCount);
+        reopened.beginSession();
+        appendMarkers(reopened, 5);
+        reopened.endSession();
+        assertEquals(5, reopened.session(1).firstRecord);
+        assertEquals(1, reopened.session(1).recordCount);
+        reopened.close();
+    }
+
+    @Test
+    public void findSessionByTime() throws IOException {
+        SessionJournal journal = open(directory);
+        long before = System.currentTimeMillis();
+        journal.beginSession();
+        journal.beginSession();
+
+        assertEquals(-1, journal.findSession(before - 1));
+        assertEquals(1, journal.findSession(System.currentTimeMillis()));
+        journal.close();
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.cameraxopengl;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.example.cameraxopengl.StartupTimeline.Milestone.CAMERA_OPEN;
+import static com.example.cameraxopengl.StartupTimeline.Milestone.FIRST_DETECTION;
+import static com.example.cameraxopengl.StartupTimeline.Milestone.LIBRARY_LOADED;
+import static org.junit.Assert.*;
+
+public class StartupTimelineTest {
+    private static final long MS = 1_000_000L;
+
+    @Test
+    public void onlyTheFirstMarkCounts() {
+        StartupTimeline timeline = new StartupTimeline(1000 * MS);
+
+        assertTrue(timeline.mark(LIBRARY_LOADED, 1040 * MS));
+        assertFalse(timeline.mark(LIBRARY_LOADED, 1090 * MS));
+
+        assertEquals(40, timeline.millisTo(LIBRARY_LOADED));
+        assertTrue(timeline.isReached(LIBRARY_LOADED));
+    }
+
+    @Test
+    public void unreachedMilestones() {
+        StartupTimeline timeline = new StartupTimeline(0);
+        timeline.mark(CAMERA_OPEN, 310 * MS);
+
+        assertEquals(-1, timeline.millisTo(FIRST_DETECTION));
+        assertFalse(timeline.isReached(FIRST_DETECTION));
+        assertTrue(timeline.toString().contains("CAMERA_OPEN=310ms"));
+        assertTrue(timeline.toString().contains("FIRST_DETECTION=-"));
+    }
+
+    @Test
+    public void dependentStepsRunWhenReached() {
+        StartupTimeline timeline = new StartupTimeline(0);
+        AtomicLong seen = new AtomicLong(-1);
+        timeline.whenReached(FIRST_DETECTION).thenAccept(seen::set);
+
+        assertEquals(-1, seen.get());
+        timeline.mark(FIRST_DETECTION, 500 * MS);
+        assertEquals(500 * MS, seen.get());
+    }
+}
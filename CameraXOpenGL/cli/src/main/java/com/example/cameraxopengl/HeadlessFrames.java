@@ -0,0 +1,173 @@
+package com.example.cameraxopengl;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import org.opencv.videoio.VideoCapture;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.opencv.imgcodecs.Imgcodecs.IMREAD_GRAYSCALE;
+import static org.opencv.imgcodecs.Imgcodecs.imread;
+import static org.opencv.imgproc.Imgproc.COLOR_BGR2GRAY;
+import static org.opencv.imgproc.Imgproc.cvtColor;
+import static org.opencv.videoio.Videoio.CAP_PROP_POS_MSEC;
+
+// HeadlessFrames reads the input of the headless runner one frame at a time, either the images of a
+// directory in name order or the frames of a video, such as the MP4 files the app records. Images
+// are only read off the disk here and decoded by Frame.decode() on the worker threads. A video can
+// only be decoded in order, so its frames are decoded here and handed over as luminance planes,
+// which is what the analyzer detects in. Not thread safe, next() is called by the thread that
+// submits.
+
+abstract class HeadlessFrames implements Closeable {
+    private static final String[] IMAGE_EXTENSIONS = {".jpg", ".jpeg", ".png", ".bmp", ".tif", ".tiff", ".webp"};
+
+    // One frame to measure, either an image file or a luminance plane that has been read
+    static class Frame {
+        final int index;
+        final String name;
+        final long timestampNanos;
+        private final File file;
+        private final byte[] luma;
+        private final int width;
+        private final int height;
+
+        private Frame(int index, String name, long timestampNanos, File file, byte[] luma, int width, int height) {
+            this.index = index;
+            this.name = name;
+            this.timestampNanos = timestampNanos;
+            this.file = file;
+            this.luma = luma;
+            this.width = width;
+            this.height = height;
+        }
+
+        static Frame image(int index, File file) {
+            return new Frame(index, file.getName(), -1, file, null, 0, 0);
+        }
+
+        static Frame luma(int index, String name, long timestampNanos, byte[] luma, int width, int height) {
+            return new Frame(index, name, timestampNanos, null, luma, width, height);
+        }
+
+        // An 8-bit grayscale Mat of the frame, owned by the caller
+        Mat decode() throws IOException {
+            if (file != null) {
+                Mat gray = imread(file.getPath(), IMREAD_GRAYSCALE);
+                if (gray.empty()) {
+                    gray.release();
+                    throw new IOException("Could not decode " + file);
+                }
+                return gray;
+            }
+            Mat gray = new Mat(height, width, CvType.CV_8UC1);
+            gray.put(0, 0, luma);
+            return gray;
+        }
+    }
+
+    // The next frame, or null after the last one
+    abstract Frame next() throws IOException;
+
+    // True if the frames are consecutive frames of one recording, whose measurements can be smoothed
+    abstract boolean isSequence();
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    static HeadlessFrames open(File input) throws IOException {
+        if (input.isDirectory()) {
+            return new ImageDirectory(input);
+        }
+        return new VideoFile(input);
+    }
+
+    static boolean isImage(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        for (String extension : IMAGE_EXTENSIONS) {
+            if (lower.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class ImageDirectory extends HeadlessFrames {
+        private final File[] files;
+        private int next = 0;
+
+        ImageDirectory(File directory) throws IOException {
+            File[] files = directory.listFiles((dir, name) -> isImage(name));
+            if (files == null) {
+                throw new IOException("Could not list " + directory);
+            }
+            Arrays.sort(files);
+            this.files = files;
+        }
+
+        @Override
+        Frame next() {
+            return next < files.length ? Frame.image(next, files[next++]) : null;
+        }
+
+        @Override
+        boolean isSequence() {
+            return false;
+        }
+    }
+
+    // A video, e.g. a screen recording of the app, decoded by OpenCV frame by frame on the submitting
+    // thread. Needs an OpenCV build with a video backend such as FFmpeg
+    static class VideoFile extends HeadlessFrames {
+        private final String name;
+        private final VideoCapture capture;
+        private final Mat frame = new Mat();
+        private final Mat gray = new Mat();
+        private int next = 0;
+
+        VideoFile(File file) throws IOException {
+            name = file.getName();
+            capture = new VideoCapture(file.getPath());
+            if (!capture.isOpened()) {
+                capture.release();
+                throw new IOException("Could not open the video " + file);
+            }
+        }
+
+        @Override
+        Frame next() {
+            if (!capture.read(frame) || frame.empty()) {
+                return null;
+            }
+            // The position is the presentation time of the frame that was just read
+            long timestamp = Math.round(capture.get(CAP_PROP_POS_MSEC) * 1e6);
+            if (frame.channels() > 1) {
+                cvtColor(frame, gray, COLOR_BGR2GRAY);
+            }
+            else {
+                frame.copyTo(gray);
+            }
+            byte[] luma = new byte[gray.width() * gray.height()];
+            gray.get(0, 0, luma);
+            return Frame.luma(next, name + "#" + next++, timestamp, luma, gray.width(), gray.height());
+        }
+
+        @Override
+        boolean isSequence() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            capture.release();
+            frame.release();
+            gray.release();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.example.cameraxopengl;
+
+import org.opencv.core.Mat;
+
+import java.io.IOException;
+import java.util.Locale;
+
+// HeadlessMeasurer runs the detect -> pose -> measure steps of GLRenderer on one frame at a time,
+// through the same MarkerPoses as the app. Each worker thread has its own measurer, whose detector
+// state and Mats are reused from frame to frame. The camera model comes from the runner, since it
+// depends on the frame size.
+
+class HeadlessMeasurer {
+    interface CameraModels {
+        CameraModel get(int width, int height);
+    }
+
+    // The markers of one frame. corners holds 8 floats (4 corners x, y) and rvecs and tvecs 3
+    // doubles per marker, in the order of ids. distance is between the first two markers, NaN if
+    // there are fewer
+    static class Result {
+        final HeadlessFrames.Frame frame;
+        final int width;
+        final int height;
+        final int[] ids;
+        final float[] corners;
+        final double[] rvecs;
+        final double[] tvecs;
+        final double distance;
+        final long nanos;
+        final String error;
+
+        Result(HeadlessFrames.Frame frame, int width, int height, int[] ids, float[] corners,
+               double[] rvecs, double[] tvecs, double distance, long nanos, String error) {
+            this.frame = frame;
+            this.width = width;
+            this.height = height;
+            this.ids = ids;
+            this.corners = corners;
+            this.rvecs = rvecs;
+            this.tvecs = tvecs;
+            this.distance = distance;
+            this.nanos = nanos;
+            this.error = error;
+        }
+
+        static Result failed(HeadlessFrames.Frame frame, long nanos, String error) {
+            return new Result(frame, 0, 0, new int[0], new float[0], new double[0], new double[0],
+                    Double.NaN, nanos, error);
+        }
+
+        // One line of JSON. smoothed is the distance after the estimator, NaN if not smoothed
+        String toJson(double smoothed) {
+            StringBuilder sb = new StringBuilder(256);
+            sb.append("{\"frame\":").append(frame.index);
+            sb.append(",\"source\":");
+            string(sb, frame.name);
+            if (frame.timestampNanos >= 0) {
+                sb.append(",\"timestamp\":").append(frame.timestampNanos);
+            }
+            sb.append(",\"width\":").append(width);
+            sb.append(",\"height\":").append(height);
+            sb.append(",\"millis\":");
+            number(sb, nanos / 1e6);
+            sb.append(",\"markers\":[");
+            for (int i = 0; i < ids.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append("{\"id\":").append(ids[i]);
+                sb.append(",\"corners\":");
+                array(sb, corners, 8 * i, 8);
+                sb.append(",\"rvec\":");
+                array(sb, rvecs, 3 * i, 3);
+                sb.append(",\"tvec\":");
+                array(sb, tvecs, 3 * i, 3);
+                sb.append('}');
+            }
+            sb.append("],\"distance\":");
+            number(sb, distance);
+            if (!Double.isNaN(smoothed)) {
+                sb.append(",\"distance_smoothed\":");
+                number(sb, smoothed);
+            }
+            if (error != null) {
+                sb.append(",\"error\":");
+                string(sb, error);
+            }
+            return sb.append('}').toString();
+        }
+    }
+
+    private final MarkerPoses poses = new MarkerPoses();
+    private final float[] scratch = new float[8];
+    private final float markerLength;
+    private final CameraModels models;
+
+    HeadlessMeasurer(float markerLength, CameraModels models) {
+        this.markerLength = markerLength;
+        this.models = models;
+    }
+
+    Result measure(HeadlessFrames.Frame frame) {
+        long start = System.nanoTime();
+        Mat gray = null;
+        try {
+            gray = frame.decode();
+            int width = gray.width();
+            int height = gray.height();
+
+            int count = poses.detect(gray);
+            int[] markerIds = new int[count];
+            float[] markerCorners = new float[8 * count];
+            double[] r = new double[3 * count];
+            double[] t = new double[3 * count];
+            double distance = Double.NaN;
+            if (count > 0) {
+                CameraModel model = models.get(width, height);
+                poses.estimatePoses(markerLength, model);
+                poses.readIds(markerIds);
+                MarkerContainer.readCorners(poses.getCorners(), markerCorners, scratch);
+                poses.readRvecs(r);
+                poses.readTvecs(t);
+                if (count >= 2) {
+                    distance = MarkerPoses.distance(t, 0, 1);
+                }
+            }
+            return new Result(frame, width, height, markerIds, markerCorners, r, t, distance, System.nanoTime() - start, null);
+        }
+        catch (IOException | RuntimeException e) {
+            return Result.failed(frame, System.nanoTime() - start, e.toString());
+        }
+        finally {
+            if (gray != null) {
+                gray.release();
+            }
+        }
+    }
+
+    void release() {
+        poses.release();
+    }
+
+    private static void array(StringBuilder sb, float[] values, int offset, int length) {
+        sb.append('[');
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            number(sb, values[offset + i]);
+        }
+        sb.append(']');
+    }
+
+    private static void array(StringBuilder sb, double[] values, int offset, int length) {
+        sb.append('[');
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            number(sb, values[offset + i]);
+        }
+        sb.append(']');
+    }
+
+    // JSON has no NaN or infinity
+    private static void number(StringBuilder sb, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            sb.append("null");
+        }
+        else {
+            sb.append(String.format(Locale.ROOT, "%.6g", value));
+        }
+    }
+
+    private static void string(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                sb.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            }
+            else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+}
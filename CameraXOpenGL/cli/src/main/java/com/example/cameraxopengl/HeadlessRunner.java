@@ -0,0 +1,245 @@
+package com.example.cameraxopengl;
+
+import org.opencv.core.Core;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// HeadlessRunner measures a directory of images or a video on a Linux machine, with
+// the detection and pose code of the app, and writes one JSON line per frame:
+//
+//     measure [--threads N] [--marker-length MM] [--intrinsics fx,fy,cx,cy[,k1,k2,p1,p2,k3]]
+//             [--output FILE] <image directory | video>
+//
+// The frames are measured on a fixed pool of threads, each with its own HeadlessMeasurer. At most
+// QUEUE_PER_THREAD frames per thread are in flight, and the results are written in input order, so
+// the output of two runs can be compared line by line. For a video, the distance between two
+// markers is also smoothed over the frames with the MeasurementEstimator of the app. A summary with
+// the throughput goes to stderr. Without --intrinsics the uncalibrated defaults of the app are used.
+
+class HeadlessRunner {
+    private static final int QUEUE_PER_THREAD = 4;
+    private static final String USAGE = "usage: measure [--threads N] [--marker-length MM] "
+            + "[--intrinsics fx,fy,cx,cy[,k1,k2,p1,p2,k3]] [--output FILE] <image directory | video>";
+
+    // Parsed command line
+    static class Options {
+        int threads = Runtime.getRuntime().availableProcessors();
+        float markerLength = 50;
+        double[] intrinsics;
+        File output;
+        File input;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (!arg.startsWith("--")) {
+                    if (options.input != null) {
+                        throw new IllegalArgumentException("More than one input: " + arg);
+                    }
+                    options.input = new File(arg);
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException(arg + " needs a value");
+                }
+                String value = args[++i];
+                switch (arg) {
+                    case "--threads":
+                        options.threads = Integer.parseInt(value);
+                        if (options.threads < 1) {
+                            throw new IllegalArgumentException("--threads must be at least 1");
+                        }
+                        break;
+                    case "--marker-length":
+                        options.markerLength = Float.parseFloat(value);
+                        break;
+                    case "--intrinsics":
+                        options.intrinsics = parseIntrinsics(value);
+                        break;
+                    case "--output":
+                        options.output = new File(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            if (options.input == null) {
+                throw new IllegalArgumentException("No input given");
+            }
+            return options;
+        }
+
+        // fx, fy, cx, cy and optionally the five distortion coefficients
+        static double[] parseIntrinsics(String value) {
+            String[] parts = value.split(",");
+            if (parts.length != 4 && parts.length != 9) {
+                throw new IllegalArgumentException("--intrinsics takes 4 or 9 values, got " + parts.length);
+            }
+            double[] intrinsics = new double[9];
+            for (int i = 0; i < parts.length; i++) {
+                intrinsics[i] = Double.parseDouble(parts[i].trim());
+            }
+            return intrinsics;
+        }
+    }
+
+    private final Options options;
+    private final ConcurrentHashMap<Long, CameraModel> models = new ConcurrentHashMap<>();
+    private final List<HeadlessMeasurer> measurers = new ArrayList<>();
+    private final ThreadLocal<HeadlessMeasurer> measurer;
+
+    private final MeasurementEstimator estimator = new MeasurementEstimator(30, 0.5, 0.002);
+    private long markerPair = -1;
+    private int frames = 0;
+    private int failed = 0;
+    private int markers = 0;
+
+    HeadlessRunner(Options options) {
+        this.options = options;
+        measurer = ThreadLocal.withInitial(() -> {
+            HeadlessMeasurer created = new HeadlessMeasurer(options.markerLength, this::model);
+            synchronized (measurers) {
+                measurers.add(created);
+            }
+            return created;
+        });
+    }
+
+    public static void main(String[] args) {
+        Options options;
+        try {
+            options = Options.parse(args);
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        try {
+            new HeadlessRunner(options).run();
+        }
+        catch (IOException | InterruptedException e) {
+            System.err.println("measure: " + e);
+            System.exit(1);
+        }
+    }
+
+    void run() throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(options.threads, new WorkerThreadFactory());
+        ArrayDeque<Future<HeadlessMeasurer.Result>> inFlight = new ArrayDeque<>();
+        int maxInFlight = QUEUE_PER_THREAD * options.threads;
+
+        try (HeadlessFrames input = HeadlessFrames.open(options.input);
+             Writer out = new BufferedWriter(new OutputStreamWriter(options.output != null
+                     ? new FileOutputStream(options.output) : System.out, StandardCharsets.UTF_8))) {
+            boolean smooth = input.isSequence();
+            HeadlessFrames.Frame frame;
+            while ((frame = input.next()) != null) {
+                final HeadlessFrames.Frame task = frame;
+                inFlight.add(executor.submit(() -> measurer.get().measure(task)));
+                if (inFlight.size() >= maxInFlight) {
+                    write(out, inFlight.remove(), smooth);
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                write(out, inFlight.remove(), smooth);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+            synchronized (measurers) {
+                for (HeadlessMeasurer m : measurers) {
+                    m.release();
+                }
+            }
+            for (CameraModel model : models.values()) {
+                model.release();
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.println(String.format(Locale.ROOT, "%d frames, %d failed, %d markers in %.2f s, %.1f frames/s on %d threads",
+                frames, failed, markers, seconds, frames / seconds, options.threads));
+    }
+
+    // Write the result of the oldest frame, in input order
+    private void write(Writer out, Future<HeadlessMeasurer.Result> future, boolean smooth)
+            throws IOException, InterruptedException {
+        HeadlessMeasurer.Result result;
+        try {
+            result = future.get();
+        }
+        catch (ExecutionException e) {
+            throw new IOException("Measuring failed", e.getCause());
+        }
+
+        frames++;
+        markers += result.ids.length;
+        if (result.error != null) {
+            failed++;
+        }
+        out.write(result.toJson(smooth ? smooth(result) : Double.NaN));
+        out.write('\n');
+    }
+
+    // Feed the distance to the estimator like GLRenderer does, starting over for another pair of
+    // markers. Called in frame order
+    private double smooth(HeadlessMeasurer.Result result) {
+        if (result.ids.length != 2) {
+            return Double.NaN;
+        }
+        long pair = Math.min(result.ids[0], result.ids[1]) * 1000L + Math.max(result.ids[0], result.ids[1]);
+        if (pair != markerPair) {
+            estimator.reset();
+            markerPair = pair;
+        }
+        estimator.add(result.distance);
+        return estimator.estimate();
+    }
+
+    // One model per frame size, with the given intrinsics or the defaults of the app
+    CameraModel model(int width, int height) {
+        return models.computeIfAbsent(((long) width << 32) | height, key -> {
+            double[] k = options.intrinsics;
+            CameraIntrinsics intrinsics = k == null ? CameraIntrinsics.defaults(width, height)
+                    : new CameraIntrinsics(width, height, k[0], k[1], k[2], k[3],
+                            new double[] {k[4], k[5], k[6], k[7], k[8]}, 0, 0);
+            return new CameraModel("headless", intrinsics);
+        });
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "measure-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
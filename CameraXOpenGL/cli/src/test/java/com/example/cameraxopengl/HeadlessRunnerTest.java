@@ -0,0 +1,49 @@
+package com.example.cameraxopengl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HeadlessRunnerTest {
+
+    @Test
+    public void parseOptions() {
+        HeadlessRunner.Options options = HeadlessRunner.Options.parse(new String[] {
+                "--threads", "3", "--marker-length", "40", "--intrinsics", "500, 510,320,240", "recording.mp4"});
+        assertEquals(3, options.threads);
+        assertEquals(40f, options.markerLength, 0);
+        assertArrayEquals(new double[] {500, 510, 320, 240, 0, 0, 0, 0, 0}, options.intrinsics, 0);
+        assertEquals("recording.mp4", options.input.getName());
+        assertNull(options.output);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void inputIsRequired() {
+        HeadlessRunner.Options.parse(new String[] {"--threads", "2"});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void intrinsicsNeedFourOrNineValues() {
+        HeadlessRunner.Options.parse(new String[] {"--intrinsics", "1,2,3", "images"});
+    }
+
+    @Test
+    public void jsonLine() {
+        HeadlessFrames.Frame frame = HeadlessFrames.Frame.luma(7, "a\"b#7", 123, new byte[0], 0, 0);
+        HeadlessMeasurer.Result result = new HeadlessMeasurer.Result(frame, 640, 480, new int[] {3},
+                new float[] {1, 2, 3, 4, 5, 6, 7, 8}, new double[] {0.5, 0, 0}, new double[] {0, 0, 250},
+                Double.NaN, 2_500_000, null);
+
+        assertEquals("{\"frame\":7,\"source\":\"a\\\"b#7\",\"timestamp\":123,\"width\":640,\"height\":480,"
+                + "\"millis\":2.50000,\"markers\":[{\"id\":3,\"corners\":[1.00000,2.00000,3.00000,4.00000,"
+                + "5.00000,6.00000,7.00000,8.00000],\"rvec\":[0.500000,0.00000,0.00000],"
+                + "\"tvec\":[0.00000,0.00000,250.000]}],\"distance\":null}", result.toJson(Double.NaN));
+    }
+
+    @Test
+    public void imageExtensions() {
+        assertTrue(HeadlessFrames.isImage("IMG_0001.JPG"));
+        assertTrue(HeadlessFrames.isImage("scan.png"));
+        assertFalse(HeadlessFrames.isImage("results.jsonl"));
+    }
+}
@@ -0,0 +1,424 @@
+package com.example.opencv_contrib_test;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import org.opencv.aruco.DetectorParameters;
+import org.opencv.aruco.Dictionary;
+import org.opencv.core.Mat;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.opencv.aruco.Aruco.DICT_6X6_50;
+import static org.opencv.aruco.Aruco.detectMarkers;
+import static org.opencv.aruco.Aruco.estimatePoseSingleMarkers;
+import static org.opencv.aruco.Aruco.getPredefinedDictionary;
+
+// Measures many gallery images in the background, for QA runs over hundreds of photos.
+//
+// The images are processed on a bounded pool of worker threads. Each worker keeps its own Mats,
+// DetectorParameters and Dictionary, which are reused from image to image and released when the
+// batch is done. Images are decoded by StillImageLoader, reduced and in grayscale. A submitting
+// thread feeds the pool through a short queue, so the whole list of images is never queued up at
+// once. Each result (marker ids, poses and pairwise distances) is appended to a CSV file as soon
+// as its image is done, in completion order. Progress and throughput are reported to a Listener on
+// the main thread.
+//
+// With a DetectionCache, images that have been measured before with the same detector profile are
+// not decoded or detected again, only their poses are estimated for the current marker length.
+
+class BatchMeasurement {
+    private static final String TAG = "BatchMeasurement";
+
+    // Queued images per worker thread
+    private static final int QUEUE_PER_THREAD = 2;
+
+    // Everything that affects the detected corners, see DetectionCache. Change it together with
+    // createParameters() or the way StillImageLoader reduces and refines
+    static final String DETECTOR_PROFILE = "DICT_6X6_50;minDistanceToBorder=0;adaptiveThreshWinSizeMax=400;"
+            + "minMarkerPx=" + StillImageLoader.MIN_MARKER_PX + ";markerFraction=" + StillImageLoader.DEFAULT_MARKER_FRACTION
+            + ";refine=cornerSubPix";
+
+    static final String CSV_HEADER = "image,type,id_a,id_b,rx,ry,rz,tx,ty,tz,distance,millis,error";
+
+    interface Listener {
+        void onProgress(Progress progress);
+
+        void onFinished(Progress progress, File csv);
+    }
+
+    // Counters of a running or finished batch
+    static class Progress {
+        final int total;
+        final int done;
+        final int failed;
+        final int markers;
+        final long elapsedNanos;
+
+        Progress(int total, int done, int failed, int markers, long elapsedNanos) {
+            this.total = total;
+            this.done = done;
+            this.failed = failed;
+            this.markers = markers;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        double imagesPerSecond() {
+            return elapsedNanos > 0 ? done * 1e9 / elapsedNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d/%d images, %d failed, %d markers, %.1f images/s",
+                    done, total, failed, markers, imagesPerSecond());
+        }
+    }
+
+    // Markers found in one image. Poses are (x, y, z) per marker, in the order of ids
+    static class Result {
+        final String image;
+        final int[] ids;
+        final double[] rvecs;
+        final double[] tvecs;
+        final long nanos;
+        final String error;
+
+        Result(String image, int[] ids, double[] rvecs, double[] tvecs, long nanos, String error) {
+            this.image = image;
+            this.ids = ids;
+            this.rvecs = rvecs;
+            this.tvecs = tvecs;
+            this.nanos = nanos;
+            this.error = error;
+        }
+    }
+
+    // The reusable state of one worker thread
+    private static class Worker {
+        final DetectorParameters parameters = createParameters();
+        final Dictionary dictionary = getPredefinedDictionary(DICT_6X6_50);
+        final Mat ids = new Mat();
+        final Mat rvecs = new Mat();
+        final Mat tvecs = new Mat();
+        final List<Mat> corners = new ArrayList<>();
+
+        void release() {
+            ids.release();
+            rvecs.release();
+            tvecs.release();
+        }
+    }
+
+    private final ContentResolver resolver;
+    private final DetectionCache cache;
+    private final Mat cameraMatrix;
+    private final Mat distCoeff;
+    private final float markerLength;
+    private final int threads;
+    private final Listener listener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final List<Worker> workers = new ArrayList<>();
+    private final ThreadLocal<Worker> worker = new ThreadLocal<Worker>() {
+        @Override
+        protected Worker initialValue() {
+            Worker created = new Worker();
+            synchronized (workers) {
+                workers.add(created);
+            }
+            return created;
+        }
+    };
+
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger markers = new AtomicInteger();
+    private volatile boolean cancelled = false;
+    private int total;
+    private long startNanos;
+    private Writer csv;
+
+    // cache may be null
+    BatchMeasurement(ContentResolver resolver, DetectionCache cache, Mat cameraMatrix, Mat distCoeff,
+                     float markerLength, int threads, Listener listener) {
+        this.resolver = resolver;
+        this.cache = cache;
+        this.cameraMatrix = cameraMatrix;
+        this.distCoeff = distCoeff;
+        this.markerLength = markerLength;
+        this.threads = threads;
+        this.listener = listener;
+    }
+
+    // The same parameters as detectMarker() in MainActivity
+    static DetectorParameters createParameters() {
+        DetectorParameters parameters = DetectorParameters.create();
+        parameters.set_minDistanceToBorder(0);
+        parameters.set_adaptiveThreshWinSizeMax(400);
+        return parameters;
+    }
+
+    // Measure the images in the background and write the results to csvFile
+    void start(final List<Uri> images, final File csvFile) {
+        total = images.size();
+        startNanos = System.nanoTime();
+
+        Thread submitter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    csv = new BufferedWriter(new FileWriter(csvFile));
+                    csv.write(CSV_HEADER + "\n");
+                    runBatch(images);
+                }
+                catch (IOException | InterruptedException e) {
+                    Log.e(TAG, "Batch measurement failed", e);
+                }
+                finally {
+                    finish(csvFile);
+                }
+            }
+        }, "BatchMeasurement");
+        submitter.start();
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    private void runBatch(List<Uri> images) throws InterruptedException {
+        // A full queue makes the submitting thread measure the image itself, which keeps it from
+        // running ahead of the workers
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_PER_THREAD * threads), new WorkerThreadFactory(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+
+        for (final Uri image : images) {
+            if (cancelled) {
+                break;
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!cancelled) {
+                        complete(measure(image, worker.get()));
+                    }
+                }
+            });
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    private Result measure(Uri uri, Worker w) {
+        long start = System.nanoTime();
+        String image = uri.toString();
+        try {
+            StillImageLoader.EncodedImage encoded;
+            try (InputStream stream = resolver.openInputStream(uri)) {
+                encoded = StillImageLoader.read(stream);
+            }
+            w.corners.clear();
+            int[] ids = detect(encoded, w);
+            int count = ids.length;
+            double[] rvecs = new double[3 * count];
+            double[] tvecs = new double[3 * count];
+            if (count > 0) {
+                estimatePoseSingleMarkers(w.corners, markerLength, cameraMatrix, distCoeff, w.rvecs, w.tvecs);
+                w.rvecs.get(0, 0, rvecs);
+                w.tvecs.get(0, 0, tvecs);
+            }
+            for (Mat corner : w.corners) {
+                corner.release();
+            }
+            return new Result(image, ids, rvecs, tvecs, System.nanoTime() - start, null);
+        }
+        catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Could not measure " + image, e);
+            return new Result(image, new int[0], new double[0], new double[0], System.nanoTime() - start, e.toString());
+        }
+    }
+
+    // Find the markers of the image, from the cache if it has been measured before. The corners
+    // are added to w.corners
+    private int[] detect(StillImageLoader.EncodedImage encoded, Worker w) throws IOException {
+        DetectionCache.Key key = null;
+        if (cache != null) {
+            key = DetectionCache.key(encoded.data, DETECTOR_PROFILE);
+            DetectionCache.Entry cached = cache.get(key);
+            if (cached != null) {
+                cached.toCorners(w.corners);
+                return cached.ids;
+            }
+        }
+
+        // Decode reduced and in grayscale, then refine the corners at full resolution
+        int sampleSize = StillImageLoader.sampleSize(StillImageLoader.defaultMarkerPx(encoded.width, encoded.height));
+        Mat gray = StillImageLoader.decodeGray(encoded, sampleSize);
+        detectMarkers(gray, w.dictionary, w.corners, w.ids, w.parameters);
+        gray.release();
+        StillImageLoader.refineCorners(encoded, w.corners, sampleSize);
+
+        int[] ids = new int[w.corners.size()];
+        if (ids.length > 0) {
+            w.ids.get(0, 0, ids);
+        }
+        if (cache != null) {
+            try {
+                cache.put(key, DetectionCache.Entry.of(ids, w.corners));
+            }
+            catch (IOException e) {
+                Log.w(TAG, "Could not cache the markers of an image", e);
+            }
+        }
+        return ids;
+    }
+
+    // Stream the result to the CSV file and report the progress
+    private void complete(Result result) {
+        synchronized (this) {
+            try {
+                csv.write(toCsv(result));
+                csv.flush();
+            }
+            catch (IOException e) {
+                Log.e(TAG, "Could not write the result of " + result.image, e);
+            }
+        }
+
+        if (result.error != null) {
+            failed.incrementAndGet();
+        }
+        markers.addAndGet(result.ids.length);
+        done.incrementAndGet();
+
+        final Progress progress = progress();
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onProgress(progress);
+            }
+        });
+    }
+
+    private void finish(final File csvFile) {
+        synchronized (this) {
+            if (csv != null) {
+                try {
+                    csv.close();
+                }
+                catch (IOException e) {
+                    Log.e(TAG, "Could not close " + csvFile, e);
+                }
+            }
+        }
+        synchronized (workers) {
+            for (Worker w : workers) {
+                w.release();
+            }
+            workers.clear();
+        }
+
+        final Progress progress = progress();
+        Log.i(TAG, "Batch finished: " + progress);
+        if (cache != null) {
+            Log.i(TAG, "Detection cache: " + cache.hits() + " hits, " + cache.misses() + " misses");
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onFinished(progress, csvFile);
+            }
+        });
+    }
+
+    private Progress progress() {
+        return new Progress(total, done.get(), failed.get(), markers.get(), System.nanoTime() - startNanos);
+    }
+
+    // One "marker" row per marker with its pose, one "distance" row per pair of markers with the
+    // distance between their centers, or a single "error" row
+    static String toCsv(Result result) {
+        StringBuilder sb = new StringBuilder();
+        String image = quote(result.image);
+        String millis = format(result.nanos / 1e6);
+
+        if (result.error != null) {
+            row(sb, image, "error", "", "", "", "", "", "", "", "", "", millis, quote(result.error));
+            return sb.toString();
+        }
+        double[] r = result.rvecs;
+        double[] t = result.tvecs;
+        for (int i = 0; i < result.ids.length; i++) {
+            row(sb, image, "marker", Integer.toString(result.ids[i]), "",
+                    format(r[3 * i]), format(r[3 * i + 1]), format(r[3 * i + 2]),
+                    format(t[3 * i]), format(t[3 * i + 1]), format(t[3 * i + 2]), "", millis, "");
+        }
+        for (int i = 0; i < result.ids.length; i++) {
+            for (int j = i + 1; j < result.ids.length; j++) {
+                row(sb, image, "distance", Integer.toString(result.ids[i]), Integer.toString(result.ids[j]),
+                        "", "", "", "", "", "", format(distance(t, i, j)), millis, "");
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void row(StringBuilder sb, String... fields) {
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(fields[i]);
+        }
+        sb.append('\n');
+    }
+
+    static double distance(double[] tvecs, int i, int j) {
+        double dx = tvecs[3 * i] - tvecs[3 * j];
+        double dy = tvecs[3 * i + 1] - tvecs[3 * j + 1];
+        double dz = tvecs[3 * i + 2] - tvecs[3 * j + 2];
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.6g", value);
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "BatchMeasurement-" + count.incrementAndGet());
+        }
+    }
+}
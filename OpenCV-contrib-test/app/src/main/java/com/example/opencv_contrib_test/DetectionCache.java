@@ -0,0 +1,262 @@
+package com.example.opencv_contrib_test;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Remembers the markers detected in still images, so that an image that is measured again skips
+// decoding and detection and only the pose is estimated, e.g. for another marker length.
+//
+// An entry is keyed by a 64-bit FNV-1a hash and the length of the encoded file, together with a
+// hash of the detector profile, a string that names everything that affects the detected corners.
+// A renamed or copied photo is found again, while other detector settings miss. Images without
+// markers are cached too.
+//
+// The entries are kept in memory and appended to one binary file as they are added:
+//
+//     header   magic "KLDC", format version
+//     record   content hash (8), file length (4), profile hash (8), marker count (2),
+//              then per marker the id (4) and four corners x, y (8 * 4)
+//
+// The whole file is read when the cache is opened, later records of the same key win. A record
+// that was cut short, e.g. when the app was killed while writing, is cut off the file, and an
+// unreadable file is started over. How many bytes were dropped is left to the caller to report.
+
+class DetectionCache {
+    static final int MAGIC = 0x4B4C4443;
+    static final int VERSION = 1;
+    private static final int HEADER_BYTES = 8;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // What identifies one detection: the encoded image and the detector profile
+    static class Key {
+        final long contentHash;
+        final int length;
+        final long profileHash;
+
+        Key(long contentHash, int length, long profileHash) {
+            this.contentHash = contentHash;
+            this.length = length;
+            this.profileHash = profileHash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return contentHash == other.contentHash && length == other.length && profileHash == other.profileHash;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = contentHash * 31 + profileHash;
+            return (int) (h ^ (h >>> 32)) * 31 + length;
+        }
+    }
+
+    // The markers of one image. corners holds the four corners of each marker as x, y pairs, in
+    // the order of ids and at the resolution of the original image.
+    static class Entry {
+        final int[] ids;
+        final float[] corners;
+
+        Entry(int[] ids, float[] corners) {
+            if (corners.length != 8 * ids.length) {
+                throw new IllegalArgumentException(ids.length + " markers need " + 8 * ids.length + " corner values");
+            }
+            this.ids = ids;
+            this.corners = corners;
+        }
+
+        // Take the markers as returned by detectMarkers
+        static Entry of(int[] ids, List<Mat> corners) {
+            float[] values = new float[8 * corners.size()];
+            float[] points = new float[8];
+            for (int i = 0; i < corners.size(); i++) {
+                corners.get(i).get(0, 0, points);
+                System.arraycopy(points, 0, values, 8 * i, 8);
+            }
+            return new Entry(ids, values);
+        }
+
+        // Fill corners with one 1x4 CV_32FC2 Mat per marker, as estimatePoseSingleMarkers takes them
+        void toCorners(List<Mat> corners) {
+            float[] points = new float[8];
+            for (int i = 0; i < ids.length; i++) {
+                System.arraycopy(this.corners, 8 * i, points, 0, 8);
+                Mat corner = new Mat(1, 4, CvType.CV_32FC2);
+                corner.put(0, 0, points);
+                corners.add(corner);
+            }
+        }
+    }
+
+    private final File file;
+    private final Map<Key, Entry> entries = new HashMap<>();
+    // Null once closed
+    private DataOutputStream out;
+    // Bytes of the file that could not be read when it was opened
+    private long discarded = 0;
+    private int hits = 0;
+    private int misses = 0;
+
+    private DetectionCache(File file) {
+        this.file = file;
+    }
+
+    // Read the cache in file, which is created if it does not exist. An unreadable file is
+    // started over
+    static DetectionCache open(File file) throws IOException {
+        DetectionCache cache = new DetectionCache(file);
+        long valid = 0;
+        if (file.length() >= HEADER_BYTES) {
+            try {
+                valid = cache.load();
+            }
+            catch (IOException e) {
+                cache.entries.clear();
+                cache.discarded = file.length();
+                valid = 0;
+            }
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (valid == 0) {
+                raf.setLength(0);
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+            }
+            else if (valid < raf.length()) {
+                cache.discarded = raf.length() - valid;
+                raf.setLength(valid);
+            }
+        }
+        cache.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        return cache;
+    }
+
+    // Read all records, returns the length of the file up to the end of the last whole record
+    private long load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a detection cache of version " + VERSION);
+            }
+            long valid = HEADER_BYTES;
+            while (true) {
+                try {
+                    Key key = new Key(in.readLong(), in.readInt(), in.readLong());
+                    int count = in.readUnsignedShort();
+                    int[] ids = new int[count];
+                    float[] corners = new float[8 * count];
+                    for (int i = 0; i < count; i++) {
+                        ids[i] = in.readInt();
+                        for (int j = 0; j < 8; j++) {
+                            corners[8 * i + j] = in.readFloat();
+                        }
+                    }
+                    entries.put(key, new Entry(ids, corners));
+                    valid += recordBytes(count);
+                }
+                catch (EOFException e) {
+                    return valid;
+                }
+            }
+        }
+    }
+
+    static int recordBytes(int markers) {
+        return 22 + 36 * markers;
+    }
+
+    // The key of an encoded image for the detector profile
+    static Key key(byte[] data, String profile) {
+        return new Key(hash(data), data.length, hash(profile.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // 64-bit FNV-1a
+    static long hash(byte[] data) {
+        long h = FNV_OFFSET;
+        for (byte b : data) {
+            h ^= b & 0xFF;
+            h *= FNV_PRIME;
+        }
+        return h;
+    }
+
+    // The markers found earlier, or null
+    synchronized Entry get(Key key) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            hits++;
+        }
+        else {
+            misses++;
+        }
+        return entry;
+    }
+
+    synchronized void put(Key key, Entry entry) throws IOException {
+        if (entry.ids.length > 0xFFFF) {
+            throw new IllegalArgumentException("Too many markers: " + entry.ids.length);
+        }
+        entries.put(key, entry);
+        if (out == null) {
+            // Closed while a batch was still running, keep it in memory only
+            return;
+        }
+        out.writeLong(key.contentHash);
+        out.writeInt(key.length);
+        out.writeLong(key.profileHash);
+        out.writeShort(entry.ids.length);
+        for (int i = 0; i < entry.ids.length; i++) {
+            out.writeInt(entry.ids[i]);
+            for (int j = 0; j < 8; j++) {
+                out.writeFloat(entry.corners[8 * i + j]);
+            }
+        }
+        out.flush();
+    }
+
+    // Bytes of an unfinished record or an unreadable file that were dropped when the cache was
+    // opened, 0 if the whole file was read
+    long discarded() {
+        return discarded;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized int hits() {
+        return hits;
+    }
+
+    synchronized int misses() {
+        return misses;
+    }
+
+    synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+}
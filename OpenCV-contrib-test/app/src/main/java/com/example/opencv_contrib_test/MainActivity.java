@@ -2,9 +2,9 @@ package com.example.opencv_contrib_test;
 
 import androidx.appcompat.app.AppCompatActivity;
 
+import android.content.ClipData;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.MediaStore;
@@ -12,6 +12,8 @@ import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.ImageView;
+import android.widget.ProgressBar;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import org.opencv.android.OpenCVLoader;
@@ -23,7 +25,7 @@ import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.Scalar;
 
-import java.io.FileNotFoundException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -38,7 +40,6 @@ import static org.opencv.aruco.Aruco.estimatePoseSingleMarkers;
 import static org.opencv.aruco.Aruco.getPredefinedDictionary;
 import static org.opencv.calib3d.Calib3d.Rodrigues;
 import static org.opencv.calib3d.Calib3d.drawFrameAxes;
-import static org.opencv.imgproc.Imgproc.COLOR_BGRA2BGR;
 import static org.opencv.imgproc.Imgproc.cvtColor;
 
 public class MainActivity extends AppCompatActivity {
@@ -46,9 +47,14 @@ public class MainActivity extends AppCompatActivity {
     Dictionary dictionary;
     ImageView imgView;
     private static final int PICK_IMAGE = 100;
+    private static final int PICK_BATCH = 101;
     Uri imageUri;
     Mat cameraMatrix;
     Mat distCoeff;
+    BatchMeasurement batch;
+    DetectionCache detectionCache;
+    ProgressBar batchProgress;
+    TextView batchStatus;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -93,6 +99,22 @@ public class MainActivity extends AppCompatActivity {
             }
         });
 
+        batchProgress = (ProgressBar) findViewById(R.id.batchProgress);
+        batchStatus = (TextView) findViewById(R.id.batchStatus);
+        Button buttonBatch = (Button) findViewById(R.id.buttonBatch);
+        buttonBatch.setOnClickListener(new View.OnClickListener() {
+
+            @Override
+            public void onClick(View arg0) {
+                if (batch != null) {
+                    batch.cancel();                         // Stop the running batch after the current images
+                }
+                else {
+                    selectBatch();                          // Select many images to measure in the background
+                }
+            }
+        });
+
     }
 
     // Function that allows the user to choose an image from the gallery
@@ -101,25 +123,45 @@ public class MainActivity extends AppCompatActivity {
         startActivityForResult(gallery, PICK_IMAGE);    // Sends this over to function onActivityResult
     }
 
+    // Function that allows the user to choose many images for a batch measurement
+    private void selectBatch() {
+        Intent gallery = new Intent(Intent.ACTION_GET_CONTENT);
+        gallery.setType("image/*");
+        gallery.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
+        startActivityForResult(gallery, PICK_BATCH);
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data){
         super.onActivityResult(requestCode, resultCode, data);
 
+        if (resultCode == RESULT_OK && requestCode == PICK_BATCH) {
+            List<Uri> images = new ArrayList<>();
+            ClipData clip = data.getClipData();
+            if (clip != null) {
+                for (int i = 0; i < clip.getItemCount(); i++) {
+                    images.add(clip.getItemAt(i).getUri());
+                }
+            }
+            else if (data.getData() != null) {
+                images.add(data.getData());
+            }
+            startBatch(images);
+            return;
+        }
+
         if (resultCode == RESULT_OK && requestCode == PICK_IMAGE){
             imageUri = data.getData();  // Get the filepath the the chosen image
 
             InputStream imageStream = null;   // Create an imageStream
             try {
                 imageStream = getContentResolver().openInputStream(imageUri); // Get the image from the imageURI
-                Bitmap yourSelectedImage = BitmapFactory.decodeStream(imageStream);   // Create a bitmap with the image
-                assert imageStream != null;   // Make sure that the imageStream is not null, then close it
+                assert imageStream != null;   // Make sure that the imageStream is not null
+                // Read the encoded image, it is decoded at a reduced size in detectMarker()
+                StillImageLoader.EncodedImage selectedImage = StillImageLoader.read(imageStream);
                 imageStream.close();
 
-                try {
-                    detectMarker(yourSelectedImage);  //Try detecting markers in the chosen image
-                } catch (FileNotFoundException e) {
-                    e.printStackTrace();
-                }
+                detectMarker(selectedImage);  //Try detecting markers in the chosen image
 
             } catch (IOException e) {
                 e.printStackTrace();
@@ -127,6 +169,74 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    // Measure the images on all but one core and stream the results to a CSV file in the app's
+    // external files directory
+    private void startBatch(List<Uri> images) {
+        if (images.isEmpty()) {
+            return;
+        }
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        File csv = new File(getExternalFilesDir(null), "batch-" + System.currentTimeMillis() + ".csv");
+
+        batchProgress.setMax(images.size());
+        batchProgress.setProgress(0);
+        batchProgress.setVisibility(View.VISIBLE);
+        batchStatus.setVisibility(View.VISIBLE);
+        batchStatus.setText("0/" + images.size() + " images");
+
+        batch = new BatchMeasurement(getContentResolver(), detectionCache(), cameraMatrix, distCoeff, 0.04f,
+                threads, new BatchMeasurement.Listener() {
+                    @Override
+                    public void onProgress(BatchMeasurement.Progress progress) {
+                        batchProgress.setProgress(progress.done);
+                        batchStatus.setText(progress.toString());
+                    }
+
+                    @Override
+                    public void onFinished(BatchMeasurement.Progress progress, File csv) {
+                        batch = null;
+                        batchProgress.setVisibility(View.GONE);
+                        batchStatus.setText(progress.toString() + "\n" + csv.getName());
+                        Toast.makeText(getApplicationContext(), "Results written to " + csv, Toast.LENGTH_LONG).show();
+                    }
+                });
+        batch.start(images, csv);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (batch != null) {
+            batch.cancel();
+        }
+        // A batch that is still finishing its current images keeps their markers in memory only
+        if (detectionCache != null) {
+            try {
+                detectionCache.close();
+            }
+            catch (IOException e) {
+                Log.w("DetectionCache", "Could not close the detection cache", e);
+            }
+            detectionCache = null;
+        }
+    }
+
+    // The markers of images measured before, opened on first use. Null if it cannot be opened
+    private DetectionCache detectionCache() {
+        if (detectionCache == null) {
+            try {
+                detectionCache = DetectionCache.open(new File(getFilesDir(), "detections.bin"));
+                if (detectionCache.discarded() > 0) {
+                    Log.w("DetectionCache", "Dropped " + detectionCache.discarded() + " unreadable bytes of the cache");
+                }
+            }
+            catch (IOException e) {
+                Log.w("DetectionCache", "Measuring without the detection cache", e);
+            }
+        }
+        return detectionCache;
+    }
+
     private void displayMarker(Mat image) {
         Bitmap result = Bitmap.createBitmap(image.cols(), image.rows(), Bitmap.Config.ARGB_8888);   // Make a bitmap
         Utils.matToBitmap(image, result);   // Make the input Mat image into a bitmap
@@ -134,16 +244,12 @@ public class MainActivity extends AppCompatActivity {
     }
 
     // This function is currently called OnActivityResult() which is called from selectImage()
-    private void detectMarker(Bitmap bitmap) throws FileNotFoundException {
+    private void detectMarker(StillImageLoader.EncodedImage encoded) throws IOException {
 
-        // Create a Mat and copy the input Bitmap into it
-        Mat originalImage = new Mat(bitmap.getHeight(), bitmap.getWidth(), CvType.CV_8UC3);
-        Utils.bitmapToMat(bitmap, originalImage);
-
-        // Create a new Mat that's the same as the one above but with three color channels instead of four
-        // This is a must since ArUco need the image to have three color channels in order to work
-        Mat image = new Mat();
-        cvtColor(originalImage, image, COLOR_BGRA2BGR);
+        // Decode straight into a grayscale Mat, reduced as far as the markers allow. ArUco works on
+        // grayscale images, so no color copy is needed
+        int sampleSize = StillImageLoader.sampleSize(StillImageLoader.defaultMarkerPx(encoded.width, encoded.height));
+        Mat image = StillImageLoader.decodeGray(encoded, sampleSize);
 
         // Set parameters for the detectMarkers function
         // These are needed for the function to work
@@ -158,9 +264,11 @@ public class MainActivity extends AppCompatActivity {
         // Detect the markers in the image and store their corners and ids in the corresponding variables
         detectMarkers(image, dictionary, corners, ids, parameters);
 
-        // Create an outputImage that is at first a copy of the original image
-        // This might not be necessary but is maybe a good practice???
-        Mat outputImage = image.clone();
+        // The camera matrix is for the full resolution, refine the corners there
+        StillImageLoader.refineCorners(encoded, corners, sampleSize);
+
+        // The reduced image is shown as it is, drawing into it would need the corners at its scale
+        Mat outputImage = image;
 
         // If any markers have been detected, draw the square around it and store it in outputImage
         if(corners.size() > 0){
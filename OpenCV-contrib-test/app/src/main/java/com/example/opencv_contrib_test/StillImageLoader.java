@@ -0,0 +1,191 @@
+package com.example.opencv_contrib_test;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+import org.opencv.android.Utils;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.Size;
+import org.opencv.core.TermCriteria;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import static org.opencv.imgcodecs.Imgcodecs.IMREAD_GRAYSCALE;
+import static org.opencv.imgcodecs.Imgcodecs.IMREAD_IGNORE_ORIENTATION;
+import static org.opencv.imgcodecs.Imgcodecs.IMREAD_REDUCED_GRAYSCALE_2;
+import static org.opencv.imgcodecs.Imgcodecs.IMREAD_REDUCED_GRAYSCALE_4;
+import static org.opencv.imgcodecs.Imgcodecs.IMREAD_REDUCED_GRAYSCALE_8;
+import static org.opencv.imgcodecs.Imgcodecs.imdecode;
+import static org.opencv.imgproc.Imgproc.COLOR_RGBA2GRAY;
+import static org.opencv.imgproc.Imgproc.cornerSubPix;
+import static org.opencv.imgproc.Imgproc.cvtColor;
+
+// Loads large still images for marker detection without decoding them at full resolution.
+//
+// The image is decoded straight into a grayscale Mat by Imgcodecs.imdecode, reduced by a power of
+// two that is picked so that the expected markers still are at least MIN_MARKER_PX pixels wide.
+// JPEG decoders do the reduction in the DCT, so the full resolution image never exists in memory.
+// After detection, the corners are scaled back to the original resolution and refined there with
+// cornerSubPix, in a small region around each corner that BitmapRegionDecoder decodes on its own.
+//
+// EXIF orientation is ignored in both steps, so the corners are in the stored pixel orientation,
+// just as with BitmapFactory.
+
+class StillImageLoader {
+    // Smallest marker side (pixels) in the reduced image that detects reliably
+    static final int MIN_MARKER_PX = 48;
+    // Expected marker side as a fraction of the shorter image side, when nothing better is known
+    static final double DEFAULT_MARKER_FRACTION = 0.05;
+    // Largest reduction imdecode supports
+    static final int MAX_SAMPLE_SIZE = 8;
+
+    private static final TermCriteria REFINE_CRITERIA = new TermCriteria(TermCriteria.EPS + TermCriteria.COUNT, 30, 0.01);
+
+    // An image that has been read into memory in its encoded form
+    static class EncodedImage {
+        final byte[] data;
+        final int width;
+        final int height;
+
+        EncodedImage(byte[] data, int width, int height) {
+            this.data = data;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    // Read the encoded image and its size, which only parses the header
+    static EncodedImage read(InputStream stream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int n;
+        while ((n = stream.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        byte[] data = out.toByteArray();
+
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            throw new IOException("Not a supported image");
+        }
+        return new EncodedImage(data, bounds.outWidth, bounds.outHeight);
+    }
+
+    // The largest power of two reduction that keeps a marker of expectedMarkerPx pixels (in the
+    // original image) at least MIN_MARKER_PX wide
+    static int sampleSize(double expectedMarkerPx) {
+        int sample = 1;
+        while (sample < MAX_SAMPLE_SIZE && expectedMarkerPx / (2 * sample) >= MIN_MARKER_PX) {
+            sample *= 2;
+        }
+        return sample;
+    }
+
+    static double defaultMarkerPx(int width, int height) {
+        return DEFAULT_MARKER_FRACTION * Math.min(width, height);
+    }
+
+    static int imdecodeFlags(int sampleSize) {
+        switch (sampleSize) {
+            case 2:
+                return IMREAD_REDUCED_GRAYSCALE_2 | IMREAD_IGNORE_ORIENTATION;
+            case 4:
+                return IMREAD_REDUCED_GRAYSCALE_4 | IMREAD_IGNORE_ORIENTATION;
+            case 8:
+                return IMREAD_REDUCED_GRAYSCALE_8 | IMREAD_IGNORE_ORIENTATION;
+            default:
+                return IMREAD_GRAYSCALE | IMREAD_IGNORE_ORIENTATION;
+        }
+    }
+
+    // Decode into a grayscale Mat reduced by sampleSize
+    static Mat decodeGray(EncodedImage image, int sampleSize) throws IOException {
+        MatOfByte buffer = new MatOfByte(image.data);
+        Mat gray = imdecode(buffer, imdecodeFlags(sampleSize));
+        buffer.release();
+        if (gray.empty()) {
+            throw new IOException("Could not decode the image");
+        }
+        return gray;
+    }
+
+    // Scale corners detected in an image reduced by sampleSize to the original resolution and
+    // refine them there. Each corners Mat is 1x4 CV_32FC2 as returned by detectMarkers
+    static void refineCorners(EncodedImage image, List<Mat> corners, int sampleSize) throws IOException {
+        float[] points = new float[8];
+        for (Mat corner : corners) {
+            corner.get(0, 0, points);
+            for (int i = 0; i < points.length; i++) {
+                // Pixel centers: x_original = (x_reduced + 0.5) * s - 0.5
+                points[i] = (points[i] + 0.5f) * sampleSize - 0.5f;
+            }
+            corner.put(0, 0, points);
+        }
+        if (sampleSize == 1) {
+            // Already detected at full resolution
+            return;
+        }
+
+        BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(image.data, 0, image.data.length, false);
+        Mat rgba = new Mat();
+        Mat gray = new Mat();
+        Mat point = new Mat(1, 1, CvType.CV_32FC2);
+        float[] xy = new float[2];
+        int[] bounds = new int[4];
+        try {
+            // The scaled corners are off by up to half a reduced pixel
+            int window = sampleSize + 2;
+            for (Mat corner : corners) {
+                corner.get(0, 0, points);
+                for (int i = 0; i < 4; i++) {
+                    region(points[2 * i], points[2 * i + 1], 2 * window, image.width, image.height, bounds);
+                    if (bounds[2] - bounds[0] <= 2 * window + 5 || bounds[3] - bounds[1] <= 2 * window + 5) {
+                        // Too close to the border of the image to refine
+                        continue;
+                    }
+                    Rect region = new Rect(bounds[0], bounds[1], bounds[2], bounds[3]);
+
+                    Bitmap bitmap = decoder.decodeRegion(region, null);
+                    Utils.bitmapToMat(bitmap, rgba);
+                    bitmap.recycle();
+                    cvtColor(rgba, gray, COLOR_RGBA2GRAY);
+
+                    xy[0] = points[2 * i] - region.left;
+                    xy[1] = points[2 * i + 1] - region.top;
+                    point.put(0, 0, xy);
+                    cornerSubPix(gray, point, new Size(window, window), new Size(-1, -1), REFINE_CRITERIA);
+                    point.get(0, 0, xy);
+                    points[2 * i] = xy[0] + region.left;
+                    points[2 * i + 1] = xy[1] + region.top;
+                }
+                corner.put(0, 0, points);
+            }
+        }
+        finally {
+            rgba.release();
+            gray.release();
+            point.release();
+            decoder.recycle();
+        }
+    }
+
+    // A square of radius pixels around (x, y), clipped to the image. Written to bounds as left, top,
+    // right and bottom, right and bottom exclusive like in a Rect
+    static void region(float x, float y, int radius, int width, int height, int[] bounds) {
+        int cx = Math.round(x);
+        int cy = Math.round(y);
+        bounds[0] = Math.max(0, cx - radius);
+        bounds[1] = Math.max(0, cy - radius);
+        bounds[2] = Math.min(width, cx + radius + 1);
+        bounds[3] = Math.min(height, cy + radius + 1);
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.opencv_contrib_test;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BatchMeasurementTest {
+    private static final int COLUMNS = BatchMeasurement.CSV_HEADER.split(",").length;
+
+    @Test
+    public void markerAndDistanceRows() {
+        BatchMeasurement.Result result = new BatchMeasurement.Result("content://images/1",
+                new int[]{3, 7}, new double[]{0.1, 0.2, 0.3, 0.4, 0.5, 0.6},
+                new double[]{0, 0, 0.5, 0.03, 0.04, 0.5}, 12_500_000, null);
+
+        String[] rows = BatchMeasurement.toCsv(result).split("\n");
+        assertEquals(3, rows.length);
+        for (String row : rows) {
+            assertEquals(COLUMNS, row.split(",", -1).length);
+        }
+        assertTrue(rows[0].startsWith("\"content://images/1\",marker,3,,0.100000,"));
+        assertEquals("\"content://images/1\",distance,3,7,,,,,,,0.0500000,12.5000,", rows[2]);
+    }
+
+    @Test
+    public void errorRowIsQuoted() {
+        BatchMeasurement.Result result = new BatchMeasurement.Result("a\"b", new int[0], new double[0],
+                new double[0], 1_000_000, "decode failed");
+
+        String row = BatchMeasurement.toCsv(result).trim();
+        assertEquals("\"a\"\"b\",error,,,,,,,,,,1.00000,\"decode failed\"", row);
+        assertEquals(COLUMNS, row.split(",", -1).length);
+    }
+
+    @Test
+    public void throughput() {
+        BatchMeasurement.Progress progress = new BatchMeasurement.Progress(100, 40, 1, 80, 8_000_000_000L);
+        assertEquals(5.0, progress.imagesPerSecond(), 1e-9);
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.opencv_contrib_test;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class DetectionCacheTest {
+    private static final byte[] IMAGE = "not really a jpeg".getBytes(StandardCharsets.UTF_8);
+
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("detections", ".bin");
+        file.delete();
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    private static DetectionCache.Entry twoMarkers() {
+        float[] corners = new float[16];
+        for (int i = 0; i < corners.length; i++) {
+            corners[i] = 10.5f * i;
+        }
+        return new DetectionCache.Entry(new int[] {3, 7}, corners);
+    }
+
+    @Test
+    public void entriesSurviveReopening() throws IOException {
+        DetectionCache.Key key = DetectionCache.key(IMAGE, "profile");
+        DetectionCache.Key empty = DetectionCache.key(new byte[] {1, 2, 3}, "profile");
+
+        DetectionCache cache = DetectionCache.open(file);
+        assertNull(cache.get(key));
+        cache.put(key, twoMarkers());
+        cache.put(empty, new DetectionCache.Entry(new int[0], new float[0]));
+        cache.close();
+
+        DetectionCache reopened = DetectionCache.open(file);
+        assertEquals(2, reopened.size());
+        DetectionCache.Entry entry = reopened.get(DetectionCache.key(IMAGE.clone(), "profile"));
+        assertArrayEquals(new int[] {3, 7}, entry.ids);
+        assertArrayEquals(twoMarkers().corners, entry.corners, 0);
+        assertEquals(0, reopened.get(empty).ids.length);
+        assertEquals(2, reopened.hits());
+        assertEquals(0, reopened.discarded());
+        reopened.close();
+    }
+
+    @Test
+    public void otherProfileMisses() throws IOException {
+        DetectionCache cache = DetectionCache.open(file);
+        cache.put(DetectionCache.key(IMAGE, "profile"), twoMarkers());
+        assertNull(cache.get(DetectionCache.key(IMAGE, "other profile")));
+        assertEquals(1, cache.misses());
+        cache.close();
+    }
+
+    @Test
+    public void unfinishedRecordIsCutOff() throws IOException {
+        DetectionCache cache = DetectionCache.open(file);
+        cache.put(DetectionCache.key(IMAGE, "profile"), twoMarkers());
+        cache.close();
+        long whole = file.length();
+        assertEquals(8 + DetectionCache.recordBytes(2), whole);
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(whole + 11);
+        }
+        DetectionCache reopened = DetectionCache.open(file);
+        assertEquals(1, reopened.size());
+        assertEquals(11, reopened.discarded());
+        assertEquals(whole, file.length());
+        reopened.close();
+    }
+
+    @Test
+    public void putAfterCloseKeepsTheEntryInMemory() throws IOException {
+        DetectionCache cache = DetectionCache.open(file);
+        cache.close();
+        long length = file.length();
+        cache.put(DetectionCache.key(IMAGE, "profile"), twoMarkers());
+        assertNotNull(cache.get(DetectionCache.key(IMAGE, "profile")));
+        assertEquals(length, file.length());
+        cache.close();
+    }
+
+    @Test
+    public void hashDependsOnEveryByte() {
+        byte[] other = IMAGE.clone();
+        other[other.length - 1] ^= 1;
+        assertNotEquals(DetectionCache.hash(IMAGE), DetectionCache.hash(other));
+        // FNV-1a 64 test vector
+        assertEquals(0xaf63dc4c8601ec8cL, DetectionCache.hash("a".getBytes(StandardCharsets.UTF_8)));
+    }
+}
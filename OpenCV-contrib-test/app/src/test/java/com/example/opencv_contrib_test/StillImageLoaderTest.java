@@ -0,0 +1,28 @@
+package com.example.opencv_contrib_test;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StillImageLoaderTest {
+
+    @Test
+    public void sampleSizeKeepsMarkersLargeEnough() {
+        assertEquals(1, StillImageLoader.sampleSize(60));
+        assertEquals(2, StillImageLoader.sampleSize(100));
+        assertEquals(4, StillImageLoader.sampleSize(200));
+        assertEquals(8, StillImageLoader.sampleSize(5000));
+        // 5 % of a 12 MP photo
+        assertEquals(2, StillImageLoader.sampleSize(StillImageLoader.defaultMarkerPx(4000, 3000)));
+    }
+
+    @Test
+    public void regionIsClippedToTheImage() {
+        int[] bounds = new int[4];
+        StillImageLoader.region(100.4f, 50.6f, 10, 640, 480, bounds);
+        assertArrayEquals(new int[] {90, 41, 111, 62}, bounds);
+
+        StillImageLoader.region(3f, 478f, 10, 640, 480, bounds);
+        assertArrayEquals(new int[] {0, 468, 14, 480}, bounds);
+    }
+}